@@ -0,0 +1,53 @@
+package com.habr.keycloak.model;
+
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.mock;
+
+/**
+ * Measures attribute access of user loaded from legacy database.
+ *
+ * @author Roman Chigvintsev
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UserModelBenchmark {
+    private LegacyDatabaseUserModel user;
+
+    @Setup
+    public void setUp() {
+        RealmModel realm = mock(RealmModel.class);
+        user = LegacyDatabaseUserModel.builder()
+                .session(mock(KeycloakSession.class))
+                .realm(realm)
+                .storageProviderModel(new ComponentModel())
+                .username("test")
+                .password("$2a$10$TKELuy2B9RK74p.K8Fg7Iu/Xblosk/h5wPaIBGHN8LIrEF/IV3XOy")
+                .firstName("John")
+                .lastName("Doe")
+                .withRole(new LegacyDatabaseRoleModel(realm, "ROLE_USER"))
+                .build();
+    }
+
+    @Benchmark
+    public Map<String, List<String>> getAttributes() {
+        return user.getAttributes();
+    }
+
+    @Benchmark
+    public String getFirstAttribute() {
+        return user.getFirstAttribute(UserModel.FIRST_NAME);
+    }
+}
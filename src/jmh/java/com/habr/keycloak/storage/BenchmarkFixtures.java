@@ -0,0 +1,126 @@
+package com.habr.keycloak.storage;
+
+import com.habr.keycloak.cache.LegacyDatabaseUserCache;
+import com.habr.keycloak.cache.UserPageCursorCache;
+import com.habr.keycloak.cluster.UserCacheInvalidationBroadcaster;
+import com.habr.keycloak.crypto.VerifiedCredentialCache;
+import com.habr.keycloak.metrics.LegacyDatabaseMetrics;
+import com.habr.keycloak.model.LegacyDatabaseRoleCatalog;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.apache.commons.dbcp2.BasicDataSource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.security.crypto.password.PasswordEncoder;
+
+import javax.sql.DataSource;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Shared setup of benchmarks.
+ *
+ * @author Roman Chigvintsev
+ */
+final class BenchmarkFixtures {
+    static final String REALM_ID = "SdHDHesCk4";
+    static final String STORAGE_PROVIDER_ID = "lB497ShddT";
+
+    private static final String SQL_CREATE_USERS = "CREATE TABLE users ("
+            + "username VARCHAR(64) PRIMARY KEY, "
+            + "password VARCHAR(255) NOT NULL, "
+            + "first_name VARCHAR(255), "
+            + "last_name VARCHAR(255))";
+    private static final String SQL_CREATE_AUTHORITIES = "CREATE TABLE authorities ("
+            + "username VARCHAR(64) NOT NULL, "
+            + "authority VARCHAR(64) NOT NULL, "
+            + "CONSTRAINT pk_authorities PRIMARY KEY (username, authority))";
+    private static final String SQL_INSERT_USER
+            = "INSERT INTO users (username, password, first_name, last_name) VALUES (?, ?, ?, ?)";
+    private static final String SQL_INSERT_AUTHORITY = "INSERT INTO authorities (username, authority) VALUES (?, ?)";
+
+    /**
+     * Role catalog that is shared by all providers like the one of storage provider factory.
+     */
+    private static final LegacyDatabaseRoleCatalog ROLE_CATALOG = new LegacyDatabaseRoleCatalog();
+
+    /**
+     * BCrypt hash of "secret" with cost 10.
+     */
+    static final String PASSWORD_HASH = "$2a$10$TKELuy2B9RK74p.K8Fg7Iu/Xblosk/h5wPaIBGHN8LIrEF/IV3XOy";
+
+    private BenchmarkFixtures() {
+    }
+
+    /**
+     * Creates pooled in-memory database with users named {@code user0}, {@code user1} etc. Every user has the given
+     * number of authorities. Database is dropped when data source is closed.
+     */
+    static BasicDataSource createDatabase(int userCount, int roleCount) {
+        BasicDataSource database = new BasicDataSource();
+        database.setUrl("jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1");
+        database.setMaxTotal(Runtime.getRuntime().availableProcessors());
+        database.setMaxIdle(Runtime.getRuntime().availableProcessors());
+        database.addConnectionProperty("DB_CLOSE_ON_EXIT", "FALSE");
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(database);
+        jdbcTemplate.execute(SQL_CREATE_USERS);
+        jdbcTemplate.execute(SQL_CREATE_AUTHORITIES);
+
+        List<Object[]> users = new ArrayList<>();
+        List<Object[]> authorities = new ArrayList<>();
+        for (int i = 0; i < userCount; i++) {
+            String username = getUsername(i);
+            users.add(new Object[]{username, PASSWORD_HASH, "First" + i, "Last" + i});
+            for (int j = 0; j < roleCount; j++) {
+                authorities.add(new Object[]{username, "ROLE_" + j});
+            }
+            if (authorities.size() >= 10000) {
+                jdbcTemplate.batchUpdate(SQL_INSERT_AUTHORITY, authorities);
+                authorities.clear();
+            }
+        }
+        jdbcTemplate.batchUpdate(SQL_INSERT_USER, users);
+        jdbcTemplate.batchUpdate(SQL_INSERT_AUTHORITY, authorities);
+        return database;
+    }
+
+    static void closeDatabase(BasicDataSource database) throws SQLException {
+        new JdbcTemplate(database).execute("SHUTDOWN");
+        database.close();
+    }
+
+    static String getUsername(int index) {
+        return "user" + index;
+    }
+
+    static RealmModel createRealm() {
+        RealmModel realm = mock(RealmModel.class);
+        when(realm.getId()).thenReturn(REALM_ID);
+        return realm;
+    }
+
+    static ComponentModel createComponentModel() {
+        ComponentModel componentModel = new ComponentModel();
+        componentModel.setId(STORAGE_PROVIDER_ID);
+        return componentModel;
+    }
+
+    static LegacyDatabaseUserStorageProvider createProvider(KeycloakSession session,
+                                                            ComponentModel componentModel,
+                                                            DataSource dataSource,
+                                                            LegacyDatabaseUserLoader userLoader,
+                                                            PasswordEncoder passwordEncoder,
+                                                            LegacyDatabaseUserCache userCache,
+                                                            VerifiedCredentialCache credentialCache) {
+        return new LegacyDatabaseUserStorageProvider(session, componentModel, dataSource, () -> SqlDialect.H2,
+                userLoader, passwordEncoder, userCache, ROLE_CATALOG, credentialCache, LegacyDatabaseUserImporter.disabled(),
+                LegacyDatabaseUserEmailLookup.disabled(), LegacyDatabaseLoginAuditor.disabled(),
+                LegacyDatabasePasswordUpdater.disabled(), UserCacheInvalidationBroadcaster.disabled(),
+                UserPageCursorCache.disabled(), new LegacyDatabaseMetrics());
+    }
+}
@@ -0,0 +1,66 @@
+package com.habr.keycloak.storage;
+
+import com.habr.keycloak.cache.LegacyDatabaseUserCache;
+import com.habr.keycloak.crypto.VerifiedCredentialCache;
+import org.keycloak.credential.CredentialInput;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserCredentialModel;
+import org.apache.commons.dbcp2.BasicDataSource;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.mock;
+
+/**
+ * Measures password validation of user with BCrypt hash of cost 10, with and without verified credential cache.
+ *
+ * @author Roman Chigvintsev
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CredentialValidationBenchmark {
+    @Param({"disabled", "enabled"})
+    public String credentialCache;
+
+    private BasicDataSource database;
+    private LegacyDatabaseUserStorageProvider provider;
+    private RealmModel realm;
+    private UserModel user;
+    private CredentialInput credentialInput;
+
+    @Setup
+    public void setUp() {
+        database = BenchmarkFixtures.createDatabase(1, 1);
+        VerifiedCredentialCache cache = "enabled".equals(credentialCache)
+                ? new VerifiedCredentialCache(1000, Duration.ofHours(1))
+                : VerifiedCredentialCache.disabled();
+        provider = BenchmarkFixtures.createProvider(mock(KeycloakSession.class),
+                BenchmarkFixtures.createComponentModel(), database,
+                LegacyDatabaseUserLoader.create(LegacyDatabaseUserLoader.Strategy.JOIN, database, null),
+                new BCryptPasswordEncoder(),
+                LegacyDatabaseUserCache.disabled(), cache);
+        realm = BenchmarkFixtures.createRealm();
+        user = provider.getUserByUsername(BenchmarkFixtures.getUsername(0), realm);
+        credentialInput = UserCredentialModel.password("secret");
+    }
+
+    @TearDown
+    public void tearDown() throws SQLException {
+        BenchmarkFixtures.closeDatabase(database);
+    }
+
+    @Benchmark
+    public boolean isValid() {
+        return provider.isValid(realm, user, credentialInput);
+    }
+}
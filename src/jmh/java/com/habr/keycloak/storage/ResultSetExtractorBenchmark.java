@@ -0,0 +1,50 @@
+package com.habr.keycloak.storage;
+
+import com.habr.keycloak.model.LegacyDatabaseUser;
+import org.h2.tools.SimpleResultSet;
+import org.openjdk.jmh.annotations.*;
+
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures mapping of joined user rows into user without database round trip.
+ *
+ * @author Roman Chigvintsev
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResultSetExtractorBenchmark {
+    @Param({"1", "10", "100"})
+    public int roleCount;
+
+    private SimpleResultSet resultSet;
+    private LegacyDatabaseUserResultSetExtractor extractor;
+
+    @Setup
+    public void setUp() {
+        resultSet = new SimpleResultSet();
+        resultSet.setAutoClose(false);
+        resultSet.addColumn("username", Types.VARCHAR, 64, 0);
+        resultSet.addColumn("password", Types.VARCHAR, 255, 0);
+        resultSet.addColumn("first_name", Types.VARCHAR, 255, 0);
+        resultSet.addColumn("last_name", Types.VARCHAR, 255, 0);
+        resultSet.addColumn("authority", Types.VARCHAR, 64, 0);
+        for (int i = 0; i < roleCount; i++) {
+            resultSet.addRow("test", BenchmarkFixtures.PASSWORD_HASH, "John", "Doe", "ROLE_" + i);
+        }
+        extractor = new LegacyDatabaseUserResultSetExtractor();
+    }
+
+    @Benchmark
+    public List<LegacyDatabaseUser> extractData() throws SQLException {
+        resultSet.beforeFirst();
+        return extractor.extractData(resultSet);
+    }
+}
@@ -0,0 +1,51 @@
+package com.habr.keycloak.storage;
+
+import com.habr.keycloak.model.LegacyDatabaseUser;
+import org.apache.commons.dbcp2.BasicDataSource;
+import org.openjdk.jmh.annotations.*;
+
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares user loading strategies depending on number of user authorities.
+ *
+ * @author Roman Chigvintsev
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UserLoadingBenchmark {
+    @Param({"JOIN", "AGGREGATE", "TWO_QUERIES"})
+    public LegacyDatabaseUserLoader.Strategy strategy;
+
+    @Param({"1", "10", "100"})
+    public int roleCount;
+
+    @Param({"1000"})
+    public int userCount;
+
+    private BasicDataSource database;
+    private LegacyDatabaseUserLoader loader;
+    private int index;
+
+    @Setup
+    public void setUp() {
+        database = BenchmarkFixtures.createDatabase(userCount, roleCount);
+        loader = LegacyDatabaseUserLoader.create(strategy, database, SqlDialect.H2);
+    }
+
+    @TearDown
+    public void tearDown() throws SQLException {
+        BenchmarkFixtures.closeDatabase(database);
+    }
+
+    @Benchmark
+    public LegacyDatabaseUser findUserByName() {
+        index = (index + 1) % userCount;
+        return loader.findUserByName(BenchmarkFixtures.getUsername(index));
+    }
+}
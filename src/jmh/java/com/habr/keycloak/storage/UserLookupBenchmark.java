@@ -0,0 +1,111 @@
+package com.habr.keycloak.storage;
+
+import com.habr.keycloak.cache.LegacyDatabaseUserCache;
+import com.habr.keycloak.crypto.VerifiedCredentialCache;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.storage.StorageId;
+import org.apache.commons.dbcp2.BasicDataSource;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.security.crypto.password.NoOpPasswordEncoder;
+
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.mock;
+
+/**
+ * Measures user lookup by name and by id. Every operation creates new provider as Keycloak does for every session,
+ * so that only the user cache shared between sessions is in effect.
+ * <p>
+ * In {@code cold} mode the user cache is disabled and every lookup queries database. In {@code cached} mode all
+ * users are loaded into the cache during setup.
+ *
+ * @author Roman Chigvintsev
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UserLookupBenchmark {
+    @Param({"cold", "cached"})
+    public String cache;
+
+    @Param({"10000"})
+    public int userCount;
+
+    @Param({"5"})
+    public int roleCount;
+
+    private BasicDataSource database;
+    private KeycloakSession session;
+    private ComponentModel componentModel;
+    private RealmModel realm;
+    private LegacyDatabaseUserLoader userLoader;
+    private LegacyDatabaseUserCache userCache;
+    private VerifiedCredentialCache credentialCache;
+    private String[] usernames;
+    private String[] userIds;
+
+    @Setup
+    public void setUp() {
+        database = BenchmarkFixtures.createDatabase(userCount, roleCount);
+        session = mock(KeycloakSession.class);
+        componentModel = BenchmarkFixtures.createComponentModel();
+        realm = BenchmarkFixtures.createRealm();
+        userLoader = LegacyDatabaseUserLoader.create(LegacyDatabaseUserLoader.Strategy.JOIN, database, null);
+        userCache = "cached".equals(cache)
+                ? LegacyDatabaseUserCache.builder().maxSize(userCount).expireAfterWrite(Duration.ofHours(1)).build()
+                : LegacyDatabaseUserCache.disabled();
+        credentialCache = VerifiedCredentialCache.disabled();
+
+        usernames = new String[userCount];
+        userIds = new String[userCount];
+        for (int i = 0; i < userCount; i++) {
+            usernames[i] = BenchmarkFixtures.getUsername(i);
+            userIds[i] = new StorageId(BenchmarkFixtures.STORAGE_PROVIDER_ID, usernames[i]).getId();
+            if (userCache.isEnabled()) {
+                createProvider().getUserByUsername(usernames[i], realm);
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws SQLException {
+        BenchmarkFixtures.closeDatabase(database);
+    }
+
+    @Benchmark
+    public UserModel getUserByUsername(Cursor cursor) {
+        return createProvider().getUserByUsername(usernames[cursor.next(userCount)], realm);
+    }
+
+    @Benchmark
+    public UserModel getUserById(Cursor cursor) {
+        return createProvider().getUserById(userIds[cursor.next(userCount)], realm);
+    }
+
+    private LegacyDatabaseUserStorageProvider createProvider() {
+        return BenchmarkFixtures.createProvider(session, componentModel, database, userLoader,
+                NoOpPasswordEncoder.getInstance(), userCache, credentialCache);
+    }
+
+    /**
+     * Iterates over users so that every thread looks up different users in round-robin fashion.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int index;
+
+        int next(int bound) {
+            int result = index;
+            index = (index + 1) % bound;
+            return result;
+        }
+    }
+}
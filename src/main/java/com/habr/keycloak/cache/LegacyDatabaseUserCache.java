@@ -0,0 +1,527 @@
+package com.habr.keycloak.cache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.habr.keycloak.model.LegacyDatabaseUser;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.Setter;
+import org.jboss.logging.Logger;
+import org.springframework.dao.DataAccessException;
+import org.springframework.util.Assert;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Cache of users loaded from legacy database that is shared between all Keycloak sessions. Cache entries are
+ * evicted when cache size exceeds maximum size or when they are expired after write or after access.
+ * <p>
+ * Besides found users cache remembers usernames that were not found for a short period of time (negative cache)
+ * and may reject unknown usernames without loading them using {@link UsernameBloomFilter}.
+ * <p>
+ * When load timeout is set concurrent loads of the same user are coalesced with {@link SingleFlight} even if caching
+ * is disabled, so that only one query is executed for all of them.
+ * <p>
+ * When stale cache is enabled every loaded user is kept for a longer time after it is expired in the main cache. If
+ * user cannot be loaded since legacy database is unavailable (loader throws {@link DataAccessException}) stale user
+ * is returned instead and user is refreshed in background (stale-while-revalidate).
+ * <p>
+ * Invalidation also affects loads that are in progress: subsequent lookups do not wait for them and their results are
+ * not cached, since they may have been read from legacy database before the change that caused invalidation.
+ *
+ * @author Roman Chigvintsev
+ */
+public class LegacyDatabaseUserCache {
+    private static final Logger log = Logger.getLogger(LegacyDatabaseUserCache.class);
+
+    /**
+     * Number of stripes of invalidation counters. It must be a power of two.
+     */
+    private static final int INVALIDATION_STRIPES = 1024;
+
+    private final Cache<UserCacheKey, LegacyDatabaseUser> users;
+    private final Cache<UserCacheKey, Boolean> missingUsers;
+    private final SingleFlight<UserCacheKey, LegacyDatabaseUser> loads;
+    private final Cache<UserCacheKey, LegacyDatabaseUser> staleUsers;
+    private final Executor refreshExecutor;
+    private final Set<UserCacheKey> refreshingUsers = ConcurrentHashMap.newKeySet();
+    /**
+     * Numbers of invalidations of single users by stripes of usernames. Loaded user is not cached when it is changed
+     * during the load. Invalidation of one user affects only loads of users in the same stripe, so that steady
+     * invalidations of single users do not prevent caching of all other users.
+     */
+    private final AtomicLongArray userInvalidations = new AtomicLongArray(INVALIDATION_STRIPES);
+    /**
+     * Number of invalidations of realms and of the whole cache. They affect loads of all users.
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * Filter of existing usernames. It is {@code null} until filter is built.
+     */
+    @Setter
+    @Getter
+    private volatile UsernameBloomFilter usernameFilter;
+
+    private final LongAdder negativeCacheHits = new LongAdder();
+    private final LongAdder usernameFilterRejections = new LongAdder();
+    private final LongAdder usernameFilterFalsePositives = new LongAdder();
+    private final LongAdder staleHits = new LongAdder();
+
+    /**
+     * Creates new user cache.
+     *
+     * @param maxSize                  maximum number of cached users (zero disables caching)
+     * @param expireAfterWrite         time after which cached user is expired since it was loaded
+     *                                 (may be {@code null})
+     * @param expireAfterAccess        time after which cached user is expired since it was accessed last time
+     *                                 (may be {@code null})
+     * @param negativeMaxSize          maximum number of cached usernames that were not found (zero disables
+     *                                 negative caching)
+     * @param negativeExpireAfterWrite time after which username that was not found is loaded again
+     * @param loadTimeout              maximum time lookup waits for concurrent load of the same user (may be
+     *                                 {@code null} in which case concurrent loads are coalesced only by cache itself
+     *                                 without timeout)
+     * @param staleMaxSize             maximum number of users kept for the case when legacy database is unavailable
+     *                                 (zero disables stale cache)
+     * @param staleExpireAfterWrite    time during which loaded user may be returned when legacy database is
+     *                                 unavailable
+     * @param refreshExecutor          executor refreshing stale users in background (may be {@code null} in which
+     *                                 case stale users are refreshed by subsequent lookups)
+     */
+    @Builder
+    private LegacyDatabaseUserCache(long maxSize,
+                                    Duration expireAfterWrite,
+                                    Duration expireAfterAccess,
+                                    long negativeMaxSize,
+                                    Duration negativeExpireAfterWrite,
+                                    Duration loadTimeout,
+                                    long staleMaxSize,
+                                    Duration staleExpireAfterWrite,
+                                    Executor refreshExecutor) {
+        Assert.isTrue(maxSize >= 0, "Maximum cache size must not be negative");
+        Assert.isTrue(negativeMaxSize >= 0, "Maximum negative cache size must not be negative");
+        Assert.isTrue(staleMaxSize >= 0, "Maximum stale cache size must not be negative");
+
+        if (maxSize == 0) {
+            this.users = null;
+        } else {
+            Caffeine<Object, Object> builder = Caffeine.newBuilder().maximumSize(maxSize).recordStats();
+            if (expireAfterWrite != null) {
+                builder.expireAfterWrite(expireAfterWrite);
+            }
+            if (expireAfterAccess != null) {
+                builder.expireAfterAccess(expireAfterAccess);
+            }
+            this.users = builder.build();
+        }
+
+        if (negativeMaxSize == 0 || negativeExpireAfterWrite == null) {
+            this.missingUsers = null;
+        } else {
+            this.missingUsers = Caffeine.newBuilder()
+                    .maximumSize(negativeMaxSize)
+                    .expireAfterWrite(negativeExpireAfterWrite)
+                    .build();
+        }
+
+        this.loads = loadTimeout == null ? null : new SingleFlight<>(loadTimeout);
+
+        if (staleMaxSize == 0 || staleExpireAfterWrite == null) {
+            this.staleUsers = null;
+        } else {
+            this.staleUsers = Caffeine.newBuilder()
+                    .maximumSize(staleMaxSize)
+                    .expireAfterWrite(staleExpireAfterWrite)
+                    .build();
+        }
+        this.refreshExecutor = refreshExecutor;
+    }
+
+    /**
+     * Creates cache that does not store any users.
+     */
+    public static LegacyDatabaseUserCache disabled() {
+        return builder().build();
+    }
+
+    public boolean isEnabled() {
+        return users != null;
+    }
+
+    /**
+     * Returns cached user or loads it with the given loader. Users that are not found (i.e. loader returns
+     * {@code null}) are remembered in negative cache if it is enabled.
+     *
+     * @param realmId  realm id
+     * @param username username
+     * @param loader   user loader
+     * @return cached or loaded user or {@code null} if user is not found
+     * @throws org.springframework.dao.QueryTimeoutException if concurrent load of the same user does not complete
+     *                                                       within load timeout
+     */
+    public LegacyDatabaseUser get(String realmId, String username, Supplier<LegacyDatabaseUser> loader) {
+        UsernameBloomFilter filter = usernameFilter;
+        if (filter != null && !filter.mightContain(username)) {
+            usernameFilterRejections.increment();
+            return null;
+        }
+
+        UserCacheKey key = new UserCacheKey(realmId, username);
+        if (missingUsers != null && missingUsers.getIfPresent(key) != null) {
+            negativeCacheHits.increment();
+            return null;
+        }
+
+        try {
+            return load(key, loader, filter);
+        } catch (DataAccessException e) {
+            LegacyDatabaseUser staleUser = staleUsers == null ? null : staleUsers.getIfPresent(key);
+            if (staleUser == null) {
+                throw e;
+            }
+            staleHits.increment();
+            log.debugv("Stale user \"{0}\" is returned since it cannot be loaded: {1}", username, e.getMessage());
+            refreshInBackground(key, loader, filter);
+            return staleUser;
+        }
+    }
+
+    /**
+     * Puts user loaded in advance (e.g. during warm-up) into cache unless the user is already cached. Does nothing if
+     * caching is disabled.
+     */
+    public void put(String realmId, LegacyDatabaseUser user) {
+        UserCacheKey key = new UserCacheKey(realmId, user.getUsername());
+        if (users != null) {
+            users.asMap().putIfAbsent(key, user);
+        }
+        if (staleUsers != null) {
+            staleUsers.asMap().putIfAbsent(key, user);
+        }
+    }
+
+    /**
+     * Replaces cached user with its completed version (e.g. with loaded roles). Does nothing if the user is not
+     * cached anymore or is already replaced with another version.
+     */
+    public void replace(String realmId, LegacyDatabaseUser user, LegacyDatabaseUser completedUser) {
+        UserCacheKey key = new UserCacheKey(realmId, user.getUsername());
+        if (users != null) {
+            users.asMap().replace(key, user, completedUser);
+        }
+        if (staleUsers != null) {
+            staleUsers.asMap().replace(key, user, completedUser);
+        }
+    }
+
+    /**
+     * Puts user changed by storage provider itself (e.g. with password update) into cache replacing cached version.
+     * Loads in progress are not cached since they may have read the previous version (e.g. from lagging replica).
+     * Does nothing if caching is disabled.
+     */
+    public void update(String realmId, LegacyDatabaseUser user) {
+        UserCacheKey key = new UserCacheKey(realmId, user.getUsername());
+        beginInvalidation(key);
+        if (users != null) {
+            users.put(key, user);
+        }
+        if (missingUsers != null) {
+            missingUsers.invalidate(key);
+        }
+        if (staleUsers != null) {
+            staleUsers.put(key, user);
+        }
+    }
+
+    /**
+     * Returns cached user without loading it.
+     *
+     * @return cached user or {@code null} if user is not cached
+     */
+    public LegacyDatabaseUser getIfPresent(String realmId, String username) {
+        return users == null ? null : users.getIfPresent(new UserCacheKey(realmId, username));
+    }
+
+    public void invalidate(String realmId, String username) {
+        UserCacheKey key = new UserCacheKey(realmId, username);
+        beginInvalidation(key);
+        if (users != null) {
+            users.invalidate(key);
+        }
+        if (missingUsers != null) {
+            missingUsers.invalidate(key);
+        }
+        if (staleUsers != null) {
+            staleUsers.invalidate(key);
+        }
+    }
+
+    public void invalidateRealm(String realmId) {
+        beginInvalidation(key -> key.getRealmId().equals(realmId));
+        if (users != null) {
+            users.asMap().keySet().removeIf(key -> key.getRealmId().equals(realmId));
+        }
+        if (missingUsers != null) {
+            missingUsers.asMap().keySet().removeIf(key -> key.getRealmId().equals(realmId));
+        }
+        if (staleUsers != null) {
+            staleUsers.asMap().keySet().removeIf(key -> key.getRealmId().equals(realmId));
+        }
+    }
+
+    /**
+     * Invalidates users with the given usernames in all realms. Usernames are also added to username filter since
+     * they may belong to users created after the filter was built.
+     */
+    public void invalidateUsernames(Collection<String> usernames) {
+        if (usernames.isEmpty()) {
+            return;
+        }
+        UsernameBloomFilter filter = usernameFilter;
+        if (filter != null) {
+            usernames.forEach(filter::put);
+        }
+        Set<String> usernameSet = new HashSet<>(usernames);
+        usernameSet.forEach(username -> userInvalidations.incrementAndGet(stripeOf(username)));
+        forgetLoads(key -> usernameSet.contains(key.getUsername()));
+        if (users != null) {
+            users.asMap().keySet().removeIf(key -> usernameSet.contains(key.getUsername()));
+        }
+        if (missingUsers != null) {
+            missingUsers.asMap().keySet().removeIf(key -> usernameSet.contains(key.getUsername()));
+        }
+        if (staleUsers != null) {
+            staleUsers.asMap().keySet().removeIf(key -> usernameSet.contains(key.getUsername()));
+        }
+    }
+
+    public void invalidateAll() {
+        beginInvalidation(key -> true);
+        if (users != null) {
+            users.invalidateAll();
+        }
+        if (missingUsers != null) {
+            missingUsers.invalidateAll();
+        }
+        if (staleUsers != null) {
+            staleUsers.invalidateAll();
+        }
+    }
+
+    public long size() {
+        return users == null ? 0 : users.estimatedSize();
+    }
+
+    /**
+     * Returns number of lookups that were answered with cached user.
+     */
+    public long getHitCount() {
+        return users == null ? 0 : users.stats().hitCount();
+    }
+
+    /**
+     * Returns number of lookups that required loading user (including users that were not found).
+     */
+    public long getMissCount() {
+        return users == null ? 0 : users.stats().missCount();
+    }
+
+    /**
+     * Returns number of lookups that waited for concurrent load of the same user instead of loading it.
+     */
+    public long getCoalescedLoadCount() {
+        return loads == null ? 0 : loads.getCoalescedCount();
+    }
+
+    /**
+     * Returns number of lookups that did not get result of concurrent load of the same user within load timeout.
+     */
+    public long getLoadTimeoutCount() {
+        return loads == null ? 0 : loads.getTimeoutCount();
+    }
+
+    /**
+     * Returns number of lookups that were answered with stale user since legacy database was unavailable.
+     */
+    public long getStaleHitCount() {
+        return staleHits.sum();
+    }
+
+    /**
+     * Returns number of lookups that were answered from negative cache.
+     */
+    public long getNegativeCacheHitCount() {
+        return negativeCacheHits.sum();
+    }
+
+    /**
+     * Returns number of lookups that were rejected by username filter without loading user.
+     */
+    public long getUsernameFilterRejectionCount() {
+        return usernameFilterRejections.sum();
+    }
+
+    /**
+     * Returns number of lookups that passed username filter but user was not found.
+     */
+    public long getUsernameFilterFalsePositiveCount() {
+        return usernameFilterFalsePositives.sum();
+    }
+
+    /**
+     * Returns observed false positive rate of username filter, i.e. ratio of unknown usernames that passed the
+     * filter to all unknown usernames checked by the filter.
+     */
+    public double getUsernameFilterFalsePositiveRate() {
+        long falsePositives = usernameFilterFalsePositives.sum();
+        long total = falsePositives + usernameFilterRejections.sum();
+        return total == 0 ? 0.0 : (double) falsePositives / total;
+    }
+
+    /**
+     * Makes loads of users with matching keys that are in progress stale. It must be called before cached users are
+     * removed, so that loads completed after removal notice that generation is changed.
+     */
+    private void beginInvalidation(Predicate<UserCacheKey> keys) {
+        generation.incrementAndGet();
+        forgetLoads(keys);
+    }
+
+    /**
+     * Makes loads of user with the given key that are in progress stale. Loads of other users in the same stripe
+     * become stale as well.
+     */
+    private void beginInvalidation(UserCacheKey key) {
+        userInvalidations.incrementAndGet(stripeOf(key.getUsername()));
+        forgetLoads(key::equals);
+    }
+
+    private void forgetLoads(Predicate<UserCacheKey> keys) {
+        if (loads != null) {
+            loads.forget(keys);
+        }
+    }
+
+    /**
+     * Returns version of user with the given key that is changed by every invalidation affecting the user. Both
+     * counters only grow, so their sum changes whenever any of them changes.
+     */
+    private long versionOf(UserCacheKey key) {
+        return generation.get() + userInvalidations.get(stripeOf(key.getUsername()));
+    }
+
+    private static int stripeOf(String username) {
+        int hash = username.hashCode();
+        return (hash ^ (hash >>> 16)) & (INVALIDATION_STRIPES - 1);
+    }
+
+    private void rememberMissingUser(UserCacheKey key, UsernameBloomFilter filter) {
+        if (filter != null) {
+            usernameFilterFalsePositives.increment();
+        }
+        if (staleUsers != null) {
+            staleUsers.invalidate(key);
+        }
+        if (missingUsers != null) {
+            missingUsers.put(key, Boolean.TRUE);
+        }
+    }
+
+    private LegacyDatabaseUser load(UserCacheKey key, Supplier<LegacyDatabaseUser> loader, UsernameBloomFilter filter) {
+        if (loads == null) {
+            LegacyDatabaseUser user = users == null ? loadStale(key, loader)
+                    : users.get(key, k -> loadStale(k, loader));
+            if (user == null) {
+                rememberMissingUser(key, filter);
+            }
+            return user;
+        }
+
+        LegacyDatabaseUser user = users == null ? null : users.getIfPresent(key);
+        if (user == null) {
+            // User is put into cache before concurrent load is completed so that subsequent lookups find it
+            user = loads.execute(key, () -> loadAndPut(key, loader, filter));
+        }
+        return user;
+    }
+
+    /**
+     * Loads user and keeps it in stale cache.
+     */
+    private LegacyDatabaseUser loadStale(UserCacheKey key, Supplier<LegacyDatabaseUser> loader) {
+        long loadVersion = versionOf(key);
+        LegacyDatabaseUser user = loader.get();
+        if (user != null && staleUsers != null) {
+            putIfNotInvalidated(staleUsers, key, user, loadVersion);
+        }
+        return user;
+    }
+
+    private LegacyDatabaseUser loadAndPut(UserCacheKey key,
+                                          Supplier<LegacyDatabaseUser> loader,
+                                          UsernameBloomFilter filter) {
+        long loadVersion = versionOf(key);
+        LegacyDatabaseUser user = loader.get();
+        if (user == null) {
+            rememberMissingUser(key, filter);
+        } else {
+            if (users != null) {
+                putIfNotInvalidated(users, key, user, loadVersion);
+            }
+            if (staleUsers != null) {
+                putIfNotInvalidated(staleUsers, key, user, loadVersion);
+            }
+        }
+        return user;
+    }
+
+    /**
+     * Puts loaded user into cache and removes it again if cache was invalidated since the load started. Removal is
+     * conditional, so that user put by newer load is kept.
+     */
+    private void putIfNotInvalidated(Cache<UserCacheKey, LegacyDatabaseUser> cache,
+                                     UserCacheKey key,
+                                     LegacyDatabaseUser user,
+                                     long loadVersion) {
+        if (versionOf(key) != loadVersion) {
+            return;
+        }
+        cache.put(key, user);
+        if (versionOf(key) != loadVersion) {
+            cache.asMap().remove(key, user);
+        }
+    }
+
+    private void refreshInBackground(UserCacheKey key,
+                                     Supplier<LegacyDatabaseUser> loader,
+                                     UsernameBloomFilter filter) {
+        if (refreshExecutor == null || !refreshingUsers.add(key)) {
+            return;
+        }
+        try {
+            refreshExecutor.execute(() -> {
+                try {
+                    loadAndPut(key, loader, filter);
+                } catch (RuntimeException e) {
+                    log.debugv("Failed to refresh stale user \"{0}\": {1}", key.getUsername(), e.getMessage());
+                } finally {
+                    refreshingUsers.remove(key);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            refreshingUsers.remove(key);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.habr.keycloak.cache;
+
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.util.Assert;
+
+import java.time.Duration;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent calls with the same key so that only one of them (the leader) actually calls loader while
+ * others wait for its result. Result or exception of the leader is passed to all waiting calls. Waiting calls give up
+ * after the given timeout so that stuck loader does not block them forever.
+ * <p>
+ * Results are not remembered after the leader completes, i.e. this is not a cache.
+ *
+ * @param <K> type of key
+ * @param <V> type of result
+ * @author Roman Chigvintsev
+ */
+public class SingleFlight<K, V> {
+    private final ConcurrentMap<K, CompletableFuture<V>> calls = new ConcurrentHashMap<>();
+    private final long timeoutNanos;
+
+    private final LongAdder coalescedCalls = new LongAdder();
+    private final LongAdder timedOutCalls = new LongAdder();
+
+    /**
+     * Creates new single flight.
+     *
+     * @param timeout maximum time a call waits for result of the leader
+     */
+    public SingleFlight(Duration timeout) {
+        Assert.notNull(timeout, "Timeout must not be null");
+        Assert.isTrue(!timeout.isNegative() && !timeout.isZero(), "Timeout must be positive");
+        this.timeoutNanos = timeout.toNanos();
+    }
+
+    /**
+     * Calls loader or waits for result of concurrent call with the same key.
+     *
+     * @param key    key
+     * @param loader loader
+     * @return result of loader (may be {@code null})
+     * @throws QueryTimeoutException if result of concurrent call is not available within timeout
+     */
+    public V execute(K key, Supplier<V> loader) {
+        CompletableFuture<V> call = new CompletableFuture<>();
+        CompletableFuture<V> leaderCall = calls.putIfAbsent(key, call);
+        if (leaderCall != null) {
+            coalescedCalls.increment();
+            return await(key, leaderCall);
+        }
+
+        try {
+            V result = loader.get();
+            call.complete(result);
+            return result;
+        } catch (RuntimeException | Error e) {
+            call.completeExceptionally(e);
+            throw e;
+        } finally {
+            calls.remove(key, call);
+        }
+    }
+
+    /**
+     * Detaches in-progress calls with matching keys, so that subsequent calls with these keys do not wait for them
+     * and call loader again. Calls that already wait for detached calls still get their results.
+     *
+     * @param keys predicate matching keys
+     */
+    public void forget(Predicate<? super K> keys) {
+        calls.keySet().removeIf(keys);
+    }
+
+    /**
+     * Returns number of calls that waited for result of concurrent call instead of calling loader.
+     */
+    public long getCoalescedCount() {
+        return coalescedCalls.sum();
+    }
+
+    /**
+     * Returns number of calls that did not get result of concurrent call within timeout.
+     */
+    public long getTimeoutCount() {
+        return timedOutCalls.sum();
+    }
+
+    private V await(K key, CompletableFuture<V> leaderCall) {
+        try {
+            return leaderCall.get(timeoutNanos, TimeUnit.NANOSECONDS);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        } catch (TimeoutException e) {
+            timedOutCalls.increment();
+            throw new QueryTimeoutException("Timed out waiting for concurrent load of \"" + key + "\"", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new QueryTimeoutException("Interrupted while waiting for concurrent load of \"" + key + "\"", e);
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package com.habr.keycloak.cache;
+
+import lombok.Value;
+
+/**
+ * Key of cached user consisting of realm id and username.
+ *
+ * @author Roman Chigvintsev
+ */
+@Value
+public class UserCacheKey {
+    String realmId;
+    String username;
+}
@@ -0,0 +1,94 @@
+package com.habr.keycloak.cache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.springframework.util.Assert;
+
+import java.time.Duration;
+import java.util.Locale;
+import java.util.Optional;
+
+/**
+ * Cache of mappings between emails and usernames. User found by email is then looked up by username, so that it
+ * resolves to the same cached user as login by username instead of being loaded again. Emails are compared
+ * ignoring case.
+ *
+ * @author Roman Chigvintsev
+ */
+public class UserEmailIndex {
+    private final Cache<String, String> usernamesByEmail;
+    /**
+     * Emails by usernames. Empty value means that user has no email.
+     */
+    private final Cache<String, Optional<String>> emailsByUsername;
+
+    /**
+     * Creates new index.
+     *
+     * @param maxSize maximum number of cached mappings in each direction (zero disables caching)
+     * @param ttl     time after which mapping is expired
+     */
+    public UserEmailIndex(long maxSize, Duration ttl) {
+        Assert.isTrue(maxSize >= 0, "Maximum cache size must not be negative");
+        boolean enabled = maxSize > 0 && ttl != null;
+        this.usernamesByEmail = enabled ? Caffeine.newBuilder().maximumSize(maxSize).expireAfterWrite(ttl).build()
+                : null;
+        this.emailsByUsername = enabled ? Caffeine.newBuilder().maximumSize(maxSize).expireAfterWrite(ttl).build()
+                : null;
+    }
+
+    /**
+     * Creates index that does not store any mappings.
+     */
+    public static UserEmailIndex disabled() {
+        return new UserEmailIndex(0, null);
+    }
+
+    /**
+     * Returns username of user with the given email.
+     *
+     * @return username or {@code null} if mapping is unknown
+     */
+    public String getUsername(String email) {
+        return usernamesByEmail == null ? null : usernamesByEmail.getIfPresent(normalize(email));
+    }
+
+    /**
+     * Returns email of user with the given name.
+     *
+     * @return email (empty if user has no email) or {@code null} if mapping is unknown
+     */
+    public Optional<String> getEmail(String username) {
+        return emailsByUsername == null ? null : emailsByUsername.getIfPresent(username);
+    }
+
+    /**
+     * Remembers email of user.
+     *
+     * @param username username
+     * @param email    email (may be {@code null} if user has no email)
+     */
+    public void put(String username, String email) {
+        if (usernamesByEmail != null) {
+            if (email != null) {
+                usernamesByEmail.put(normalize(email), username);
+            }
+            emailsByUsername.put(username, Optional.ofNullable(email));
+        }
+    }
+
+    public long size() {
+        return usernamesByEmail == null ? 0 : usernamesByEmail.estimatedSize();
+    }
+
+    public void invalidateAll() {
+        if (usernamesByEmail != null) {
+            usernamesByEmail.invalidateAll();
+            emailsByUsername.invalidateAll();
+        }
+    }
+
+    private static String normalize(String email) {
+        return email.toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,75 @@
+package com.habr.keycloak.cache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import lombok.Value;
+import org.springframework.util.Assert;
+
+import java.time.Duration;
+
+/**
+ * Cache of keyset pagination cursors. Keycloak requests pages of users by offset. Offset pagination requires
+ * database to skip all preceding rows, which gets slower as page number grows. This cache remembers the last
+ * username of every returned page so that the next page may be requested with keyset condition
+ * ({@code username > ?}) instead of offset.
+ *
+ * @author Roman Chigvintsev
+ */
+public class UserPageCursorCache {
+    private final Cache<PageKey, String> cursors;
+
+    /**
+     * Creates new cursor cache.
+     *
+     * @param maxSize maximum number of cached cursors (zero disables caching)
+     * @param ttl     time after which cursor is expired
+     */
+    public UserPageCursorCache(long maxSize, Duration ttl) {
+        Assert.isTrue(maxSize >= 0, "Maximum cache size must not be negative");
+        this.cursors = maxSize == 0 || ttl == null ? null
+                : Caffeine.newBuilder().maximumSize(maxSize).expireAfterWrite(ttl).build();
+    }
+
+    /**
+     * Creates cache that does not store any cursors.
+     */
+    public static UserPageCursorCache disabled() {
+        return new UserPageCursorCache(0, null);
+    }
+
+    /**
+     * Returns username of the user preceding the given offset in results of the given query.
+     *
+     * @param queryKey key of query
+     * @param offset   offset of the first user in page
+     * @return username or {@code null} if cursor is unknown
+     */
+    public String get(String queryKey, int offset) {
+        return cursors == null ? null : cursors.getIfPresent(new PageKey(queryKey, offset));
+    }
+
+    /**
+     * Remembers username of the last user of page.
+     *
+     * @param queryKey     key of query
+     * @param offset       offset of the user following the last user of page
+     * @param lastUsername username of the last user of page
+     */
+    public void put(String queryKey, int offset, String lastUsername) {
+        if (cursors != null) {
+            cursors.put(new PageKey(queryKey, offset), lastUsername);
+        }
+    }
+
+    public void invalidateAll() {
+        if (cursors != null) {
+            cursors.invalidateAll();
+        }
+    }
+
+    @Value
+    private static class PageKey {
+        String queryKey;
+        int offset;
+    }
+}
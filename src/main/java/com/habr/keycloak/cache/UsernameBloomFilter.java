@@ -0,0 +1,111 @@
+package com.habr.keycloak.cache;
+
+import org.springframework.util.Assert;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter of usernames that exist in legacy database. If filter does not contain username then user
+ * definitely does not exist and database may not be queried. If filter contains username then user may or may not
+ * exist.
+ * <p>
+ * Filter is thread-safe: usernames may be added while other threads are querying it.
+ *
+ * @author Roman Chigvintsev
+ */
+public class UsernameBloomFilter {
+    /**
+     * Bit indexes are derived from 31-bit hashes so there is no sense to allocate more bits.
+     */
+    private static final long MAX_BIT_COUNT = 1L << 31;
+
+    private final AtomicLongArray bits;
+    private final long bitCount;
+    private final int hashFunctionCount;
+    private final boolean ignoreCase;
+
+    /**
+     * Creates new empty filter.
+     *
+     * @param expectedInsertions       expected number of usernames
+     * @param falsePositiveProbability desired false positive probability (must be between 0 and 1)
+     * @param ignoreCase               whether usernames should be compared case-insensitively (must be {@code true}
+     *                                 if legacy database compares usernames case-insensitively)
+     */
+    public UsernameBloomFilter(long expectedInsertions, double falsePositiveProbability, boolean ignoreCase) {
+        Assert.isTrue(expectedInsertions > 0, "Expected number of insertions must be positive");
+        Assert.isTrue(falsePositiveProbability > 0 && falsePositiveProbability < 1,
+                "False positive probability must be between 0 and 1");
+
+        long optimalBitCount = (long) Math.ceil(-expectedInsertions * Math.log(falsePositiveProbability)
+                / (Math.log(2) * Math.log(2)));
+        long clampedBitCount = Math.min(MAX_BIT_COUNT, Math.max(optimalBitCount, Long.SIZE));
+        int wordCount = (int) ((clampedBitCount + 63) / 64);
+        this.bits = new AtomicLongArray(wordCount);
+        this.bitCount = (long) wordCount * Long.SIZE;
+        this.hashFunctionCount = Math.max(1, (int) Math.round((double) bitCount / expectedInsertions * Math.log(2)));
+        this.ignoreCase = ignoreCase;
+    }
+
+    public void put(String username) {
+        long hash = hash(username);
+        int hash1 = (int) hash;
+        int hash2 = (int) (hash >>> 32);
+        for (int i = 1; i <= hashFunctionCount; i++) {
+            long bitIndex = index(hash1 + i * hash2);
+            int wordIndex = (int) (bitIndex >>> 6);
+            long mask = 1L << bitIndex;
+            long word;
+            do {
+                word = bits.get(wordIndex);
+                if ((word & mask) != 0) {
+                    break;
+                }
+            } while (!bits.compareAndSet(wordIndex, word, word | mask));
+        }
+    }
+
+    public boolean mightContain(String username) {
+        long hash = hash(username);
+        int hash1 = (int) hash;
+        int hash2 = (int) (hash >>> 32);
+        for (int i = 1; i <= hashFunctionCount; i++) {
+            long bitIndex = index(hash1 + i * hash2);
+            if ((bits.get((int) (bitIndex >>> 6)) & (1L << bitIndex)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long index(int combinedHash) {
+        return (combinedHash & Integer.MAX_VALUE) % bitCount;
+    }
+
+    /**
+     * Computes 64-bit FNV-1a hash of username characters followed by MurmurHash3 finalization step.
+     */
+    private long hash(String username) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < username.length(); i++) {
+            char c = username.charAt(i);
+            if (ignoreCase) {
+                c = Character.toLowerCase(Character.toUpperCase(c));
+            }
+            hash ^= c;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return "UsernameBloomFilter(bits=" + bitCount + ", hashFunctions=" + hashFunctionCount
+                + ", ignoreCase=" + ignoreCase + ")";
+    }
+}
@@ -0,0 +1,66 @@
+package com.habr.keycloak.cluster;
+
+import org.jboss.logging.Logger;
+import org.keycloak.cluster.ClusterProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.springframework.util.Assert;
+
+import java.util.function.Consumer;
+
+/**
+ * Transport of user cache invalidation events over Keycloak {@link ClusterProvider}. When Keycloak runs without
+ * cluster provider events are not delivered anywhere.
+ *
+ * @author Roman Chigvintsev
+ */
+public class KeycloakClusterInvalidationTransport implements UserCacheInvalidationTransport {
+    private static final Logger log = Logger.getLogger(KeycloakClusterInvalidationTransport.class);
+
+    /**
+     * Key of cluster events of legacy database user storage.
+     */
+    public static final String TASK_KEY = "legacy-database-user-cache-invalidation";
+
+    private final KeycloakSessionFactory sessionFactory;
+
+    public KeycloakClusterInvalidationTransport(KeycloakSessionFactory sessionFactory) {
+        Assert.notNull(sessionFactory, "Session factory must not be null");
+        this.sessionFactory = sessionFactory;
+    }
+
+    @Override
+    public void publish(UserCacheInvalidationEvent event) {
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+            ClusterProvider clusterProvider = getClusterProvider(session);
+            if (clusterProvider != null) {
+                // Sender has already invalidated its own caches
+                clusterProvider.notify(TASK_KEY, event, true, ClusterProvider.DCNotify.ALL_DCS);
+            }
+        });
+    }
+
+    @Override
+    public void subscribe(Consumer<UserCacheInvalidationEvent> listener) {
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+            ClusterProvider clusterProvider = getClusterProvider(session);
+            if (clusterProvider != null) {
+                clusterProvider.registerListener(TASK_KEY, event -> {
+                    if (event instanceof UserCacheInvalidationEvent) {
+                        listener.accept((UserCacheInvalidationEvent) event);
+                    }
+                });
+                log.debugv("Listener of cluster events \"{0}\" is registered", TASK_KEY);
+            }
+        });
+    }
+
+    private static ClusterProvider getClusterProvider(KeycloakSession session) {
+        ClusterProvider clusterProvider = session.getProvider(ClusterProvider.class);
+        if (clusterProvider == null) {
+            log.debug("Cluster provider is not available, user cache invalidations are not sent to other nodes");
+        }
+        return clusterProvider;
+    }
+}
@@ -0,0 +1,236 @@
+package com.habr.keycloak.cluster;
+
+import org.jboss.logging.Logger;
+import org.springframework.util.Assert;
+
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Sends user cache invalidations made on this node to other nodes of cluster and applies invalidations received
+ * from them. Invalidations are coalesced until next {@link #flush()} and sent in batches.
+ *
+ * @author Roman Chigvintsev
+ */
+public class UserCacheInvalidationBroadcaster {
+    private static final Logger log = Logger.getLogger(UserCacheInvalidationBroadcaster.class);
+
+    private static final UserCacheInvalidationBroadcaster DISABLED = new UserCacheInvalidationBroadcaster();
+
+    private final String nodeId = UUID.randomUUID().toString();
+    private final int batchSize;
+
+    private final Map<String, Set<String>> pendingUsernames = new HashMap<>();
+    private final Map<String, Set<String>> pendingRealmIds = new HashMap<>();
+    private int pendingCount;
+
+    private volatile UserCacheInvalidationTransport transport;
+
+    private final LongAdder published = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    /**
+     * Creates new broadcaster.
+     *
+     * @param batchSize maximum number of invalidations sent in one event
+     */
+    public UserCacheInvalidationBroadcaster(int batchSize) {
+        Assert.isTrue(batchSize > 0, "Batch size must be greater than zero");
+        this.batchSize = batchSize;
+    }
+
+    private UserCacheInvalidationBroadcaster() {
+        this.batchSize = 0;
+    }
+
+    /**
+     * Returns broadcaster for single node deployments that ignores all invalidations.
+     */
+    public static UserCacheInvalidationBroadcaster disabled() {
+        return DISABLED;
+    }
+
+    public boolean isEnabled() {
+        return batchSize > 0;
+    }
+
+    /**
+     * Starts sending invalidations through the given transport and applying invalidations received from other
+     * nodes. Invalidations made before start are kept pending.
+     *
+     * @param transport transport of invalidation events
+     * @param handler   handler of invalidation events received from other nodes
+     */
+    public void start(UserCacheInvalidationTransport transport, Consumer<UserCacheInvalidationEvent> handler) {
+        Assert.state(isEnabled(), "Cluster invalidation is disabled");
+        Assert.notNull(transport, "Invalidation transport must not be null");
+        Assert.notNull(handler, "Invalidation handler must not be null");
+        transport.subscribe(event -> {
+            if (nodeId.equals(event.getSenderId())) {
+                return;
+            }
+            received.increment();
+            log.debugv("Received {0}", event);
+            handler.accept(event);
+        });
+        this.transport = transport;
+    }
+
+    /**
+     * Queues invalidation of users with the given names in all realms.
+     *
+     * @param componentId id of storage provider component
+     * @param usernames   usernames
+     */
+    public void usernamesChanged(String componentId, Collection<String> usernames) {
+        if (isEnabled() && !usernames.isEmpty()) {
+            synchronized (this) {
+                Set<String> pending = pendingUsernames.computeIfAbsent(componentId, id -> new HashSet<>());
+                for (String username : usernames) {
+                    if (pending.add(username)) {
+                        pendingCount++;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Queues invalidation of all users of the given realm. Queued invalidations of single users are not coalesced
+     * with it since they apply to all realms.
+     *
+     * @param componentId id of storage provider component
+     * @param realmId     realm id
+     */
+    public void realmChanged(String componentId, String realmId) {
+        if (isEnabled()) {
+            synchronized (this) {
+                if (pendingRealmIds.computeIfAbsent(componentId, id -> new HashSet<>()).add(realmId)) {
+                    pendingCount++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends queued invalidations to other nodes. Invalidations that could not be sent are queued again.
+     */
+    public void flush() {
+        UserCacheInvalidationTransport transport = this.transport;
+        if (transport == null) {
+            return;
+        }
+
+        Map<String, Set<String>> usernames;
+        Map<String, Set<String>> realmIds;
+        synchronized (this) {
+            if (pendingCount == 0) {
+                return;
+            }
+            usernames = new HashMap<>(pendingUsernames);
+            realmIds = new HashMap<>(pendingRealmIds);
+            pendingUsernames.clear();
+            pendingRealmIds.clear();
+            pendingCount = 0;
+        }
+
+        List<UserCacheInvalidationEvent> events = toEvents(usernames, realmIds);
+        for (int i = 0; i < events.size(); i++) {
+            UserCacheInvalidationEvent event = events.get(i);
+            try {
+                transport.publish(event);
+                published.increment();
+            } catch (RuntimeException e) {
+                failures.increment();
+                log.warn("Failed to send user cache invalidations to other nodes", e);
+                for (UserCacheInvalidationEvent unsent : events.subList(i, events.size())) {
+                    requeue(unsent);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Sends queued invalidations to other nodes. Broadcaster must not be used after closing.
+     */
+    public void close() {
+        flush();
+        transport = null;
+    }
+
+    /**
+     * Returns number of invalidations queued for sending.
+     */
+    public synchronized int getPendingCount() {
+        return pendingCount;
+    }
+
+    /**
+     * Returns number of sent events.
+     */
+    public long getPublishedEventCount() {
+        return published.sum();
+    }
+
+    /**
+     * Returns number of events received from other nodes.
+     */
+    public long getReceivedEventCount() {
+        return received.sum();
+    }
+
+    /**
+     * Returns number of failed attempts to send events.
+     */
+    public long getFailureCount() {
+        return failures.sum();
+    }
+
+    private List<UserCacheInvalidationEvent> toEvents(Map<String, Set<String>> usernames,
+                                                      Map<String, Set<String>> realmIds) {
+        List<UserCacheInvalidationEvent> events = new ArrayList<>();
+        Map<String, Set<String>> batchUsernames = new HashMap<>();
+        Map<String, Set<String>> batchRealmIds = new HashMap<>();
+        int batchCount = 0;
+
+        for (Map.Entry<String, Set<String>> entry : realmIds.entrySet()) {
+            for (String realmId : entry.getValue()) {
+                batchRealmIds.computeIfAbsent(entry.getKey(), id -> new HashSet<>()).add(realmId);
+                if (++batchCount == batchSize) {
+                    events.add(newEvent(batchUsernames, batchRealmIds));
+                    batchCount = 0;
+                }
+            }
+        }
+        for (Map.Entry<String, Set<String>> entry : usernames.entrySet()) {
+            for (String username : entry.getValue()) {
+                batchUsernames.computeIfAbsent(entry.getKey(), id -> new HashSet<>()).add(username);
+                if (++batchCount == batchSize) {
+                    events.add(newEvent(batchUsernames, batchRealmIds));
+                    batchCount = 0;
+                }
+            }
+        }
+        if (batchCount > 0) {
+            events.add(newEvent(batchUsernames, batchRealmIds));
+        }
+        return events;
+    }
+
+    private UserCacheInvalidationEvent newEvent(Map<String, Set<String>> usernames,
+                                                Map<String, Set<String>> realmIds) {
+        UserCacheInvalidationEvent event = new UserCacheInvalidationEvent(nodeId, new HashMap<>(usernames),
+                new HashMap<>(realmIds));
+        usernames.clear();
+        realmIds.clear();
+        return event;
+    }
+
+    private void requeue(UserCacheInvalidationEvent event) {
+        event.getRealmIds().forEach((componentId, ids) -> ids.forEach(realmId -> realmChanged(componentId, realmId)));
+        event.getUsernames().forEach(this::usernamesChanged);
+    }
+}
@@ -0,0 +1,45 @@
+package com.habr.keycloak.cluster;
+
+import lombok.Getter;
+import org.keycloak.cluster.ClusterEvent;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Batch of user cache invalidations made on one node of cluster. Invalidations are grouped by ids of storage
+ * provider components whose users are invalidated.
+ *
+ * @author Roman Chigvintsev
+ */
+@Getter
+public class UserCacheInvalidationEvent implements ClusterEvent {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Id of node that published this event.
+     */
+    private final String senderId;
+    /**
+     * Usernames invalidated in all realms by component ids.
+     */
+    private final Map<String, Set<String>> usernames;
+    /**
+     * Ids of realms invalidated as a whole by component ids.
+     */
+    private final Map<String, Set<String>> realmIds;
+
+    public UserCacheInvalidationEvent(String senderId,
+                                      Map<String, Set<String>> usernames,
+                                      Map<String, Set<String>> realmIds) {
+        this.senderId = senderId;
+        this.usernames = usernames;
+        this.realmIds = realmIds;
+    }
+
+    @Override
+    public String toString() {
+        return "UserCacheInvalidationEvent{senderId=" + senderId + ", usernames=" + usernames + ", realmIds="
+                + realmIds + "}";
+    }
+}
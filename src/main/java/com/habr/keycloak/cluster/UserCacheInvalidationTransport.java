@@ -0,0 +1,24 @@
+package com.habr.keycloak.cluster;
+
+import java.util.function.Consumer;
+
+/**
+ * Delivers user cache invalidation events to all nodes of cluster.
+ *
+ * @author Roman Chigvintsev
+ */
+public interface UserCacheInvalidationTransport {
+    /**
+     * Sends event to all nodes of cluster. Event may be delivered to the sending node as well.
+     *
+     * @param event invalidation event
+     */
+    void publish(UserCacheInvalidationEvent event);
+
+    /**
+     * Registers listener of events published by any node of cluster.
+     *
+     * @param listener event listener
+     */
+    void subscribe(Consumer<UserCacheInvalidationEvent> listener);
+}
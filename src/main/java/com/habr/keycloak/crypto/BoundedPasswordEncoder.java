@@ -0,0 +1,152 @@
+package com.habr.keycloak.crypto;
+
+import lombok.Getter;
+import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.util.Assert;
+
+import java.time.Duration;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Password encoder that delegates all work to another encoder running on dedicated thread pool of limited size
+ * with bounded queue. This way CPU time spent on password hashing is capped and Keycloak request threads are not
+ * exhausted by a burst of logins.
+ * <p>
+ * Every call has a deadline which includes time spent in queue. If call is not completed before deadline or if
+ * queue is full (and rejection policy is {@link RejectionPolicy#ABORT}) then {@link PasswordEncodingException} is
+ * thrown.
+ *
+ * @author Roman Chigvintsev
+ */
+public class BoundedPasswordEncoder implements PasswordEncoder, AutoCloseable {
+    private final PasswordEncoder delegate;
+    private final ThreadPoolExecutor executor;
+    private final long timeoutNanos;
+    @Getter
+    private final RejectionPolicy rejectionPolicy;
+
+    /**
+     * Creates new password encoder.
+     *
+     * @param delegate        password encoder that does actual work
+     * @param threads         number of threads encoding passwords
+     * @param queueCapacity   maximum number of calls waiting for free thread
+     * @param timeout         maximum duration of each call including time spent in queue
+     * @param rejectionPolicy what to do when queue is full
+     */
+    public BoundedPasswordEncoder(PasswordEncoder delegate,
+                                  int threads,
+                                  int queueCapacity,
+                                  Duration timeout,
+                                  RejectionPolicy rejectionPolicy) {
+        Assert.notNull(delegate, "Password encoder must not be null");
+        Assert.isTrue(threads > 0, "Number of threads must be positive");
+        Assert.isTrue(queueCapacity > 0, "Queue capacity must be positive");
+        Assert.isTrue(timeout != null && !timeout.isNegative() && !timeout.isZero(), "Timeout must be positive");
+        Assert.notNull(rejectionPolicy, "Rejection policy must not be null");
+
+        this.delegate = delegate;
+        this.timeoutNanos = timeout.toNanos();
+        this.rejectionPolicy = rejectionPolicy;
+
+        AtomicInteger threadCounter = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), r -> {
+            Thread thread = new Thread(r, "legacy-database-password-encoder-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    @Override
+    public String encode(CharSequence rawPassword) {
+        return execute(() -> delegate.encode(rawPassword));
+    }
+
+    @Override
+    public boolean matches(CharSequence rawPassword, String encodedPassword) {
+        return execute(() -> delegate.matches(rawPassword, encodedPassword));
+    }
+
+    @Override
+    public boolean upgradeEncoding(String encodedPassword) {
+        return delegate.upgradeEncoding(encodedPassword);
+    }
+
+    /**
+     * Returns number of calls waiting for free thread.
+     */
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Returns number of threads that are encoding passwords right now.
+     */
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private <T> T execute(Callable<T> task) {
+        Future<T> future;
+        try {
+            future = executor.submit(task);
+        } catch (RejectedExecutionException e) {
+            if (rejectionPolicy == RejectionPolicy.CALLER_RUNS && !executor.isShutdown()) {
+                return callInCurrentThread(task);
+            }
+            throw new PasswordEncodingException("Password encoder is overloaded", e);
+        }
+
+        try {
+            return future.get(timeoutNanos, TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            throw new PasswordEncodingException("Password encoder did not respond in "
+                    + TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + " ms", e);
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new PasswordEncodingException("Thread is interrupted while waiting for password encoder", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new PasswordEncodingException("Failed to encode password", cause);
+        }
+    }
+
+    private static <T> T callInCurrentThread(Callable<T> task) {
+        try {
+            return task.call();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new PasswordEncodingException("Failed to encode password", e);
+        }
+    }
+
+    /**
+     * Defines what to do when all threads are busy and queue is full.
+     */
+    public enum RejectionPolicy {
+        /**
+         * Fail immediately with {@link PasswordEncodingException}.
+         */
+        ABORT,
+        /**
+         * Run encoder in calling thread.
+         */
+        CALLER_RUNS
+    }
+}
@@ -0,0 +1,16 @@
+package com.habr.keycloak.crypto;
+
+/**
+ * Exception thrown when password cannot be encoded or verified in time because password encoder is overloaded.
+ *
+ * @author Roman Chigvintsev
+ */
+public class PasswordEncodingException extends RuntimeException {
+    public PasswordEncodingException(String message) {
+        super(message);
+    }
+
+    public PasswordEncodingException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,157 @@
+package com.habr.keycloak.crypto;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.springframework.util.Assert;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.Arrays;
+
+/**
+ * Cache of successfully verified credentials that allows to skip expensive password hashing when the same client
+ * sends the same credentials many times during short period of time.
+ * <p>
+ * Neither passwords nor password hashes are stored in cache. Cache key is HMAC of realm id, username, stored
+ * password hash and presented password computed with random secret key generated on cache creation. Since stored
+ * password hash is a part of the key, cached verification becomes unreachable as soon as password is changed.
+ *
+ * @author Roman Chigvintsev
+ */
+public class VerifiedCredentialCache {
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+    private final Cache<CredentialKey, Boolean> verifiedCredentials;
+    private final SecretKeySpec secretKey;
+    private final ThreadLocal<Mac> mac;
+
+    /**
+     * Creates new cache.
+     *
+     * @param maxSize maximum number of cached verifications (zero disables caching)
+     * @param ttl     time after which verification is expired
+     */
+    public VerifiedCredentialCache(long maxSize, Duration ttl) {
+        Assert.isTrue(maxSize >= 0, "Maximum cache size must not be negative");
+        if (maxSize == 0 || ttl == null) {
+            this.verifiedCredentials = null;
+            this.secretKey = null;
+            this.mac = null;
+        } else {
+            this.verifiedCredentials = Caffeine.newBuilder().maximumSize(maxSize).expireAfterWrite(ttl).build();
+            byte[] keyBytes = new byte[32];
+            new SecureRandom().nextBytes(keyBytes);
+            this.secretKey = new SecretKeySpec(keyBytes, HMAC_ALGORITHM);
+            this.mac = ThreadLocal.withInitial(this::createMac);
+        }
+    }
+
+    /**
+     * Creates cache that does not store any verifications.
+     */
+    public static VerifiedCredentialCache disabled() {
+        return new VerifiedCredentialCache(0, null);
+    }
+
+    public boolean isEnabled() {
+        return verifiedCredentials != null;
+    }
+
+    /**
+     * Computes cache key of the given credentials.
+     *
+     * @param realmId         realm id
+     * @param username        username
+     * @param storedPassword  password hash stored in database
+     * @param enteredPassword password entered by user
+     * @return cache key or {@code null} if cache is disabled
+     */
+    public CredentialKey keyOf(String realmId, String username, String storedPassword, CharSequence enteredPassword) {
+        if (verifiedCredentials == null) {
+            return null;
+        }
+        Mac hmac = mac.get();
+        update(hmac, realmId);
+        update(hmac, username);
+        update(hmac, storedPassword);
+        update(hmac, enteredPassword);
+        return new CredentialKey(hmac.doFinal());
+    }
+
+    public boolean isVerified(CredentialKey key) {
+        return key != null && verifiedCredentials.getIfPresent(key) != null;
+    }
+
+    public void markVerified(CredentialKey key) {
+        if (key != null) {
+            verifiedCredentials.put(key, Boolean.TRUE);
+        }
+    }
+
+    public void invalidateAll() {
+        if (verifiedCredentials != null) {
+            verifiedCredentials.invalidateAll();
+        }
+    }
+
+    /**
+     * Feeds length-prefixed UTF-8 representation of the given value to HMAC so that different combinations of
+     * values never produce the same input.
+     */
+    private static void update(Mac hmac, CharSequence value) {
+        if (value == null) {
+            hmac.update((byte) 0);
+            return;
+        }
+        hmac.update((byte) 1);
+        ByteBuffer bytes = StandardCharsets.UTF_8.encode(CharBuffer.wrap(value));
+        int length = bytes.remaining();
+        hmac.update((byte) (length >>> 24));
+        hmac.update((byte) (length >>> 16));
+        hmac.update((byte) (length >>> 8));
+        hmac.update((byte) length);
+        hmac.update(bytes);
+        if (bytes.hasArray()) {
+            Arrays.fill(bytes.array(), (byte) 0);
+        }
+    }
+
+    private Mac createMac() {
+        try {
+            Mac hmac = Mac.getInstance(HMAC_ALGORITHM);
+            hmac.init(secretKey);
+            return hmac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Failed to initialize " + HMAC_ALGORITHM, e);
+        }
+    }
+
+    /**
+     * HMAC of verified credentials.
+     */
+    public static final class CredentialKey {
+        private final byte[] hmac;
+        private final int hashCode;
+
+        private CredentialKey(byte[] hmac) {
+            this.hmac = hmac;
+            this.hashCode = Arrays.hashCode(hmac);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return this == o || o instanceof CredentialKey && Arrays.equals(hmac, ((CredentialKey) o).hmac);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
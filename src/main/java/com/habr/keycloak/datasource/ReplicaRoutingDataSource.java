@@ -0,0 +1,246 @@
+package com.habr.keycloak.datasource;
+
+import lombok.Getter;
+import org.jboss.logging.Logger;
+import org.springframework.jdbc.datasource.AbstractDataSource;
+import org.springframework.util.Assert;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Data source routing read-only connections to replicas of legacy database.
+ * <p>
+ * Connection is obtained from healthy replica with the least number of connections currently in use (outstanding
+ * requests). Replica that fails to provide connection is marked as unhealthy and is not used until the next
+ * successful {@link #checkHealth() health check}. Replica whose connection pool is exhausted stays healthy, connection
+ * is just obtained from another replica. When there are no healthy replicas with free connections, connections are
+ * obtained from primary database.
+ *
+ * @author Roman Chigvintsev
+ */
+public class ReplicaRoutingDataSource extends AbstractDataSource {
+    private static final Logger log = Logger.getLogger(ReplicaRoutingDataSource.class);
+
+    private final DataSource primary;
+    private final List<Replica> replicas;
+    private final int healthCheckTimeoutSeconds;
+
+    private final LongAdder primaryFallbacks = new LongAdder();
+    private final LongAdder poolExhaustions = new LongAdder();
+
+    /**
+     * Creates new data source.
+     *
+     * @param primary                   primary database
+     * @param replicas                  replicas of primary database mapped by their names (usually URLs)
+     * @param healthCheckTimeoutSeconds time in seconds to wait for replica to validate connection during health check
+     */
+    public ReplicaRoutingDataSource(DataSource primary,
+                                    Map<String, ? extends DataSource> replicas,
+                                    int healthCheckTimeoutSeconds) {
+        Assert.notNull(primary, "Primary data source must not be null");
+        Assert.notNull(replicas, "Replica data sources must not be null");
+        Assert.isTrue(healthCheckTimeoutSeconds >= 0, "Health check timeout must not be negative");
+        this.primary = primary;
+        List<Replica> replicaList = new ArrayList<>(replicas.size());
+        replicas.forEach((name, dataSource) -> replicaList.add(new Replica(name, dataSource)));
+        this.replicas = Collections.unmodifiableList(replicaList);
+        this.healthCheckTimeoutSeconds = healthCheckTimeoutSeconds;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        List<Replica> exhausted = null;
+        Replica replica;
+        while ((replica = selectReplica(exhausted)) != null) {
+            replica.outstandingRequests.incrementAndGet();
+            try {
+                return trackRelease(replica.dataSource.getConnection(), replica);
+            } catch (SQLException | RuntimeException e) {
+                replica.outstandingRequests.decrementAndGet();
+                if (isPoolExhausted(e)) {
+                    poolExhaustions.increment();
+                    if (exhausted == null) {
+                        exhausted = new ArrayList<>(replicas.size());
+                    }
+                    exhausted.add(replica);
+                } else {
+                    markUnhealthy(replica, e);
+                }
+            }
+        }
+        primaryFallbacks.increment();
+        return primary.getConnection();
+    }
+
+    /**
+     * Obtains connection from primary database. Connection pools of replicas are bound to their own credentials, so
+     * connections with custom credentials cannot be routed to them.
+     */
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        return primary.getConnection(username, password);
+    }
+
+    /**
+     * Checks whether replicas are able to provide valid connection and updates their health accordingly.
+     */
+    public void checkHealth() {
+        for (Replica replica : replicas) {
+            try (Connection connection = replica.dataSource.getConnection()) {
+                if (connection.isValid(healthCheckTimeoutSeconds)) {
+                    if (!replica.healthy) {
+                        replica.healthy = true;
+                        log.infov("Replica \"{0}\" is healthy again", replica.name);
+                    }
+                } else {
+                    markUnhealthy(replica, null);
+                }
+            } catch (SQLException | RuntimeException e) {
+                if (!isPoolExhausted(e)) {
+                    markUnhealthy(replica, e);
+                }
+            }
+        }
+    }
+
+    public int getReplicaCount() {
+        return replicas.size();
+    }
+
+    public int getHealthyReplicaCount() {
+        int count = 0;
+        for (Replica replica : replicas) {
+            if (replica.healthy) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns number of connections obtained from primary database since there were no healthy replicas.
+     */
+    public long getPrimaryFallbackCount() {
+        return primaryFallbacks.sum();
+    }
+
+    /**
+     * Returns number of connections that could not be obtained from replica since its connection pool was exhausted.
+     */
+    public long getPoolExhaustionCount() {
+        return poolExhaustions.sum();
+    }
+
+    /**
+     * Returns replicas in the order they were configured.
+     */
+    public List<Replica> getReplicas() {
+        return replicas;
+    }
+
+    private Replica selectReplica(List<Replica> excluded) {
+        int size = replicas.size();
+        if (size == 0) {
+            return null;
+        }
+        // Start from random replica so that ties are broken evenly
+        int start = size == 1 ? 0 : ThreadLocalRandom.current().nextInt(size);
+        Replica selected = null;
+        int selectedRequests = Integer.MAX_VALUE;
+        for (int i = 0; i < size; i++) {
+            Replica replica = replicas.get((start + i) % size);
+            if (replica.healthy && (excluded == null || !excluded.contains(replica))) {
+                int requests = replica.outstandingRequests.get();
+                if (requests < selectedRequests) {
+                    selected = replica;
+                    selectedRequests = requests;
+                }
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Checks whether exception means that connection pool has no free connection within its maximum wait time
+     * (commons-pool signals it with {@link NoSuchElementException}) rather than that replica is unavailable.
+     */
+    private static boolean isPoolExhausted(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof NoSuchElementException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void markUnhealthy(Replica replica, Exception e) {
+        if (replica.healthy) {
+            replica.healthy = false;
+            log.warnv(e, "Replica \"{0}\" is unhealthy, it will not be used until the next successful health check",
+                    replica.name);
+        }
+    }
+
+    /**
+     * Wraps connection so that number of outstanding requests of replica is decreased when connection is closed.
+     */
+    private static Connection trackRelease(Connection connection, Replica replica) {
+        AtomicBoolean released = new AtomicBoolean();
+        return (Connection) Proxy.newProxyInstance(ReplicaRoutingDataSource.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, (proxy, method, args) -> {
+                    if (isClose(method) && released.compareAndSet(false, true)) {
+                        replica.outstandingRequests.decrementAndGet();
+                    }
+                    try {
+                        return method.invoke(connection, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getTargetException();
+                    }
+                });
+    }
+
+    private static boolean isClose(Method method) {
+        return "close".equals(method.getName()) && method.getParameterCount() == 0;
+    }
+
+    /**
+     * Replica of legacy database.
+     */
+    public static final class Replica {
+        @Getter
+        private final String name;
+        private final DataSource dataSource;
+        private final AtomicInteger outstandingRequests = new AtomicInteger();
+        private volatile boolean healthy = true;
+
+        private Replica(String name, DataSource dataSource) {
+            Assert.hasText(name, "Replica name must not be null or empty");
+            Assert.notNull(dataSource, "Replica data source must not be null");
+            this.name = name;
+            this.dataSource = dataSource;
+        }
+
+        public boolean isHealthy() {
+            return healthy;
+        }
+
+        public int getOutstandingRequests() {
+            return outstandingRequests.get();
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.habr.keycloak.metrics;
+
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+import org.springframework.util.Assert;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Data source that records latency of obtaining connections from target data source (usually connection pool).
+ *
+ * @author Roman Chigvintsev
+ */
+public class InstrumentedDataSource extends DelegatingDataSource {
+    private final LatencyHistogram connectionAcquisitionLatency;
+
+    public InstrumentedDataSource(DataSource targetDataSource, LatencyHistogram connectionAcquisitionLatency) {
+        super(targetDataSource);
+        Assert.notNull(connectionAcquisitionLatency, "Connection acquisition histogram must not be null");
+        this.connectionAcquisitionLatency = connectionAcquisitionLatency;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        long startTime = System.nanoTime();
+        try {
+            return super.getConnection();
+        } finally {
+            connectionAcquisitionLatency.recordSince(startTime);
+        }
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        long startTime = System.nanoTime();
+        try {
+            return super.getConnection(username, password);
+        } finally {
+            connectionAcquisitionLatency.recordSince(startTime);
+        }
+    }
+}
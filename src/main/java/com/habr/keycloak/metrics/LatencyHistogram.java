@@ -0,0 +1,125 @@
+package com.habr.keycloak.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of latencies with fixed buckets. Recording does not allocate memory and does not take locks since
+ * every bucket is a striped counter ({@link LongAdder}).
+ *
+ * @author Roman Chigvintsev
+ */
+public class LatencyHistogram {
+    /**
+     * Upper bounds of buckets in seconds. The last bucket has no upper bound.
+     */
+    private static final double[] BUCKET_BOUNDS_SECONDS = {
+            0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1.0, 2.5, 5.0, 10.0
+    };
+    private static final long[] BUCKET_BOUNDS_NANOS = new long[BUCKET_BOUNDS_SECONDS.length];
+
+    static {
+        for (int i = 0; i < BUCKET_BOUNDS_SECONDS.length; i++) {
+            BUCKET_BOUNDS_NANOS[i] = (long) (BUCKET_BOUNDS_SECONDS[i] * TimeUnit.SECONDS.toNanos(1));
+        }
+    }
+
+    private final LongAdder[] buckets = new LongAdder[BUCKET_BOUNDS_NANOS.length + 1];
+    private final LongAdder sumNanos = new LongAdder();
+
+    public LatencyHistogram() {
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records latency.
+     *
+     * @param nanos latency in nanoseconds
+     */
+    public void record(long nanos) {
+        int i = 0;
+        while (i < BUCKET_BOUNDS_NANOS.length && nanos > BUCKET_BOUNDS_NANOS[i]) {
+            i++;
+        }
+        buckets[i].increment();
+        sumNanos.add(nanos);
+    }
+
+    /**
+     * Records time elapsed since the given start time.
+     *
+     * @param startNanos start time obtained with {@link System#nanoTime()}
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (LongAdder bucket : buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    public double getSumSeconds() {
+        return (double) sumNanos.sum() / TimeUnit.SECONDS.toNanos(1);
+    }
+
+    public double getMeanMillis() {
+        long count = getCount();
+        return count == 0 ? 0.0 : (double) sumNanos.sum() / count / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * Returns estimation of the given quantile, i.e. upper bound of bucket that contains the quantile.
+     *
+     * @param quantile quantile between 0 and 1
+     * @return quantile in milliseconds ({@link Double#POSITIVE_INFINITY} if quantile is in the last bucket)
+     */
+    public double getQuantileMillis(double quantile) {
+        long[] counts = getBucketCounts();
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0.0;
+        }
+        long rank = (long) Math.ceil(quantile * total);
+        long cumulativeCount = 0;
+        for (int i = 0; i < BUCKET_BOUNDS_SECONDS.length; i++) {
+            cumulativeCount += counts[i];
+            if (cumulativeCount >= rank) {
+                return BUCKET_BOUNDS_SECONDS[i] * 1000.0;
+            }
+        }
+        return Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Writes histogram in Prometheus text format.
+     */
+    void writePrometheus(StringBuilder out, String name) {
+        long[] counts = getBucketCounts();
+        long cumulativeCount = 0;
+        for (int i = 0; i < counts.length; i++) {
+            cumulativeCount += counts[i];
+            String bound = i < BUCKET_BOUNDS_SECONDS.length ? Double.toString(BUCKET_BOUNDS_SECONDS[i]) : "+Inf";
+            out.append(name).append("_bucket{le=\"").append(bound).append("\"} ").append(cumulativeCount)
+                    .append('\n');
+        }
+        out.append(name).append("_sum ").append(getSumSeconds()).append('\n');
+        out.append(name).append("_count ").append(cumulativeCount).append('\n');
+    }
+
+    private long[] getBucketCounts() {
+        long[] counts = new long[buckets.length];
+        for (int i = 0; i < buckets.length; i++) {
+            counts[i] = buckets[i].sum();
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,159 @@
+package com.habr.keycloak.metrics;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import org.springframework.util.Assert;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Operational metrics of legacy database user storage. Latencies and events of the hot path (user loading, credential
+ * validation, connection acquisition) are recorded with striped counters. Values maintained by other components
+ * (cache statistics, connection pool and password encoder state) are registered as gauges and counters read on
+ * demand.
+ * <p>
+ * Metrics are exposed in Prometheus text format with {@link #toPrometheusText()} and as JMX attributes with
+ * {@link LegacyDatabaseMetricsMBean}.
+ *
+ * @author Roman Chigvintsev
+ */
+public class LegacyDatabaseMetrics {
+    private static final String PREFIX = "legacy_database_";
+
+    @Getter
+    private final LatencyHistogram userLoadLatency = new LatencyHistogram();
+    @Getter
+    private final LatencyHistogram credentialValidationLatency = new LatencyHistogram();
+    @Getter
+    private final LatencyHistogram connectionAcquisitionLatency = new LatencyHistogram();
+    @Getter
+    private final LatencyHistogram loginAuditFlushLatency = new LatencyHistogram();
+
+    private final LongAdder usersNotFound = new LongAdder();
+    private final LongAdder credentialFailures = new LongAdder();
+    private final LongAdder credentialCacheHits = new LongAdder();
+    private final LongAdder passwordEncoderRejections = new LongAdder();
+
+    private final ConcurrentMap<String, ExternalMetric> externalMetrics = new ConcurrentHashMap<>();
+
+    public void userNotFound() {
+        usersNotFound.increment();
+    }
+
+    public void credentialFailed() {
+        credentialFailures.increment();
+    }
+
+    public void credentialCacheHit() {
+        credentialCacheHits.increment();
+    }
+
+    public void passwordEncoderRejected() {
+        passwordEncoderRejections.increment();
+    }
+
+    /**
+     * Registers gauge, i.e. value that may go up and down.
+     *
+     * @param name  metric name without common prefix
+     * @param help  metric description
+     * @param value value supplier
+     */
+    public void registerGauge(String name, String help, DoubleSupplier value) {
+        registerExternalMetric(name, help, "gauge", value);
+    }
+
+    /**
+     * Registers counter maintained by another component.
+     *
+     * @param name  metric name without common prefix and {@code _total} suffix
+     * @param help  metric description
+     * @param value value supplier
+     */
+    public void registerCounter(String name, String help, DoubleSupplier value) {
+        registerExternalMetric(name + "_total", help, "counter", value);
+    }
+
+    /**
+     * Returns current values of all metrics. Histograms are represented by count, mean and quantiles.
+     */
+    public Map<String, Number> snapshot() {
+        Map<String, Number> snapshot = new LinkedHashMap<>();
+        putHistogram(snapshot, "user_load", userLoadLatency);
+        putHistogram(snapshot, "credential_validation", credentialValidationLatency);
+        putHistogram(snapshot, "connection_acquisition", connectionAcquisitionLatency);
+        putHistogram(snapshot, "login_audit_flush", loginAuditFlushLatency);
+        snapshot.put("users_not_found_total", usersNotFound.sum());
+        snapshot.put("credential_failures_total", credentialFailures.sum());
+        snapshot.put("credential_cache_hits_total", credentialCacheHits.sum());
+        snapshot.put("password_encoder_rejections_total", passwordEncoderRejections.sum());
+        externalMetrics.forEach((name, metric) -> snapshot.put(name, metric.value.getAsDouble()));
+        return snapshot;
+    }
+
+    /**
+     * Returns metrics in Prometheus text exposition format.
+     */
+    public String toPrometheusText() {
+        StringBuilder out = new StringBuilder(4096);
+        writeHistogram(out, "user_load_seconds", "Latency of loading user from legacy database",
+                userLoadLatency);
+        writeHistogram(out, "credential_validation_seconds", "Latency of password hash verification",
+                credentialValidationLatency);
+        writeHistogram(out, "connection_acquisition_seconds", "Latency of obtaining connection to legacy database",
+                connectionAcquisitionLatency);
+        writeHistogram(out, "login_audit_flush_seconds", "Latency of writing login results to legacy database",
+                loginAuditFlushLatency);
+        writeValue(out, "users_not_found_total", "Number of users that were not found in legacy database",
+                "counter", usersNotFound.sum());
+        writeValue(out, "credential_failures_total", "Number of failed password validations", "counter",
+                credentialFailures.sum());
+        writeValue(out, "credential_cache_hits_total", "Number of passwords validated with verified credential cache",
+                "counter", credentialCacheHits.sum());
+        writeValue(out, "password_encoder_rejections_total", "Number of passwords not validated since password "
+                + "encoder was overloaded", "counter", passwordEncoderRejections.sum());
+        externalMetrics.forEach((name, metric) -> writeValue(out, name, metric.help, metric.type,
+                metric.value.getAsDouble()));
+        return out.toString();
+    }
+
+    private void registerExternalMetric(String name, String help, String type, DoubleSupplier value) {
+        Assert.hasText(name, "Metric name must not be null or empty");
+        Assert.notNull(value, "Metric value supplier must not be null");
+        externalMetrics.put(name, new ExternalMetric(help, type, value));
+    }
+
+    private static void putHistogram(Map<String, Number> snapshot, String name, LatencyHistogram histogram) {
+        snapshot.put(name + "_count", histogram.getCount());
+        snapshot.put(name + "_mean_millis", histogram.getMeanMillis());
+        snapshot.put(name + "_p50_millis", histogram.getQuantileMillis(0.5));
+        snapshot.put(name + "_p99_millis", histogram.getQuantileMillis(0.99));
+    }
+
+    private static void writeHistogram(StringBuilder out, String name, String help, LatencyHistogram histogram) {
+        writeHeader(out, name, help, "histogram");
+        histogram.writePrometheus(out, PREFIX + name);
+    }
+
+    private static void writeValue(StringBuilder out, String name, String help, String type, double value) {
+        writeHeader(out, name, help, type);
+        out.append(PREFIX).append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void writeHeader(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+    }
+
+    @RequiredArgsConstructor
+    private static class ExternalMetric {
+        private final String help;
+        private final String type;
+        private final DoubleSupplier value;
+    }
+}
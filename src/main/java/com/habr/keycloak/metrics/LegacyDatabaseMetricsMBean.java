@@ -0,0 +1,78 @@
+package com.habr.keycloak.metrics;
+
+import org.springframework.util.Assert;
+
+import javax.management.*;
+import java.util.Map;
+
+/**
+ * JMX view of {@link LegacyDatabaseMetrics}. Every metric is exposed as read-only attribute. Attribute
+ * {@value #ATTRIBUTE_PROMETHEUS_TEXT} contains all metrics in Prometheus text format.
+ *
+ * @author Roman Chigvintsev
+ */
+public class LegacyDatabaseMetricsMBean implements DynamicMBean {
+    public static final String ATTRIBUTE_PROMETHEUS_TEXT = "PrometheusText";
+
+    private final LegacyDatabaseMetrics metrics;
+
+    public LegacyDatabaseMetricsMBean(LegacyDatabaseMetrics metrics) {
+        Assert.notNull(metrics, "Metrics must not be null");
+        this.metrics = metrics;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        if (ATTRIBUTE_PROMETHEUS_TEXT.equals(attribute)) {
+            return metrics.toPrometheusText();
+        }
+        Number value = metrics.snapshot().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException("Attribute \"" + attribute + "\" is not found");
+        }
+        return value.doubleValue();
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        Map<String, Number> snapshot = metrics.snapshot();
+        AttributeList result = new AttributeList();
+        for (String attribute : attributes) {
+            if (ATTRIBUTE_PROMETHEUS_TEXT.equals(attribute)) {
+                result.add(new Attribute(attribute, metrics.toPrometheusText()));
+            } else if (snapshot.containsKey(attribute)) {
+                result.add(new Attribute(attribute, snapshot.get(attribute).doubleValue()));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Attribute \"" + attribute.getName() + "\" is read-only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        Map<String, Number> snapshot = metrics.snapshot();
+        MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[snapshot.size() + 1];
+        int i = 0;
+        for (String name : snapshot.keySet()) {
+            attributes[i++] = new MBeanAttributeInfo(name, Double.class.getName(), name, true, false, false);
+        }
+        attributes[i] = new MBeanAttributeInfo(ATTRIBUTE_PROMETHEUS_TEXT, String.class.getName(),
+                "All metrics in Prometheus text format", true, false, false);
+        return new MBeanInfo(getClass().getName(), "Metrics of legacy database user storage", attributes, null,
+                null, null);
+    }
+}
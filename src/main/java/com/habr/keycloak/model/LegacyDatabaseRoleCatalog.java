@@ -0,0 +1,138 @@
+package com.habr.keycloak.model;
+
+import org.keycloak.models.RoleContainerModel;
+import org.keycloak.models.RoleModel;
+import org.springframework.util.Assert;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Catalog of roles of legacy database. Legacy database has only a few distinct authorities, so every authority name
+ * is kept once and shared by all users, loads and sessions. Users with the same authorities share a single immutable
+ * set of names as well, so that user kept in cache or snapshot costs a single reference for its roles. Names are
+ * added to catalog lazily when they are met for the first time (see {@link #intern(LegacyDatabaseUser)}).
+ * <p>
+ * Catalog holds only immutable role data and does not depend on Keycloak session, so it lives as long as storage
+ * provider factory. Role models reference realm model that is bound to the session, so they are created by
+ * {@link Binding} that is obtained with {@link #bind(RoleContainerModel)} once per realm and session.
+ *
+ * @author Roman Chigvintsev
+ */
+public class LegacyDatabaseRoleCatalog {
+    /**
+     * Maximum number of distinct sets of role names. Sets of further combinations are not shared, so that catalog
+     * does not grow without bound when authorities are not as few as expected.
+     */
+    private static final int MAX_ROLE_SETS = 10000;
+
+    /**
+     * Role names of all realms. Every name is kept as a single instance.
+     */
+    private final ConcurrentMap<String, String> roleNames = new ConcurrentHashMap<>();
+    /**
+     * Distinct sets of role names of users. Every set is kept as a single instance.
+     */
+    private final ConcurrentMap<Set<String>, Set<String>> roleSets = new ConcurrentHashMap<>();
+    /**
+     * Names of roles bound in realms by realm ids.
+     */
+    private final ConcurrentMap<String, Set<String>> realmRoles = new ConcurrentHashMap<>();
+
+    /**
+     * Returns user with the given one's role names replaced by shared instances.
+     *
+     * @param user user loaded from legacy database (may be {@code null})
+     * @return the given user if its roles are already shared or copy of it otherwise
+     */
+    public LegacyDatabaseUser intern(LegacyDatabaseUser user) {
+        if (user == null) {
+            return null;
+        }
+        return user.withRoles(internRoles(user.getRoles()));
+    }
+
+    /**
+     * Returns shared immutable set of role names equal to the given one.
+     */
+    public Set<String> internRoles(Set<String> names) {
+        Set<String> roles = roleSets.get(names);
+        if (roles != null) {
+            return roles;
+        }
+        Set<String> internedNames = new HashSet<>();
+        for (String name : names) {
+            internedNames.add(internName(name));
+        }
+        roles = Collections.unmodifiableSet(internedNames);
+        return roleSets.size() < MAX_ROLE_SETS ? roleSets.computeIfAbsent(roles, key -> key) : roles;
+    }
+
+    /**
+     * Binds roles of the given realm to realm model of the current session.
+     */
+    public Binding bind(RoleContainerModel realm) {
+        Assert.notNull(realm, "Realm must not be null");
+        return new Binding(this, realm, realmRoles.computeIfAbsent(realm.getId(),
+                realmId -> ConcurrentHashMap.newKeySet()));
+    }
+
+    /**
+     * Forgets roles bound in realm with the given id (e.g. when storage provider is removed from realm).
+     */
+    public void removeRealm(String realmId) {
+        realmRoles.remove(realmId);
+    }
+
+    /**
+     * Returns number of roles bound in all realms.
+     */
+    public int size() {
+        return realmRoles.values().stream().mapToInt(Set::size).sum();
+    }
+
+    private String internName(String name) {
+        String internedName = roleNames.get(name);
+        return internedName != null ? internedName : roleNames.computeIfAbsent(name, key -> key);
+    }
+
+    /**
+     * Roles of one realm bound to realm model of Keycloak session. Binding must not outlive the session. Every role
+     * is represented by a single immutable {@link LegacyDatabaseRoleModel} instance shared by all users of the realm
+     * within the session.
+     */
+    public static class Binding {
+        private final LegacyDatabaseRoleCatalog catalog;
+        private final RoleContainerModel realm;
+        private final Set<String> realmRoleNames;
+        private final ConcurrentMap<String, RoleModel> roles = new ConcurrentHashMap<>();
+
+        private Binding(LegacyDatabaseRoleCatalog catalog, RoleContainerModel realm, Set<String> realmRoleNames) {
+            this.catalog = catalog;
+            this.realm = realm;
+            this.realmRoleNames = realmRoleNames;
+        }
+
+        /**
+         * Returns role with the given name.
+         */
+        public RoleModel getRole(String name) {
+            RoleModel role = roles.get(name);
+            return role != null ? role : roles.computeIfAbsent(name, n -> {
+                String internedName = catalog.internName(n);
+                realmRoleNames.add(internedName);
+                return new LegacyDatabaseRoleModel(realm, internedName);
+            });
+        }
+
+        /**
+         * Returns number of roles bound to the session.
+         */
+        public int size() {
+            return roles.size();
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.habr.keycloak.model;
+
+import lombok.Builder;
+import lombok.Singular;
+import lombok.Value;
+import lombok.With;
+
+import java.util.Set;
+
+/**
+ * Detached user data loaded from legacy database. Unlike {@link LegacyDatabaseUserModel} it is not bound to any
+ * Keycloak session or realm and therefore can be safely shared between sessions.
+ *
+ * @author Roman Chigvintsev
+ */
+@Value
+@Builder(toBuilder = true)
+public class LegacyDatabaseUser {
+    String username;
+    String password;
+    String firstName;
+    String lastName;
+    /**
+     * Names of roles. Users loaded by storage provider share names and sets of them (see
+     * {@link LegacyDatabaseRoleCatalog}).
+     */
+    @Singular
+    @With
+    Set<String> roles;
+    /**
+     * Whether roles are loaded. Users loaded with lazy loading strategy have no roles until they are loaded
+     * separately.
+     */
+    @Builder.Default
+    boolean rolesLoaded = true;
+}
@@ -1,6 +1,5 @@
 package com.habr.keycloak.model;
 
-import org.keycloak.common.util.MultivaluedHashMap;
 import org.keycloak.component.ComponentModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
@@ -9,6 +8,7 @@ import org.keycloak.models.UserModel;
 import org.keycloak.storage.adapter.AbstractUserAdapter;
 
 import java.util.*;
+import java.util.function.Supplier;
 
 /**
  * @author Roman Chigvintsev
@@ -16,16 +16,34 @@ import java.util.*;
 public class LegacyDatabaseUserModel extends AbstractUserAdapter {
     public static final String ATTRIBUTE_PASSWORD = "password";
 
-    private final MultivaluedHashMap<String, String> attributes = new MultivaluedHashMap<>();
-    private final Set<RoleModel> roles;
+    /**
+     * Names of attributes in order of their slots in {@link #values}.
+     */
+    private static final String[] ATTRIBUTE_NAMES = {
+            UserModel.USERNAME, UserModel.FIRST_NAME, UserModel.LAST_NAME, ATTRIBUTE_PASSWORD
+    };
+    private static final int USERNAME_SLOT = 0;
+    private static final int FIRST_NAME_SLOT = 1;
+    private static final int LAST_NAME_SLOT = 2;
+    private static final int PASSWORD_SLOT = 3;
+
+    private final String[] values = new String[ATTRIBUTE_NAMES.length];
+    private final Map<String, List<String>> attributes = new AttributeMap();
+    private final Supplier<Set<RoleModel>> roleLoader;
+    private final Supplier<String> emailLoader;
+    private volatile String email;
+    private volatile boolean emailLoaded;
+    private volatile Set<RoleModel> roles;
 
     private LegacyDatabaseUserModel(Builder builder) {
         super(builder.session, builder.realm, builder.storageProviderModel);
-        attributes.putSingle(UserModel.USERNAME, builder.username);
-        attributes.putSingle(UserModel.FIRST_NAME, builder.firstName);
-        attributes.putSingle(UserModel.LAST_NAME, builder.lastName);
-        attributes.putSingle(ATTRIBUTE_PASSWORD, builder.password);
-        this.roles = Collections.unmodifiableSet(builder.roles);
+        values[USERNAME_SLOT] = builder.username;
+        values[FIRST_NAME_SLOT] = builder.firstName;
+        values[LAST_NAME_SLOT] = builder.lastName;
+        values[PASSWORD_SLOT] = builder.password;
+        this.roleLoader = builder.roleLoader;
+        this.emailLoader = builder.emailLoader;
+        this.roles = roleLoader == null ? Collections.unmodifiableSet(builder.roles) : null;
     }
 
     public static Builder builder() {
@@ -34,37 +52,165 @@ public class LegacyDatabaseUserModel extends AbstractUserAdapter {
 
     @Override
     public String getUsername() {
-        return getFirstAttribute(UserModel.USERNAME);
+        return values[USERNAME_SLOT];
     }
 
     @Override
     public String getFirstName() {
-        return getFirstAttribute(UserModel.FIRST_NAME);
+        return values[FIRST_NAME_SLOT];
     }
 
     @Override
     public String getLastName() {
-        return getFirstAttribute(UserModel.LAST_NAME);
+        return values[LAST_NAME_SLOT];
+    }
+
+    /**
+     * Replaces password hash of this user after it is changed in legacy database, so that the password change
+     * takes effect within the current session as well.
+     */
+    public void updatePassword(String password) {
+        values[PASSWORD_SLOT] = password;
+    }
+
+    /**
+     * Returns email of user loading it with email loader on the first call.
+     *
+     * @return email or {@code null} if user has no email or emails are not loaded
+     */
+    @Override
+    public String getEmail() {
+        if (emailLoader == null) {
+            return null;
+        }
+        if (!emailLoaded) {
+            email = emailLoader.get();
+            emailLoaded = true;
+        }
+        return email;
     }
 
+    /**
+     * Returns read-only view of user attributes. Attributes are not copied, so this method can be called
+     * repeatedly (e.g. by protocol mappers) without producing garbage.
+     */
     @Override
     public Map<String, List<String>> getAttributes() {
-        return new MultivaluedHashMap<>(attributes);
+        return attributes;
     }
 
     @Override
     public String getFirstAttribute(String name) {
-        return attributes.getFirst(name);
+        int slot = getSlot(name);
+        return slot < 0 ? null : values[slot];
     }
 
     @Override
     public List<String> getAttribute(String name) {
-        return attributes.get(name);
+        int slot = getSlot(name);
+        return slot < 0 ? null : Collections.singletonList(values[slot]);
     }
 
     @Override
     protected Set<RoleModel> getRoleMappingsInternal() {
-        return roles;
+        return getRoles();
+    }
+
+    @Override
+    public boolean hasRole(RoleModel role) {
+        // Roles of legacy database are not composite, so directly mapped roles are checked first without collecting
+        // all role mappings
+        return getRoles().contains(role) || super.hasRole(role);
+    }
+
+    /**
+     * Returns roles of user loading them with role loader on the first call if roles are loaded lazily.
+     */
+    private Set<RoleModel> getRoles() {
+        Set<RoleModel> result = roles;
+        if (result == null) {
+            synchronized (this) {
+                result = roles;
+                if (result == null) {
+                    result = Collections.unmodifiableSet(roleLoader.get());
+                    roles = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns slot of attribute with the given name or -1 if there is no such attribute. There are only a few
+     * attributes, so linear search is cheaper than hashing of name. Names are usually the same constants, so they are
+     * compared by reference first.
+     */
+    private static int getSlot(String name) {
+        for (int i = 0; i < ATTRIBUTE_NAMES.length; i++) {
+            if (ATTRIBUTE_NAMES[i] == name) {
+                return i;
+            }
+        }
+        for (int i = 0; i < ATTRIBUTE_NAMES.length; i++) {
+            if (ATTRIBUTE_NAMES[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Read-only map of attributes backed by attribute slots.
+     */
+    private class AttributeMap extends AbstractMap<String, List<String>> {
+        private final Set<Entry<String, List<String>>> entrySet = new AbstractSet<Entry<String, List<String>>>() {
+            @Override
+            public Iterator<Entry<String, List<String>>> iterator() {
+                return new Iterator<Entry<String, List<String>>>() {
+                    private int slot;
+
+                    @Override
+                    public boolean hasNext() {
+                        return slot < ATTRIBUTE_NAMES.length;
+                    }
+
+                    @Override
+                    public Entry<String, List<String>> next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        int current = slot++;
+                        return new SimpleImmutableEntry<>(ATTRIBUTE_NAMES[current],
+                                Collections.singletonList(values[current]));
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return ATTRIBUTE_NAMES.length;
+            }
+        };
+
+        @Override
+        public Set<Entry<String, List<String>>> entrySet() {
+            return entrySet;
+        }
+
+        @Override
+        public int size() {
+            return ATTRIBUTE_NAMES.length;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return key instanceof String && getSlot((String) key) >= 0;
+        }
+
+        @Override
+        public List<String> get(Object key) {
+            return key instanceof String ? getAttribute((String) key) : null;
+        }
     }
 
     public static class Builder {
@@ -77,6 +223,8 @@ public class LegacyDatabaseUserModel extends AbstractUserAdapter {
         private String lastName;
 
         private final Set<RoleModel> roles = new HashSet<>();
+        private Supplier<Set<RoleModel>> roleLoader;
+        private Supplier<String> emailLoader;
 
         public LegacyDatabaseUserModel build() {
             return new LegacyDatabaseUserModel(this);
@@ -121,5 +269,22 @@ public class LegacyDatabaseUserModel extends AbstractUserAdapter {
             this.roles.add(role);
             return this;
         }
+
+        /**
+         * Sets loader of roles that is called when roles are needed for the first time. Roles added with
+         * {@link #withRole(RoleModel)} are ignored when role loader is set.
+         */
+        public Builder roleLoader(Supplier<Set<RoleModel>> roleLoader) {
+            this.roleLoader = roleLoader;
+            return this;
+        }
+
+        /**
+         * Sets loader of email that is called when email is needed for the first time.
+         */
+        public Builder emailLoader(Supplier<String> emailLoader) {
+            this.emailLoader = emailLoader;
+            return this;
+        }
     }
 }
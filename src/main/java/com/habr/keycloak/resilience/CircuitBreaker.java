@@ -0,0 +1,148 @@
+package com.habr.keycloak.resilience;
+
+import org.jboss.logging.Logger;
+import org.springframework.dao.DataAccessException;
+import org.springframework.util.Assert;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Circuit breaker protecting callers from unavailable resource.
+ * <p>
+ * Circuit is closed initially and all calls are permitted. When the given number of consecutive calls fail with
+ * {@link DataAccessException} circuit is opened and all calls are rejected with {@link CircuitBreakerOpenException}
+ * without touching the resource. After open duration circuit becomes half-open and the next call is permitted as a
+ * probe while other calls are still rejected. Circuit is closed when probe succeeds and opened again when it fails.
+ *
+ * @author Roman Chigvintsev
+ */
+public class CircuitBreaker {
+    private static final Logger log = Logger.getLogger(CircuitBreaker.class);
+
+    private final String name;
+    private final int failureThreshold;
+    private final long openDurationNanos;
+
+    private final AtomicReference<Status> status = new AtomicReference<>(Status.CLOSED);
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+    private final LongAdder rejectedCalls = new LongAdder();
+
+    /**
+     * Creates new circuit breaker.
+     *
+     * @param name             name of protected resource used in log messages
+     * @param failureThreshold number of consecutive failures after which circuit is opened
+     * @param openDuration     time after which open circuit permits probe call
+     */
+    public CircuitBreaker(String name, int failureThreshold, Duration openDuration) {
+        Assert.hasText(name, "Circuit breaker name must not be null or empty");
+        Assert.isTrue(failureThreshold > 0, "Failure threshold must be positive");
+        Assert.notNull(openDuration, "Open duration must not be null");
+        Assert.isTrue(!openDuration.isNegative() && !openDuration.isZero(), "Open duration must be positive");
+        this.name = name;
+        this.failureThreshold = failureThreshold;
+        this.openDurationNanos = openDuration.toNanos();
+    }
+
+    /**
+     * Performs call if circuit permits it.
+     *
+     * @param call call to protected resource
+     * @return result of call
+     * @throws CircuitBreakerOpenException if call is rejected
+     */
+    public <T> T execute(Supplier<T> call) {
+        boolean probe = acquirePermission();
+        try {
+            T result = call.get();
+            onSuccess(probe);
+            return result;
+        } catch (DataAccessException e) {
+            onFailure(probe);
+            throw e;
+        } catch (RuntimeException | Error e) {
+            // Only failures of resource are counted, but probe must not leave circuit half-open forever
+            onSuccess(probe);
+            throw e;
+        }
+    }
+
+    public State getState() {
+        return status.get().state;
+    }
+
+    /**
+     * Returns number of calls rejected since circuit was not closed.
+     */
+    public long getRejectedCount() {
+        return rejectedCalls.sum();
+    }
+
+    /**
+     * Returns {@code true} if this call is probe call of half-open circuit.
+     */
+    private boolean acquirePermission() {
+        Status currentStatus = status.get();
+        if (currentStatus.state == State.CLOSED) {
+            return false;
+        }
+        if (currentStatus.state == State.OPEN && System.nanoTime() - currentStatus.openedAt >= openDurationNanos
+                && status.compareAndSet(currentStatus, new Status(State.HALF_OPEN, currentStatus.openedAt))) {
+            log.infov("Circuit breaker \"{0}\" is half-open, probing", name);
+            return true;
+        }
+        rejectedCalls.increment();
+        throw new CircuitBreakerOpenException("Circuit breaker \"" + name + "\" is open");
+    }
+
+    private void onSuccess(boolean probe) {
+        if (probe) {
+            consecutiveFailures.set(0);
+            status.set(Status.CLOSED);
+            log.infov("Circuit breaker \"{0}\" is closed", name);
+        } else if (consecutiveFailures.get() != 0) {
+            // Counter is written only when needed to avoid contention on the hot path
+            consecutiveFailures.set(0);
+        }
+    }
+
+    private void onFailure(boolean probe) {
+        if (probe) {
+            open(State.HALF_OPEN);
+        } else if (consecutiveFailures.incrementAndGet() >= failureThreshold) {
+            open(State.CLOSED);
+        }
+    }
+
+    private void open(State expectedState) {
+        Status currentStatus = status.get();
+        // Open time is written together with state, so that losing transition does not extend open circuit
+        if (currentStatus.state == expectedState
+                && status.compareAndSet(currentStatus, new Status(State.OPEN, System.nanoTime()))) {
+            log.warnv("Circuit breaker \"{0}\" is open for {1} ms", name, openDurationNanos / 1_000_000);
+        }
+    }
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private static class Status {
+        static final Status CLOSED = new Status(State.CLOSED, 0L);
+
+        final State state;
+        final long openedAt;
+
+        Status(State state, long openedAt) {
+            this.state = state;
+            this.openedAt = openedAt;
+        }
+    }
+}
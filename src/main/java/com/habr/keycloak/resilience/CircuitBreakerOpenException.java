@@ -0,0 +1,14 @@
+package com.habr.keycloak.resilience;
+
+import org.springframework.dao.TransientDataAccessResourceException;
+
+/**
+ * Exception thrown when call is rejected by open circuit breaker.
+ *
+ * @author Roman Chigvintsev
+ */
+public class CircuitBreakerOpenException extends TransientDataAccessResourceException {
+    public CircuitBreakerOpenException(String msg) {
+        super(msg);
+    }
+}
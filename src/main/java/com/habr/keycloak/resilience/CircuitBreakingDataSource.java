@@ -0,0 +1,64 @@
+package com.habr.keycloak.resilience;
+
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+import org.springframework.util.Assert;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Data source that obtains connections from target data source only when circuit breaker permits it. Failures to
+ * obtain connection are counted by circuit breaker. When circuit is open {@link CircuitBreakerOpenException} is thrown
+ * right away, so that callers do not wait for unavailable database.
+ * <p>
+ * Failures of queries executed with obtained connections are not counted, so calls that count them with the same
+ * circuit breaker (e.g. user loads) must use target data source to avoid nested calls of circuit breaker.
+ *
+ * @author Roman Chigvintsev
+ */
+public class CircuitBreakingDataSource extends DelegatingDataSource {
+    private final CircuitBreaker circuitBreaker;
+
+    public CircuitBreakingDataSource(DataSource targetDataSource, CircuitBreaker circuitBreaker) {
+        super(targetDataSource);
+        Assert.notNull(circuitBreaker, "Circuit breaker must not be null");
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return execute(super::getConnection);
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        return execute(() -> super.getConnection(username, password));
+    }
+
+    private Connection execute(ConnectionCall call) throws SQLException {
+        try {
+            return circuitBreaker.execute(() -> {
+                try {
+                    return call.get();
+                } catch (SQLException e) {
+                    // Wrapped only to be counted by circuit breaker
+                    throw new ConnectionFailureException(e);
+                }
+            });
+        } catch (ConnectionFailureException e) {
+            throw (SQLException) e.getCause();
+        }
+    }
+
+    private interface ConnectionCall {
+        Connection get() throws SQLException;
+    }
+
+    private static class ConnectionFailureException extends DataAccessResourceFailureException {
+        ConnectionFailureException(SQLException cause) {
+            super(cause.getMessage(), cause);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.habr.keycloak.snapshot;
+
+import com.habr.keycloak.model.LegacyDatabaseUser;
+import lombok.Getter;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+
+/**
+ * Read-only snapshot of users written by {@link UserSnapshotWriter} and mapped into memory.
+ * <p>
+ * Users are found with binary search over index of usernames and decoded from mapped file on every lookup, so heap
+ * usage does not depend on number of users in snapshot (except role names that are kept on heap). Snapshot is safe
+ * to use from multiple threads.
+ *
+ * @author Roman Chigvintsev
+ */
+public final class UserSnapshot {
+    private final ByteBuffer buffer;
+    /**
+     * Version of source data which snapshot reflects.
+     */
+    @Getter
+    private final long version;
+    /**
+     * Time of the last full build of snapshot (milliseconds since epoch).
+     */
+    @Getter
+    private final long fullBuildTime;
+    private final int userCount;
+    private final String[] roles;
+    private final int indexStart;
+    private final int recordsStart;
+
+    private UserSnapshot(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        try {
+            if (buffer.getInt() != UserSnapshotWriter.MAGIC) {
+                throw new IOException("File is not a user snapshot");
+            }
+            int formatVersion = buffer.getInt();
+            if (formatVersion != UserSnapshotWriter.FORMAT_VERSION) {
+                throw new IOException("Unsupported user snapshot format version: " + formatVersion);
+            }
+            this.version = buffer.getLong();
+            this.fullBuildTime = buffer.getLong();
+            this.userCount = buffer.getInt();
+            int roleCount = buffer.getInt();
+            this.roles = new String[roleCount];
+            for (int i = 0; i < roleCount; i++) {
+                roles[i] = readString(buffer);
+            }
+            this.indexStart = buffer.position();
+            this.recordsStart = indexStart + userCount * 4;
+            if (recordsStart > buffer.limit()) {
+                throw new IOException("User snapshot is truncated");
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | NegativeArraySizeException e) {
+            throw new IOException("User snapshot is corrupted", e);
+        }
+    }
+
+    /**
+     * Maps snapshot file into memory. File remains mapped until snapshot is garbage collected, so it can be replaced
+     * with a new snapshot but must not be truncated in place.
+     */
+    public static UserSnapshot open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < UserSnapshotWriter.HEADER_SIZE || size > Integer.MAX_VALUE) {
+                throw new IOException("User snapshot has invalid size " + size);
+            }
+            return new UserSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+        }
+    }
+
+    /**
+     * Finds user with the given name.
+     *
+     * @return user or {@code null} if user is not found in snapshot
+     */
+    public LegacyDatabaseUser find(String username) {
+        byte[] target = username.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer view = buffer.duplicate();
+        int low = 0;
+        int high = userCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            view.position(recordsStart + view.getInt(indexStart + middle * 4));
+            int result = compare(view, target);
+            if (result < 0) {
+                low = middle + 1;
+            } else if (result > 0) {
+                high = middle - 1;
+            } else {
+                return readUser(view, username);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Passes all users to the given consumer in order of their names.
+     */
+    public void forEach(Consumer<LegacyDatabaseUser> consumer) {
+        ByteBuffer view = buffer.duplicate();
+        for (int i = 0; i < userCount; i++) {
+            view.position(recordsStart + view.getInt(indexStart + i * 4));
+            String username = readString(view);
+            consumer.accept(readUser(view, username));
+        }
+    }
+
+    public int size() {
+        return userCount;
+    }
+
+    /**
+     * Compares username at the current position of the buffer with the given one. Position is moved to the end of
+     * username.
+     */
+    private static int compare(ByteBuffer view, byte[] target) {
+        int length = view.getInt();
+        int end = view.position() + length;
+        int commonLength = Math.min(length, target.length);
+        for (int i = 0; i < commonLength; i++) {
+            int result = Integer.compare(view.get() & 0xFF, target[i] & 0xFF);
+            if (result != 0) {
+                view.position(end);
+                return result;
+            }
+        }
+        view.position(end);
+        return Integer.compare(length, target.length);
+    }
+
+    /**
+     * Reads user record following username at the current position of the buffer.
+     */
+    private LegacyDatabaseUser readUser(ByteBuffer view, String username) {
+        LegacyDatabaseUser.LegacyDatabaseUserBuilder builder = LegacyDatabaseUser.builder()
+                .username(username)
+                .password(readString(view))
+                .firstName(readString(view))
+                .lastName(readString(view));
+        int roleCount = view.getShort() & 0xFFFF;
+        for (int i = 0; i < roleCount; i++) {
+            builder.role(roles[view.getInt()]);
+        }
+        return builder.build();
+    }
+
+    private static String readString(ByteBuffer view) {
+        int length = view.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        view.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
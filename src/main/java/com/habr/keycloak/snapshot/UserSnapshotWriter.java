@@ -0,0 +1,209 @@
+package com.habr.keycloak.snapshot;
+
+import com.habr.keycloak.model.LegacyDatabaseUser;
+import org.springframework.util.Assert;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes snapshot of users that can be read with {@link UserSnapshot}.
+ * <p>
+ * Users may be added in any order. If several users with the same name are added the first one is kept. Snapshot is
+ * written into temporary file that replaces target file atomically on {@link #commit()}, so readers never see
+ * partially written snapshot. Temporary files are created readable by owner only since snapshot contains password
+ * hashes.
+ * <p>
+ * Snapshot layout:
+ * <pre>
+ * header:  magic (int), format version (int), version (long), full build time (long), user count (int),
+ *          role count (int)
+ * roles:   role names (string)
+ * index:   offsets of user records sorted by UTF-8 bytes of usernames (int)
+ * records: username (string), password (string), first name (string), last name (string), role count (short),
+ *          role ids (int)
+ * </pre>
+ * Strings are written as length of UTF-8 bytes (int, -1 for {@code null}) followed by bytes.
+ *
+ * @author Roman Chigvintsev
+ */
+public class UserSnapshotWriter implements Closeable {
+    static final int MAGIC = 0x4C445553;
+    static final int FORMAT_VERSION = 1;
+    static final int HEADER_SIZE = 32;
+
+    private final Path target;
+    private final long version;
+    private final long fullBuildTime;
+    private final Path recordsFile;
+    private final DataOutputStream records;
+    private final Map<String, Integer> roleIds = new LinkedHashMap<>();
+    private final List<IndexEntry> index = new ArrayList<>();
+
+    private boolean committed;
+
+    /**
+     * Creates new writer.
+     *
+     * @param target        snapshot file
+     * @param version       version of source data (e.g. last modification time of users) which snapshot reflects
+     * @param fullBuildTime time of the last full build of snapshot (milliseconds since epoch)
+     */
+    public UserSnapshotWriter(Path target, long version, long fullBuildTime) throws IOException {
+        Assert.notNull(target, "Snapshot file must not be null");
+        this.target = target.toAbsolutePath();
+        this.version = version;
+        this.fullBuildTime = fullBuildTime;
+        Files.createDirectories(this.target.getParent());
+        this.recordsFile = Files.createTempFile(this.target.getParent(), this.target.getFileName().toString(),
+                ".records");
+        this.records = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(recordsFile)));
+    }
+
+    public void add(LegacyDatabaseUser user) throws IOException {
+        Assert.state(!committed, "Snapshot is already committed");
+        byte[] username = user.getUsername().getBytes(StandardCharsets.UTF_8);
+        index.add(new IndexEntry(username, records.size()));
+        writeBytes(records, username);
+        writeString(records, user.getPassword());
+        writeString(records, user.getFirstName());
+        writeString(records, user.getLastName());
+        records.writeShort(user.getRoles().size());
+        for (String role : user.getRoles()) {
+            Integer roleId = roleIds.get(role);
+            if (roleId == null) {
+                roleId = roleIds.size();
+                roleIds.put(role, roleId);
+            }
+            records.writeInt(roleId);
+        }
+        // DataOutputStream#size stops counting at 2 GB which is the limit of memory-mapped snapshot anyway
+        if (records.size() == Integer.MAX_VALUE) {
+            throw new IOException("Snapshot must not be larger than 2 GB");
+        }
+    }
+
+    /**
+     * Writes snapshot and replaces target file with it.
+     */
+    public void commit() throws IOException {
+        Assert.state(!committed, "Snapshot is already committed");
+        committed = true;
+        records.close();
+
+        // Sort is stable, so that the first of users with the same name goes first
+        index.sort((e1, e2) -> compare(e1.username, e2.username));
+        List<IndexEntry> uniqueIndex = new ArrayList<>(index.size());
+        for (IndexEntry entry : index) {
+            if (uniqueIndex.isEmpty() || compare(uniqueIndex.get(uniqueIndex.size() - 1).username,
+                    entry.username) != 0) {
+                uniqueIndex.add(entry);
+            }
+        }
+
+        Path snapshotFile = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(snapshotFile, StandardOpenOption.WRITE)) {
+                // Stream is flushed but not closed since records are appended to the same channel afterwards
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                        Channels.newOutputStream(channel)));
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeLong(version);
+                out.writeLong(fullBuildTime);
+                out.writeInt(uniqueIndex.size());
+                out.writeInt(roleIds.size());
+                for (String role : roleIds.keySet()) {
+                    writeString(out, role);
+                }
+                for (IndexEntry entry : uniqueIndex) {
+                    out.writeInt(entry.offset);
+                }
+                out.flush();
+                try (FileChannel recordsChannel = FileChannel.open(recordsFile, StandardOpenOption.READ)) {
+                    long size = recordsChannel.size();
+                    long position = 0;
+                    while (position < size) {
+                        position += recordsChannel.transferTo(position, size - position, channel);
+                    }
+                }
+                if (channel.size() > Integer.MAX_VALUE) {
+                    throw new IOException("Snapshot must not be larger than 2 GB");
+                }
+                channel.force(true);
+            }
+            try {
+                Files.move(snapshotFile, target, StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(snapshotFile, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(snapshotFile);
+            Files.deleteIfExists(recordsFile);
+        }
+    }
+
+    /**
+     * Discards snapshot if it is not committed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!committed) {
+            committed = true;
+            records.close();
+            Files.deleteIfExists(recordsFile);
+        }
+    }
+
+    /**
+     * Compares UTF-8 bytes of strings as unsigned values, which is the same as comparing strings by code points.
+     */
+    static int compare(byte[] b1, byte[] b2) {
+        int length = Math.min(b1.length, b2.length);
+        for (int i = 0; i < length; i++) {
+            int result = Integer.compare(b1[i] & 0xFF, b2[i] & 0xFF);
+            if (result != 0) {
+                return result;
+            }
+        }
+        return Integer.compare(b1.length, b2.length);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            writeBytes(out, value.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static final class IndexEntry {
+        private final byte[] username;
+        private final int offset;
+
+        private IndexEntry(byte[] username, int offset) {
+            this.username = username;
+            this.offset = offset;
+        }
+    }
+}
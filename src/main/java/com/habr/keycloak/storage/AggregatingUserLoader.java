@@ -0,0 +1,65 @@
+package com.habr.keycloak.storage;
+
+import com.habr.keycloak.model.LegacyDatabaseUser;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+
+import javax.sql.DataSource;
+import java.sql.Types;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Loads user with authorities aggregated into single column so that result contains single row.
+ *
+ * @author Roman Chigvintsev
+ */
+class AggregatingUserLoader implements LegacyDatabaseUserLoader {
+    private static final String SQL_FIND_USERS = "SELECT u.username, u.password, u.first_name, u.last_name, "
+            + "%s "
+            + "FROM users u "
+            + "LEFT JOIN authorities a ON a.username = u.username "
+            + "WHERE %s "
+            + "GROUP BY u.username, u.password, u.first_name, u.last_name";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final LazySqlDialect dialect;
+
+    AggregatingUserLoader(DataSource dataSource, SqlDialect dialect) {
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+        this.dialect = new LazySqlDialect(dataSource, dialect);
+    }
+
+    @Override
+    public LegacyDatabaseUser findUserByName(String username) {
+        SqlDialect sqlDialect = dialect.get();
+        String sql = String.format(SQL_FIND_USERS, sqlDialect.getAggregateExpression("a.authority"),
+                "u.username = ?");
+        List<LegacyDatabaseUser> users = jdbcTemplate.query(sql, new Object[]{username}, new int[]{Types.VARCHAR},
+                userMapper(sqlDialect));
+        return users.isEmpty() ? null : users.get(0);
+    }
+
+    @Override
+    public List<LegacyDatabaseUser> findUsersByNames(Collection<String> usernames) {
+        if (usernames.isEmpty()) {
+            return Collections.emptyList();
+        }
+        SqlDialect sqlDialect = dialect.get();
+        String placeholders = String.join(", ", Collections.nCopies(usernames.size(), "?"));
+        String sql = String.format(SQL_FIND_USERS, sqlDialect.getAggregateExpression("a.authority"),
+                "u.username IN (" + placeholders + ")");
+        return jdbcTemplate.query(sql, userMapper(sqlDialect), usernames.toArray());
+    }
+
+    private static RowMapper<LegacyDatabaseUser> userMapper(SqlDialect sqlDialect) {
+        return (rs, rowNum) -> LegacyDatabaseUser.builder()
+                .username(rs.getString(1))
+                .password(rs.getString(2))
+                .firstName(rs.getString(3))
+                .lastName(rs.getString(4))
+                .roles(sqlDialect.getAggregatedValues(rs, 5))
+                .build();
+    }
+}
@@ -0,0 +1,45 @@
+package com.habr.keycloak.storage;
+
+import com.habr.keycloak.model.LegacyDatabaseUser;
+import com.habr.keycloak.resilience.CircuitBreaker;
+import lombok.RequiredArgsConstructor;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * User loader that loads users only when circuit breaker permits it.
+ *
+ * @author Roman Chigvintsev
+ */
+@RequiredArgsConstructor
+class CircuitBreakingUserLoader implements LegacyDatabaseUserLoader {
+    private final LegacyDatabaseUserLoader delegate;
+    private final CircuitBreaker circuitBreaker;
+
+    @Override
+    public LegacyDatabaseUser findUserByName(String username) {
+        return circuitBreaker.execute(() -> delegate.findUserByName(username));
+    }
+
+    @Override
+    public List<LegacyDatabaseUser> findUsersByNames(Collection<String> usernames) {
+        return circuitBreaker.execute(() -> delegate.findUsersByNames(usernames));
+    }
+
+    @Override
+    public Set<String> findRolesByUsername(String username) {
+        return circuitBreaker.execute(() -> delegate.findRolesByUsername(username));
+    }
+
+    @Override
+    public void invalidate(String username) {
+        delegate.invalidate(username);
+    }
+
+    @Override
+    public void invalidateAll() {
+        delegate.invalidateAll();
+    }
+}
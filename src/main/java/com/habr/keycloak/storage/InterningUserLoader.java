@@ -0,0 +1,49 @@
+package com.habr.keycloak.storage;
+
+import com.habr.keycloak.model.LegacyDatabaseRoleCatalog;
+import com.habr.keycloak.model.LegacyDatabaseUser;
+import lombok.RequiredArgsConstructor;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * User loader that replaces role names of loaded users with instances shared through role catalog, so that users
+ * kept in user cache do not hold their own copies of names read from legacy database or snapshot.
+ *
+ * @author Roman Chigvintsev
+ */
+@RequiredArgsConstructor
+class InterningUserLoader implements LegacyDatabaseUserLoader {
+    private final LegacyDatabaseUserLoader delegate;
+    private final LegacyDatabaseRoleCatalog roleCatalog;
+
+    @Override
+    public LegacyDatabaseUser findUserByName(String username) {
+        return roleCatalog.intern(delegate.findUserByName(username));
+    }
+
+    @Override
+    public List<LegacyDatabaseUser> findUsersByNames(Collection<String> usernames) {
+        return delegate.findUsersByNames(usernames).stream()
+                .map(roleCatalog::intern)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public Set<String> findRolesByUsername(String username) {
+        return roleCatalog.internRoles(delegate.findRolesByUsername(username));
+    }
+
+    @Override
+    public void invalidate(String username) {
+        delegate.invalidate(username);
+    }
+
+    @Override
+    public void invalidateAll() {
+        delegate.invalidateAll();
+    }
+}
@@ -0,0 +1,52 @@
+package com.habr.keycloak.storage;
+
+import com.habr.keycloak.model.LegacyDatabaseUser;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import javax.sql.DataSource;
+import java.sql.Types;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Loads user left-joined with authorities so that users without authorities are found as well.
+ *
+ * @author Roman Chigvintsev
+ */
+class JoiningUserLoader implements LegacyDatabaseUserLoader {
+    private static final String SQL_FIND_USERS = "SELECT u.username, u.password, u.first_name, u.last_name, "
+            + "a.authority "
+            + "FROM users u "
+            + "LEFT JOIN authorities a ON a.username = u.username ";
+    private static final String SQL_FIND_USER_BY_NAME = SQL_FIND_USERS + "WHERE u.username = ?";
+    /**
+     * Rows of the same user must follow each other (see {@link LegacyDatabaseUserRowAggregator}).
+     */
+    private static final String SQL_FIND_USERS_BY_NAMES = SQL_FIND_USERS + "WHERE u.username IN (%s) "
+            + "ORDER BY u.username";
+
+    private final JdbcTemplate jdbcTemplate;
+
+    JoiningUserLoader(DataSource dataSource) {
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+    }
+
+    @Override
+    public LegacyDatabaseUser findUserByName(String username) {
+        List<LegacyDatabaseUser> users = jdbcTemplate.query(SQL_FIND_USER_BY_NAME, new Object[]{username},
+                new int[]{Types.VARCHAR}, new LegacyDatabaseUserResultSetExtractor());
+        return users == null || users.isEmpty() ? null : users.get(0);
+    }
+
+    @Override
+    public List<LegacyDatabaseUser> findUsersByNames(Collection<String> usernames) {
+        if (usernames.isEmpty()) {
+            return Collections.emptyList();
+        }
+        String placeholders = String.join(", ", Collections.nCopies(usernames.size(), "?"));
+        List<LegacyDatabaseUser> users = jdbcTemplate.query(String.format(SQL_FIND_USERS_BY_NAMES, placeholders),
+                new LegacyDatabaseUserResultSetExtractor(), usernames.toArray());
+        return users == null ? Collections.emptyList() : users;
+    }
+}
@@ -0,0 +1,96 @@
+package com.habr.keycloak.storage;
+
+import com.habr.keycloak.model.LegacyDatabaseUser;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+
+import javax.sql.DataSource;
+import java.sql.Types;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Loads user without authorities. Query selects only columns of {@code users} table, so it can be served from
+ * index covering username, password and names. Authorities are loaded with {@link #findRolesByUsername(String)}
+ * when they are needed.
+ *
+ * @author Roman Chigvintsev
+ */
+class LazyRoleUserLoader implements LegacyDatabaseUserLoader {
+    private static final String SQL_FIND_USERS = "SELECT username, password, first_name, last_name "
+            + "FROM users ";
+    private static final String SQL_FIND_USER_BY_NAME = SQL_FIND_USERS + "WHERE username = ?";
+    private static final String SQL_FIND_USERS_BY_NAMES = SQL_FIND_USERS + "WHERE username IN (%s)";
+    private static final String SQL_FIND_AUTHORITIES_BY_USERNAME = "SELECT authority "
+            + "FROM authorities "
+            + "WHERE username = ?";
+    private static final String SQL_FIND_AUTHORITIES_BY_USERNAMES = "SELECT username, authority "
+            + "FROM authorities "
+            + "WHERE username IN (%s)";
+
+    private static final RowMapper<LegacyDatabaseUser> USER_MAPPER = (rs, rowNum) -> LegacyDatabaseUser.builder()
+            .username(rs.getString(1))
+            .password(rs.getString(2))
+            .firstName(rs.getString(3))
+            .lastName(rs.getString(4))
+            .rolesLoaded(false)
+            .build();
+
+    private final JdbcTemplate jdbcTemplate;
+
+    LazyRoleUserLoader(DataSource dataSource) {
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+    }
+
+    @Override
+    public LegacyDatabaseUser findUserByName(String username) {
+        List<LegacyDatabaseUser> users = jdbcTemplate.query(SQL_FIND_USER_BY_NAME, new Object[]{username},
+                new int[]{Types.VARCHAR}, USER_MAPPER);
+        return users.isEmpty() ? null : users.get(0);
+    }
+
+    @Override
+    public List<LegacyDatabaseUser> findUsersByNames(Collection<String> usernames) {
+        if (usernames.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return jdbcTemplate.query(String.format(SQL_FIND_USERS_BY_NAMES, placeholders(usernames.size())),
+                USER_MAPPER, usernames.toArray());
+    }
+
+    @Override
+    public Set<String> findRolesByUsername(String username) {
+        Set<String> roles = new HashSet<>();
+        jdbcTemplate.query(SQL_FIND_AUTHORITIES_BY_USERNAME, new Object[]{username}, new int[]{Types.VARCHAR},
+                rs -> {
+                    roles.add(rs.getString(1));
+                });
+        return roles;
+    }
+
+    /**
+     * Loads names of authorities of users with the given names.
+     *
+     * @param usernames usernames
+     * @return names of authorities by username, users without authorities are omitted
+     */
+    Map<String, Set<String>> findRolesByUsernames(Collection<String> usernames) {
+        Map<String, Set<String>> roles = new HashMap<>();
+        if (usernames.isEmpty()) {
+            return roles;
+        }
+        jdbcTemplate.query(String.format(SQL_FIND_AUTHORITIES_BY_USERNAMES, placeholders(usernames.size())), rs -> {
+            roles.computeIfAbsent(rs.getString(1), username -> new HashSet<>()).add(rs.getString(2));
+        }, usernames.toArray());
+        return roles;
+    }
+
+    private static String placeholders(int count) {
+        return String.join(", ", Collections.nCopies(count, "?"));
+    }
+}
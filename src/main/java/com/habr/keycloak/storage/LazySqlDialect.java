@@ -0,0 +1,43 @@
+package com.habr.keycloak.storage;
+
+import org.springframework.util.Assert;
+
+import javax.sql.DataSource;
+import java.util.function.Supplier;
+
+/**
+ * Dialect of legacy database that is detected on first use unless it is configured explicitly.
+ *
+ * @author Roman Chigvintsev
+ */
+class LazySqlDialect implements Supplier<SqlDialect> {
+    private final DataSource dataSource;
+
+    /**
+     * Dialect of legacy database. It is {@code null} until it is detected.
+     */
+    private volatile SqlDialect dialect;
+
+    /**
+     * Creates new dialect.
+     *
+     * @param dataSource legacy database
+     * @param dialect    configured dialect or {@code null} to detect it from legacy database
+     */
+    LazySqlDialect(DataSource dataSource, SqlDialect dialect) {
+        Assert.notNull(dataSource, "Data source must not be null");
+        this.dataSource = dataSource;
+        this.dialect = dialect;
+    }
+
+    @Override
+    public SqlDialect get() {
+        SqlDialect result = dialect;
+        if (result == null) {
+            // Concurrent detection is harmless since every thread detects the same dialect
+            result = SqlDialect.detect(dataSource);
+            dialect = result;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,44 @@
+package com.habr.keycloak.storage;
+
+import com.habr.keycloak.cache.LegacyDatabaseUserCache;
+import lombok.Builder;
+import lombok.Getter;
+import org.apache.commons.dbcp2.BasicDataSource;
+
+import javax.sql.DataSource;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Legacy database of storage provider component that defines its own data source instead of data source defined with
+ * system properties. Each component gets its own connection pool, user loader, user cache, email lookup, login
+ * auditor, password updater and synchronizer, so that one tenant cannot exhaust connections or cache of another one.
+ *
+ * @author Roman Chigvintsev
+ */
+@Getter
+@Builder
+class LegacyDatabaseComponentContext {
+    /**
+     * Component configuration the context is created from. Context must be recreated when it is changed.
+     */
+    private final Map<String, String> settings;
+    private final BasicDataSource pool;
+    /**
+     * Connection pool that records connection acquisition latency and obtains connections only when circuit breaker
+     * of component permits it. It must be used instead of the pool itself for reads other than user loads.
+     */
+    private final DataSource dataSource;
+    private final LazySqlDialect dialect;
+    private final LegacyDatabaseUserLoader userLoader;
+    private final LegacyDatabaseUserCache userCache;
+    private final LegacyDatabaseUserEmailLookup emailLookup;
+    private final LegacyDatabaseLoginAuditor loginAuditor;
+    /**
+     * Periodic flush of login auditor or {@code null} if login auditing is disabled. It must be cancelled when
+     * component is closed.
+     */
+    private final ScheduledFuture<?> loginAuditFlush;
+    private final LegacyDatabasePasswordUpdater passwordUpdater;
+    private final LegacyDatabaseUserSynchronizer synchronizer;
+}
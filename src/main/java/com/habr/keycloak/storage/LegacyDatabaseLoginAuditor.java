@@ -0,0 +1,272 @@
+package com.habr.keycloak.storage;
+
+import com.habr.keycloak.metrics.LatencyHistogram;
+import org.jboss.logging.Logger;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.util.Assert;
+
+import javax.sql.DataSource;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Writes results of credential checks back to legacy database so that legacy applications reading last login time
+ * and number of failed attempts keep working.
+ * <p>
+ * Credential checks only record results in memory. Results are coalesced per user: successful login sets last login
+ * time and resets number of failed attempts, failed logins since then are counted. Recorded results are written with
+ * JDBC batch updates by {@link #flush()} which should be called periodically and is also requested in background
+ * when number of pending users reaches batch size. Number of pending users is limited: when the limit is reached
+ * results of other users are dropped instead of slowing down logins. Results that could not be written are kept
+ * until the next flush.
+ *
+ * @author Roman Chigvintsev
+ */
+public class LegacyDatabaseLoginAuditor {
+    private static final Logger log = Logger.getLogger(LegacyDatabaseLoginAuditor.class);
+
+    private static final LegacyDatabaseLoginAuditor DISABLED = new LegacyDatabaseLoginAuditor();
+
+    private final JdbcTemplate jdbcTemplate;
+    private final Executor flushExecutor;
+    private final LatencyHistogram flushLatency;
+    private final int maxPendingUsers;
+    private final int batchSize;
+    private final String sqlUpdateLastLogin;
+    private final String sqlAddFailedAttempts;
+
+    private final ConcurrentMap<String, LoginResult> pendingResults = new ConcurrentHashMap<>();
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    private volatile boolean closed;
+
+    private final LongAdder writtenUsers = new LongAdder();
+    private final LongAdder droppedResults = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    /**
+     * Creates new auditor.
+     *
+     * @param dataSource           legacy database
+     * @param lastLoginColumn      column of {@code users} table containing time of the last successful login
+     * @param failedAttemptsColumn column of {@code users} table containing number of failed attempts since the last
+     *                             successful login
+     * @param maxPendingUsers      maximum number of users with results waiting to be written
+     * @param batchSize            maximum number of updates in one batch
+     * @param flushExecutor        executor of flushes requested when number of pending users reaches batch size
+     * @param flushLatency         histogram recording duration of flushes
+     */
+    public LegacyDatabaseLoginAuditor(DataSource dataSource,
+                                      String lastLoginColumn,
+                                      String failedAttemptsColumn,
+                                      int maxPendingUsers,
+                                      int batchSize,
+                                      Executor flushExecutor,
+                                      LatencyHistogram flushLatency) {
+        Assert.notNull(dataSource, "Data source must not be null");
+        Assert.hasText(lastLoginColumn, "Last login column must not be null or empty");
+        Assert.hasText(failedAttemptsColumn, "Failed attempts column must not be null or empty");
+        Assert.isTrue(maxPendingUsers > 0, "Maximum number of pending users must be positive");
+        Assert.isTrue(batchSize > 0, "Batch size must be positive");
+        Assert.notNull(flushExecutor, "Flush executor must not be null");
+        Assert.notNull(flushLatency, "Flush latency histogram must not be null");
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+        this.flushExecutor = flushExecutor;
+        this.flushLatency = flushLatency;
+        this.maxPendingUsers = maxPendingUsers;
+        this.batchSize = batchSize;
+        this.sqlUpdateLastLogin = "UPDATE users SET " + lastLoginColumn + " = ?, " + failedAttemptsColumn + " = ? "
+                + "WHERE username = ?";
+        this.sqlAddFailedAttempts = "UPDATE users SET " + failedAttemptsColumn + " = COALESCE("
+                + failedAttemptsColumn + ", 0) + ? WHERE username = ?";
+    }
+
+    private LegacyDatabaseLoginAuditor() {
+        this.jdbcTemplate = null;
+        this.flushExecutor = null;
+        this.flushLatency = null;
+        this.maxPendingUsers = 0;
+        this.batchSize = 0;
+        this.sqlUpdateLastLogin = null;
+        this.sqlAddFailedAttempts = null;
+    }
+
+    /**
+     * Returns auditor that does not record anything.
+     */
+    public static LegacyDatabaseLoginAuditor disabled() {
+        return DISABLED;
+    }
+
+    public boolean isEnabled() {
+        return jdbcTemplate != null;
+    }
+
+    /**
+     * Records successful login of user.
+     */
+    public void loginSucceeded(String username) {
+        record(username, new LoginResult(new Timestamp(System.currentTimeMillis()), 0));
+    }
+
+    /**
+     * Records failed login attempt of user.
+     */
+    public void loginFailed(String username) {
+        record(username, new LoginResult(null, 1));
+    }
+
+    /**
+     * Writes all pending results to legacy database. Results are kept pending if database update fails.
+     */
+    public synchronized void flush() {
+        flushRequested.set(false);
+        if (!isEnabled() || pendingResults.isEmpty()) {
+            return;
+        }
+
+        long startTime = System.nanoTime();
+        Map<String, LoginResult> results = new HashMap<>();
+        for (String username : pendingResults.keySet()) {
+            LoginResult result = pendingResults.remove(username);
+            if (result != null) {
+                results.put(username, result);
+            }
+        }
+
+        List<Object[]> lastLoginUpdates = new ArrayList<>();
+        List<Object[]> failedAttemptUpdates = new ArrayList<>();
+        results.forEach((username, result) -> {
+            if (result.lastLogin != null) {
+                lastLoginUpdates.add(new Object[]{result.lastLogin, result.failedAttempts, username});
+            } else {
+                failedAttemptUpdates.add(new Object[]{result.failedAttempts, username});
+            }
+        });
+
+        try {
+            // Batches are sent one by one, so successfully written batches are not written again after failure
+            for (int i = 0; i < lastLoginUpdates.size(); i += batchSize) {
+                List<Object[]> batch = lastLoginUpdates.subList(i, Math.min(i + batchSize, lastLoginUpdates.size()));
+                jdbcTemplate.batchUpdate(sqlUpdateLastLogin, batch);
+                batch.forEach(args -> results.remove((String) args[2]));
+            }
+            for (int i = 0; i < failedAttemptUpdates.size(); i += batchSize) {
+                List<Object[]> batch = failedAttemptUpdates.subList(i,
+                        Math.min(i + batchSize, failedAttemptUpdates.size()));
+                jdbcTemplate.batchUpdate(sqlAddFailedAttempts, batch);
+                batch.forEach(args -> results.remove((String) args[1]));
+            }
+            log.debugv("Login results of {0} users are written to legacy database", lastLoginUpdates.size()
+                    + failedAttemptUpdates.size());
+        } catch (DataAccessException e) {
+            failures.increment();
+            log.warnv("Failed to write login results of {0} users to legacy database: {1}", results.size(),
+                    e.getMessage());
+            // Results recorded during flush are newer than results that are not written
+            results.forEach((username, result) -> pendingResults.merge(username, result, (newer, older)
+                    -> older.then(newer)));
+        } finally {
+            writtenUsers.add(lastLoginUpdates.size() + failedAttemptUpdates.size() - results.size());
+            flushLatency.recordSince(startTime);
+        }
+    }
+
+    /**
+     * Writes pending results and stops recording new ones.
+     */
+    public void close() {
+        closed = true;
+        flush();
+    }
+
+    /**
+     * Returns number of users with results waiting to be written.
+     */
+    public int getPendingUserCount() {
+        return pendingResults.size();
+    }
+
+    /**
+     * Returns number of users whose results were written (each user is counted once per flush).
+     */
+    public long getWrittenUserCount() {
+        return writtenUsers.sum();
+    }
+
+    /**
+     * Returns number of login results dropped since there were too many pending users.
+     */
+    public long getDroppedResultCount() {
+        return droppedResults.sum();
+    }
+
+    public long getFailureCount() {
+        return failures.sum();
+    }
+
+    private void record(String username, LoginResult result) {
+        if (!isEnabled() || closed || username == null) {
+            return;
+        }
+        if (pendingResults.size() >= maxPendingUsers && !pendingResults.containsKey(username)) {
+            droppedResults.increment();
+            requestFlush();
+            return;
+        }
+        pendingResults.merge(username, result, LoginResult::then);
+        if (pendingResults.size() >= batchSize) {
+            requestFlush();
+        }
+    }
+
+    private void requestFlush() {
+        if (flushRequested.compareAndSet(false, true)) {
+            try {
+                flushExecutor.execute(this::flush);
+            } catch (RejectedExecutionException e) {
+                // Executor is shut down, pending results are written on close
+                flushRequested.set(false);
+            }
+        }
+    }
+
+    /**
+     * Coalesced results of credential checks of one user.
+     */
+    private static class LoginResult {
+        /**
+         * Time of the last successful login or {@code null} if there were only failed attempts.
+         */
+        private final Timestamp lastLogin;
+        /**
+         * Number of failed attempts since the last successful login (or since the previous flush if there was no
+         * successful login).
+         */
+        private final int failedAttempts;
+
+        private LoginResult(Timestamp lastLogin, int failedAttempts) {
+            this.lastLogin = lastLogin;
+            this.failedAttempts = failedAttempts;
+        }
+
+        /**
+         * Combines this result with the later one.
+         */
+        private LoginResult then(LoginResult later) {
+            if (later.lastLogin != null) {
+                return later;
+            }
+            return new LoginResult(lastLogin, failedAttempts + later.failedAttempts);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.habr.keycloak.storage;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.util.Assert;
+
+import javax.sql.DataSource;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Writes changed password hashes of users to {@code password} column of {@code users} table.
+ *
+ * @author Roman Chigvintsev
+ */
+public class LegacyDatabasePasswordUpdater {
+    private static final String SQL_UPDATE_PASSWORD = "UPDATE users SET password = ? WHERE username = ?";
+
+    private static final LegacyDatabasePasswordUpdater DISABLED = new LegacyDatabasePasswordUpdater();
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private final LongAdder updates = new LongAdder();
+
+    /**
+     * Creates new updater.
+     *
+     * @param dataSource legacy database (must not route connections to read-only replicas)
+     */
+    public LegacyDatabasePasswordUpdater(DataSource dataSource) {
+        Assert.notNull(dataSource, "Data source must not be null");
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+    }
+
+    private LegacyDatabasePasswordUpdater() {
+        this.jdbcTemplate = null;
+    }
+
+    /**
+     * Returns updater for read-only mode when passwords cannot be changed.
+     */
+    public static LegacyDatabasePasswordUpdater disabled() {
+        return DISABLED;
+    }
+
+    public boolean isEnabled() {
+        return jdbcTemplate != null;
+    }
+
+    /**
+     * Replaces password hash of user with the given name.
+     *
+     * @param username     username
+     * @param passwordHash new password hash
+     * @return {@code true} if password is updated or {@code false} if user is not found
+     */
+    public boolean updatePasswordHash(String username, String passwordHash) {
+        Assert.state(isEnabled(), "Password update is disabled");
+        boolean updated = jdbcTemplate.update(SQL_UPDATE_PASSWORD, passwordHash, username) > 0;
+        if (updated) {
+            updates.increment();
+        }
+        return updated;
+    }
+
+    /**
+     * Returns number of updated passwords.
+     */
+    public long getUpdateCount() {
+        return updates.sum();
+    }
+}
@@ -0,0 +1,206 @@
+package com.habr.keycloak.storage;
+
+import com.habr.keycloak.cache.LegacyDatabaseUserCache;
+import com.habr.keycloak.model.LegacyDatabaseUser;
+import lombok.Builder;
+import org.jboss.logging.Logger;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.util.Assert;
+
+import javax.sql.DataSource;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Preloads users into the user cache so that Keycloak node does not stampede legacy database with lookups right
+ * after start.
+ * <p>
+ * Users are taken from the configured list of usernames and (or) from the configured query returning usernames
+ * (e.g. recently active users). They are loaded in batches with user loader (see
+ * {@link LegacyDatabaseUserLoader#findUsersByNames(Collection)}) in parallel by the given number of threads. Warm-up stops when the time budget is exhausted, users that are not loaded by that time
+ * are loaded on demand as usual.
+ *
+ * @author Roman Chigvintsev
+ */
+public class LegacyDatabaseUserCacheWarmer {
+    private static final Logger log = Logger.getLogger(LegacyDatabaseUserCacheWarmer.class);
+
+    private final JdbcTemplate jdbcTemplate;
+    private final LegacyDatabaseUserLoader userLoader;
+    private final LegacyDatabaseUserCache userCache;
+    private final Collection<String> usernames;
+    private final String usernameQuery;
+    private final int maxUsers;
+    private final int batchSize;
+    private final int concurrency;
+    private final Duration timeBudget;
+
+    private volatile int warmedUserCount;
+    private volatile long durationMillis;
+
+    /**
+     * Creates new warmer.
+     *
+     * @param dataSource    legacy database to execute username query
+     * @param userLoader    user loader
+     * @param userCache     user cache to warm up
+     * @param usernames     names of users to preload (may be {@code null})
+     * @param usernameQuery SQL query returning names of users to preload in the first column (may be {@code null})
+     * @param maxUsers      maximum number of preloaded users
+     * @param batchSize     number of users loaded with one query
+     * @param concurrency   number of queries executed in parallel
+     * @param timeBudget    maximum duration of warm-up
+     */
+    @Builder
+    private LegacyDatabaseUserCacheWarmer(DataSource dataSource,
+                                          LegacyDatabaseUserLoader userLoader,
+                                          LegacyDatabaseUserCache userCache,
+                                          Collection<String> usernames,
+                                          String usernameQuery,
+                                          int maxUsers,
+                                          int batchSize,
+                                          int concurrency,
+                                          Duration timeBudget) {
+        Assert.notNull(dataSource, "Data source must not be null");
+        Assert.notNull(userLoader, "User loader must not be null");
+        Assert.notNull(userCache, "User cache must not be null");
+        Assert.isTrue(maxUsers > 0, "Maximum number of users must be positive");
+        Assert.isTrue(batchSize > 0, "Batch size must be positive");
+        Assert.isTrue(concurrency > 0, "Concurrency must be positive");
+        Assert.notNull(timeBudget, "Time budget must not be null");
+        Assert.isTrue(!timeBudget.isNegative() && !timeBudget.isZero(), "Time budget must be positive");
+
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+        this.userLoader = userLoader;
+        this.userCache = userCache;
+        this.usernames = usernames == null ? Collections.emptyList() : usernames;
+        this.usernameQuery = usernameQuery;
+        this.maxUsers = maxUsers;
+        this.batchSize = batchSize;
+        this.concurrency = concurrency;
+        this.timeBudget = timeBudget;
+    }
+
+    /**
+     * Preloads users into the user cache for each of the given realms.
+     *
+     * @param realmIds ids of realms in which storage provider is enabled
+     * @return number of preloaded users
+     */
+    public int warmUp(Collection<String> realmIds) {
+        long startTime = System.nanoTime();
+        long deadline = startTime + timeBudget.toNanos();
+        AtomicInteger warmedUsers = new AtomicInteger();
+        try {
+            if (realmIds.isEmpty()) {
+                return 0;
+            }
+            List<String> names = findUsernames();
+            if (names.isEmpty()) {
+                return 0;
+            }
+            if (!loadInParallel(names, realmIds, deadline, warmedUsers)) {
+                log.warnv("User cache warm-up is stopped since time budget of {0} ms is exhausted",
+                        timeBudget.toMillis());
+            }
+        } catch (RuntimeException e) {
+            log.warn("Failed to warm up user cache", e);
+        } finally {
+            warmedUserCount = warmedUsers.get();
+            durationMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+            log.infov("User cache is warmed up with {0} users in {1} ms", warmedUserCount, durationMillis);
+        }
+        return warmedUsers.get();
+    }
+
+    /**
+     * Returns number of users preloaded by the last warm-up.
+     */
+    public int getWarmedUserCount() {
+        return warmedUserCount;
+    }
+
+    /**
+     * Returns duration of the last warm-up in milliseconds.
+     */
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    private List<String> findUsernames() {
+        Set<String> names = new LinkedHashSet<>();
+        for (String username : usernames) {
+            if (names.size() == maxUsers) {
+                break;
+            }
+            names.add(username);
+        }
+        if (usernameQuery != null && names.size() < maxUsers) {
+            JdbcTemplate queryTemplate = new JdbcTemplate(jdbcTemplate.getDataSource());
+            queryTemplate.setMaxRows(maxUsers - names.size());
+            queryTemplate.query(usernameQuery, rs -> {
+                names.add(rs.getString(1));
+            });
+        }
+        return new ArrayList<>(names);
+    }
+
+    /**
+     * Returns {@code true} if all users are loaded within time budget.
+     */
+    private boolean loadInParallel(List<String> names,
+                                   Collection<String> realmIds,
+                                   long deadline,
+                                   AtomicInteger warmedUsers) {
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency, r -> {
+            Thread thread = new Thread(r, "legacy-database-warm-up");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            for (int i = 0; i < names.size(); i += batchSize) {
+                List<String> batch = names.subList(i, Math.min(i + batchSize, names.size()));
+                executor.execute(() -> {
+                    if (System.nanoTime() - deadline < 0) {
+                        warmedUsers.addAndGet(loadBatch(batch, realmIds));
+                    }
+                });
+            }
+            executor.shutdown();
+            return executor.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (RejectedExecutionException e) {
+            return false;
+        } finally {
+            // Queries in progress are limited with query timeout, threads are daemons and will not block shutdown
+            executor.shutdownNow();
+        }
+    }
+
+    private int loadBatch(List<String> batch, Collection<String> realmIds) {
+        try {
+            List<LegacyDatabaseUser> users = userLoader.findUsersByNames(batch);
+            for (LegacyDatabaseUser user : users) {
+                for (String realmId : realmIds) {
+                    userCache.put(realmId, user);
+                }
+            }
+            return users.size();
+        } catch (RuntimeException e) {
+            log.warnv("Failed to preload batch of {0} users: {1}", batch.size(), e.getMessage());
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package com.habr.keycloak.storage;
+
+import com.habr.keycloak.cache.LegacyDatabaseUserCache;
+import lombok.Value;
+import org.jboss.logging.Logger;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.util.Assert;
+
+import javax.sql.DataSource;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Polls legacy database for changed users and evicts them from the user cache and local copies of user loader (e.g.
+ * snapshot) so that caches may use long TTLs and still notice password changes, role revocations and removals of
+ * users within one poll interval.
+ * <p>
+ * Changes are read either from change-log table with columns {@code id} (increasing) and {@code username} (usually
+ * filled by triggers on {@code users} and {@code authorities} tables) or from last modification time column of
+ * {@code users} table. In the latter case changes of authorities are noticed only if they update last modification
+ * time of the user.
+ * <p>
+ * Version of a change (id or last modification time) is assigned before transaction is committed, so changes may
+ * become visible out of order and several changes may have the same last modification time. That is why every poll
+ * reads again changes within overlap window preceding version of the last seen change. Changes seen by the previous
+ * poll are skipped, so only late changes are evicted.
+ * <p>
+ * The first successful poll only remembers version of the latest change and invalidates the whole cache since
+ * changes made before it are unknown. User loader is not invalidated then since its local copies track their own
+ * version. When number of changes since the last poll exceeds the limit both cache and local copies of user loader
+ * are invalidated as a whole.
+ *
+ * @author Roman Chigvintsev
+ */
+public class LegacyDatabaseUserChangePoller {
+    private static final Logger log = Logger.getLogger(LegacyDatabaseUserChangePoller.class);
+
+    private final JdbcTemplate jdbcTemplate;
+    private final LegacyDatabaseUserCache userCache;
+    private final LegacyDatabaseUserLoader userLoader;
+    private final int maxChanges;
+    private final String sqlFindMaxVersion;
+    private final String sqlFindChanges;
+    private final VersionColumn versionColumn;
+    /**
+     * Overlap window in units of version.
+     */
+    private final long overlap;
+
+    /**
+     * Version of the last seen change. It is {@code null} until the first successful poll.
+     */
+    private Long lastVersion;
+    /**
+     * Changes within overlap window that were seen by the previous poll.
+     */
+    private Set<Change> seenChanges = new HashSet<>();
+
+    private final LongAdder invalidations = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    private LegacyDatabaseUserChangePoller(DataSource dataSource,
+                                           LegacyDatabaseUserCache userCache,
+                                           LegacyDatabaseUserLoader userLoader,
+                                           int maxChanges,
+                                           String sqlFindMaxVersion,
+                                           String sqlFindChanges,
+                                           VersionColumn versionColumn,
+                                           long overlap) {
+        Assert.notNull(dataSource, "Data source must not be null");
+        Assert.notNull(userCache, "User cache must not be null");
+        Assert.notNull(userLoader, "User loader must not be null");
+        Assert.isTrue(maxChanges > 0, "Maximum number of changes must be positive");
+        Assert.isTrue(overlap >= 0, "Overlap must not be negative");
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+        this.userCache = userCache;
+        this.userLoader = userLoader;
+        this.maxChanges = maxChanges;
+        this.sqlFindMaxVersion = sqlFindMaxVersion;
+        this.sqlFindChanges = sqlFindChanges;
+        this.versionColumn = versionColumn;
+        this.overlap = overlap;
+    }
+
+    /**
+     * Creates poller reading changes from change-log table.
+     *
+     * @param dataSource     legacy database
+     * @param userCache      user cache
+     * @param userLoader     user loader
+     * @param changeLogTable name of change-log table with columns {@code id} and {@code username}
+     * @param maxChanges     maximum number of changes evicted one by one in one poll
+     * @param idOverlap      number of ids preceding the last seen id that are read again to find late changes
+     */
+    public static LegacyDatabaseUserChangePoller fromChangeLog(DataSource dataSource,
+                                                               LegacyDatabaseUserCache userCache,
+                                                               LegacyDatabaseUserLoader userLoader,
+                                                               String changeLogTable,
+                                                               int maxChanges,
+                                                               long idOverlap) {
+        Assert.hasText(changeLogTable, "Change-log table must not be null or empty");
+        return new LegacyDatabaseUserChangePoller(dataSource, userCache, userLoader, maxChanges,
+                "SELECT MAX(id) FROM " + changeLogTable,
+                "SELECT username, id FROM " + changeLogTable + " WHERE id >= ? ORDER BY id",
+                VersionColumn.ID, idOverlap);
+    }
+
+    /**
+     * Creates poller reading changes from last modification time column of {@code users} table.
+     *
+     * @param dataSource         legacy database
+     * @param userCache          user cache
+     * @param userLoader         user loader
+     * @param lastModifiedColumn column of {@code users} table containing time of the last user modification
+     * @param maxChanges         maximum number of changes evicted one by one in one poll
+     * @param timeOverlap        time preceding the last seen modification time that is read again to find late
+     *                           changes
+     */
+    public static LegacyDatabaseUserChangePoller fromLastModifiedColumn(DataSource dataSource,
+                                                                        LegacyDatabaseUserCache userCache,
+                                                                        LegacyDatabaseUserLoader userLoader,
+                                                                        String lastModifiedColumn,
+                                                                        int maxChanges,
+                                                                        Duration timeOverlap) {
+        Assert.hasText(lastModifiedColumn, "Last modified column must not be null or empty");
+        Assert.notNull(timeOverlap, "Time overlap must not be null");
+        return new LegacyDatabaseUserChangePoller(dataSource, userCache, userLoader, maxChanges,
+                "SELECT MAX(" + lastModifiedColumn + ") FROM users",
+                "SELECT username, " + lastModifiedColumn + " FROM users WHERE " + lastModifiedColumn + " >= ? "
+                        + "ORDER BY " + lastModifiedColumn, VersionColumn.TIMESTAMP, timeOverlap.toNanos());
+    }
+
+    /**
+     * Evicts users changed since the last poll from the user cache and user loader. Failures are logged and retried with the next
+     * poll.
+     */
+    public synchronized void poll() {
+        try {
+            if (lastVersion == null) {
+                lastVersion = findMaxVersion();
+                userCache.invalidateAll();
+                return;
+            }
+
+            long fromVersion = lastVersion;
+            Set<Change> changes = new HashSet<>();
+            Set<String> usernames = new LinkedHashSet<>();
+            Boolean limitExceeded = jdbcTemplate.query(sqlFindChanges, rs -> {
+                int newChangeCount = 0;
+                while (rs.next()) {
+                    Change change = new Change(rs.getString(1), versionColumn.read(rs, 2));
+                    if (!changes.add(change) || seenChanges.contains(change)) {
+                        continue;
+                    }
+                    // Late changes within overlap window are few and are not counted
+                    if (change.getVersion() > fromVersion && ++newChangeCount > maxChanges) {
+                        return true;
+                    }
+                    usernames.add(change.getUsername());
+                }
+                return false;
+            }, versionColumn.toParameter(Math.max(0L, fromVersion - overlap)));
+
+            if (Boolean.TRUE.equals(limitExceeded)) {
+                // Version is read before invalidation so that changes made in between are not lost
+                lastVersion = findMaxVersion();
+                seenChanges = new HashSet<>();
+                userLoader.invalidateAll();
+                userCache.invalidateAll();
+                invalidations.increment();
+                log.debugv("User cache is invalidated since there are more than {0} changes", maxChanges);
+                return;
+            }
+
+            long toVersion = changes.stream().mapToLong(Change::getVersion).max().orElse(fromVersion);
+            lastVersion = Math.max(fromVersion, toVersion);
+            long windowStart = lastVersion - overlap;
+            changes.removeIf(change -> change.getVersion() < windowStart);
+            seenChanges = changes;
+            if (!usernames.isEmpty()) {
+                // Local copies are invalidated first so that evicted users are not reloaded from them
+                usernames.forEach(userLoader::invalidate);
+                userCache.invalidateUsernames(usernames);
+                invalidations.add(usernames.size());
+                log.debugv("Changed users {0} are evicted from user cache", usernames);
+            }
+        } catch (DataAccessException e) {
+            failures.increment();
+            log.warnv("Failed to poll legacy database for changed users: {0}", e.getMessage());
+        }
+    }
+
+    /**
+     * Returns number of users evicted from cache because of changes (whole cache invalidation is counted as one).
+     */
+    public long getInvalidationCount() {
+        return invalidations.sum();
+    }
+
+    public long getFailureCount() {
+        return failures.sum();
+    }
+
+    private long findMaxVersion() {
+        Long version = jdbcTemplate.queryForObject(sqlFindMaxVersion, (rs, rowNum) -> versionColumn.read(rs, 1));
+        return version == null ? 0L : version;
+    }
+
+    /**
+     * Column containing version of a change. Versions are converted to numbers so that overlap window can be
+     * computed for both ids and timestamps.
+     */
+    private enum VersionColumn {
+        ID {
+            @Override
+            long read(ResultSet rs, int columnIndex) throws SQLException {
+                return rs.getLong(columnIndex);
+            }
+
+            @Override
+            Object toParameter(long version) {
+                return version;
+            }
+        },
+        /**
+         * Timestamp that is converted to number of nanoseconds since epoch, so that changes made within the same
+         * millisecond are distinguished.
+         */
+        TIMESTAMP {
+            @Override
+            long read(ResultSet rs, int columnIndex) throws SQLException {
+                Timestamp timestamp = rs.getTimestamp(columnIndex);
+                if (timestamp == null) {
+                    return 0L;
+                }
+                return Math.floorDiv(timestamp.getTime(), 1000L) * NANOS_PER_SECOND + timestamp.getNanos();
+            }
+
+            @Override
+            Object toParameter(long version) {
+                Timestamp timestamp = new Timestamp(version / NANOS_PER_SECOND * 1000L);
+                timestamp.setNanos((int) (version % NANOS_PER_SECOND));
+                return timestamp;
+            }
+        };
+
+        private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+        /**
+         * Reads version from the given column or returns {@code 0} if it is {@code null}.
+         */
+        abstract long read(ResultSet rs, int columnIndex) throws SQLException;
+
+        abstract Object toParameter(long version);
+    }
+
+    @Value
+    private static class Change {
+        String username;
+        long version;
+    }
+}
@@ -0,0 +1,121 @@
+package com.habr.keycloak.storage;
+
+import com.habr.keycloak.cache.UserEmailIndex;
+import org.jboss.logging.Logger;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.util.Assert;
+
+import javax.sql.DataSource;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Finds usernames by emails and emails by usernames in column of {@code users} table containing emails. Queries
+ * select only username and email, so they may be served from index on email column. Found mappings are remembered
+ * in {@link UserEmailIndex}.
+ *
+ * @author Roman Chigvintsev
+ */
+public class LegacyDatabaseUserEmailLookup {
+    private static final Logger log = Logger.getLogger(LegacyDatabaseUserEmailLookup.class);
+
+    private static final LegacyDatabaseUserEmailLookup DISABLED = new LegacyDatabaseUserEmailLookup();
+
+    private final JdbcTemplate jdbcTemplate;
+    private final UserEmailIndex emailIndex;
+    private final String emailColumn;
+    private final String sqlFindUsersByEmail;
+    private final String sqlFindEmailByUsername;
+
+    /**
+     * Creates new lookup.
+     *
+     * @param dataSource  legacy database
+     * @param emailColumn column of {@code users} table containing emails
+     * @param emailIndex  cache of found mappings
+     */
+    public LegacyDatabaseUserEmailLookup(DataSource dataSource, String emailColumn, UserEmailIndex emailIndex) {
+        Assert.notNull(dataSource, "Data source must not be null");
+        Assert.hasText(emailColumn, "Email column must not be null or empty");
+        Assert.notNull(emailIndex, "Email index must not be null");
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+        this.emailIndex = emailIndex;
+        this.emailColumn = emailColumn;
+        this.sqlFindUsersByEmail = "SELECT username, " + emailColumn + " FROM users WHERE " + emailColumn + " = ?";
+        this.sqlFindEmailByUsername = "SELECT " + emailColumn + " FROM users WHERE username = ?";
+    }
+
+    private LegacyDatabaseUserEmailLookup() {
+        this.jdbcTemplate = null;
+        this.emailIndex = null;
+        this.emailColumn = null;
+        this.sqlFindUsersByEmail = null;
+        this.sqlFindEmailByUsername = null;
+    }
+
+    /**
+     * Returns lookup that never finds anything (emails of legacy users are unknown).
+     */
+    public static LegacyDatabaseUserEmailLookup disabled() {
+        return DISABLED;
+    }
+
+    public boolean isEnabled() {
+        return jdbcTemplate != null;
+    }
+
+    /**
+     * Returns column of {@code users} table containing emails or {@code null} if lookup is disabled.
+     */
+    public String getEmailColumn() {
+        return emailColumn;
+    }
+
+    /**
+     * Finds name of user with the given email.
+     *
+     * @return username or {@code null} if there is no user with the given email or there are several of them
+     */
+    public String findUsername(String email) {
+        if (!isEnabled() || email == null) {
+            return null;
+        }
+        String username = emailIndex.getUsername(email);
+        if (username != null) {
+            return username;
+        }
+        List<String[]> users = jdbcTemplate.query(sqlFindUsersByEmail,
+                (rs, rowNum) -> new String[]{rs.getString(1), rs.getString(2)}, email);
+        if (users.isEmpty()) {
+            return null;
+        }
+        if (users.size() > 1) {
+            log.warnv("Email \"{0}\" belongs to {1} users, none of them is found by email", email, users.size());
+            return null;
+        }
+        String[] user = users.get(0);
+        emailIndex.put(user[0], user[1]);
+        return user[0];
+    }
+
+    /**
+     * Finds email of user with the given name.
+     *
+     * @return email or {@code null} if user has no email or is not found
+     */
+    public String findEmail(String username) {
+        if (!isEnabled()) {
+            return null;
+        }
+        Optional<String> email = emailIndex.getEmail(username);
+        if (email != null) {
+            return email.orElse(null);
+        }
+        List<String> emails = jdbcTemplate.queryForList(sqlFindEmailByUsername, String.class, username);
+        if (emails.isEmpty()) {
+            return null;
+        }
+        emailIndex.put(username, emails.get(0));
+        return emails.get(0);
+    }
+}
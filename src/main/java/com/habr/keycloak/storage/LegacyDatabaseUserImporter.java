@@ -0,0 +1,209 @@
+package com.habr.keycloak.storage;
+
+import com.habr.keycloak.model.LegacyDatabaseUser;
+import lombok.Getter;
+import org.jboss.logging.Logger;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.credential.CredentialModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+import org.keycloak.models.UserCredentialManager;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.credential.PasswordCredentialModel;
+import org.springframework.util.Assert;
+
+import java.util.Objects;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Imports users loaded from legacy database into Keycloak local storage. Imported user is linked with the storage
+ * provider, gets realm roles with the same names as legacy authorities and keeps legacy BCrypt password hash as
+ * stored password credential so that subsequent logins do not require legacy database at all.
+ *
+ * @author Roman Chigvintsev
+ */
+public class LegacyDatabaseUserImporter {
+    private static final Logger log = Logger.getLogger(LegacyDatabaseUserImporter.class);
+
+    /**
+     * Algorithm of password credentials created for imported users.
+     */
+    public static final String PASSWORD_ALGORITHM = "bcrypt";
+
+    /**
+     * Attribute of realm roles created for legacy authorities. Only such roles are revoked from imported users when
+     * authority is revoked in legacy database.
+     */
+    public static final String ROLE_ATTRIBUTE_LEGACY_DATABASE = "legacy-database";
+
+    private static final Pattern BCRYPT_COST_PATTERN = Pattern.compile("^\\$2[abxy]?\\$(\\d{2})\\$");
+
+    private static final LegacyDatabaseUserImporter DISABLED
+            = new LegacyDatabaseUserImporter(false, ImportValidation.NONE);
+
+    @Getter
+    private final boolean enabled;
+    @Getter
+    private final ImportValidation validation;
+
+    private LegacyDatabaseUserImporter(boolean enabled, ImportValidation validation) {
+        this.enabled = enabled;
+        this.validation = validation;
+    }
+
+    /**
+     * Creates importer for import mode.
+     *
+     * @param validation how imported users are validated when Keycloak loads them from local storage
+     */
+    public static LegacyDatabaseUserImporter enabled(ImportValidation validation) {
+        Assert.notNull(validation, "Import validation must not be null");
+        return new LegacyDatabaseUserImporter(true, validation);
+    }
+
+    /**
+     * Returns importer for lookup-only mode when users are never imported.
+     */
+    public static LegacyDatabaseUserImporter disabled() {
+        return DISABLED;
+    }
+
+    /**
+     * Creates local user for the given legacy user and links it with the storage provider.
+     *
+     * @return imported user
+     */
+    public UserModel importUser(KeycloakSession session,
+                                RealmModel realm,
+                                ComponentModel storageProviderModel,
+                                LegacyDatabaseUser user) {
+        UserModel localUser = session.userLocalStorage().addUser(realm, user.getUsername());
+        localUser.setFederationLink(storageProviderModel.getId());
+        localUser.setEnabled(true);
+        updateUser(session, realm, localUser, user);
+        log.debugv("User \"{0}\" is imported into realm \"{1}\"", user.getUsername(), realm.getId());
+        return localUser;
+    }
+
+    /**
+     * Updates names, roles and password of imported user so that they match legacy user.
+     *
+     * @return {@code true} if imported user is changed
+     */
+    public boolean updateUser(KeycloakSession session, RealmModel realm, UserModel localUser, LegacyDatabaseUser user) {
+        boolean updated = false;
+        if (!Objects.equals(localUser.getFirstName(), user.getFirstName())) {
+            localUser.setFirstName(user.getFirstName());
+            updated = true;
+        }
+        if (!Objects.equals(localUser.getLastName(), user.getLastName())) {
+            localUser.setLastName(user.getLastName());
+            updated = true;
+        }
+        updated |= updateRoles(realm, localUser, user.getRoles());
+        updated |= updatePassword(session, realm, localUser, user.getPassword());
+        return updated;
+    }
+
+    /**
+     * Replaces imported password of user after it is changed in legacy database.
+     *
+     * @param passwordHash new password hash
+     */
+    public void updatePasswordHash(KeycloakSession session, RealmModel realm, UserModel localUser,
+                                   String passwordHash) {
+        updatePassword(session, realm, localUser, passwordHash);
+    }
+
+    /**
+     * Returns password hash of imported user or {@code null} if user does not have password imported from legacy
+     * database.
+     */
+    public String getPasswordHash(KeycloakSession session, RealmModel realm, UserModel localUser) {
+        PasswordCredentialModel credential = getPasswordCredential(session.userCredentialManager(), realm, localUser);
+        return credential == null ? null : credential.getPasswordSecretData().getValue();
+    }
+
+    private boolean updateRoles(RealmModel realm, UserModel localUser, Set<String> roleNames) {
+        boolean updated = false;
+        Set<RoleModel> grantedRoles = localUser.getRealmRoleMappingsStream().collect(Collectors.toSet());
+        for (String roleName : roleNames) {
+            RoleModel role = realm.getRole(roleName);
+            if (role == null) {
+                role = realm.addRole(roleName);
+                role.setSingleAttribute(ROLE_ATTRIBUTE_LEGACY_DATABASE, Boolean.TRUE.toString());
+            }
+            if (!grantedRoles.contains(role)) {
+                localUser.grantRole(role);
+                updated = true;
+            }
+        }
+        for (RoleModel role : grantedRoles) {
+            if (!roleNames.contains(role.getName()) && isLegacyRole(role)) {
+                localUser.deleteRoleMapping(role);
+                updated = true;
+            }
+        }
+        return updated;
+    }
+
+    private boolean updatePassword(KeycloakSession session, RealmModel realm, UserModel localUser, String password) {
+        UserCredentialManager credentialManager = session.userCredentialManager();
+        PasswordCredentialModel credential = getPasswordCredential(credentialManager, realm, localUser);
+        String storedPassword = credential == null ? null : credential.getPasswordSecretData().getValue();
+        if (Objects.equals(storedPassword, password)) {
+            return false;
+        }
+        if (credential != null) {
+            credentialManager.removeStoredCredential(realm, localUser, credential.getId());
+        }
+        if (password != null) {
+            credentialManager.createCredential(realm, localUser,
+                    PasswordCredentialModel.createFromValues(PASSWORD_ALGORITHM, new byte[0], getCost(password),
+                            password));
+        }
+        return true;
+    }
+
+    private static PasswordCredentialModel getPasswordCredential(UserCredentialManager credentialManager,
+                                                                 RealmModel realm,
+                                                                 UserModel localUser) {
+        return credentialManager.getStoredCredentialsByTypeStream(realm, localUser, PasswordCredentialModel.TYPE)
+                .map(PasswordCredentialModel::createFromCredentialModel)
+                .filter(c -> PASSWORD_ALGORITHM.equals(c.getPasswordCredentialData().getAlgorithm()))
+                .findFirst()
+                .orElse(null);
+    }
+
+    private static boolean isLegacyRole(RoleModel role) {
+        return role.getAttributeStream(ROLE_ATTRIBUTE_LEGACY_DATABASE).anyMatch(Boolean.TRUE.toString()::equals);
+    }
+
+    private static int getCost(String password) {
+        Matcher matcher = BCRYPT_COST_PATTERN.matcher(password);
+        return matcher.find() ? Integer.parseInt(matcher.group(1)) : -1;
+    }
+
+    /**
+     * Defines how imported users are validated when Keycloak loads them from local storage.
+     */
+    public enum ImportValidation {
+        /**
+         * Imported users are never validated against legacy database.
+         */
+        NONE,
+        /**
+         * Imported users are updated only when legacy user is already in the user cache.
+         */
+        CACHE,
+        /**
+         * Imported users are updated from legacy database (through the user cache) and removed when they are not
+         * found in legacy database anymore.
+         */
+        DATABASE
+    }
+}
@@ -0,0 +1,122 @@
+package com.habr.keycloak.storage;
+
+import com.habr.keycloak.model.LegacyDatabaseUser;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Loads users together with authorities from legacy database.
+ *
+ * @author Roman Chigvintsev
+ */
+public interface LegacyDatabaseUserLoader {
+    /**
+     * Loads user with the given name.
+     *
+     * @param username username
+     * @return user or {@code null} if user is not found
+     */
+    LegacyDatabaseUser findUserByName(String username);
+
+    /**
+     * Loads users with the given names. Loaders that can select several users with one query override it, by default
+     * users are loaded one by one.
+     *
+     * @param usernames usernames
+     * @return found users in no particular order
+     */
+    default List<LegacyDatabaseUser> findUsersByNames(Collection<String> usernames) {
+        List<LegacyDatabaseUser> users = new ArrayList<>();
+        for (String username : usernames) {
+            LegacyDatabaseUser user = findUserByName(username);
+            if (user != null) {
+                users.add(user);
+            }
+        }
+        return users;
+    }
+
+    /**
+     * Loads names of authorities of user with the given name. Used to complete users loaded without authorities
+     * (see {@link LegacyDatabaseUser#isRolesLoaded()}). Loaders that select authorities together with user load the
+     * whole user by default.
+     *
+     * @param username username
+     * @return names of authorities or empty set if user has no authorities or is not found
+     */
+    default Set<String> findRolesByUsername(String username) {
+        LegacyDatabaseUser user = findUserByName(username);
+        return user == null ? Collections.emptySet() : user.getRoles();
+    }
+
+    /**
+     * Notifies loader that user with the given name is changed in legacy database, so that it is not served from
+     * local copies anymore.
+     *
+     * @param username username
+     */
+    default void invalidate(String username) {
+        // Do nothing
+    }
+
+    /**
+     * Notifies loader that unknown users are changed in legacy database, so that no user is served from local copies
+     * until they are refreshed.
+     */
+    default void invalidateAll() {
+        // Do nothing
+    }
+
+    /**
+     * Creates user loader.
+     *
+     * @param strategy   loading strategy
+     * @param dataSource legacy database
+     * @param dialect    SQL dialect of legacy database used by {@link Strategy#AGGREGATE} strategy (may be
+     *                   {@code null} in which case dialect is detected on the first query)
+     */
+    static LegacyDatabaseUserLoader create(Strategy strategy, DataSource dataSource, SqlDialect dialect) {
+        switch (strategy) {
+            case JOIN:
+                return new JoiningUserLoader(dataSource);
+            case AGGREGATE:
+                return new AggregatingUserLoader(dataSource, dialect);
+            case TWO_QUERIES:
+                return new TwoQueryUserLoader(dataSource);
+            case LAZY:
+                return new LazyRoleUserLoader(dataSource);
+            default:
+                throw new IllegalArgumentException("Unsupported loading strategy: " + strategy);
+        }
+    }
+
+    /**
+     * Defines how user and its authorities are selected from legacy database.
+     */
+    enum Strategy {
+        /**
+         * User is left-joined with authorities. Result contains one row per authority in which password and names
+         * are repeated.
+         */
+        JOIN,
+        /**
+         * Authorities are aggregated into single column with dialect-specific aggregate function. Result contains
+         * single row.
+         */
+        AGGREGATE,
+        /**
+         * User and authorities are selected with two separate queries. Each result contains no repeated data.
+         */
+        TWO_QUERIES,
+        /**
+         * Only username, password and names are selected. Authorities are selected with separate query when they
+         * are needed for the first time (e.g. when token is issued), so failed logins do not select them at all.
+         */
+        LAZY
+    }
+}
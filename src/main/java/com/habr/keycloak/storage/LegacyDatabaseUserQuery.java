@@ -0,0 +1,182 @@
+package com.habr.keycloak.storage;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import org.keycloak.models.UserModel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Search criteria of users translated into SQL condition on {@code users} table.
+ *
+ * @author Roman Chigvintsev
+ */
+@RequiredArgsConstructor(access = AccessLevel.PRIVATE)
+final class LegacyDatabaseUserQuery {
+    private static final LegacyDatabaseUserQuery ALL = new LegacyDatabaseUserQuery("1 = 1", Collections.emptyList());
+    private static final LegacyDatabaseUserQuery NONE = new LegacyDatabaseUserQuery("1 = 0", Collections.emptyList());
+
+    private static final String SEARCH_ALL = "*";
+
+    /**
+     * Escape character of LIKE patterns. Backslash is not used since MySQL treats it as escape character of string
+     * literals.
+     */
+    private static final String LIKE_ESCAPE = "!";
+    private static final String LIKE = " LIKE ? ESCAPE '" + LIKE_ESCAPE + "'";
+
+    /**
+     * SQL condition that may refer to columns of {@code users} table without table alias.
+     */
+    @Getter
+    private final String condition;
+    @Getter
+    private final List<Object> args;
+
+    static LegacyDatabaseUserQuery all() {
+        return ALL;
+    }
+
+    /**
+     * Creates query searching for the given string in username, first name and last name of users.
+     */
+    static LegacyDatabaseUserQuery search(String search) {
+        String term = search == null ? "" : search.trim();
+        if (term.isEmpty() || SEARCH_ALL.equals(term)) {
+            return ALL;
+        }
+        String pattern = toLikePattern(term.replace(SEARCH_ALL, ""));
+        List<Object> args = new ArrayList<>(3);
+        args.add(pattern);
+        args.add(pattern);
+        args.add(pattern);
+        return new LegacyDatabaseUserQuery("(LOWER(username)" + LIKE + " OR LOWER(first_name)" + LIKE
+                + " OR LOWER(last_name)" + LIKE + ")", args);
+    }
+
+    /**
+     * Creates query from search parameters passed by Keycloak admin console and REST API.
+     *
+     * @param params      search parameters
+     * @param emailColumn column of {@code users} table containing emails or {@code null} if emails of legacy users
+     *                    are unknown
+     */
+    static LegacyDatabaseUserQuery byParams(Map<String, String> params, String emailColumn) {
+        boolean exact = Boolean.parseBoolean(params.get(UserModel.EXACT));
+        StringBuilder condition = new StringBuilder("1 = 1");
+        List<Object> args = new ArrayList<>();
+        for (Map.Entry<String, String> param : params.entrySet()) {
+            String value = param.getValue();
+            switch (param.getKey()) {
+                case UserModel.SEARCH:
+                    LegacyDatabaseUserQuery search = search(value);
+                    condition.append(" AND ").append(search.condition);
+                    args.addAll(search.args);
+                    break;
+                case UserModel.USERNAME:
+                    appendAttributeCondition(condition, args, "username", value, exact);
+                    break;
+                case UserModel.FIRST_NAME:
+                    appendAttributeCondition(condition, args, "first_name", value, exact);
+                    break;
+                case UserModel.LAST_NAME:
+                    appendAttributeCondition(condition, args, "last_name", value, exact);
+                    break;
+                case UserModel.EMAIL:
+                    if (emailColumn == null) {
+                        return NONE;
+                    }
+                    appendAttributeCondition(condition, args, emailColumn, value, exact);
+                    break;
+                case UserModel.ENABLED:
+                    // Legacy users are always enabled
+                    if (!Boolean.parseBoolean(value)) {
+                        return NONE;
+                    }
+                    break;
+                case UserModel.EMAIL_VERIFIED:
+                    // Emails of legacy users are never verified
+                    if (Boolean.parseBoolean(value)) {
+                        return NONE;
+                    }
+                    break;
+                case UserModel.GROUPS:
+                case UserModel.IDP_ALIAS:
+                case UserModel.IDP_USER_ID:
+                    // Legacy users are not members of groups and are not linked with identity providers
+                    return NONE;
+                default:
+                    // Unknown parameters are not filters of legacy users and are ignored
+                    break;
+            }
+        }
+        return args.isEmpty() ? ALL : new LegacyDatabaseUserQuery(condition.toString(), args);
+    }
+
+    /**
+     * Creates query searching for users with exact attribute value.
+     */
+    static LegacyDatabaseUserQuery byAttribute(String name, String value) {
+        String column = getColumn(name);
+        if (column == null || value == null) {
+            return NONE;
+        }
+        return new LegacyDatabaseUserQuery(column + " = ?", Collections.singletonList(value));
+    }
+
+    boolean isEmpty() {
+        return this == NONE;
+    }
+
+    /**
+     * Returns string that uniquely identifies this query. Queries with the same key return the same users.
+     */
+    String getKey() {
+        return condition + args;
+    }
+
+    private static void appendAttributeCondition(StringBuilder condition,
+                                                 List<Object> args,
+                                                 String column,
+                                                 String value,
+                                                 boolean exact) {
+        if (value == null) {
+            return;
+        }
+        if (exact) {
+            condition.append(" AND ").append(column).append(" = ?");
+            args.add(value);
+        } else {
+            condition.append(" AND LOWER(").append(column).append(")").append(LIKE);
+            args.add(toLikePattern(value));
+        }
+    }
+
+    private static String getColumn(String attributeName) {
+        switch (attributeName) {
+            case UserModel.USERNAME:
+                return "username";
+            case UserModel.FIRST_NAME:
+                return "first_name";
+            case UserModel.LAST_NAME:
+                return "last_name";
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Converts value to lower-case pattern of LIKE operator matching strings containing the value.
+     */
+    private static String toLikePattern(String value) {
+        String escaped = value.replace(LIKE_ESCAPE, LIKE_ESCAPE + LIKE_ESCAPE)
+                .replace("%", LIKE_ESCAPE + "%")
+                .replace("_", LIKE_ESCAPE + "_");
+        return "%" + escaped.toLowerCase(Locale.ROOT) + "%";
+    }
+}
@@ -0,0 +1,28 @@
+package com.habr.keycloak.storage;
+
+import com.habr.keycloak.model.LegacyDatabaseUser;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.ResultSetExtractor;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Extracts users from rows of users joined with authorities (see {@link LegacyDatabaseUserRowAggregator}).
+ *
+ * @author Roman Chigvintsev
+ */
+class LegacyDatabaseUserResultSetExtractor implements ResultSetExtractor<List<LegacyDatabaseUser>> {
+    @Override
+    public List<LegacyDatabaseUser> extractData(ResultSet rs) throws SQLException, DataAccessException {
+        List<LegacyDatabaseUser> users = new ArrayList<>();
+        LegacyDatabaseUserRowAggregator aggregator = new LegacyDatabaseUserRowAggregator(users::add);
+        while (rs.next()) {
+            aggregator.processRow(rs);
+        }
+        aggregator.finish();
+        return users;
+    }
+}
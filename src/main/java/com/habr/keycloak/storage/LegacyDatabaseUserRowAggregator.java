@@ -0,0 +1,55 @@
+package com.habr.keycloak.storage;
+
+import com.habr.keycloak.model.LegacyDatabaseUser;
+import lombok.RequiredArgsConstructor;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.function.Consumer;
+
+/**
+ * Aggregates rows of users joined with authorities into {@link LegacyDatabaseUser} instances. Rows must contain
+ * username, password, first name, last name and authority (which may be {@code null}) in this order, and rows of
+ * the same user must follow each other.
+ *
+ * @author Roman Chigvintsev
+ */
+@RequiredArgsConstructor
+class LegacyDatabaseUserRowAggregator {
+    private final Consumer<LegacyDatabaseUser> consumer;
+
+    private LegacyDatabaseUser.LegacyDatabaseUserBuilder userBuilder;
+    private String username;
+
+    /**
+     * Processes current row of the given result set. When row belongs to another user than the previous one the
+     * previous user is passed to consumer.
+     */
+    void processRow(ResultSet rs) throws SQLException {
+        String rowUsername = rs.getString(1);
+        if (!rowUsername.equals(username)) {
+            finish();
+            username = rowUsername;
+            userBuilder = LegacyDatabaseUser.builder()
+                    .username(rowUsername)
+                    .password(rs.getString(2))
+                    .firstName(rs.getString(3))
+                    .lastName(rs.getString(4));
+        }
+        String authority = rs.getString(5);
+        if (authority != null) {
+            userBuilder.role(authority);
+        }
+    }
+
+    /**
+     * Passes the last user to consumer. Must be called after all rows are processed.
+     */
+    void finish() {
+        if (userBuilder != null) {
+            consumer.accept(userBuilder.build());
+            userBuilder = null;
+            username = null;
+        }
+    }
+}
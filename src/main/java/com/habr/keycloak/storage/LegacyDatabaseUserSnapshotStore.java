@@ -0,0 +1,302 @@
+package com.habr.keycloak.storage;
+
+import com.habr.keycloak.model.LegacyDatabaseUser;
+import com.habr.keycloak.snapshot.UserSnapshot;
+import com.habr.keycloak.snapshot.UserSnapshotWriter;
+import org.jboss.logging.Logger;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.util.Assert;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps local on-disk snapshot of all users of legacy database (see {@link UserSnapshot}) so that users can be found
+ * without database round trips, including right after restart and while legacy database is unavailable.
+ * <p>
+ * Snapshot is rebuilt from legacy database by {@link #refresh()}. When last modification time column of
+ * {@code users} table is known only users changed since the previous refresh are loaded and merged with the previous
+ * snapshot, users removed from legacy database are dropped from it (existence of previous users is checked in
+ * batches, so that all usernames are not kept in memory). Snapshot is rebuilt from scratch when full rebuild
+ * interval is elapsed. Changes of authorities are noticed by incremental refresh only if they update last
+ * modification time of the user.
+ * <p>
+ * Users changed by storage provider itself (e.g. with password update) or reported by change poller are marked with
+ * {@link #invalidate(String)} and are not found in snapshot until the next full rebuild, so that they are loaded from
+ * legacy database instead. When changed users are not known {@link #invalidateAll()} stops use of snapshot until the
+ * next refresh. When there are more changed users than the limit they are not tracked one by one anymore, snapshot is
+ * not used until the next refresh which rebuilds it from scratch ahead of full rebuild interval.
+ *
+ * @author Roman Chigvintsev
+ */
+public class LegacyDatabaseUserSnapshotStore {
+    private static final Logger log = Logger.getLogger(LegacyDatabaseUserSnapshotStore.class);
+
+    private static final String SQL_FIND_ALL_USERS = "SELECT u.username, u.password, u.first_name, u.last_name, "
+            + "a.authority "
+            + "FROM users u "
+            + "LEFT JOIN authorities a ON a.username = u.username ";
+    private static final String SQL_ORDER_BY_USERNAME = "ORDER BY u.username";
+    private static final String SQL_FIND_USERNAMES = "SELECT username FROM users WHERE username IN (%s)";
+    /**
+     * Number of previous users whose existence is checked with one query. Some databases (e.g. Oracle) limit number
+     * of expressions in {@code IN} list with 1000.
+     */
+    private static final int EXISTENCE_CHECK_BATCH_SIZE = 500;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final Path path;
+    private final String lastModifiedColumn;
+    private final long fullRebuildIntervalMillis;
+    private final int fetchSize;
+    private final int maxChangedUsers;
+
+    private volatile UserSnapshot snapshot;
+    private volatile long refreshTime;
+    /**
+     * Time of the last invalidation of all users. Snapshot refreshed before it is not used.
+     */
+    private volatile long invalidationTime;
+    /**
+     * Times of changes of users that may be outdated in snapshot by usernames.
+     */
+    private final ConcurrentMap<String, Long> changedUsers = new ConcurrentHashMap<>();
+    /**
+     * Tells that the next refresh must be full rebuild since changed users are too many to be tracked.
+     */
+    private final AtomicBoolean fullRebuildRequested = new AtomicBoolean();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder refreshFailures = new LongAdder();
+
+    /**
+     * Creates new store.
+     *
+     * @param dataSource          legacy database
+     * @param path                snapshot file
+     * @param lastModifiedColumn  column of {@code users} table containing time of the last user modification (may
+     *                            be {@code null} in which case every refresh is full rebuild)
+     * @param fullRebuildInterval time after which snapshot is rebuilt from scratch
+     * @param fetchSize           number of rows fetched from legacy database at once
+     * @param maxChangedUsers     maximum number of changed users tracked until the next full rebuild
+     */
+    public LegacyDatabaseUserSnapshotStore(DataSource dataSource,
+                                           Path path,
+                                           String lastModifiedColumn,
+                                           Duration fullRebuildInterval,
+                                           int fetchSize,
+                                           int maxChangedUsers) {
+        Assert.notNull(dataSource, "Data source must not be null");
+        Assert.notNull(path, "Snapshot path must not be null");
+        Assert.notNull(fullRebuildInterval, "Full rebuild interval must not be null");
+        Assert.isTrue(fetchSize > 0, "Fetch size must be positive");
+        Assert.isTrue(maxChangedUsers > 0, "Maximum number of changed users must be positive");
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+        this.path = path;
+        this.lastModifiedColumn = lastModifiedColumn;
+        this.fullRebuildIntervalMillis = fullRebuildInterval.toMillis();
+        this.fetchSize = fetchSize;
+        this.maxChangedUsers = maxChangedUsers;
+    }
+
+    /**
+     * Opens snapshot left by previous run if it exists. Snapshot that cannot be opened is ignored and rebuilt on the
+     * next refresh.
+     */
+    public void open() {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try {
+            UserSnapshot existingSnapshot = UserSnapshot.open(path);
+            snapshot = existingSnapshot;
+            refreshTime = Files.getLastModifiedTime(path).toMillis();
+            log.infov("User snapshot \"{0}\" with {1} users is opened", path, existingSnapshot.size());
+        } catch (IOException e) {
+            log.warnv(e, "Failed to open user snapshot \"{0}\", it will be rebuilt", path);
+        }
+    }
+
+    /**
+     * Finds user in snapshot.
+     *
+     * @return user or {@code null} if there is no snapshot yet or user is not found in it
+     */
+    public LegacyDatabaseUser find(String username) {
+        UserSnapshot currentSnapshot = snapshot;
+        if (currentSnapshot == null || refreshTime <= invalidationTime || changedUsers.containsKey(username)) {
+            return null;
+        }
+        LegacyDatabaseUser user;
+        try {
+            user = currentSnapshot.find(username);
+        } catch (RuntimeException e) {
+            log.warnv(e, "Failed to find user \"{0}\" in user snapshot", username);
+            user = null;
+        }
+        if (user == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return user;
+    }
+
+    /**
+     * Rebuilds snapshot from legacy database and replaces current snapshot with it. Failures are logged and retried
+     * with the next refresh, current snapshot remains in use.
+     */
+    public synchronized void refresh() {
+        long startTime = System.nanoTime();
+        UserSnapshot previous = snapshot;
+        long now = System.currentTimeMillis();
+        // Request is reset before refresh so that requests made during refresh are not lost
+        boolean requested = fullRebuildRequested.getAndSet(false);
+        boolean full = requested || previous == null || lastModifiedColumn == null
+                || now - previous.getFullBuildTime() >= fullRebuildIntervalMillis;
+        try {
+            // Version is read before users so that changes made during refresh are loaded again next time
+            Timestamp version = lastModifiedColumn == null ? null : jdbcTemplate.queryForObject(
+                    "SELECT MAX(" + lastModifiedColumn + ") FROM users", Timestamp.class);
+            try (UserSnapshotWriter writer = new UserSnapshotWriter(path, version == null ? 0 : version.getTime(),
+                    full ? now : previous.getFullBuildTime())) {
+                if (full) {
+                    streamUsers(SQL_FIND_ALL_USERS + SQL_ORDER_BY_USERNAME, new Object[0], writer);
+                } else {
+                    // Changed users are added first so that they replace previous versions
+                    streamUsers(SQL_FIND_ALL_USERS + "WHERE u." + lastModifiedColumn + " >= ? "
+                            + SQL_ORDER_BY_USERNAME, new Object[]{new Timestamp(previous.getVersion())}, writer);
+                    List<LegacyDatabaseUser> batch = new ArrayList<>(EXISTENCE_CHECK_BATCH_SIZE);
+                    previous.forEach(user -> {
+                        batch.add(user);
+                        if (batch.size() == EXISTENCE_CHECK_BATCH_SIZE) {
+                            addExistingUsers(batch, writer);
+                            batch.clear();
+                        }
+                    });
+                    addExistingUsers(batch, writer);
+                }
+                writer.commit();
+            }
+            UserSnapshot nextSnapshot = UserSnapshot.open(path);
+            snapshot = nextSnapshot;
+            refreshTime = now;
+            if (full) {
+                // Incremental refresh may miss changes that do not update last modification time
+                changedUsers.values().removeIf(changeTime -> changeTime < now);
+            }
+            log.debugv("User snapshot \"{0}\" is {1} with {2} users in {3} ms", path,
+                    full ? "rebuilt" : "updated", nextSnapshot.size(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+        } catch (IOException | RuntimeException e) {
+            if (requested) {
+                fullRebuildRequested.set(true);
+            }
+            refreshFailures.increment();
+            log.warnv(e, "Failed to refresh user snapshot \"{0}\"", path);
+        }
+    }
+
+    /**
+     * Marks user as changed in legacy database. User is not found in snapshot until the next full rebuild.
+     */
+    public void invalidate(String username) {
+        changedUsers.put(username, System.currentTimeMillis());
+        if (changedUsers.size() > maxChangedUsers) {
+            // Snapshot is not used until the next refresh, so changed users need not be tracked anymore
+            invalidateAll();
+            if (!fullRebuildRequested.getAndSet(true)) {
+                log.infov("More than {0} users are changed since user snapshot \"{1}\" was rebuilt, it will be "
+                        + "rebuilt with the next refresh", maxChangedUsers, path);
+            }
+            changedUsers.clear();
+        }
+    }
+
+    /**
+     * Marks all users as possibly changed in legacy database. Snapshot is not used until the next refresh.
+     */
+    public void invalidateAll() {
+        invalidationTime = System.currentTimeMillis();
+    }
+
+    public boolean isAvailable() {
+        return snapshot != null;
+    }
+
+    /**
+     * Returns number of users in snapshot.
+     */
+    public int size() {
+        UserSnapshot currentSnapshot = snapshot;
+        return currentSnapshot == null ? 0 : currentSnapshot.size();
+    }
+
+    /**
+     * Returns time in seconds since snapshot was refreshed last time or -1 if there is no snapshot.
+     */
+    public double getAgeSeconds() {
+        return snapshot == null ? -1 : (System.currentTimeMillis() - refreshTime) / 1000.0;
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getRefreshFailureCount() {
+        return refreshFailures.sum();
+    }
+
+    private void streamUsers(String sql, Object[] args, UserSnapshotWriter writer) {
+        jdbcTemplate.execute((ConnectionCallback<Void>) connection -> {
+            LegacyDatabaseUserStreamer.stream(connection, sql, args, fetchSize, user -> addUser(writer, user));
+            return null;
+        });
+    }
+
+    /**
+     * Adds users of the given batch that still exist in legacy database. Removed users are dropped.
+     */
+    private void addExistingUsers(List<LegacyDatabaseUser> batch, UserSnapshotWriter writer) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        String placeholders = String.join(", ", Collections.nCopies(batch.size(), "?"));
+        Set<String> usernames = new HashSet<>(jdbcTemplate.queryForList(String.format(SQL_FIND_USERNAMES,
+                placeholders), String.class, batch.stream().map(LegacyDatabaseUser::getUsername).toArray()));
+        for (LegacyDatabaseUser user : batch) {
+            if (usernames.contains(user.getUsername())) {
+                addUser(writer, user);
+            }
+        }
+    }
+
+    private static void addUser(UserSnapshotWriter writer, LegacyDatabaseUser user) {
+        try {
+            writer.add(user);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -1,64 +1,127 @@
 package com.habr.keycloak.storage;
 
-import com.habr.keycloak.model.LegacyDatabaseRoleModel;
+import com.habr.keycloak.cache.LegacyDatabaseUserCache;
+import com.habr.keycloak.cache.UserPageCursorCache;
+import com.habr.keycloak.cluster.UserCacheInvalidationBroadcaster;
+import com.habr.keycloak.crypto.PasswordEncodingException;
+import com.habr.keycloak.crypto.VerifiedCredentialCache;
+import com.habr.keycloak.metrics.LegacyDatabaseMetrics;
+import com.habr.keycloak.model.LegacyDatabaseRoleCatalog;
+import com.habr.keycloak.model.LegacyDatabaseUser;
 import com.habr.keycloak.model.LegacyDatabaseUserModel;
 import lombok.EqualsAndHashCode;
 import lombok.RequiredArgsConstructor;
 import org.jboss.logging.Logger;
 import org.keycloak.component.ComponentModel;
 import org.keycloak.credential.CredentialInput;
+import org.keycloak.credential.CredentialInputUpdater;
 import org.keycloak.credential.CredentialInputValidator;
+import org.keycloak.models.GroupModel;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.ModelException;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserModel;
 import org.keycloak.models.credential.PasswordCredentialModel;
 import org.keycloak.storage.StorageId;
 import org.keycloak.storage.UserStorageProvider;
+import org.keycloak.storage.user.ImportedUserValidation;
 import org.keycloak.storage.user.UserLookupProvider;
+import org.keycloak.storage.user.UserQueryProvider;
 import org.springframework.dao.DataAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
-import org.springframework.jdbc.core.ResultSetExtractor;
 import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.util.Assert;
 
 import javax.sql.DataSource;
-import java.sql.ResultSet;
-import java.sql.SQLException;
-import java.sql.Types;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 /**
  * @author Roman Chigvintsev
  */
 public class LegacyDatabaseUserStorageProvider
-        implements UserStorageProvider, UserLookupProvider, CredentialInputValidator {
+        implements UserStorageProvider, UserLookupProvider, UserQueryProvider, CredentialInputValidator,
+        CredentialInputUpdater, ImportedUserValidation {
     private static final Logger log = Logger.getLogger(LegacyDatabaseUserStorageProvider.class);
 
-    private static final String SQL_FIND_USER_BY_NAME = "SELECT u.username, u.password, u.first_name, u.last_name, a.authority "
-            + "FROM users u "
-            + "INNER JOIN authorities a ON a.username = u.username "
-            + "WHERE u.username = ?";
+    private static final String SQL_FIND_USERS = "SELECT u.username, u.password, u.first_name, u.last_name, "
+            + "a.authority "
+            + "FROM (SELECT username, password, first_name, last_name FROM users WHERE %s) u "
+            + "LEFT JOIN authorities a ON a.username = u.username "
+            + "ORDER BY u.username";
+    private static final String SQL_COUNT_USERS = "SELECT COUNT(*) FROM users WHERE %s";
 
     private final KeycloakSession session;
     private final ComponentModel storageProviderModel;
     private final JdbcTemplate jdbcTemplate;
+    private final Supplier<SqlDialect> dialect;
+    private final LegacyDatabaseUserLoader userLoader;
     private final PasswordEncoder passwordEncoder;
+    private final LegacyDatabaseUserCache userCache;
+    private final LegacyDatabaseRoleCatalog roleCatalog;
+    private final VerifiedCredentialCache credentialCache;
+    private final LegacyDatabaseUserImporter importer;
+    private final LegacyDatabaseUserEmailLookup emailLookup;
+    private final LegacyDatabaseLoginAuditor loginAuditor;
+    private final LegacyDatabasePasswordUpdater passwordUpdater;
+    private final UserCacheInvalidationBroadcaster invalidationBroadcaster;
+    private final UserPageCursorCache cursorCache;
+    private final LegacyDatabaseMetrics metrics;
     private final ConcurrentMap<UserModelKey, LegacyDatabaseUserModel> loadedUsers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LegacyDatabaseRoleCatalog.Binding> roleBindings = new ConcurrentHashMap<>();
 
     public LegacyDatabaseUserStorageProvider(KeycloakSession session,
                                              ComponentModel storageProviderModel,
                                              DataSource dataSource,
-                                             PasswordEncoder passwordEncoder) {
+                                             Supplier<SqlDialect> dialect,
+                                             LegacyDatabaseUserLoader userLoader,
+                                             PasswordEncoder passwordEncoder,
+                                             LegacyDatabaseUserCache userCache,
+                                             LegacyDatabaseRoleCatalog roleCatalog,
+                                             VerifiedCredentialCache credentialCache,
+                                             LegacyDatabaseUserImporter importer,
+                                             LegacyDatabaseUserEmailLookup emailLookup,
+                                             LegacyDatabaseLoginAuditor loginAuditor,
+                                             LegacyDatabasePasswordUpdater passwordUpdater,
+                                             UserCacheInvalidationBroadcaster invalidationBroadcaster,
+                                             UserPageCursorCache cursorCache,
+                                             LegacyDatabaseMetrics metrics) {
         Assert.notNull(session, "Session must not be null");
         Assert.notNull(storageProviderModel, "Storage provider must not be null");
         Assert.notNull(dataSource, "Data source must not be null");
+        Assert.notNull(dialect, "SQL dialect must not be null");
+        Assert.notNull(userLoader, "User loader must not be null");
         Assert.notNull(passwordEncoder, "Password encoder must not be null");
+        Assert.notNull(userCache, "User cache must not be null");
+        Assert.notNull(roleCatalog, "Role catalog must not be null");
+        Assert.notNull(credentialCache, "Credential cache must not be null");
+        Assert.notNull(importer, "User importer must not be null");
+        Assert.notNull(emailLookup, "Email lookup must not be null");
+        Assert.notNull(loginAuditor, "Login auditor must not be null");
+        Assert.notNull(passwordUpdater, "Password updater must not be null");
+        Assert.notNull(invalidationBroadcaster, "Invalidation broadcaster must not be null");
+        Assert.notNull(cursorCache, "Cursor cache must not be null");
+        Assert.notNull(metrics, "Metrics must not be null");
 
         this.session = session;
         this.storageProviderModel = storageProviderModel;
         this.jdbcTemplate = new JdbcTemplate(dataSource);
+        this.dialect = dialect;
+        this.userLoader = userLoader;
         this.passwordEncoder = passwordEncoder;
+        this.userCache = userCache;
+        this.roleCatalog = roleCatalog;
+        this.credentialCache = credentialCache;
+        this.importer = importer;
+        this.emailLookup = emailLookup;
+        this.loginAuditor = loginAuditor;
+        this.passwordUpdater = passwordUpdater;
+        this.invalidationBroadcaster = invalidationBroadcaster;
+        this.cursorCache = cursorCache;
+        this.metrics = metrics;
     }
 
     @Override
@@ -68,7 +131,10 @@ public class LegacyDatabaseUserStorageProvider
 
     @Override
     public boolean isConfiguredFor(RealmModel realm, UserModel user, String credentialType) {
-        return supportsCredentialType(credentialType);
+        if (!supportsCredentialType(credentialType)) {
+            return false;
+        }
+        return !isImportedUser(user) || importer.getPasswordHash(session, realm, user) != null;
     }
 
     @Override
@@ -77,8 +143,91 @@ public class LegacyDatabaseUserStorageProvider
             log.debugv("Credential type \"{0}\" is not supported", credentialInput.getType());
             return false;
         }
-        String password = user.getFirstAttribute(LegacyDatabaseUserModel.ATTRIBUTE_PASSWORD);
-        return passwordEncoder.matches(credentialInput.getChallengeResponse(), password);
+        String password = isImportedUser(user) ? importer.getPasswordHash(session, realm, user)
+                : user.getFirstAttribute(LegacyDatabaseUserModel.ATTRIBUTE_PASSWORD);
+        VerifiedCredentialCache.CredentialKey credentialKey = password == null ? null
+                : credentialCache.keyOf(realm.getId(), user.getUsername(), password,
+                credentialInput.getChallengeResponse());
+        if (credentialCache.isVerified(credentialKey)) {
+            metrics.credentialCacheHit();
+            loginAuditor.loginSucceeded(user.getUsername());
+            return true;
+        }
+        long startTime = System.nanoTime();
+        try {
+            boolean valid = passwordEncoder.matches(credentialInput.getChallengeResponse(), password);
+            if (valid) {
+                credentialCache.markVerified(credentialKey);
+                loginAuditor.loginSucceeded(user.getUsername());
+            } else {
+                metrics.credentialFailed();
+                loginAuditor.loginFailed(user.getUsername());
+            }
+            return valid;
+        } catch (PasswordEncodingException e) {
+            // Password was not checked, so login fails as server error rather than as wrong password that would be
+            // counted by brute force detection
+            metrics.passwordEncoderRejected();
+            throw new ModelException("Failed to validate password of user \"" + user.getUsername() + "\"", e);
+        } finally {
+            metrics.getCredentialValidationLatency().recordSince(startTime);
+        }
+    }
+
+    /**
+     * Writes hash of new password to legacy database and makes all caches of this node forget the old one. When
+     * password update is disabled the credential is left to Keycloak local storage.
+     */
+    @Override
+    public boolean updateCredential(RealmModel realm, UserModel user, CredentialInput input) {
+        if (!supportsCredentialType(input.getType()) || !passwordUpdater.isEnabled()) {
+            return false;
+        }
+        String username = user.getUsername();
+        String passwordHash;
+        try {
+            passwordHash = passwordEncoder.encode(input.getChallengeResponse());
+        } catch (PasswordEncodingException e) {
+            throw new ModelException("Failed to encode password of user \"" + username + "\"", e);
+        }
+        LegacyDatabaseUser cachedUser = userCache.getIfPresent(realm.getId(), username);
+        if (!passwordUpdater.updatePasswordHash(username, passwordHash)) {
+            throw new ModelException("User \"" + username + "\" is not found in legacy database");
+        }
+
+        // Copies are evicted after update, so that loads that read the old password before it are not cached.
+        // Verified credentials need no eviction since they are bound to the old password hash.
+        userLoader.invalidate(username);
+        userCache.invalidateUsernames(Collections.singleton(username));
+        invalidationBroadcaster.usernamesChanged(storageProviderModel.getId(), Collections.singleton(username));
+        // Updated user is cached for the current realm right away since the next load may read the old password
+        // from replica that has not received the update yet
+        LegacyDatabaseUser updatedUser = cachedUser != null || !userCache.isEnabled() ? cachedUser
+                : findUserByName(username);
+        if (updatedUser != null) {
+            userCache.update(realm.getId(), updatedUser.toBuilder().password(passwordHash).build());
+        }
+        if (isImportedUser(user)) {
+            importer.updatePasswordHash(session, realm, user, passwordHash);
+        } else if (user instanceof LegacyDatabaseUserModel) {
+            ((LegacyDatabaseUserModel) user).updatePassword(passwordHash);
+        }
+        LegacyDatabaseUserModel loadedUser = loadedUsers.get(new UserModelKey(username, realm.getId()));
+        if (loadedUser != null) {
+            loadedUser.updatePassword(passwordHash);
+        }
+        log.debugv("Password of user \"{0}\" is updated", username);
+        return true;
+    }
+
+    @Override
+    public void disableCredentialType(RealmModel realm, UserModel user, String credentialType) {
+        // Passwords of legacy users cannot be disabled
+    }
+
+    @Override
+    public Set<String> getDisableableCredentialTypes(RealmModel realm, UserModel user) {
+        return Collections.emptySet();
     }
 
     @Override
@@ -87,67 +236,287 @@ public class LegacyDatabaseUserStorageProvider
     }
 
     @Override
-    public LegacyDatabaseUserModel getUserById(String id, RealmModel realm) {
+    public UserModel getUserById(String id, RealmModel realm) {
         StorageId storageId = new StorageId(id);
         String username = storageId.getExternalId();
         return getUserByUsername(username, realm);
     }
 
     @Override
-    public LegacyDatabaseUserModel getUserByUsername(String username, RealmModel realm) {
+    public UserModel getUserByUsername(String username, RealmModel realm) {
+        if (importer.isEnabled()) {
+            LegacyDatabaseUser user = loadUser(username, realm);
+            return user != null ? toUserModel(user, realm) : null;
+        }
+
         UserModelKey userKey = new UserModelKey(username, realm.getId());
         return loadedUsers.computeIfAbsent(userKey, k -> {
-            LegacyDatabaseUserModel user = findUserByName(username, realm);
-            if (user != null) {
-                log.debugv("User is loaded by name \"{0}\"", username);
-            }
-            return user;
+            LegacyDatabaseUser user = loadUser(username, realm);
+            return user != null ? createUserModel(user, realm) : null;
         });
     }
 
     @Override
     public UserModel getUserByEmail(String email, RealmModel realm) {
-        // Unsupported
-        return null;
+        // User is looked up by name, so that it is taken from the same cache entry as on login by username
+        String username = emailLookup.findUsername(email);
+        return username != null ? getUserByUsername(username, realm) : null;
     }
 
-    private LegacyDatabaseUserModel findUserByName(String username, RealmModel realm) {
-        return jdbcTemplate.query(SQL_FIND_USER_BY_NAME, new Object[]{username}, new int[]{Types.VARCHAR},
-                new LegacyDatabaseUserModelResultSetExtractor(realm));
+    @Override
+    public int getUsersCount(RealmModel realm) {
+        return countUsers(LegacyDatabaseUserQuery.all());
     }
 
-    @RequiredArgsConstructor
-    @EqualsAndHashCode
-    private static class UserModelKey {
-        private final String username;
-        private final String realmId;
+    @Override
+    public int getUsersCount(RealmModel realm, Set<String> groupIds) {
+        // Legacy users are not members of any group
+        return 0;
     }
 
-    @RequiredArgsConstructor
-    private class LegacyDatabaseUserModelResultSetExtractor implements ResultSetExtractor<LegacyDatabaseUserModel> {
-        final RealmModel realm;
+    @Override
+    public int getUsersCount(String search, RealmModel realm) {
+        return countUsers(LegacyDatabaseUserQuery.search(search));
+    }
 
-        @Override
-        public LegacyDatabaseUserModel extractData(ResultSet rs) throws SQLException, DataAccessException {
-            if (!rs.next()) {
-                return null;
-            }
+    @Override
+    public int getUsersCount(String search, RealmModel realm, Set<String> groupIds) {
+        return 0;
+    }
+
+    @Override
+    public int getUsersCount(Map<String, String> params, RealmModel realm) {
+        return countUsers(LegacyDatabaseUserQuery.byParams(params, emailLookup.getEmailColumn()));
+    }
+
+    @Override
+    public int getUsersCount(Map<String, String> params, RealmModel realm, Set<String> groupIds) {
+        return 0;
+    }
+
+    @Override
+    public List<UserModel> getUsers(RealmModel realm) {
+        return findUsers(LegacyDatabaseUserQuery.all(), realm, -1, -1);
+    }
+
+    @Override
+    public List<UserModel> getUsers(RealmModel realm, int firstResult, int maxResults) {
+        return findUsers(LegacyDatabaseUserQuery.all(), realm, firstResult, maxResults);
+    }
+
+    @Override
+    public List<UserModel> searchForUser(String search, RealmModel realm) {
+        return findUsers(LegacyDatabaseUserQuery.search(search), realm, -1, -1);
+    }
+
+    @Override
+    public List<UserModel> searchForUser(String search, RealmModel realm, int firstResult, int maxResults) {
+        return findUsers(LegacyDatabaseUserQuery.search(search), realm, firstResult, maxResults);
+    }
+
+    @Override
+    public List<UserModel> searchForUser(Map<String, String> params, RealmModel realm) {
+        return findUsers(LegacyDatabaseUserQuery.byParams(params, emailLookup.getEmailColumn()), realm, -1, -1);
+    }
+
+    @Override
+    public List<UserModel> searchForUser(Map<String, String> params,
+                                         RealmModel realm,
+                                         int firstResult,
+                                         int maxResults) {
+        return findUsers(LegacyDatabaseUserQuery.byParams(params, emailLookup.getEmailColumn()), realm, firstResult,
+                maxResults);
+    }
+
+    @Override
+    public List<UserModel> getGroupMembers(RealmModel realm, GroupModel group) {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public List<UserModel> getGroupMembers(RealmModel realm, GroupModel group, int firstResult, int maxResults) {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public List<UserModel> searchForUserByUserAttribute(String attrName, String attrValue, RealmModel realm) {
+        return findUsers(LegacyDatabaseUserQuery.byAttribute(attrName, attrValue), realm, -1, -1);
+    }
+
+    @Override
+    public UserModel validate(RealmModel realm, UserModel localUser) {
+        LegacyDatabaseUser user;
+        switch (importer.getValidation()) {
+            case CACHE:
+                user = userCache.getIfPresent(realm.getId(), localUser.getUsername());
+                if (user == null) {
+                    return localUser;
+                }
+                break;
+            case DATABASE:
+                try {
+                    user = loadUser(localUser.getUsername(), realm);
+                } catch (DataAccessException e) {
+                    log.warnv("Failed to validate imported user \"{0}\": {1}", localUser.getUsername(),
+                            e.getMessage());
+                    return localUser;
+                }
+                if (user == null) {
+                    log.debugv("Imported user \"{0}\" is not found in legacy database", localUser.getUsername());
+                    return null;
+                }
+                break;
+            default:
+                return localUser;
+        }
+        if (importer.updateUser(session, realm, localUser, completeUser(user, realm))) {
+            log.debugv("Imported user \"{0}\" is updated", localUser.getUsername());
+        }
+        return localUser;
+    }
+
+    private boolean isImportedUser(UserModel user) {
+        return importer.isEnabled() && user != null && !(user instanceof LegacyDatabaseUserModel);
+    }
+
+    private LegacyDatabaseUser loadUser(String username, RealmModel realm) {
+        return userCache.get(realm.getId(), username, () -> findUserByName(username));
+    }
+
+    private LegacyDatabaseUser findUserByName(String username) {
+        long startTime = System.nanoTime();
+        LegacyDatabaseUser user;
+        try {
+            user = userLoader.findUserByName(username);
+        } finally {
+            metrics.getUserLoadLatency().recordSince(startTime);
+        }
+        if (user == null) {
+            metrics.userNotFound();
+        } else {
+            log.debugv("User is loaded by name \"{0}\"", username);
+        }
+        return user;
+    }
+
+    private int countUsers(LegacyDatabaseUserQuery query) {
+        if (query.isEmpty()) {
+            return 0;
+        }
+        Integer count = jdbcTemplate.queryForObject(String.format(SQL_COUNT_USERS, query.getCondition()),
+                Integer.class, query.getArgs().toArray());
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * Finds page of users ordered by username. When the last username of the previous page is known the page is
+     * requested with keyset condition instead of offset.
+     *
+     * @param firstResult offset of the first user (negative value means zero)
+     * @param maxResults  maximum number of users (negative value means no limit)
+     */
+    private List<UserModel> findUsers(LegacyDatabaseUserQuery query,
+                                      RealmModel realm,
+                                      int firstResult,
+                                      int maxResults) {
+        if (query.isEmpty() || maxResults == 0) {
+            return Collections.emptyList();
+        }
+
+        int offset = Math.max(firstResult, 0);
+        StringBuilder condition = new StringBuilder(query.getCondition());
+        List<Object> args = new ArrayList<>(query.getArgs());
+        // Components may use different databases, so cursors of the same query are kept separately
+        String cursorKey = storageProviderModel.getId() + "/" + query.getKey();
+        String cursor = offset > 0 ? cursorCache.get(cursorKey, offset) : null;
+        if (cursor != null) {
+            condition.append(" AND username > ?");
+            args.add(cursor);
+        }
+        condition.append(" ORDER BY username");
+        dialect.get().appendPagination(condition, args, cursor == null ? offset : 0, maxResults);
+
+        List<LegacyDatabaseUser> users = jdbcTemplate.query(String.format(SQL_FIND_USERS, condition),
+                new LegacyDatabaseUserResultSetExtractor(), args.toArray());
+        if (users == null || users.isEmpty()) {
+            return Collections.emptyList();
+        }
+        if (maxResults > 0) {
+            cursorCache.put(cursorKey, offset + users.size(), users.get(users.size() - 1).getUsername());
+        }
+        return users.stream().map(user -> toUserModel(user, realm)).collect(Collectors.toList());
+    }
+
+    /**
+     * Returns imported user in import mode or session-bound user model otherwise.
+     */
+    private UserModel toUserModel(LegacyDatabaseUser user, RealmModel realm) {
+        if (importer.isEnabled()) {
+            UserModel localUser = session.userLocalStorage().getUserByUsername(user.getUsername(), realm);
+            return localUser != null ? localUser
+                    : importer.importUser(session, realm, storageProviderModel, completeUser(user, realm));
+        }
+        return loadedUsers.computeIfAbsent(new UserModelKey(user.getUsername(), realm.getId()),
+                k -> createUserModel(user, realm));
+    }
 
-            LegacyDatabaseUserModel.Builder userModelBuilder = LegacyDatabaseUserModel.builder()
-                    .session(session)
-                    .realm(realm)
-                    .storageProviderModel(storageProviderModel)
-                    .username(rs.getString(1))
-                    .password(rs.getString(2))
-                    .firstName(rs.getString(3))
-                    .lastName(rs.getString(4))
-                    .withRole(new LegacyDatabaseRoleModel(realm, rs.getString(5)));
-
-            while (rs.next()) {
-                userModelBuilder.withRole(new LegacyDatabaseRoleModel(realm, rs.getString(5)));
+    private LegacyDatabaseUserModel createUserModel(LegacyDatabaseUser user, RealmModel realm) {
+        LegacyDatabaseUserModel.Builder userModelBuilder = LegacyDatabaseUserModel.builder()
+                .session(session)
+                .realm(realm)
+                .storageProviderModel(storageProviderModel)
+                .username(user.getUsername())
+                .password(user.getPassword())
+                .firstName(user.getFirstName())
+                .lastName(user.getLastName());
+        if (emailLookup.isEnabled()) {
+            userModelBuilder.emailLoader(() -> emailLookup.findEmail(user.getUsername()));
+        }
+        if (user.isRolesLoaded()) {
+            LegacyDatabaseRoleCatalog.Binding roles = getRoles(realm);
+            for (String role : user.getRoles()) {
+                userModelBuilder.withRole(roles.getRole(role));
             }
+        } else {
+            userModelBuilder.roleLoader(() -> {
+                LegacyDatabaseRoleCatalog.Binding roles = getRoles(realm);
+                return completeUser(user, realm).getRoles().stream()
+                        .map(roles::getRole)
+                        .collect(Collectors.toSet());
+            });
+        }
+        return userModelBuilder.build();
+    }
 
-            return userModelBuilder.build();
+    /**
+     * Returns roles of the given realm bound to the current session. Roles are shared with other sessions through
+     * role catalog, binding only creates role models referencing realm model of the session.
+     */
+    private LegacyDatabaseRoleCatalog.Binding getRoles(RealmModel realm) {
+        return roleBindings.computeIfAbsent(realm.getId(), realmId -> roleCatalog.bind(realm));
+    }
+
+    /**
+     * Loads roles of user loaded without them. Cached user is replaced with the completed one, so that roles are
+     * loaded once per cached user rather than once per session.
+     */
+    private LegacyDatabaseUser completeUser(LegacyDatabaseUser user, RealmModel realm) {
+        if (user.isRolesLoaded()) {
+            return user;
         }
+        LegacyDatabaseUser completedUser = roleCatalog.intern(user.toBuilder()
+                .roles(userLoader.findRolesByUsername(user.getUsername()))
+                .rolesLoaded(true)
+                .build());
+        userCache.replace(realm.getId(), user, completedUser);
+        log.debugv("Roles of user \"{0}\" are loaded", user.getUsername());
+        return completedUser;
+    }
+
+    @RequiredArgsConstructor
+    @EqualsAndHashCode
+    private static class UserModelKey {
+        private final String username;
+        private final String realmId;
     }
 }
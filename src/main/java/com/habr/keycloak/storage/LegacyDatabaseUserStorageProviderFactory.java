@@ -1,42 +1,289 @@
 package com.habr.keycloak.storage;
 
+import com.habr.keycloak.cache.LegacyDatabaseUserCache;
+import com.habr.keycloak.cache.UserEmailIndex;
+import com.habr.keycloak.cache.UserPageCursorCache;
+import com.habr.keycloak.cache.UsernameBloomFilter;
+import com.habr.keycloak.cluster.KeycloakClusterInvalidationTransport;
+import com.habr.keycloak.cluster.UserCacheInvalidationBroadcaster;
+import com.habr.keycloak.cluster.UserCacheInvalidationEvent;
+import com.habr.keycloak.cluster.UserCacheInvalidationTransport;
+import com.habr.keycloak.crypto.BoundedPasswordEncoder;
+import com.habr.keycloak.crypto.VerifiedCredentialCache;
+import com.habr.keycloak.datasource.ReplicaRoutingDataSource;
+import com.habr.keycloak.metrics.InstrumentedDataSource;
+import com.habr.keycloak.metrics.LegacyDatabaseMetrics;
+import com.habr.keycloak.metrics.LegacyDatabaseMetricsMBean;
+import com.habr.keycloak.model.LegacyDatabaseRoleCatalog;
+import com.habr.keycloak.resilience.CircuitBreaker;
+import com.habr.keycloak.resilience.CircuitBreakingDataSource;
 import lombok.Setter;
 import org.jboss.logging.Logger;
 import org.keycloak.Config;
 import org.keycloak.component.ComponentModel;
+import org.keycloak.component.ComponentValidationException;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.provider.ProviderConfigProperty;
+import org.keycloak.provider.ProviderConfigurationBuilder;
 import org.keycloak.storage.UserStorageProviderFactory;
+import org.keycloak.storage.UserStorageProviderModel;
+import org.keycloak.storage.user.ImportSynchronization;
+import org.keycloak.storage.user.SynchronizationResult;
+import org.apache.commons.dbcp2.BasicDataSource;
 import org.springframework.core.env.PropertiesPropertySource;
 import org.springframework.core.env.PropertySource;
-import org.springframework.jdbc.datasource.SimpleDriverDataSource;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
-import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.util.Assert;
 import org.springframework.util.StringUtils;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.sql.DataSource;
-import java.sql.Driver;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 /**
  * @author Roman Chigvintsev
  */
 public class LegacyDatabaseUserStorageProviderFactory
-        implements UserStorageProviderFactory<LegacyDatabaseUserStorageProvider> {
+        implements UserStorageProviderFactory<LegacyDatabaseUserStorageProvider>, ImportSynchronization {
     private static final Logger log = Logger.getLogger(LegacyDatabaseUserStorageProviderFactory.class);
 
     private static final String PROVIDER_ID = "habr.legacy-database";
 
+    private static final String SQL_COUNT_USERS = "SELECT COUNT(*) FROM users";
+    private static final String SQL_FIND_ALL_USERNAMES = "SELECT username FROM users";
+
+    public static final String CONFIG_DATASOURCE_DRIVER_CLASS_NAME = "datasource-driver-class-name";
+    public static final String CONFIG_DATASOURCE_URL = "datasource-url";
+    public static final String CONFIG_DATASOURCE_USERNAME = "datasource-username";
+    public static final String CONFIG_DATASOURCE_PASSWORD = "datasource-password";
+    public static final String CONFIG_POOL_MAX_IDLE = "pool-max-idle";
+    public static final String CONFIG_POOL_MAX_TOTAL = "pool-max-total";
+
     public static final String PROPERTY_DATASOURCE_DRIVER_CLASS_NAME = "legacy-database.datasource.driver-class-name";
     public static final String PROPERTY_DATASOURCE_URL = "legacy-database.datasource.url";
     public static final String PROPERTY_DATASOURCE_USERNAME = "legacy-database.datasource.username";
     public static final String PROPERTY_DATASOURCE_PASSWORD = "legacy-database.datasource.password";
+    public static final String PROPERTY_DATASOURCE_QUERY_TIMEOUT_SECONDS
+            = "legacy-database.datasource.query-timeout-seconds";
+    public static final String PROPERTY_DATASOURCE_CONNECTION_PROPERTIES
+            = "legacy-database.datasource.connection-properties";
+    public static final String PROPERTY_DATASOURCE_REPLICA_URLS = "legacy-database.datasource.replica-urls";
+    public static final String PROPERTY_DATASOURCE_REPLICA_HEALTH_CHECK_INTERVAL_SECONDS
+            = "legacy-database.datasource.replica.health-check-interval-seconds";
+    public static final String PROPERTY_DATASOURCE_REPLICA_HEALTH_CHECK_TIMEOUT_SECONDS
+            = "legacy-database.datasource.replica.health-check-timeout-seconds";
+    public static final String PROPERTY_POOL_INITIAL_SIZE = "legacy-database.datasource.pool.initial-size";
+    public static final String PROPERTY_POOL_MIN_IDLE = "legacy-database.datasource.pool.min-idle";
+    public static final String PROPERTY_POOL_MAX_IDLE = "legacy-database.datasource.pool.max-idle";
+    public static final String PROPERTY_POOL_MAX_TOTAL = "legacy-database.datasource.pool.max-total";
+    public static final String PROPERTY_POOL_MAX_WAIT_MILLIS = "legacy-database.datasource.pool.max-wait-millis";
+    public static final String PROPERTY_POOL_TIME_BETWEEN_EVICTION_RUNS_MILLIS
+            = "legacy-database.datasource.pool.time-between-eviction-runs-millis";
+    public static final String PROPERTY_POOL_MIN_EVICTABLE_IDLE_TIME_MILLIS
+            = "legacy-database.datasource.pool.min-evictable-idle-time-millis";
+    public static final String PROPERTY_POOL_VALIDATION_QUERY = "legacy-database.datasource.pool.validation-query";
+    public static final String PROPERTY_POOL_VALIDATION_QUERY_TIMEOUT_SECONDS
+            = "legacy-database.datasource.pool.validation-query-timeout-seconds";
+    public static final String PROPERTY_POOL_TEST_ON_BORROW = "legacy-database.datasource.pool.test-on-borrow";
+    public static final String PROPERTY_POOL_TEST_WHILE_IDLE = "legacy-database.datasource.pool.test-while-idle";
+    public static final String PROPERTY_POOL_PREPARED_STATEMENTS = "legacy-database.datasource.pool.prepared-statements";
+    public static final String PROPERTY_POOL_MAX_OPEN_PREPARED_STATEMENTS
+            = "legacy-database.datasource.pool.max-open-prepared-statements";
+
+    public static final String PROPERTY_METRICS_JMX_ENABLED = "legacy-database.metrics.jmx.enabled";
+
+    public static final String PROPERTY_CIRCUIT_BREAKER_ENABLED = "legacy-database.circuit-breaker.enabled";
+    public static final String PROPERTY_CIRCUIT_BREAKER_FAILURE_THRESHOLD
+            = "legacy-database.circuit-breaker.failure-threshold";
+    public static final String PROPERTY_CIRCUIT_BREAKER_OPEN_DURATION_SECONDS
+            = "legacy-database.circuit-breaker.open-duration-seconds";
+
+    public static final String PROPERTY_SNAPSHOT_ENABLED = "legacy-database.snapshot.enabled";
+    public static final String PROPERTY_SNAPSHOT_PATH = "legacy-database.snapshot.path";
+    public static final String PROPERTY_SNAPSHOT_REFRESH_INTERVAL_SECONDS
+            = "legacy-database.snapshot.refresh-interval-seconds";
+    public static final String PROPERTY_SNAPSHOT_FULL_REBUILD_INTERVAL_SECONDS
+            = "legacy-database.snapshot.full-rebuild-interval-seconds";
+    public static final String PROPERTY_SNAPSHOT_MAX_CHANGED_USERS = "legacy-database.snapshot.max-changed-users";
+
+    public static final String PROPERTY_EMAIL_COLUMN = "legacy-database.email.column";
+    public static final String PROPERTY_EMAIL_INDEX_MAX_SIZE = "legacy-database.email.index.max-size";
+    public static final String PROPERTY_EMAIL_INDEX_EXPIRE_AFTER_WRITE_SECONDS
+            = "legacy-database.email.index.expire-after-write-seconds";
+
+    public static final String PROPERTY_LOGIN_AUDIT_ENABLED = "legacy-database.login-audit.enabled";
+    public static final String PROPERTY_LOGIN_AUDIT_LAST_LOGIN_COLUMN
+            = "legacy-database.login-audit.last-login-column";
+    public static final String PROPERTY_LOGIN_AUDIT_FAILED_ATTEMPTS_COLUMN
+            = "legacy-database.login-audit.failed-attempts-column";
+    public static final String PROPERTY_LOGIN_AUDIT_MAX_PENDING_USERS = "legacy-database.login-audit.max-pending-users";
+    public static final String PROPERTY_LOGIN_AUDIT_BATCH_SIZE = "legacy-database.login-audit.batch-size";
+    public static final String PROPERTY_LOGIN_AUDIT_FLUSH_INTERVAL_MILLIS
+            = "legacy-database.login-audit.flush-interval-millis";
+
+    public static final String PROPERTY_USER_LOADING_STRATEGY = "legacy-database.user-loading-strategy";
+    public static final String PROPERTY_DIALECT = "legacy-database.dialect";
+
+    public static final String PROPERTY_PASSWORD_ENCODER_THREADS = "legacy-database.password-encoder.threads";
+    public static final String PROPERTY_PASSWORD_ENCODER_QUEUE_CAPACITY
+            = "legacy-database.password-encoder.queue-capacity";
+    public static final String PROPERTY_PASSWORD_ENCODER_TIMEOUT_MILLIS
+            = "legacy-database.password-encoder.timeout-millis";
+    public static final String PROPERTY_PASSWORD_ENCODER_REJECTION_POLICY
+            = "legacy-database.password-encoder.rejection-policy";
+    public static final String PROPERTY_CREDENTIAL_CACHE_ENABLED = "legacy-database.credential-cache.enabled";
+    public static final String PROPERTY_CREDENTIAL_CACHE_MAX_SIZE = "legacy-database.credential-cache.max-size";
+    public static final String PROPERTY_CREDENTIAL_CACHE_TTL_SECONDS = "legacy-database.credential-cache.ttl-seconds";
+    public static final String PROPERTY_PASSWORD_UPDATE_ENABLED = "legacy-database.password-update.enabled";
+    public static final String PROPERTY_IMPORT_ENABLED = "legacy-database.import.enabled";
+    public static final String PROPERTY_IMPORT_VALIDATION = "legacy-database.import.validation";
+    public static final String PROPERTY_SYNC_FETCH_SIZE = "legacy-database.sync.fetch-size";
+    public static final String PROPERTY_SYNC_BATCH_SIZE = "legacy-database.sync.batch-size";
+    public static final String PROPERTY_SYNC_LAST_MODIFIED_COLUMN = "legacy-database.sync.last-modified-column";
+    public static final String PROPERTY_CURSOR_CACHE_MAX_SIZE = "legacy-database.search.cursor-cache.max-size";
+    public static final String PROPERTY_CURSOR_CACHE_TTL_SECONDS = "legacy-database.search.cursor-cache.ttl-seconds";
+    public static final String PROPERTY_CACHE_ENABLED = "legacy-database.cache.enabled";
+    public static final String PROPERTY_CACHE_MAX_SIZE = "legacy-database.cache.max-size";
+    public static final String PROPERTY_CACHE_EXPIRE_AFTER_WRITE_SECONDS
+            = "legacy-database.cache.expire-after-write-seconds";
+    public static final String PROPERTY_CACHE_EXPIRE_AFTER_ACCESS_SECONDS
+            = "legacy-database.cache.expire-after-access-seconds";
+    public static final String PROPERTY_CACHE_LOAD_TIMEOUT_MILLIS = "legacy-database.cache.load-timeout-millis";
+    public static final String PROPERTY_NEGATIVE_CACHE_MAX_SIZE = "legacy-database.cache.negative.max-size";
+    public static final String PROPERTY_NEGATIVE_CACHE_EXPIRE_AFTER_WRITE_SECONDS
+            = "legacy-database.cache.negative.expire-after-write-seconds";
+    public static final String PROPERTY_STALE_CACHE_ENABLED = "legacy-database.cache.stale.enabled";
+    public static final String PROPERTY_STALE_CACHE_MAX_SIZE = "legacy-database.cache.stale.max-size";
+    public static final String PROPERTY_STALE_CACHE_EXPIRE_AFTER_WRITE_SECONDS
+            = "legacy-database.cache.stale.expire-after-write-seconds";
+    public static final String PROPERTY_CACHE_INVALIDATION_ENABLED = "legacy-database.cache.invalidation.enabled";
+    public static final String PROPERTY_CACHE_INVALIDATION_CHANGE_LOG_TABLE
+            = "legacy-database.cache.invalidation.change-log-table";
+    public static final String PROPERTY_CACHE_INVALIDATION_LAST_MODIFIED_COLUMN
+            = "legacy-database.cache.invalidation.last-modified-column";
+    public static final String PROPERTY_CACHE_INVALIDATION_POLL_INTERVAL_SECONDS
+            = "legacy-database.cache.invalidation.poll-interval-seconds";
+    public static final String PROPERTY_CACHE_INVALIDATION_MAX_CHANGES
+            = "legacy-database.cache.invalidation.max-changes";
+    public static final String PROPERTY_CACHE_INVALIDATION_ID_OVERLAP
+            = "legacy-database.cache.invalidation.id-overlap";
+    public static final String PROPERTY_CACHE_INVALIDATION_TIME_OVERLAP_SECONDS
+            = "legacy-database.cache.invalidation.time-overlap-seconds";
+    public static final String PROPERTY_CACHE_CLUSTER_INVALIDATION_ENABLED
+            = "legacy-database.cache.cluster-invalidation.enabled";
+    public static final String PROPERTY_CACHE_CLUSTER_INVALIDATION_BATCH_SIZE
+            = "legacy-database.cache.cluster-invalidation.batch-size";
+    public static final String PROPERTY_CACHE_CLUSTER_INVALIDATION_FLUSH_INTERVAL_MILLIS
+            = "legacy-database.cache.cluster-invalidation.flush-interval-millis";
+    public static final String PROPERTY_WARM_UP_ENABLED = "legacy-database.warm-up.enabled";
+    public static final String PROPERTY_WARM_UP_USERNAMES = "legacy-database.warm-up.usernames";
+    public static final String PROPERTY_WARM_UP_QUERY = "legacy-database.warm-up.query";
+    public static final String PROPERTY_WARM_UP_MAX_USERS = "legacy-database.warm-up.max-users";
+    public static final String PROPERTY_WARM_UP_BATCH_SIZE = "legacy-database.warm-up.batch-size";
+    public static final String PROPERTY_WARM_UP_CONCURRENCY = "legacy-database.warm-up.concurrency";
+    public static final String PROPERTY_WARM_UP_TIME_BUDGET_SECONDS = "legacy-database.warm-up.time-budget-seconds";
+    public static final String PROPERTY_USERNAME_FILTER_ENABLED = "legacy-database.username-filter.enabled";
+    public static final String PROPERTY_USERNAME_FILTER_EXPECTED_INSERTIONS
+            = "legacy-database.username-filter.expected-insertions";
+    public static final String PROPERTY_USERNAME_FILTER_FALSE_POSITIVE_PROBABILITY
+            = "legacy-database.username-filter.false-positive-probability";
+    public static final String PROPERTY_USERNAME_FILTER_IGNORE_CASE = "legacy-database.username-filter.ignore-case";
+    public static final String PROPERTY_USERNAME_FILTER_REFRESH_INTERVAL_SECONDS
+            = "legacy-database.username-filter.refresh-interval-seconds";
 
-    private DataSource dataSource;
-    private PasswordEncoder passwordEncoder;
+    private final LegacyDatabaseMetrics metrics = new LegacyDatabaseMetrics();
+
+    private BasicDataSource dataSource;
+    private final List<BasicDataSource> replicaDataSources = new ArrayList<>();
+    private ReplicaRoutingDataSource replicaRoutingDataSource;
+    /**
+     * Connection pool (or replica router when replicas are configured) that records connection acquisition latency.
+     * It must be used instead of the pool itself.
+     */
+    private DataSource instrumentedDataSource;
+    /**
+     * Connection pool of primary database that records connection acquisition latency. It is used for writes since
+     * {@link #instrumentedDataSource} may route connections to read-only replicas.
+     */
+    private DataSource instrumentedPrimaryDataSource;
+    /**
+     * {@link #instrumentedDataSource} that obtains connections only when {@link #circuitBreaker} permits it. It is
+     * used for reads other than user loads that are guarded by user loader itself.
+     */
+    private DataSource guardedDataSource;
+    private ObjectName metricsObjectName;
+    private LegacyDatabaseUserLoader userLoader;
+    private LegacyDatabaseUserLoader.Strategy userLoadingStrategy;
+    private SqlDialect sqlDialect;
+    /**
+     * Dialect of legacy database defined with system properties. It is detected on first use if it is not configured.
+     */
+    private LazySqlDialect dialect;
+    private CircuitBreaker circuitBreaker;
+    private LegacyDatabaseUserSnapshotStore snapshotStore;
+    private BoundedPasswordEncoder passwordEncoder;
+    private VerifiedCredentialCache credentialCache;
+    private LegacyDatabaseUserImporter importer;
+    private UserEmailIndex emailIndex;
+    private long emailIndexMaxSize;
+    private Duration emailIndexTtl;
+    private LegacyDatabaseUserEmailLookup emailLookup;
+    private LegacyDatabaseLoginAuditor loginAuditor;
+    private LegacyDatabasePasswordUpdater passwordUpdater;
+    private LegacyDatabaseUserSynchronizer synchronizer;
+    private UserPageCursorCache cursorCache;
+    private LegacyDatabaseUserCache userCache;
+    private LegacyDatabaseUserChangePoller changePoller;
+    private LegacyDatabaseUserCacheWarmer cacheWarmer;
+    private UserCacheInvalidationBroadcaster invalidationBroadcaster;
+    /**
+     * Scheduler of short periodic tasks (health checks, change polls and flushes).
+     */
+    private ScheduledExecutorService scheduler;
+    /**
+     * Scheduler of long-running rebuilds (username filter and snapshot), so that they do not delay short tasks.
+     */
+    private ScheduledExecutorService rebuildScheduler;
+    /**
+     * Contexts of components that define their own data source by component id.
+     */
+    private final ConcurrentMap<String, LegacyDatabaseComponentContext> componentContexts = new ConcurrentHashMap<>();
+    /**
+     * Roles of legacy database shared by all sessions and components.
+     */
+    private final LegacyDatabaseRoleCatalog roleCatalog = new LegacyDatabaseRoleCatalog();
 
     @Setter
     private PropertySource<Map<String, Object>> propertySource;
 
+    /**
+     * Transport of cache invalidations between nodes of cluster. Keycloak cluster provider is used if it is not set.
+     */
+    @Setter
+    private UserCacheInvalidationTransport invalidationTransport;
+
     @Override
     public String getId() {
         return PROVIDER_ID;
@@ -45,34 +292,1103 @@ public class LegacyDatabaseUserStorageProviderFactory
     @Override
     public void init(Config.Scope config) {
         initDataSource();
+        initUserLoader();
         initPasswordEncoder();
+        initCredentialCache();
+        initUserCache();
+        initUsernameFilter();
+        initChangePoller();
+        initCacheWarmer();
+        initInvalidationBroadcaster();
+        initImporter();
+        initEmailLookup();
+        initLoginAuditor();
+        initPasswordUpdater();
+        initSynchronizer();
+        initCursorCache();
+        initMetrics();
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory sessionFactory) {
+        if (cacheWarmer != null) {
+            warmUpUserCache(sessionFactory);
+        }
+        if (invalidationBroadcaster.isEnabled()) {
+            UserCacheInvalidationTransport transport = invalidationTransport != null ? invalidationTransport
+                    : new KeycloakClusterInvalidationTransport(sessionFactory);
+            invalidationBroadcaster.start(transport, this::applyInvalidations);
+        }
     }
 
     @Override
     public LegacyDatabaseUserStorageProvider create(KeycloakSession session, ComponentModel model) {
-        return new LegacyDatabaseUserStorageProvider(session, model, dataSource, passwordEncoder);
+        LegacyDatabaseComponentContext context = getComponentContext(model);
+        if (context != null) {
+            return new LegacyDatabaseUserStorageProvider(session, model, context.getDataSource(),
+                    context.getDialect(), context.getUserLoader(), passwordEncoder, context.getUserCache(),
+                    roleCatalog, credentialCache, importer, context.getEmailLookup(), context.getLoginAuditor(),
+                    context.getPasswordUpdater(), invalidationBroadcaster, cursorCache, metrics);
+        }
+        return new LegacyDatabaseUserStorageProvider(session, model, guardedDataSource, dialect, userLoader,
+                passwordEncoder, userCache, roleCatalog, credentialCache, importer, emailLookup, loginAuditor,
+                passwordUpdater, invalidationBroadcaster, cursorCache, metrics);
+    }
+
+    @Override
+    public List<ProviderConfigProperty> getConfigProperties() {
+        return ProviderConfigurationBuilder.create()
+                .property()
+                .name(CONFIG_DATASOURCE_URL)
+                .label("JDBC URL")
+                .helpText("JDBC URL of legacy database. When it is not set, legacy database defined with system "
+                        + "properties is used and other settings of data source are ignored.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .add()
+                .property()
+                .name(CONFIG_DATASOURCE_DRIVER_CLASS_NAME)
+                .label("JDBC driver class")
+                .helpText("Class name of JDBC driver. Driver defined with system properties is used by default.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .add()
+                .property()
+                .name(CONFIG_DATASOURCE_USERNAME)
+                .label("Username")
+                .helpText("Name of legacy database user.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .add()
+                .property()
+                .name(CONFIG_DATASOURCE_PASSWORD)
+                .label("Password")
+                .helpText("Password of legacy database user.")
+                .type(ProviderConfigProperty.PASSWORD)
+                .secret(true)
+                .add()
+                .property()
+                .name(CONFIG_POOL_MAX_TOTAL)
+                .label("Maximum connections")
+                .helpText("Maximum number of connections to legacy database. Pool settings defined with system "
+                        + "properties are used by default.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .add()
+                .property()
+                .name(CONFIG_POOL_MAX_IDLE)
+                .label("Maximum idle connections")
+                .helpText("Maximum number of idle connections to legacy database.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .add()
+                .build();
+    }
+
+    @Override
+    public void validateConfiguration(KeycloakSession session, RealmModel realm, ComponentModel config)
+            throws ComponentValidationException {
+        String url = getConfigValue(config, CONFIG_DATASOURCE_URL);
+        if (url == null) {
+            return;
+        }
+        if (!url.startsWith("jdbc:")) {
+            throw new ComponentValidationException("JDBC URL must start with \"jdbc:\"");
+        }
+        String driverClassName = getConfigValue(config, CONFIG_DATASOURCE_DRIVER_CLASS_NAME);
+        if (driverClassName != null) {
+            try {
+                Class.forName(driverClassName);
+            } catch (ClassNotFoundException e) {
+                throw new ComponentValidationException("JDBC driver class \"" + driverClassName
+                        + "\" is not found", e);
+            }
+        }
+        Integer maxTotal = getPositiveIntConfigValue(config, CONFIG_POOL_MAX_TOTAL, "Maximum connections");
+        Integer maxIdle = getPositiveIntConfigValue(config, CONFIG_POOL_MAX_IDLE, "Maximum idle connections");
+        if (maxTotal != null && maxIdle != null && maxIdle > maxTotal) {
+            throw new ComponentValidationException("Maximum idle connections must not be greater than maximum "
+                    + "connections");
+        }
+    }
+
+    @Override
+    public void onUpdate(KeycloakSession session, RealmModel realm, ComponentModel oldModel, ComponentModel newModel) {
+        // Without cluster invalidation other nodes recreate context when they notice that configuration is changed
+        closeComponentContext(oldModel.getId());
+        userCache.invalidateRealm(realm.getId());
+        cursorCache.invalidateAll();
+        invalidationBroadcaster.realmChanged(oldModel.getId(), realm.getId());
+    }
+
+    @Override
+    public void preRemove(KeycloakSession session, RealmModel realm, ComponentModel model) {
+        closeComponentContext(model.getId());
+        userCache.invalidateRealm(realm.getId());
+        roleCatalog.removeRealm(realm.getId());
+        invalidationBroadcaster.realmChanged(model.getId(), realm.getId());
+    }
+
+    @Override
+    public SynchronizationResult sync(KeycloakSessionFactory sessionFactory,
+                                      String realmId,
+                                      UserStorageProviderModel model) {
+        return getSynchronizer(model).sync(sessionFactory, realmId, model);
+    }
+
+    @Override
+    public SynchronizationResult syncSince(Date lastSync,
+                                           KeycloakSessionFactory sessionFactory,
+                                           String realmId,
+                                           UserStorageProviderModel model) {
+        return getSynchronizer(model).syncSince(lastSync, sessionFactory, realmId, model);
+    }
+
+    @Override
+    public void close() {
+        unregisterMetricsMBean();
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+        if (rebuildScheduler != null) {
+            rebuildScheduler.shutdownNow();
+            rebuildScheduler = null;
+        }
+        if (loginAuditor != null) {
+            // Pending login results are written while connection pool is still open
+            loginAuditor.close();
+        }
+        if (invalidationBroadcaster != null) {
+            invalidationBroadcaster.close();
+        }
+        if (userCache != null) {
+            userCache.invalidateAll();
+        }
+        if (credentialCache != null) {
+            credentialCache.invalidateAll();
+        }
+        if (cursorCache != null) {
+            cursorCache.invalidateAll();
+        }
+        if (emailIndex != null) {
+            emailIndex.invalidateAll();
+        }
+        if (passwordEncoder != null) {
+            passwordEncoder.close();
+            passwordEncoder = null;
+        }
+        for (String componentId : new ArrayList<>(componentContexts.keySet())) {
+            closeComponentContext(componentId);
+        }
+        closeDataSource();
+    }
+
+    /**
+     * Returns metrics of all providers created by this factory.
+     */
+    public LegacyDatabaseMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns cache of users shared between all providers created by this factory.
+     */
+    public LegacyDatabaseUserCache getUserCache() {
+        return userCache;
+    }
+
+    /**
+     * Returns connection pool to connect with primary legacy database or {@code null} if factory is closed.
+     */
+    BasicDataSource getPool() {
+        return dataSource;
     }
 
-    @SuppressWarnings("unchecked")
     private void initDataSource() {
-        String driverClassName = getDataSourceDriverClassName();
+        Class<?> driverClass = loadDriverClass(getDataSourceDriverClassName());
         String url = getDataSourceUrl();
 
-        SimpleDriverDataSource dataSource = new SimpleDriverDataSource();
+        this.dataSource = createPool(driverClass, url, getDataSourceUsername(), getDataSourcePassword());
+        log.debugv("Connection pool to connect with database \"{0}\" is created (max size: {1})", url,
+                dataSource.getMaxTotal());
+
+        String replicaUrls = getStringProperty(PROPERTY_DATASOURCE_REPLICA_URLS);
+        if (replicaUrls == null) {
+            this.instrumentedDataSource = new InstrumentedDataSource(dataSource,
+                    metrics.getConnectionAcquisitionLatency());
+            this.instrumentedPrimaryDataSource = instrumentedDataSource;
+            return;
+        }
+
+        // Replicas use the same credentials and pool settings as primary database
+        Map<String, BasicDataSource> replicas = new LinkedHashMap<>();
+        for (String replicaUrl : StringUtils.commaDelimitedListToSet(replicaUrls)) {
+            replicaUrl = replicaUrl.trim();
+            if (!replicaUrl.isEmpty()) {
+                BasicDataSource replica = createPool(driverClass, replicaUrl, getDataSourceUsername(),
+                        getDataSourcePassword());
+                replicaDataSources.add(replica);
+                replicas.put(replicaUrl, replica);
+                log.debugv("Connection pool to connect with replica \"{0}\" is created (max size: {1})",
+                        replicaUrl, replica.getMaxTotal());
+            }
+        }
+        int healthCheckInterval = getIntProperty(PROPERTY_DATASOURCE_REPLICA_HEALTH_CHECK_INTERVAL_SECONDS, 10);
+        int healthCheckTimeout = getIntProperty(PROPERTY_DATASOURCE_REPLICA_HEALTH_CHECK_TIMEOUT_SECONDS, 2);
+        Assert.state(healthCheckInterval > 0, "Replica health check interval must be positive");
+        Assert.state(healthCheckTimeout >= 0, "Replica health check timeout must not be negative");
+
+        this.replicaRoutingDataSource = new ReplicaRoutingDataSource(dataSource, replicas, healthCheckTimeout);
+        this.instrumentedDataSource = new InstrumentedDataSource(replicaRoutingDataSource,
+                metrics.getConnectionAcquisitionLatency());
+        this.instrumentedPrimaryDataSource = new InstrumentedDataSource(dataSource,
+                metrics.getConnectionAcquisitionLatency());
+        getScheduler().scheduleWithFixedDelay(replicaRoutingDataSource::checkHealth, healthCheckInterval,
+                healthCheckInterval, TimeUnit.SECONDS);
+        log.debugv("Read queries are routed to {0} replicas (health check interval: {1} s)", replicas.size(),
+                healthCheckInterval);
+    }
+
+    private static Class<?> loadDriverClass(String driverClassName) {
         try {
-            dataSource.setDriverClass((Class<? extends Driver>) Class.forName(driverClassName));
-            dataSource.setUrl(url);
-            dataSource.setUsername(getDataSourceUsername());
-            dataSource.setPassword(getDataSourcePassword());
-            this.dataSource = dataSource;
-            log.debugv("Data source to connect with database \"{0}\" is created", url);
+            return Class.forName(driverClassName);
         } catch (ClassNotFoundException e) {
             throw new IllegalStateException("JDBC driver class \"" + driverClassName + "\" is not found", e);
         }
     }
 
+    private BasicDataSource createPool(Class<?> driverClass, String url, String username, String password) {
+        BasicDataSource dataSource = new BasicDataSource();
+        dataSource.setDriverClassName(driverClass.getName());
+        dataSource.setDriverClassLoader(driverClass.getClassLoader());
+        dataSource.setUrl(url);
+        dataSource.setUsername(username);
+        dataSource.setPassword(password);
+
+        dataSource.setInitialSize(getIntProperty(PROPERTY_POOL_INITIAL_SIZE, 0));
+        dataSource.setMinIdle(getIntProperty(PROPERTY_POOL_MIN_IDLE, 1));
+        dataSource.setMaxIdle(getIntProperty(PROPERTY_POOL_MAX_IDLE, 10));
+        dataSource.setMaxTotal(getIntProperty(PROPERTY_POOL_MAX_TOTAL, 10));
+        dataSource.setMaxWaitMillis(getLongProperty(PROPERTY_POOL_MAX_WAIT_MILLIS, 5000L));
+        dataSource.setTimeBetweenEvictionRunsMillis(
+                getLongProperty(PROPERTY_POOL_TIME_BETWEEN_EVICTION_RUNS_MILLIS, 30000L));
+        dataSource.setMinEvictableIdleTimeMillis(getLongProperty(PROPERTY_POOL_MIN_EVICTABLE_IDLE_TIME_MILLIS, 60000L));
+        // When validation query is not set connections are validated with Connection#isValid
+        dataSource.setValidationQuery(getStringProperty(PROPERTY_POOL_VALIDATION_QUERY));
+        dataSource.setValidationQueryTimeout(getIntProperty(PROPERTY_POOL_VALIDATION_QUERY_TIMEOUT_SECONDS, 5));
+        dataSource.setTestOnBorrow(getBooleanProperty(PROPERTY_POOL_TEST_ON_BORROW, true));
+        dataSource.setTestWhileIdle(getBooleanProperty(PROPERTY_POOL_TEST_WHILE_IDLE, true));
+        dataSource.setPoolPreparedStatements(getBooleanProperty(PROPERTY_POOL_PREPARED_STATEMENTS, true));
+        dataSource.setMaxOpenPreparedStatements(getIntProperty(PROPERTY_POOL_MAX_OPEN_PREPARED_STATEMENTS, 50));
+
+        // Threads must not wait for slow database forever. Time of obtaining connection from pool is limited with
+        // maximum wait time, time of establishing new connection may be limited with driver-specific connection
+        // properties (e.g. "connectTimeout=5" for PostgreSQL).
+        int queryTimeout = getIntProperty(PROPERTY_DATASOURCE_QUERY_TIMEOUT_SECONDS, 5);
+        Assert.state(queryTimeout >= 0, "Query timeout must not be negative");
+        if (queryTimeout > 0) {
+            dataSource.setDefaultQueryTimeout(queryTimeout);
+        }
+        String connectionProperties = getStringProperty(PROPERTY_DATASOURCE_CONNECTION_PROPERTIES);
+        if (connectionProperties != null) {
+            dataSource.setConnectionProperties(connectionProperties);
+        }
+        return dataSource;
+    }
+
+    private void closeDataSource() {
+        for (BasicDataSource replica : replicaDataSources) {
+            closePool(replica);
+        }
+        replicaDataSources.clear();
+        replicaRoutingDataSource = null;
+        if (dataSource != null) {
+            closePool(dataSource);
+            dataSource = null;
+            instrumentedDataSource = null;
+            instrumentedPrimaryDataSource = null;
+            guardedDataSource = null;
+        }
+    }
+
+    private static void closePool(BasicDataSource pool) {
+        try {
+            pool.close();
+            log.debugv("Connection pool to connect with database \"{0}\" is closed", pool.getUrl());
+        } catch (SQLException e) {
+            log.warnv(e, "Failed to close connection pool to connect with database \"{0}\"", pool.getUrl());
+        }
+    }
+
+    private void initUserLoader() {
+        LegacyDatabaseUserLoader.Strategy strategy = LegacyDatabaseUserLoader.Strategy.JOIN;
+        String strategyValue = getStringProperty(PROPERTY_USER_LOADING_STRATEGY);
+        if (strategyValue != null) {
+            try {
+                strategy = LegacyDatabaseUserLoader.Strategy.valueOf(strategyValue.toUpperCase(Locale.ROOT)
+                        .replace('-', '_'));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalStateException("System property \"" + PROPERTY_USER_LOADING_STRATEGY
+                        + "\" must be one of: join, aggregate, two-queries, lazy", e);
+            }
+        }
+
+        SqlDialect dialect = null;
+        String dialectValue = getStringProperty(PROPERTY_DIALECT);
+        if (dialectValue != null) {
+            try {
+                dialect = SqlDialect.fromName(dialectValue);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalStateException("System property \"" + PROPERTY_DIALECT
+                        + "\" must be one of: h2, postgresql, mysql, mariadb, oracle, sql-server", e);
+            }
+        }
+
+        this.userLoadingStrategy = strategy;
+        this.sqlDialect = dialect;
+        this.dialect = new LazySqlDialect(instrumentedDataSource, dialect);
+        this.circuitBreaker = createCircuitBreaker(PROVIDER_ID);
+        this.guardedDataSource = guard(instrumentedDataSource, circuitBreaker);
+        LegacyDatabaseUserLoader loader = createUserLoader(instrumentedDataSource, circuitBreaker);
+        log.debugv("User loader is created (strategy: {0}, dialect: {1})", strategy,
+                dialect == null ? "auto" : dialect);
+
+        if (getBooleanProperty(PROPERTY_SNAPSHOT_ENABLED, false)) {
+            loader = new SnapshotUserLoader(initSnapshotStore(), loader);
+        }
+        // Role names are shared by users loaded from legacy database and snapshot
+        this.userLoader = new InterningUserLoader(loader, roleCatalog);
+    }
+
+    /**
+     * Creates circuit breaker with the given name or returns {@code null} if circuit breaker is disabled.
+     */
+    private CircuitBreaker createCircuitBreaker(String name) {
+        if (!getBooleanProperty(PROPERTY_CIRCUIT_BREAKER_ENABLED, true)) {
+            return null;
+        }
+        int failureThreshold = getIntProperty(PROPERTY_CIRCUIT_BREAKER_FAILURE_THRESHOLD, 5);
+        long openDuration = getLongProperty(PROPERTY_CIRCUIT_BREAKER_OPEN_DURATION_SECONDS, 30L);
+        Assert.state(failureThreshold > 0, "Circuit breaker failure threshold must be positive");
+        Assert.state(openDuration > 0, "Circuit breaker open duration must be positive");
+        log.debugv("Circuit breaker \"{0}\" is created (failure threshold: {1}, open duration: {2} s)", name,
+                failureThreshold, openDuration);
+        return new CircuitBreaker(name, failureThreshold, Duration.ofSeconds(openDuration));
+    }
+
+    /**
+     * Returns data source that obtains connections only when the given circuit breaker permits it or the given data
+     * source itself if circuit breaker is disabled.
+     */
+    private static DataSource guard(DataSource dataSource, CircuitBreaker breaker) {
+        return breaker == null ? dataSource : new CircuitBreakingDataSource(dataSource, breaker);
+    }
+
+    private LegacyDatabaseUserLoader createUserLoader(DataSource dataSource, CircuitBreaker breaker) {
+        LegacyDatabaseUserLoader loader = LegacyDatabaseUserLoader.create(userLoadingStrategy, dataSource,
+                sqlDialect);
+        return breaker == null ? loader : new CircuitBreakingUserLoader(loader, breaker);
+    }
+
+    private LegacyDatabaseUserSnapshotStore initSnapshotStore() {
+        String path = getStringProperty(PROPERTY_SNAPSHOT_PATH);
+        Assert.state(path != null, "System property \"" + PROPERTY_SNAPSHOT_PATH + "\" must be defined");
+        long refreshInterval = getLongProperty(PROPERTY_SNAPSHOT_REFRESH_INTERVAL_SECONDS, 300L);
+        long fullRebuildInterval = getLongProperty(PROPERTY_SNAPSHOT_FULL_REBUILD_INTERVAL_SECONDS, 86400L);
+        int maxChangedUsers = getIntProperty(PROPERTY_SNAPSHOT_MAX_CHANGED_USERS, 10000);
+        int fetchSize = getIntProperty(PROPERTY_SYNC_FETCH_SIZE, 1000);
+        String lastModifiedColumn = getStringProperty(PROPERTY_SYNC_LAST_MODIFIED_COLUMN);
+        Assert.state(refreshInterval > 0, "Snapshot refresh interval must be positive");
+        Assert.state(fullRebuildInterval >= 0, "Snapshot full rebuild interval must not be negative");
+        Assert.state(maxChangedUsers > 0, "Snapshot maximum number of changed users must be positive");
+        Assert.state(fetchSize > 0, "Synchronization fetch size must be positive");
+        Assert.state(lastModifiedColumn == null || lastModifiedColumn.matches("\\w+"),
+                "Synchronization last modified column must be a valid column name");
+
+        this.snapshotStore = new LegacyDatabaseUserSnapshotStore(instrumentedDataSource, Paths.get(path),
+                lastModifiedColumn, Duration.ofSeconds(fullRebuildInterval), fetchSize, maxChangedUsers);
+        // Snapshot left by previous run lets node find users even if legacy database is unavailable at start
+        snapshotStore.open();
+        // Snapshot that is older than refresh interval is refreshed right away
+        long initialDelay = Math.max(0, refreshInterval - (long) snapshotStore.getAgeSeconds());
+        getRebuildScheduler().scheduleWithFixedDelay(snapshotStore::refresh, snapshotStore.isAvailable()
+                ? initialDelay : 0, refreshInterval, TimeUnit.SECONDS);
+        log.debugv("User snapshot \"{0}\" is enabled (refresh interval: {1} s, full rebuild interval: {2} s, max "
+                + "changed users: {3})", path, refreshInterval, fullRebuildInterval, maxChangedUsers);
+        return snapshotStore;
+    }
+
     private void initPasswordEncoder() {
-        this.passwordEncoder = new BCryptPasswordEncoder();
+        int threads = getIntProperty(PROPERTY_PASSWORD_ENCODER_THREADS, Runtime.getRuntime().availableProcessors());
+        int queueCapacity = getIntProperty(PROPERTY_PASSWORD_ENCODER_QUEUE_CAPACITY, threads * 16);
+        Duration timeout = Duration.ofMillis(getLongProperty(PROPERTY_PASSWORD_ENCODER_TIMEOUT_MILLIS, 2000L));
+        BoundedPasswordEncoder.RejectionPolicy rejectionPolicy = getPasswordEncoderRejectionPolicy();
+        Assert.state(threads > 0, "Number of password encoder threads must be positive");
+        Assert.state(queueCapacity > 0, "Password encoder queue capacity must be positive");
+        Assert.state(!timeout.isNegative() && !timeout.isZero(), "Password encoder timeout must be positive");
+
+        this.passwordEncoder = new BoundedPasswordEncoder(new BCryptPasswordEncoder(), threads, queueCapacity,
+                timeout, rejectionPolicy);
+        log.debugv("Password encoder is created (threads: {0}, queue capacity: {1}, timeout: {2}, "
+                + "rejection policy: {3})", threads, queueCapacity, timeout, rejectionPolicy);
+    }
+
+    private void initCredentialCache() {
+        if (!getBooleanProperty(PROPERTY_CREDENTIAL_CACHE_ENABLED, false)) {
+            this.credentialCache = VerifiedCredentialCache.disabled();
+            return;
+        }
+        long maxSize = getLongProperty(PROPERTY_CREDENTIAL_CACHE_MAX_SIZE, 10000L);
+        Duration ttl = getDurationSecondsProperty(PROPERTY_CREDENTIAL_CACHE_TTL_SECONDS, 60L);
+        this.credentialCache = new VerifiedCredentialCache(maxSize, ttl);
+        log.debugv("Verified credential cache is created (max size: {0}, TTL: {1})", maxSize, ttl);
+    }
+
+    private BoundedPasswordEncoder.RejectionPolicy getPasswordEncoderRejectionPolicy() {
+        String value = getStringProperty(PROPERTY_PASSWORD_ENCODER_REJECTION_POLICY);
+        if (value == null) {
+            return BoundedPasswordEncoder.RejectionPolicy.ABORT;
+        }
+        try {
+            return BoundedPasswordEncoder.RejectionPolicy.valueOf(value.toUpperCase(Locale.ROOT).replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalStateException("System property \"" + PROPERTY_PASSWORD_ENCODER_REJECTION_POLICY
+                    + "\" must be one of: abort, caller-runs", e);
+        }
+    }
+
+    private void initUserCache() {
+        this.userCache = createUserCache();
+    }
+
+    private LegacyDatabaseUserCache createUserCache() {
+        // Concurrent loads of the same user are coalesced even if caching is disabled
+        long loadTimeoutMillis = getLongProperty(PROPERTY_CACHE_LOAD_TIMEOUT_MILLIS, 10000L);
+        Assert.state(loadTimeoutMillis >= 0, "User load timeout must not be negative");
+        Duration loadTimeout = loadTimeoutMillis == 0 ? null : Duration.ofMillis(loadTimeoutMillis);
+
+        // Stale users are kept even if caching is disabled to be able to serve them while database is unavailable
+        long staleMaxSize = 0;
+        Duration staleExpireAfterWrite = null;
+        if (getBooleanProperty(PROPERTY_STALE_CACHE_ENABLED, false)) {
+            staleMaxSize = getLongProperty(PROPERTY_STALE_CACHE_MAX_SIZE, 10000L);
+            staleExpireAfterWrite = getDurationSecondsProperty(PROPERTY_STALE_CACHE_EXPIRE_AFTER_WRITE_SECONDS, 3600L);
+        }
+
+        if (!getBooleanProperty(PROPERTY_CACHE_ENABLED, true)) {
+            log.debugv("User cache is disabled (load timeout: {0}, stale max size: {1}, stale expire after "
+                    + "write: {2})", loadTimeout, staleMaxSize, staleExpireAfterWrite);
+            return LegacyDatabaseUserCache.builder()
+                    .loadTimeout(loadTimeout)
+                    .staleMaxSize(staleMaxSize)
+                    .staleExpireAfterWrite(staleExpireAfterWrite)
+                    .refreshExecutor(staleMaxSize > 0 ? getScheduler() : null)
+                    .build();
+        }
+        long maxSize = getLongProperty(PROPERTY_CACHE_MAX_SIZE, 10000L);
+        Duration expireAfterWrite = getDurationSecondsProperty(PROPERTY_CACHE_EXPIRE_AFTER_WRITE_SECONDS, 300L);
+        Duration expireAfterAccess = getDurationSecondsProperty(PROPERTY_CACHE_EXPIRE_AFTER_ACCESS_SECONDS, 60L);
+        long negativeMaxSize = getLongProperty(PROPERTY_NEGATIVE_CACHE_MAX_SIZE, 10000L);
+        Duration negativeExpireAfterWrite
+                = getDurationSecondsProperty(PROPERTY_NEGATIVE_CACHE_EXPIRE_AFTER_WRITE_SECONDS, 30L);
+        LegacyDatabaseUserCache cache = LegacyDatabaseUserCache.builder()
+                .maxSize(maxSize)
+                .expireAfterWrite(expireAfterWrite)
+                .expireAfterAccess(expireAfterAccess)
+                .negativeMaxSize(negativeMaxSize)
+                .negativeExpireAfterWrite(negativeExpireAfterWrite)
+                .loadTimeout(loadTimeout)
+                .staleMaxSize(staleMaxSize)
+                .staleExpireAfterWrite(staleExpireAfterWrite)
+                .refreshExecutor(staleMaxSize > 0 ? getScheduler() : null)
+                .build();
+        log.debugv("User cache is created (max size: {0}, expire after write: {1}, expire after access: {2}, "
+                        + "negative max size: {3}, negative expire after write: {4}, load timeout: {5}, "
+                        + "stale max size: {6}, stale expire after write: {7})",
+                maxSize, expireAfterWrite, expireAfterAccess, negativeMaxSize, negativeExpireAfterWrite, loadTimeout,
+                staleMaxSize, staleExpireAfterWrite);
+        return cache;
+    }
+
+    private void initUsernameFilter() {
+        if (!getBooleanProperty(PROPERTY_USERNAME_FILTER_ENABLED, false)) {
+            return;
+        }
+        long refreshInterval = getLongProperty(PROPERTY_USERNAME_FILTER_REFRESH_INTERVAL_SECONDS, 600L);
+        Assert.state(refreshInterval > 0, "Username filter refresh interval must be positive");
+        // Filter is built in background so that unavailable database does not prevent Keycloak from starting.
+        // Until filter is built all usernames are considered as existing.
+        getRebuildScheduler().scheduleWithFixedDelay(this::refreshUsernameFilter, 0, refreshInterval,
+                TimeUnit.SECONDS);
+    }
+
+    private void refreshUsernameFilter() {
+        try {
+            long startTime = System.nanoTime();
+            JdbcTemplate jdbcTemplate = new JdbcTemplate(instrumentedDataSource);
+            jdbcTemplate.setFetchSize(1000);
+            Long userCount = jdbcTemplate.queryForObject(SQL_COUNT_USERS, Long.class);
+            long expectedInsertions = getLongProperty(PROPERTY_USERNAME_FILTER_EXPECTED_INSERTIONS, 100000L);
+            // Leave room for users that will be added before next refresh
+            expectedInsertions = Math.max(expectedInsertions, userCount == null ? 0 : userCount * 2);
+            UsernameBloomFilter filter = new UsernameBloomFilter(expectedInsertions,
+                    getDoubleProperty(PROPERTY_USERNAME_FILTER_FALSE_POSITIVE_PROBABILITY, 0.01),
+                    getBooleanProperty(PROPERTY_USERNAME_FILTER_IGNORE_CASE, false));
+            jdbcTemplate.query(SQL_FIND_ALL_USERNAMES, rs -> {
+                filter.put(rs.getString(1));
+            });
+            userCache.setUsernameFilter(filter);
+            log.debugv("Username filter {0} is built from {1} users in {2} ms", filter, userCount,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+        } catch (RuntimeException e) {
+            log.warn("Failed to build username filter", e);
+        }
+    }
+
+    private void initChangePoller() {
+        if (!getBooleanProperty(PROPERTY_CACHE_INVALIDATION_ENABLED, false)) {
+            return;
+        }
+        String changeLogTable = getStringProperty(PROPERTY_CACHE_INVALIDATION_CHANGE_LOG_TABLE);
+        String lastModifiedColumn = getStringProperty(PROPERTY_CACHE_INVALIDATION_LAST_MODIFIED_COLUMN);
+        if (lastModifiedColumn == null) {
+            lastModifiedColumn = getStringProperty(PROPERTY_SYNC_LAST_MODIFIED_COLUMN);
+        }
+        long pollInterval = getLongProperty(PROPERTY_CACHE_INVALIDATION_POLL_INTERVAL_SECONDS, 5L);
+        int maxChanges = getIntProperty(PROPERTY_CACHE_INVALIDATION_MAX_CHANGES, 1000);
+        Assert.state(pollInterval > 0, "Cache invalidation poll interval must be positive");
+        long idOverlap = getLongProperty(PROPERTY_CACHE_INVALIDATION_ID_OVERLAP, 1000L);
+        long timeOverlap = getLongProperty(PROPERTY_CACHE_INVALIDATION_TIME_OVERLAP_SECONDS, 60L);
+        Assert.state(maxChanges > 0, "Cache invalidation maximum number of changes must be positive");
+        Assert.state(idOverlap >= 0, "Cache invalidation id overlap must not be negative");
+        Assert.state(timeOverlap >= 0, "Cache invalidation time overlap must not be negative");
+
+        if (changeLogTable != null) {
+            Assert.state(changeLogTable.matches("[\\w.]+"), "Change-log table must be a valid table name");
+            this.changePoller = LegacyDatabaseUserChangePoller.fromChangeLog(guardedDataSource, userCache,
+                    userLoader, changeLogTable, maxChanges, idOverlap);
+        } else {
+            Assert.state(lastModifiedColumn != null, "Either change-log table or last modified column must be "
+                    + "defined to invalidate user cache");
+            Assert.state(lastModifiedColumn.matches("\\w+"), "Last modified column must be a valid column name");
+            this.changePoller = LegacyDatabaseUserChangePoller.fromLastModifiedColumn(guardedDataSource,
+                    userCache, userLoader, lastModifiedColumn, maxChanges, Duration.ofSeconds(timeOverlap));
+        }
+        getScheduler().scheduleWithFixedDelay(changePoller::poll, 0, pollInterval, TimeUnit.SECONDS);
+        log.debugv("Changed users are polled from {0} (poll interval: {1} s, max changes: {2})",
+                changeLogTable != null ? "table \"" + changeLogTable + "\""
+                        : "column \"users." + lastModifiedColumn + "\"", pollInterval, maxChanges);
+    }
+
+    private void initCacheWarmer() {
+        if (!getBooleanProperty(PROPERTY_WARM_UP_ENABLED, false)) {
+            return;
+        }
+        if (!userCache.isEnabled()) {
+            log.warn("User cache warm-up is ignored since user cache is disabled");
+            return;
+        }
+        String usernames = getStringProperty(PROPERTY_WARM_UP_USERNAMES);
+        String usernameQuery = getStringProperty(PROPERTY_WARM_UP_QUERY);
+        Assert.state(usernames != null || usernameQuery != null, "Either usernames or username query must be defined "
+                + "to warm up user cache");
+        int maxUsers = getIntProperty(PROPERTY_WARM_UP_MAX_USERS, 10000);
+        int batchSize = getIntProperty(PROPERTY_WARM_UP_BATCH_SIZE, 100);
+        int concurrency = getIntProperty(PROPERTY_WARM_UP_CONCURRENCY, 4);
+        long timeBudget = getLongProperty(PROPERTY_WARM_UP_TIME_BUDGET_SECONDS, 30L);
+        Assert.state(maxUsers > 0, "Warm-up maximum number of users must be positive");
+        Assert.state(batchSize > 0, "Warm-up batch size must be positive");
+        Assert.state(concurrency > 0, "Warm-up concurrency must be positive");
+        Assert.state(timeBudget > 0, "Warm-up time budget must be positive");
+
+        this.cacheWarmer = LegacyDatabaseUserCacheWarmer.builder()
+                .dataSource(guardedDataSource)
+                .userLoader(userLoader)
+                .userCache(userCache)
+                .usernames(usernames == null ? null : StringUtils.commaDelimitedListToSet(usernames).stream()
+                        .map(String::trim)
+                        .filter(username -> !username.isEmpty())
+                        .collect(Collectors.toList()))
+                .usernameQuery(usernameQuery)
+                .maxUsers(maxUsers)
+                .batchSize(batchSize)
+                .concurrency(concurrency)
+                .timeBudget(Duration.ofSeconds(timeBudget))
+                .build();
+        log.debugv("User cache warm-up is enabled (max users: {0}, batch size: {1}, concurrency: {2}, "
+                + "time budget: {3} s)", maxUsers, batchSize, concurrency, timeBudget);
+    }
+
+    private void warmUpUserCache(KeycloakSessionFactory sessionFactory) {
+        List<String> realmIds = new ArrayList<>();
+        try {
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> session.realms().getRealmsStream()
+                    .filter(realm -> realm.getUserStorageProvidersStream()
+                            .anyMatch(model -> PROVIDER_ID.equals(model.getProviderId())))
+                    .map(RealmModel::getId)
+                    .forEach(realmIds::add));
+        } catch (RuntimeException e) {
+            log.warn("Failed to find realms using legacy database, user cache is not warmed up", e);
+            return;
+        }
+        if (changePoller != null) {
+            // Start tracking changes before warm-up so that users changed during warm-up are evicted later
+            changePoller.poll();
+        }
+        cacheWarmer.warmUp(realmIds);
+    }
+
+    private void initInvalidationBroadcaster() {
+        if (!getBooleanProperty(PROPERTY_CACHE_CLUSTER_INVALIDATION_ENABLED, false)) {
+            this.invalidationBroadcaster = UserCacheInvalidationBroadcaster.disabled();
+            return;
+        }
+        int batchSize = getIntProperty(PROPERTY_CACHE_CLUSTER_INVALIDATION_BATCH_SIZE, 1000);
+        long flushInterval = getLongProperty(PROPERTY_CACHE_CLUSTER_INVALIDATION_FLUSH_INTERVAL_MILLIS, 100L);
+        Assert.state(batchSize > 0, "Cluster invalidation batch size must be positive");
+        Assert.state(flushInterval > 0, "Cluster invalidation flush interval must be positive");
+        UserCacheInvalidationBroadcaster broadcaster = new UserCacheInvalidationBroadcaster(batchSize);
+        getScheduler().scheduleWithFixedDelay(broadcaster::flush, flushInterval, flushInterval,
+                TimeUnit.MILLISECONDS);
+        this.invalidationBroadcaster = broadcaster;
+        log.debugv("User cache invalidations are sent to other nodes of cluster (batch size: {0}, flush interval: "
+                + "{1} ms)", batchSize, flushInterval);
+    }
+
+    /**
+     * Applies invalidations made on another node of cluster. Caches of component with its own data source are
+     * invalidated if context of component exists, otherwise shared caches are invalidated.
+     */
+    private void applyInvalidations(UserCacheInvalidationEvent event) {
+        event.getRealmIds().forEach((componentId, realmIds) -> {
+            if (componentId != null) {
+                // Context is recreated with current configuration of component on next use
+                closeComponentContext(componentId);
+            }
+            realmIds.forEach(userCache::invalidateRealm);
+        });
+        if (!event.getRealmIds().isEmpty()) {
+            cursorCache.invalidateAll();
+        }
+        event.getUsernames().forEach((componentId, usernames) -> {
+            LegacyDatabaseComponentContext context = componentId == null ? null : componentContexts.get(componentId);
+            LegacyDatabaseUserLoader loader = context != null ? context.getUserLoader() : userLoader;
+            LegacyDatabaseUserCache cache = context != null ? context.getUserCache() : userCache;
+            usernames.forEach(loader::invalidate);
+            cache.invalidateUsernames(usernames);
+        });
+    }
+
+    private void initImporter() {
+        if (!getBooleanProperty(PROPERTY_IMPORT_ENABLED, false)) {
+            this.importer = LegacyDatabaseUserImporter.disabled();
+            return;
+        }
+        String validationValue = getStringProperty(PROPERTY_IMPORT_VALIDATION);
+        LegacyDatabaseUserImporter.ImportValidation validation = LegacyDatabaseUserImporter.ImportValidation.CACHE;
+        if (validationValue != null) {
+            try {
+                validation = LegacyDatabaseUserImporter.ImportValidation.valueOf(
+                        validationValue.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalStateException("System property \"" + PROPERTY_IMPORT_VALIDATION
+                        + "\" must be one of: none, cache, database", e);
+            }
+        }
+        this.importer = LegacyDatabaseUserImporter.enabled(validation);
+        log.debugv("Import mode is enabled (validation: {0})", validation);
+    }
+
+    private void initEmailLookup() {
+        this.emailIndexMaxSize = getLongProperty(PROPERTY_EMAIL_INDEX_MAX_SIZE, 10000L);
+        this.emailIndexTtl = getDurationSecondsProperty(PROPERTY_EMAIL_INDEX_EXPIRE_AFTER_WRITE_SECONDS, 300L);
+        Assert.state(emailIndexMaxSize >= 0, "Email index maximum size must not be negative");
+        this.emailIndex = new UserEmailIndex(emailIndexMaxSize, emailIndexTtl);
+        this.emailLookup = createEmailLookup(guardedDataSource, emailIndex);
+    }
+
+    /**
+     * Creates login auditor writing to primary legacy database and schedules its flush if login auditing is enabled.
+     */
+    private void initLoginAuditor() {
+        this.loginAuditor = createLoginAuditor(instrumentedPrimaryDataSource);
+        scheduleLoginAuditFlush(loginAuditor);
+    }
+
+    /**
+     * Schedules periodic flush of login results recorded by the given auditor.
+     *
+     * @return scheduled flush or {@code null} if auditor is disabled
+     */
+    private ScheduledFuture<?> scheduleLoginAuditFlush(LegacyDatabaseLoginAuditor auditor) {
+        if (!auditor.isEnabled()) {
+            return null;
+        }
+        long flushInterval = getLongProperty(PROPERTY_LOGIN_AUDIT_FLUSH_INTERVAL_MILLIS, 1000L);
+        Assert.state(flushInterval > 0, "Login audit flush interval must be positive");
+        return getScheduler().scheduleWithFixedDelay(auditor::flush, flushInterval, flushInterval,
+                TimeUnit.MILLISECONDS);
+    }
+
+    private LegacyDatabaseLoginAuditor createLoginAuditor(DataSource dataSource) {
+        if (!getBooleanProperty(PROPERTY_LOGIN_AUDIT_ENABLED, false)) {
+            return LegacyDatabaseLoginAuditor.disabled();
+        }
+        String lastLoginColumn = getStringProperty(PROPERTY_LOGIN_AUDIT_LAST_LOGIN_COLUMN, "last_login");
+        String failedAttemptsColumn = getStringProperty(PROPERTY_LOGIN_AUDIT_FAILED_ATTEMPTS_COLUMN,
+                "failed_attempts");
+        int maxPendingUsers = getIntProperty(PROPERTY_LOGIN_AUDIT_MAX_PENDING_USERS, 10000);
+        int batchSize = getIntProperty(PROPERTY_LOGIN_AUDIT_BATCH_SIZE, 100);
+        Assert.state(lastLoginColumn.matches("\\w+"), "Last login column must be a valid column name");
+        Assert.state(failedAttemptsColumn.matches("\\w+"), "Failed attempts column must be a valid column name");
+        Assert.state(maxPendingUsers > 0, "Login audit maximum number of pending users must be positive");
+        Assert.state(batchSize > 0, "Login audit batch size must be positive");
+        log.debugv("Login results are written to columns \"users.{0}\" and \"users.{1}\" (max pending users: {2}, "
+                + "batch size: {3})", lastLoginColumn, failedAttemptsColumn, maxPendingUsers, batchSize);
+        return new LegacyDatabaseLoginAuditor(dataSource, lastLoginColumn, failedAttemptsColumn, maxPendingUsers,
+                batchSize, getScheduler(), metrics.getLoginAuditFlushLatency());
+    }
+
+    private void initPasswordUpdater() {
+        this.passwordUpdater = createPasswordUpdater(instrumentedPrimaryDataSource);
+    }
+
+    private LegacyDatabasePasswordUpdater createPasswordUpdater(DataSource dataSource) {
+        if (!getBooleanProperty(PROPERTY_PASSWORD_UPDATE_ENABLED, false)) {
+            return LegacyDatabasePasswordUpdater.disabled();
+        }
+        log.debug("Password updates are written to legacy database");
+        return new LegacyDatabasePasswordUpdater(dataSource);
+    }
+
+    /**
+     * Creates email lookup or returns disabled lookup if email column is not defined.
+     */
+    private LegacyDatabaseUserEmailLookup createEmailLookup(DataSource dataSource, UserEmailIndex index) {
+        String emailColumn = getStringProperty(PROPERTY_EMAIL_COLUMN);
+        if (emailColumn == null) {
+            return LegacyDatabaseUserEmailLookup.disabled();
+        }
+        Assert.state(emailColumn.matches("\\w+"), "Email column must be a valid column name");
+        log.debugv("Users are found by email in column \"users.{0}\" (index max size: {1}, expire after write: "
+                + "{2})", emailColumn, emailIndexMaxSize, emailIndexTtl);
+        return new LegacyDatabaseUserEmailLookup(dataSource, emailColumn, index);
+    }
+
+    private void initSynchronizer() {
+        this.synchronizer = createSynchronizer(guardedDataSource);
+    }
+
+    private LegacyDatabaseUserSynchronizer createSynchronizer(DataSource dataSource) {
+        int fetchSize = getIntProperty(PROPERTY_SYNC_FETCH_SIZE, 1000);
+        int batchSize = getIntProperty(PROPERTY_SYNC_BATCH_SIZE, 100);
+        Assert.state(fetchSize > 0, "Synchronization fetch size must be positive");
+        Assert.state(batchSize > 0, "Synchronization batch size must be positive");
+        String lastModifiedColumn = getStringProperty(PROPERTY_SYNC_LAST_MODIFIED_COLUMN);
+        Assert.state(lastModifiedColumn == null || lastModifiedColumn.matches("\\w+"),
+                "Synchronization last modified column must be a valid column name");
+        return new LegacyDatabaseUserSynchronizer(dataSource, importer, fetchSize, batchSize, lastModifiedColumn);
+    }
+
+    private void initCursorCache() {
+        long maxSize = getLongProperty(PROPERTY_CURSOR_CACHE_MAX_SIZE, 1000L);
+        Duration ttl = getDurationSecondsProperty(PROPERTY_CURSOR_CACHE_TTL_SECONDS, 300L);
+        this.cursorCache = new UserPageCursorCache(maxSize, ttl);
+    }
+
+    private void initMetrics() {
+        BasicDataSource pool = dataSource;
+        metrics.registerGauge("pool_active_connections", "Number of connections in use",
+                pool::getNumActive);
+        metrics.registerGauge("pool_idle_connections", "Number of idle connections", pool::getNumIdle);
+        metrics.registerGauge("pool_max_connections", "Maximum number of connections", pool::getMaxTotal);
+
+        ReplicaRoutingDataSource router = replicaRoutingDataSource;
+        if (router != null) {
+            metrics.registerGauge("replicas_healthy", "Number of healthy replicas", router::getHealthyReplicaCount);
+            metrics.registerGauge("replicas_total", "Number of configured replicas", router::getReplicaCount);
+            metrics.registerCounter("replica_primary_fallbacks", "Number of connections obtained from primary "
+                    + "database since there were no healthy replicas with free connections",
+                    router::getPrimaryFallbackCount);
+            metrics.registerCounter("replica_pool_exhaustions", "Number of connections that could not be obtained "
+                    + "from replica since its connection pool was exhausted", router::getPoolExhaustionCount);
+        }
+
+        BoundedPasswordEncoder encoder = passwordEncoder;
+        metrics.registerGauge("password_encoder_queue_size", "Number of password hash verifications waiting "
+                + "for thread", encoder::getQueueSize);
+        metrics.registerGauge("password_encoder_active_threads", "Number of threads verifying password hashes",
+                encoder::getActiveCount);
+
+        LegacyDatabaseUserCache cache = userCache;
+        metrics.registerGauge("user_cache_size", "Number of cached users", cache::size);
+        metrics.registerCounter("user_cache_hits", "Number of user lookups answered with cached user",
+                cache::getHitCount);
+        metrics.registerCounter("user_cache_misses", "Number of user lookups that required loading user",
+                cache::getMissCount);
+        metrics.registerCounter("user_negative_cache_hits", "Number of user lookups answered with negative cache",
+                cache::getNegativeCacheHitCount);
+        metrics.registerCounter("user_loads_coalesced", "Number of user lookups that waited for concurrent load "
+                + "of the same user", cache::getCoalescedLoadCount);
+        metrics.registerCounter("user_load_timeouts", "Number of user lookups that timed out waiting for "
+                + "concurrent load of the same user", cache::getLoadTimeoutCount);
+        metrics.registerCounter("user_cache_stale_hits", "Number of user lookups answered with stale user since "
+                + "legacy database was unavailable", cache::getStaleHitCount);
+        metrics.registerCounter("username_filter_rejections", "Number of user lookups rejected by username filter",
+                cache::getUsernameFilterRejectionCount);
+        metrics.registerCounter("username_filter_false_positives", "Number of user lookups that passed username "
+                + "filter but user was not found", cache::getUsernameFilterFalsePositiveCount);
+        metrics.registerGauge("username_filter_false_positive_rate", "Observed ratio of unknown usernames that "
+                + "passed username filter", cache::getUsernameFilterFalsePositiveRate);
+
+        LegacyDatabaseUserSnapshotStore snapshot = snapshotStore;
+        if (snapshot != null) {
+            metrics.registerGauge("snapshot_users", "Number of users in local snapshot", snapshot::size);
+            metrics.registerGauge("snapshot_age_seconds", "Time since local snapshot was refreshed",
+                    snapshot::getAgeSeconds);
+            metrics.registerCounter("snapshot_hits", "Number of users found in local snapshot",
+                    snapshot::getHitCount);
+            metrics.registerCounter("snapshot_misses", "Number of users not found in local snapshot",
+                    snapshot::getMissCount);
+            metrics.registerCounter("snapshot_refresh_failures", "Number of failed refreshes of local snapshot",
+                    snapshot::getRefreshFailureCount);
+        }
+
+        LegacyDatabaseUserCacheWarmer warmer = cacheWarmer;
+        if (warmer != null) {
+            metrics.registerGauge("warm_up_users", "Number of users preloaded into cache at startup",
+                    warmer::getWarmedUserCount);
+            metrics.registerGauge("warm_up_duration_seconds", "Duration of user cache warm-up at startup",
+                    () -> warmer.getDurationMillis() / 1000.0);
+        }
+
+        LegacyDatabaseUserChangePoller poller = changePoller;
+        if (poller != null) {
+            metrics.registerCounter("change_log_invalidations", "Number of users evicted from cache since they "
+                    + "were changed in legacy database", poller::getInvalidationCount);
+            metrics.registerCounter("change_log_poll_failures", "Number of failed polls for changed users",
+                    poller::getFailureCount);
+        }
+
+        UserEmailIndex index = emailIndex;
+        if (emailLookup.isEnabled()) {
+            metrics.registerGauge("email_index_size", "Number of cached mappings of emails to usernames",
+                    index::size);
+        }
+
+        LegacyDatabaseLoginAuditor auditor = loginAuditor;
+        if (auditor.isEnabled()) {
+            metrics.registerGauge("login_audit_pending_users", "Number of users with login results waiting to be "
+                    + "written to legacy database", auditor::getPendingUserCount);
+            metrics.registerCounter("login_audit_written_users", "Number of users whose login results were written "
+                    + "to legacy database", auditor::getWrittenUserCount);
+            metrics.registerCounter("login_audit_dropped_results", "Number of login results dropped since there "
+                    + "were too many pending users", auditor::getDroppedResultCount);
+            metrics.registerCounter("login_audit_flush_failures", "Number of failed writes of login results",
+                    auditor::getFailureCount);
+        }
+
+        LegacyDatabasePasswordUpdater updater = passwordUpdater;
+        if (updater.isEnabled()) {
+            metrics.registerCounter("password_updates", "Number of passwords changed in legacy database",
+                    updater::getUpdateCount);
+        }
+
+        UserCacheInvalidationBroadcaster broadcaster = invalidationBroadcaster;
+        if (broadcaster.isEnabled()) {
+            metrics.registerGauge("cluster_invalidation_pending", "Number of cache invalidations waiting to be sent "
+                    + "to other nodes of cluster", broadcaster::getPendingCount);
+            metrics.registerCounter("cluster_invalidation_published_events", "Number of cache invalidation events "
+                    + "sent to other nodes of cluster", broadcaster::getPublishedEventCount);
+            metrics.registerCounter("cluster_invalidation_received_events", "Number of cache invalidation events "
+                    + "received from other nodes of cluster", broadcaster::getReceivedEventCount);
+            metrics.registerCounter("cluster_invalidation_failures", "Number of failed attempts to send cache "
+                    + "invalidation events", broadcaster::getFailureCount);
+        }
+
+        metrics.registerGauge("component_pools", "Number of connection pools of components with their own legacy "
+                + "database", componentContexts::size);
+        metrics.registerGauge("component_pool_active_connections", "Number of connections in use by pools of "
+                + "components with their own legacy database", () -> componentContexts.values().stream()
+                .mapToInt(context -> context.getPool().getNumActive())
+                .sum());
+
+        CircuitBreaker breaker = circuitBreaker;
+        if (breaker != null) {
+            metrics.registerGauge("circuit_breaker_state", "State of circuit breaker (0 - closed, 1 - open, "
+                    + "2 - half-open)", () -> breaker.getState().ordinal());
+            metrics.registerCounter("circuit_breaker_rejected_calls", "Number of user loads and connection "
+                    + "acquisitions rejected by circuit breaker", breaker::getRejectedCount);
+        }
+
+        if (getBooleanProperty(PROPERTY_METRICS_JMX_ENABLED, true)) {
+            registerMetricsMBean();
+        }
+    }
+
+    private void registerMetricsMBean() {
+        try {
+            ObjectName objectName = new ObjectName("com.habr.keycloak:type=LegacyDatabaseUserStorage,name="
+                    + ObjectName.quote(PROVIDER_ID));
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            if (mBeanServer.isRegistered(objectName)) {
+                // Factory may be initialized again after redeployment
+                mBeanServer.unregisterMBean(objectName);
+            }
+            mBeanServer.registerMBean(new LegacyDatabaseMetricsMBean(metrics), objectName);
+            this.metricsObjectName = objectName;
+            log.debugv("Metrics MBean is registered with name \"{0}\"", objectName);
+        } catch (JMException e) {
+            log.warn("Failed to register metrics MBean", e);
+        }
+    }
+
+    private void unregisterMetricsMBean() {
+        if (metricsObjectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsObjectName);
+            } catch (JMException e) {
+                log.warnv(e, "Failed to unregister metrics MBean \"{0}\"", metricsObjectName);
+            }
+            metricsObjectName = null;
+        }
+    }
+
+    /**
+     * Returns context of component that defines its own data source or {@code null} if component uses data source
+     * defined with system properties. Context is created on the first call and recreated when configuration of
+     * component is changed.
+     */
+    LegacyDatabaseComponentContext getComponentContext(ComponentModel model) {
+        String componentId = model.getId();
+        LegacyDatabaseComponentContext context = componentId == null ? null : componentContexts.get(componentId);
+        if (context == null && getConfigValue(model, CONFIG_DATASOURCE_URL) == null) {
+            return null;
+        }
+        Assert.state(componentId != null, "Component with its own data source must have id");
+        Map<String, String> settings = getDataSourceSettings(model);
+        if (context != null && context.getSettings().equals(settings)) {
+            return context;
+        }
+        synchronized (componentContexts) {
+            context = componentContexts.get(componentId);
+            if (context != null && context.getSettings().equals(settings)) {
+                return context;
+            }
+            if (context != null) {
+                closeComponentContext(componentId);
+            }
+            if (settings.get(CONFIG_DATASOURCE_URL) == null) {
+                return null;
+            }
+            context = createComponentContext(componentId, settings);
+            componentContexts.put(componentId, context);
+            return context;
+        }
+    }
+
+    private LegacyDatabaseComponentContext createComponentContext(String componentId, Map<String, String> settings) {
+        String driverClassName = settings.get(CONFIG_DATASOURCE_DRIVER_CLASS_NAME);
+        Class<?> driverClass = loadDriverClass(driverClassName != null ? driverClassName
+                : getDataSourceDriverClassName());
+        String url = settings.get(CONFIG_DATASOURCE_URL);
+        BasicDataSource pool = createPool(driverClass, url, settings.get(CONFIG_DATASOURCE_USERNAME),
+                settings.get(CONFIG_DATASOURCE_PASSWORD));
+        if (settings.get(CONFIG_POOL_MAX_TOTAL) != null) {
+            pool.setMaxTotal(Integer.parseInt(settings.get(CONFIG_POOL_MAX_TOTAL)));
+            pool.setMaxIdle(Math.min(pool.getMaxIdle(), pool.getMaxTotal()));
+        }
+        if (settings.get(CONFIG_POOL_MAX_IDLE) != null) {
+            pool.setMaxIdle(Integer.parseInt(settings.get(CONFIG_POOL_MAX_IDLE)));
+        }
+        pool.setMinIdle(Math.min(pool.getMinIdle(), pool.getMaxIdle()));
+        DataSource dataSource = new InstrumentedDataSource(pool, metrics.getConnectionAcquisitionLatency());
+        log.debugv("Connection pool to connect with database \"{0}\" is created for component \"{1}\" "
+                + "(max size: {2})", url, componentId, pool.getMaxTotal());
+
+        CircuitBreaker breaker = createCircuitBreaker(PROVIDER_ID + "/" + componentId);
+        DataSource guardedDataSource = guard(dataSource, breaker);
+        LegacyDatabaseLoginAuditor loginAuditor = createLoginAuditor(dataSource);
+        // Snapshot, username filter, cache warm-up and invalidation are not applied to databases of components
+        return LegacyDatabaseComponentContext.builder()
+                .settings(settings)
+                .pool(pool)
+                .dataSource(guardedDataSource)
+                .dialect(new LazySqlDialect(dataSource, sqlDialect))
+                .userLoader(new InterningUserLoader(createUserLoader(dataSource, breaker), roleCatalog))
+                .userCache(createUserCache())
+                .emailLookup(createEmailLookup(guardedDataSource, new UserEmailIndex(emailIndexMaxSize, emailIndexTtl)))
+                .loginAuditor(loginAuditor)
+                .loginAuditFlush(scheduleLoginAuditFlush(loginAuditor))
+                .passwordUpdater(createPasswordUpdater(dataSource))
+                .synchronizer(createSynchronizer(guardedDataSource))
+                .build();
+    }
+
+    private void closeComponentContext(String componentId) {
+        LegacyDatabaseComponentContext context = componentContexts.remove(componentId);
+        if (context != null) {
+            context.getUserCache().invalidateAll();
+            if (context.getLoginAuditFlush() != null) {
+                context.getLoginAuditFlush().cancel(false);
+            }
+            context.getLoginAuditor().close();
+            closePool(context.getPool());
+        }
+    }
+
+    private LegacyDatabaseUserSynchronizer getSynchronizer(ComponentModel model) {
+        LegacyDatabaseComponentContext context = getComponentContext(model);
+        return context != null ? context.getSynchronizer() : synchronizer;
+    }
+
+    private static Map<String, String> getDataSourceSettings(ComponentModel model) {
+        Map<String, String> settings = new LinkedHashMap<>();
+        for (String name : new String[]{CONFIG_DATASOURCE_DRIVER_CLASS_NAME, CONFIG_DATASOURCE_URL,
+                CONFIG_DATASOURCE_USERNAME, CONFIG_DATASOURCE_PASSWORD, CONFIG_POOL_MAX_TOTAL, CONFIG_POOL_MAX_IDLE}) {
+            settings.put(name, getConfigValue(model, name));
+        }
+        return settings;
+    }
+
+    private static String getConfigValue(ComponentModel model, String name) {
+        String value = model.get(name);
+        return StringUtils.hasText(value) ? value.trim() : null;
+    }
+
+    private static Integer getPositiveIntConfigValue(ComponentModel model, String name, String label) {
+        String value = getConfigValue(model, name);
+        if (value == null) {
+            return null;
+        }
+        try {
+            int intValue = Integer.parseInt(value);
+            if (intValue > 0) {
+                return intValue;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new ComponentValidationException(label + " must be a positive integer");
+    }
+
+    private synchronized ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            // Second thread lets flushes proceed while change poll or stale user refresh waits for legacy database
+            scheduler = Executors.newScheduledThreadPool(2, r -> {
+                Thread thread = new Thread(r, "legacy-database-scheduler");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return scheduler;
+    }
+
+    private synchronized ScheduledExecutorService getRebuildScheduler() {
+        if (rebuildScheduler == null) {
+            rebuildScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "legacy-database-rebuild");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return rebuildScheduler;
     }
 
     private PropertySource<Map<String, Object>> getPropertySource() {
@@ -111,4 +1427,63 @@ public class LegacyDatabaseUserStorageProviderFactory
     private String getDataSourcePassword() {
         return (String) getPropertySource().getProperty(PROPERTY_DATASOURCE_PASSWORD);
     }
+
+    private String getStringProperty(String name) {
+        String value = (String) getPropertySource().getProperty(name);
+        return StringUtils.hasText(value) ? value.trim() : null;
+    }
+
+    private String getStringProperty(String name, String defaultValue) {
+        String value = getStringProperty(name);
+        return value != null ? value : defaultValue;
+    }
+
+    private int getIntProperty(String name, int defaultValue) {
+        String value = getStringProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalStateException("System property \"" + name + "\" must be an integer", e);
+        }
+    }
+
+    private long getLongProperty(String name, long defaultValue) {
+        String value = getStringProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalStateException("System property \"" + name + "\" must be an integer", e);
+        }
+    }
+
+    private double getDoubleProperty(String name, double defaultValue) {
+        String value = getStringProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalStateException("System property \"" + name + "\" must be a number", e);
+        }
+    }
+
+    /**
+     * Returns duration in seconds or {@code null} if property value is zero.
+     */
+    private Duration getDurationSecondsProperty(String name, long defaultValue) {
+        long seconds = getLongProperty(name, defaultValue);
+        return seconds > 0 ? Duration.ofSeconds(seconds) : null;
+    }
+
+    private boolean getBooleanProperty(String name, boolean defaultValue) {
+        String value = getStringProperty(name);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
 }
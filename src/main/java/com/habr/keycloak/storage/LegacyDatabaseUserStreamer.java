@@ -0,0 +1,50 @@
+package com.habr.keycloak.storage;
+
+import com.habr.keycloak.model.LegacyDatabaseUser;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.function.Consumer;
+
+/**
+ * Streams users from legacy database with forward-only cursor so that only the rows fetched at once are kept in
+ * memory. Query must return rows of users joined with authorities ordered by username (see
+ * {@link LegacyDatabaseUserRowAggregator}).
+ *
+ * @author Roman Chigvintsev
+ */
+final class LegacyDatabaseUserStreamer {
+    private LegacyDatabaseUserStreamer() {
+    }
+
+    static void stream(Connection connection,
+                       String sql,
+                       Object[] args,
+                       int fetchSize,
+                       Consumer<LegacyDatabaseUser> consumer) throws SQLException {
+        boolean autoCommit = connection.getAutoCommit();
+        // Some drivers (e.g. PostgreSQL) use cursors only when auto-commit is disabled
+        connection.setAutoCommit(false);
+        try (PreparedStatement statement = connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY,
+                ResultSet.CONCUR_READ_ONLY)) {
+            statement.setFetchSize(fetchSize);
+            // Streaming may take much longer than default query timeout of the pool
+            statement.setQueryTimeout(0);
+            for (int i = 0; i < args.length; i++) {
+                statement.setObject(i + 1, args[i]);
+            }
+            try (ResultSet rs = statement.executeQuery()) {
+                LegacyDatabaseUserRowAggregator aggregator = new LegacyDatabaseUserRowAggregator(consumer);
+                while (rs.next()) {
+                    aggregator.processRow(rs);
+                }
+                aggregator.finish();
+            }
+        } finally {
+            connection.rollback();
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+}
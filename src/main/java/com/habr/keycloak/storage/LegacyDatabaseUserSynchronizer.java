@@ -0,0 +1,199 @@
+package com.habr.keycloak.storage;
+
+import com.habr.keycloak.model.LegacyDatabaseUser;
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.storage.UserStorageProviderModel;
+import org.keycloak.storage.user.SynchronizationResult;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.util.Assert;
+
+import javax.sql.DataSource;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Imports all (or recently changed) users from legacy database into Keycloak local storage.
+ * <p>
+ * Users are streamed from legacy database with forward-only cursor so that only one batch of users is kept in
+ * memory at any time. Every batch is imported in its own Keycloak transaction. If batch transaction fails users of
+ * the batch are imported one by one so that one broken user does not fail the whole batch.
+ * <p>
+ * Users removed from legacy database are not removed during synchronization. They are removed by import
+ * validation when Keycloak loads them (see {@link LegacyDatabaseUserImporter.ImportValidation#DATABASE}).
+ *
+ * @author Roman Chigvintsev
+ */
+public class LegacyDatabaseUserSynchronizer {
+    private static final Logger log = Logger.getLogger(LegacyDatabaseUserSynchronizer.class);
+
+    private static final String SQL_FIND_ALL_USERS = "SELECT u.username, u.password, u.first_name, u.last_name, "
+            + "a.authority "
+            + "FROM users u "
+            + "LEFT JOIN authorities a ON a.username = u.username ";
+    private static final String SQL_ORDER_BY_USERNAME = "ORDER BY u.username";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final LegacyDatabaseUserImporter importer;
+    private final int fetchSize;
+    private final int batchSize;
+    private final String lastModifiedColumn;
+
+    /**
+     * Creates new synchronizer.
+     *
+     * @param dataSource         legacy database
+     * @param importer           user importer
+     * @param fetchSize          number of rows fetched from legacy database at once
+     * @param batchSize          number of users imported in one Keycloak transaction
+     * @param lastModifiedColumn column of {@code users} table containing time of the last user modification
+     *                           (may be {@code null} in which case every synchronization is full)
+     */
+    public LegacyDatabaseUserSynchronizer(DataSource dataSource,
+                                          LegacyDatabaseUserImporter importer,
+                                          int fetchSize,
+                                          int batchSize,
+                                          String lastModifiedColumn) {
+        Assert.notNull(dataSource, "Data source must not be null");
+        Assert.notNull(importer, "User importer must not be null");
+        Assert.isTrue(fetchSize > 0, "Fetch size must be positive");
+        Assert.isTrue(batchSize > 0, "Batch size must be positive");
+
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+        this.importer = importer;
+        this.fetchSize = fetchSize;
+        this.batchSize = batchSize;
+        this.lastModifiedColumn = lastModifiedColumn;
+    }
+
+    public SynchronizationResult sync(KeycloakSessionFactory sessionFactory,
+                                      String realmId,
+                                      UserStorageProviderModel storageProviderModel) {
+        return syncSince(null, sessionFactory, realmId, storageProviderModel);
+    }
+
+    /**
+     * Imports users modified after the given time. If time is {@code null} or last modification time of users is
+     * unknown then all users are imported.
+     */
+    public SynchronizationResult syncSince(Date lastSync,
+                                           KeycloakSessionFactory sessionFactory,
+                                           String realmId,
+                                           UserStorageProviderModel storageProviderModel) {
+        if (!importer.isEnabled()) {
+            log.warnv("Synchronization of storage provider \"{0}\" is ignored since import mode is disabled",
+                    storageProviderModel.getName());
+            return SynchronizationResult.ignored();
+        }
+
+        String sql;
+        Object[] args;
+        if (lastSync == null || lastModifiedColumn == null) {
+            sql = SQL_FIND_ALL_USERS + SQL_ORDER_BY_USERNAME;
+            args = new Object[0];
+        } else {
+            sql = SQL_FIND_ALL_USERS + "WHERE u." + lastModifiedColumn + " > ? " + SQL_ORDER_BY_USERNAME;
+            args = new Object[]{new Timestamp(lastSync.getTime())};
+        }
+
+        long startTime = System.nanoTime();
+        SynchronizationResult result = new SynchronizationResult();
+        jdbcTemplate.execute((ConnectionCallback<Void>) connection ->
+                streamUsers(connection, sql, args, batch -> importBatch(sessionFactory, realmId,
+                        storageProviderModel, batch, result)));
+        log.infov("Synchronization of storage provider \"{0}\" is finished in {1} s: {2}",
+                storageProviderModel.getName(), TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startTime),
+                result.getStatus());
+        return result;
+    }
+
+    private Void streamUsers(Connection connection, String sql, Object[] args, BatchHandler batchHandler)
+            throws SQLException {
+        List<LegacyDatabaseUser> batch = new ArrayList<>(batchSize);
+        LegacyDatabaseUserStreamer.stream(connection, sql, args, fetchSize, user -> {
+            batch.add(user);
+            if (batch.size() == batchSize) {
+                batchHandler.handle(batch);
+                batch.clear();
+            }
+        });
+        if (!batch.isEmpty()) {
+            batchHandler.handle(batch);
+        }
+        return null;
+    }
+
+    private void importBatch(KeycloakSessionFactory sessionFactory,
+                             String realmId,
+                             UserStorageProviderModel storageProviderModel,
+                             List<LegacyDatabaseUser> batch,
+                             SynchronizationResult result) {
+        SynchronizationResult batchResult;
+        try {
+            batchResult = importInTransaction(sessionFactory, realmId, storageProviderModel, batch);
+        } catch (RuntimeException e) {
+            log.warnv(e, "Failed to import batch of {0} users, importing them one by one", batch.size());
+            batchResult = new SynchronizationResult();
+            for (LegacyDatabaseUser user : batch) {
+                try {
+                    batchResult.add(importInTransaction(sessionFactory, realmId, storageProviderModel,
+                            Collections.singletonList(user)));
+                } catch (RuntimeException userException) {
+                    log.errorv(userException, "Failed to import user \"{0}\"", user.getUsername());
+                    batchResult.increaseFailed();
+                }
+            }
+        }
+        result.add(batchResult);
+        log.debugv("Synchronization of storage provider \"{0}\" is in progress: {1}",
+                storageProviderModel.getName(), result.getStatus());
+    }
+
+    private SynchronizationResult importInTransaction(KeycloakSessionFactory sessionFactory,
+                                                      String realmId,
+                                                      UserStorageProviderModel storageProviderModel,
+                                                      List<LegacyDatabaseUser> users) {
+        SynchronizationResult result = new SynchronizationResult();
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+            for (LegacyDatabaseUser user : users) {
+                importUser(session, realmId, storageProviderModel, user, result);
+            }
+        });
+        return result;
+    }
+
+    private void importUser(KeycloakSession session,
+                            String realmId,
+                            UserStorageProviderModel storageProviderModel,
+                            LegacyDatabaseUser user,
+                            SynchronizationResult result) {
+        RealmModel realm = session.realms().getRealm(realmId);
+        UserModel localUser = session.userLocalStorage().getUserByUsername(user.getUsername(), realm);
+        if (localUser == null) {
+            importer.importUser(session, realm, storageProviderModel, user);
+            result.increaseAdded();
+        } else if (storageProviderModel.getId().equals(localUser.getFederationLink())) {
+            if (importer.updateUser(session, realm, localUser, user)) {
+                result.increaseUpdated();
+            }
+        } else {
+            log.warnv("User \"{0}\" is not imported since local user with the same name already exists",
+                    user.getUsername());
+            result.increaseFailed();
+        }
+    }
+
+    @FunctionalInterface
+    private interface BatchHandler {
+        void handle(List<LegacyDatabaseUser> batch);
+    }
+}
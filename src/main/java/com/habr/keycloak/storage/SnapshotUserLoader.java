@@ -0,0 +1,62 @@
+package com.habr.keycloak.storage;
+
+import com.habr.keycloak.model.LegacyDatabaseUser;
+import lombok.RequiredArgsConstructor;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * User loader that finds users in local snapshot and loads them from legacy database only when they are not found
+ * in snapshot (e.g. users created after snapshot refresh).
+ *
+ * @author Roman Chigvintsev
+ */
+@RequiredArgsConstructor
+class SnapshotUserLoader implements LegacyDatabaseUserLoader {
+    private final LegacyDatabaseUserSnapshotStore snapshotStore;
+    private final LegacyDatabaseUserLoader delegate;
+
+    @Override
+    public LegacyDatabaseUser findUserByName(String username) {
+        LegacyDatabaseUser user = snapshotStore.find(username);
+        return user != null ? user : delegate.findUserByName(username);
+    }
+
+    @Override
+    public List<LegacyDatabaseUser> findUsersByNames(Collection<String> usernames) {
+        List<LegacyDatabaseUser> users = new ArrayList<>();
+        List<String> missingUsernames = new ArrayList<>();
+        for (String username : usernames) {
+            LegacyDatabaseUser user = snapshotStore.find(username);
+            if (user != null) {
+                users.add(user);
+            } else {
+                missingUsernames.add(username);
+            }
+        }
+        if (!missingUsernames.isEmpty()) {
+            users.addAll(delegate.findUsersByNames(missingUsernames));
+        }
+        return users;
+    }
+
+    @Override
+    public Set<String> findRolesByUsername(String username) {
+        return delegate.findRolesByUsername(username);
+    }
+
+    @Override
+    public void invalidate(String username) {
+        snapshotStore.invalidate(username);
+        delegate.invalidate(username);
+    }
+
+    @Override
+    public void invalidateAll() {
+        snapshotStore.invalidateAll();
+        delegate.invalidateAll();
+    }
+}
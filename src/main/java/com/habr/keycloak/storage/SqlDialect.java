@@ -0,0 +1,152 @@
+package com.habr.keycloak.storage;
+
+import org.springframework.jdbc.support.JdbcUtils;
+import org.springframework.jdbc.support.MetaDataAccessException;
+
+import javax.sql.DataSource;
+import java.sql.Array;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * SQL dialect of legacy database. Defines how values of column are aggregated into single value in queries with
+ * {@code GROUP BY} clause and how rows of ordered query are paginated.
+ * <p>
+ * Dialects aggregating values into delimited string require that values do not contain {@link #SEPARATOR}.
+ *
+ * @author Roman Chigvintsev
+ */
+public enum SqlDialect {
+    H2("H2", true, "ARRAY_AGG(%s)"),
+    POSTGRESQL("PostgreSQL", true, "ARRAY_AGG(%s)"),
+    MYSQL("MySQL", false, "GROUP_CONCAT(%s SEPARATOR ',')"),
+    MARIADB("MariaDB", false, "GROUP_CONCAT(%s SEPARATOR ',')"),
+    ORACLE("Oracle", false, "LISTAGG(%1$s, ',') WITHIN GROUP (ORDER BY %1$s)"),
+    SQL_SERVER("Microsoft SQL Server", false, "STRING_AGG(%s, ',')");
+
+    /**
+     * Separator of values aggregated into string.
+     */
+    public static final String SEPARATOR = ",";
+
+    private final String productName;
+    private final boolean array;
+    private final String aggregateExpression;
+
+    SqlDialect(String productName, boolean array, String aggregateExpression) {
+        this.productName = productName;
+        this.array = array;
+        this.aggregateExpression = aggregateExpression;
+    }
+
+    /**
+     * Returns SQL expression aggregating values of the given column.
+     */
+    public String getAggregateExpression(String column) {
+        return String.format(aggregateExpression, column);
+    }
+
+    /**
+     * Returns non-null values aggregated with {@link #getAggregateExpression(String)}.
+     *
+     * @param rs          result set
+     * @param columnIndex index of column containing aggregated values
+     */
+    public Set<String> getAggregatedValues(ResultSet rs, int columnIndex) throws SQLException {
+        Set<String> values = new HashSet<>();
+        if (array) {
+            Array sqlArray = rs.getArray(columnIndex);
+            if (sqlArray != null) {
+                for (Object value : (Object[]) sqlArray.getArray()) {
+                    if (value != null) {
+                        values.add(value.toString());
+                    }
+                }
+                sqlArray.free();
+            }
+        } else {
+            String value = rs.getString(columnIndex);
+            if (value != null && !value.isEmpty()) {
+                values.addAll(Arrays.asList(value.split(SEPARATOR)));
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Appends pagination clause to query ending with {@code ORDER BY} clause.
+     *
+     * @param sql    query
+     * @param args   query arguments to which arguments of pagination clause are added
+     * @param offset number of skipped rows
+     * @param limit  maximum number of rows (negative value means no limit)
+     */
+    public void appendPagination(StringBuilder sql, List<Object> args, int offset, int limit) {
+        switch (this) {
+            case ORACLE:
+            case SQL_SERVER:
+                // SQL Server allows neither FETCH nor ORDER BY in derived table without OFFSET
+                sql.append(" OFFSET ? ROWS");
+                args.add(offset);
+                if (limit >= 0) {
+                    sql.append(" FETCH NEXT ? ROWS ONLY");
+                    args.add(limit);
+                }
+                break;
+            case MYSQL:
+            case MARIADB:
+                // MySQL does not allow OFFSET without LIMIT
+                if (limit >= 0) {
+                    sql.append(" LIMIT ?");
+                    args.add(limit);
+                } else if (offset > 0) {
+                    sql.append(" LIMIT 18446744073709551615");
+                }
+                if (offset > 0) {
+                    sql.append(" OFFSET ?");
+                    args.add(offset);
+                }
+                break;
+            default:
+                if (limit >= 0) {
+                    sql.append(" LIMIT ?");
+                    args.add(limit);
+                }
+                if (offset > 0) {
+                    sql.append(" OFFSET ?");
+                    args.add(offset);
+                }
+        }
+    }
+
+    /**
+     * Returns dialect with the given name (case-insensitive, hyphens are treated as underscores).
+     *
+     * @throws IllegalArgumentException if dialect is not supported
+     */
+    public static SqlDialect fromName(String name) {
+        return valueOf(name.toUpperCase(Locale.ROOT).replace('-', '_'));
+    }
+
+    /**
+     * Detects dialect from database product name reported by JDBC driver.
+     *
+     * @throws IllegalStateException if database is not supported or product name cannot be obtained
+     */
+    public static SqlDialect detect(DataSource dataSource) {
+        String productName;
+        try {
+            productName = JdbcUtils.extractDatabaseMetaData(dataSource, DatabaseMetaData::getDatabaseProductName);
+        } catch (MetaDataAccessException e) {
+            throw new IllegalStateException("Failed to detect SQL dialect of legacy database", e);
+        }
+        for (SqlDialect dialect : values()) {
+            if (productName != null && productName.startsWith(dialect.productName)) {
+                return dialect;
+            }
+        }
+        throw new IllegalStateException("SQL dialect of legacy database \"" + productName + "\" is not supported");
+    }
+}
@@ -0,0 +1,51 @@
+package com.habr.keycloak.storage;
+
+import com.habr.keycloak.model.LegacyDatabaseUser;
+
+import javax.sql.DataSource;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Loads user and its authorities with two queries. Authorities are not selected when user is not found.
+ *
+ * @author Roman Chigvintsev
+ */
+class TwoQueryUserLoader extends LazyRoleUserLoader {
+    TwoQueryUserLoader(DataSource dataSource) {
+        super(dataSource);
+    }
+
+    @Override
+    public LegacyDatabaseUser findUserByName(String username) {
+        LegacyDatabaseUser user = super.findUserByName(username);
+        if (user == null) {
+            return null;
+        }
+        return user.toBuilder()
+                .roles(findRolesByUsername(username))
+                .rolesLoaded(true)
+                .build();
+    }
+
+    @Override
+    public List<LegacyDatabaseUser> findUsersByNames(Collection<String> usernames) {
+        List<LegacyDatabaseUser> users = super.findUsersByNames(usernames);
+        if (users.isEmpty()) {
+            return users;
+        }
+        Map<String, Set<String>> roles = findRolesByUsernames(users.stream()
+                .map(LegacyDatabaseUser::getUsername)
+                .collect(Collectors.toList()));
+        return users.stream()
+                .map(user -> user.toBuilder()
+                        .roles(roles.getOrDefault(user.getUsername(), Collections.emptySet()))
+                        .rolesLoaded(true)
+                        .build())
+                .collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,289 @@
+package com.habr.keycloak.cache;
+
+import com.habr.keycloak.model.LegacyDatabaseUser;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.QueryTimeoutException;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Roman Chigvintsev
+ */
+class LegacyDatabaseUserCacheTest {
+    private LegacyDatabaseUserCache cache;
+    private AtomicInteger loadCount;
+
+    @BeforeEach
+    void setUp() {
+        cache = LegacyDatabaseUserCache.builder()
+                .maxSize(100)
+                .expireAfterWrite(Duration.ofMinutes(5))
+                .expireAfterAccess(Duration.ofMinutes(1))
+                .negativeMaxSize(100)
+                .negativeExpireAfterWrite(Duration.ofSeconds(30))
+                .loadTimeout(Duration.ofSeconds(5))
+                .build();
+        loadCount = new AtomicInteger();
+    }
+
+    @Test
+    void shouldLoadUserOnlyOnce() {
+        assertEquals("test", cache.get("realm", "test", loader("test")).getUsername());
+        assertEquals("test", cache.get("realm", "test", loader("test")).getUsername());
+        assertEquals(1, loadCount.get());
+    }
+
+    @Test
+    void shouldCacheUsersSeparatelyForEachRealm() {
+        cache.get("realm1", "test", loader("test"));
+        cache.get("realm2", "test", loader("test"));
+        assertEquals(2, loadCount.get());
+    }
+
+    @Test
+    void shouldRememberUserThatIsNotFound() {
+        assertNull(cache.get("realm", "test", missingUserLoader()));
+        assertNull(cache.get("realm", "test", loader("test")));
+        assertEquals(1, loadCount.get());
+        assertEquals(1, cache.getNegativeCacheHitCount());
+    }
+
+    @Test
+    void shouldLoadUserThatWasNotFoundAfterInvalidation() {
+        cache.get("realm", "test", missingUserLoader());
+        cache.invalidate("realm", "test");
+        assertNotNull(cache.get("realm", "test", loader("test")));
+        assertEquals(2, loadCount.get());
+    }
+
+    @Test
+    void shouldNotRememberUserThatIsNotFoundWhenNegativeCacheIsDisabled() {
+        LegacyDatabaseUserCache cache = LegacyDatabaseUserCache.builder().maxSize(100).build();
+        assertNull(cache.get("realm", "test", missingUserLoader()));
+        assertNotNull(cache.get("realm", "test", loader("test")));
+        assertEquals(2, loadCount.get());
+    }
+
+    @Test
+    void shouldRejectUsernameThatIsNotInFilter() {
+        UsernameBloomFilter filter = new UsernameBloomFilter(100, 0.01, false);
+        filter.put("test");
+        cache.setUsernameFilter(filter);
+
+        assertNull(cache.get("realm", "unknown", loader("unknown")));
+        assertNotNull(cache.get("realm", "test", loader("test")));
+        assertEquals(1, loadCount.get());
+        assertEquals(1, cache.getUsernameFilterRejectionCount());
+        assertEquals(0.0, cache.getUsernameFilterFalsePositiveRate());
+    }
+
+    @Test
+    void shouldCountUsernameFilterFalsePositives() {
+        UsernameBloomFilter filter = new UsernameBloomFilter(100, 0.01, false);
+        filter.put("test");
+        cache.setUsernameFilter(filter);
+
+        assertNull(cache.get("realm", "test", missingUserLoader()));
+        assertNull(cache.get("realm", "unknown", loader("unknown")));
+        assertEquals(1, cache.getUsernameFilterFalsePositiveCount());
+        assertEquals(0.5, cache.getUsernameFilterFalsePositiveRate());
+    }
+
+    @Test
+    void shouldInvalidateUser() {
+        cache.get("realm", "test", loader("test"));
+        cache.invalidate("realm", "test");
+        cache.get("realm", "test", loader("test"));
+        assertEquals(2, loadCount.get());
+    }
+
+    @Test
+    void shouldInvalidateRealm() {
+        cache.get("realm1", "test", loader("test"));
+        cache.get("realm2", "test", loader("test"));
+        cache.invalidateRealm("realm1");
+        cache.get("realm1", "test", loader("test"));
+        cache.get("realm2", "test", loader("test"));
+        assertEquals(3, loadCount.get());
+    }
+
+    @Test
+    void shouldNotCacheUserLoadedBeforeInvalidation() {
+        Supplier<LegacyDatabaseUser> invalidatingLoader = () -> {
+            LegacyDatabaseUser user = loader("test").get();
+            // User is changed in legacy database after it is read
+            cache.invalidateUsernames(Collections.singleton("test"));
+            return user;
+        };
+        assertNotNull(cache.get("realm", "test", invalidatingLoader));
+        assertNull(cache.getIfPresent("realm", "test"));
+
+        cache.get("realm", "test", loader("test"));
+        assertNotNull(cache.getIfPresent("realm", "test"));
+        assertEquals(2, loadCount.get());
+    }
+
+    @Test
+    void shouldCacheUserLoadedWhileOtherUserIsInvalidated() {
+        Supplier<LegacyDatabaseUser> invalidatingLoader = () -> {
+            LegacyDatabaseUser user = loader("test").get();
+            cache.invalidateUsernames(Collections.singleton("other"));
+            cache.invalidate("realm", "another");
+            return user;
+        };
+        assertNotNull(cache.get("realm", "test", invalidatingLoader));
+        assertNotNull(cache.getIfPresent("realm", "test"));
+
+        // Invalidation of realm affects loads of all users
+        invalidatingLoader = () -> {
+            LegacyDatabaseUser user = loader("other").get();
+            cache.invalidateRealm("another-realm");
+            return user;
+        };
+        assertNotNull(cache.get("realm", "other", invalidatingLoader));
+        assertNull(cache.getIfPresent("realm", "other"));
+    }
+
+    @Test
+    void shouldNotWaitForLoadStartedBeforeInvalidation() throws Exception {
+        CountDownLatch loadStarted = new CountDownLatch(1);
+        CountDownLatch loadAllowed = new CountDownLatch(1);
+        Supplier<LegacyDatabaseUser> blockingLoader = () -> {
+            loadStarted.countDown();
+            awaitUninterruptibly(loadAllowed);
+            return loader("test").get();
+        };
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<LegacyDatabaseUser> outdated = executor.submit(() -> cache.get("realm", "test",
+                    blockingLoader));
+            assertTrue(loadStarted.await(5, TimeUnit.SECONDS));
+            cache.invalidate("realm", "test");
+            LegacyDatabaseUser user = cache.get("realm", "test", loader("test"));
+            assertEquals(0, cache.getCoalescedLoadCount());
+
+            loadAllowed.countDown();
+            assertNotSame(user, outdated.get(5, TimeUnit.SECONDS));
+            assertSame(user, cache.getIfPresent("realm", "test"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void shouldAlwaysLoadUserWhenDisabled() {
+        LegacyDatabaseUserCache disabledCache = LegacyDatabaseUserCache.disabled();
+        assertFalse(disabledCache.isEnabled());
+        disabledCache.get("realm", "test", loader("test"));
+        disabledCache.get("realm", "test", loader("test"));
+        assertEquals(2, loadCount.get());
+    }
+
+    @Test
+    void shouldCoalesceConcurrentLoadsWhenCachingIsDisabled() throws Exception {
+        LegacyDatabaseUserCache disabledCache = LegacyDatabaseUserCache.builder()
+                .loadTimeout(Duration.ofSeconds(5))
+                .build();
+        CountDownLatch loadStarted = new CountDownLatch(1);
+        CountDownLatch loadAllowed = new CountDownLatch(1);
+        Supplier<LegacyDatabaseUser> blockingLoader = () -> {
+            loadStarted.countDown();
+            awaitUninterruptibly(loadAllowed);
+            return loader("test").get();
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<LegacyDatabaseUser> leader = executor.submit(() -> disabledCache.get("realm", "test",
+                    blockingLoader));
+            assertTrue(loadStarted.await(5, TimeUnit.SECONDS));
+            Future<LegacyDatabaseUser> follower = executor.submit(() -> disabledCache.get("realm", "test",
+                    loader("test")));
+            while (disabledCache.getCoalescedLoadCount() == 0) {
+                Thread.yield();
+            }
+            loadAllowed.countDown();
+            assertSame(leader.get(5, TimeUnit.SECONDS), follower.get(5, TimeUnit.SECONDS));
+            assertEquals(1, loadCount.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void shouldServeStaleUserAndRefreshItWhenDatabaseIsUnavailable() {
+        List<Runnable> refreshTasks = new ArrayList<>();
+        LegacyDatabaseUserCache staleCache = LegacyDatabaseUserCache.builder()
+                .staleMaxSize(100)
+                .staleExpireAfterWrite(Duration.ofHours(1))
+                .refreshExecutor(refreshTasks::add)
+                .build();
+        AtomicBoolean available = new AtomicBoolean(true);
+        Supplier<LegacyDatabaseUser> loader = () -> {
+            if (!available.get()) {
+                return failingLoader().get();
+            }
+            return loader("test").get();
+        };
+        assertNotNull(staleCache.get("realm", "test", loader));
+
+        available.set(false);
+        assertEquals("test", staleCache.get("realm", "test", loader).getUsername());
+        assertEquals("test", staleCache.get("realm", "test", loader).getUsername());
+        assertEquals(2, staleCache.getStaleHitCount());
+        assertEquals(1, refreshTasks.size());
+
+        available.set(true);
+        refreshTasks.get(0).run();
+        assertEquals(4, loadCount.get());
+    }
+
+    @Test
+    void shouldRethrowLoadFailureWhenThereIsNoStaleUser() {
+        LegacyDatabaseUserCache staleCache = LegacyDatabaseUserCache.builder()
+                .staleMaxSize(100)
+                .staleExpireAfterWrite(Duration.ofHours(1))
+                .build();
+        assertThrows(QueryTimeoutException.class, () -> staleCache.get("realm", "test", failingLoader()));
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Supplier<LegacyDatabaseUser> failingLoader() {
+        return () -> {
+            loadCount.incrementAndGet();
+            throw new QueryTimeoutException("Database is unavailable");
+        };
+    }
+
+    private Supplier<LegacyDatabaseUser> missingUserLoader() {
+        return () -> {
+            loadCount.incrementAndGet();
+            return null;
+        };
+    }
+
+    private Supplier<LegacyDatabaseUser> loader(String username) {
+        return () -> {
+            loadCount.incrementAndGet();
+            return LegacyDatabaseUser.builder().username(username).password("secret").role("ROLE_USER").build();
+        };
+    }
+}
@@ -0,0 +1,110 @@
+package com.habr.keycloak.cache;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.QueryTimeoutException;
+
+import java.time.Duration;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Roman Chigvintsev
+ */
+class SingleFlightTest {
+    private ExecutorService executor;
+    private CountDownLatch loadStarted;
+    private CountDownLatch loadAllowed;
+    private AtomicInteger loadCount;
+
+    @BeforeEach
+    void setUp() {
+        executor = Executors.newFixedThreadPool(4);
+        loadStarted = new CountDownLatch(1);
+        loadAllowed = new CountDownLatch(1);
+        loadCount = new AtomicInteger();
+    }
+
+    @AfterEach
+    void tearDown() {
+        loadAllowed.countDown();
+        executor.shutdownNow();
+    }
+
+    @Test
+    void shouldShareResultOfConcurrentCall() throws Exception {
+        SingleFlight<String, String> singleFlight = new SingleFlight<>(Duration.ofSeconds(5));
+        Future<String> leader = executor.submit(() -> singleFlight.execute("key", blockingLoader(() -> "value")));
+        assertTrue(loadStarted.await(5, TimeUnit.SECONDS));
+        Future<String> follower = executor.submit(() -> singleFlight.execute("key", blockingLoader(() -> "other")));
+        awaitCoalescedCalls(singleFlight, 1);
+
+        loadAllowed.countDown();
+        assertEquals("value", leader.get(5, TimeUnit.SECONDS));
+        assertEquals("value", follower.get(5, TimeUnit.SECONDS));
+        assertEquals(1, loadCount.get());
+    }
+
+    @Test
+    void shouldPassExceptionOfConcurrentCallToWaitingCalls() throws Exception {
+        SingleFlight<String, String> singleFlight = new SingleFlight<>(Duration.ofSeconds(5));
+        Future<String> leader = executor.submit(() -> singleFlight.execute("key", blockingLoader(() -> {
+            throw new IllegalStateException("Database is down");
+        })));
+        assertTrue(loadStarted.await(5, TimeUnit.SECONDS));
+        Future<String> follower = executor.submit(() -> singleFlight.execute("key", blockingLoader(() -> "value")));
+        awaitCoalescedCalls(singleFlight, 1);
+
+        loadAllowed.countDown();
+        ExecutionException leaderException = assertThrows(ExecutionException.class,
+                () -> leader.get(5, TimeUnit.SECONDS));
+        ExecutionException followerException = assertThrows(ExecutionException.class,
+                () -> follower.get(5, TimeUnit.SECONDS));
+        assertEquals("Database is down", leaderException.getCause().getMessage());
+        assertSame(leaderException.getCause(), followerException.getCause());
+        assertEquals(1, loadCount.get());
+    }
+
+    @Test
+    void shouldStopWaitingForConcurrentCallAfterTimeout() throws Exception {
+        SingleFlight<String, String> singleFlight = new SingleFlight<>(Duration.ofMillis(50));
+        executor.submit(() -> singleFlight.execute("key", blockingLoader(() -> "value")));
+        assertTrue(loadStarted.await(5, TimeUnit.SECONDS));
+
+        assertThrows(QueryTimeoutException.class, () -> singleFlight.execute("key", () -> "other"));
+        assertEquals(1, singleFlight.getTimeoutCount());
+    }
+
+    @Test
+    void shouldCallLoaderAgainAfterConcurrentCallIsCompleted() {
+        SingleFlight<String, String> singleFlight = new SingleFlight<>(Duration.ofSeconds(5));
+        assertEquals("value1", singleFlight.execute("key", () -> "value1"));
+        assertEquals("value2", singleFlight.execute("key", () -> "value2"));
+        assertEquals(0, singleFlight.getCoalescedCount());
+    }
+
+    private Supplier<String> blockingLoader(Supplier<String> loader) {
+        return () -> {
+            loadCount.incrementAndGet();
+            loadStarted.countDown();
+            try {
+                loadAllowed.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return loader.get();
+        };
+    }
+
+    private static void awaitCoalescedCalls(SingleFlight<?, ?> singleFlight, long count) {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (singleFlight.getCoalescedCount() < count && System.nanoTime() < deadline) {
+            Thread.yield();
+        }
+        assertEquals(count, singleFlight.getCoalescedCount());
+    }
+}
@@ -0,0 +1,44 @@
+package com.habr.keycloak.cache;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Roman Chigvintsev
+ */
+class UsernameBloomFilterTest {
+    @Test
+    void shouldContainAddedUsernames() {
+        UsernameBloomFilter filter = new UsernameBloomFilter(10000, 0.01, false);
+        for (int i = 0; i < 10000; i++) {
+            filter.put("user" + i);
+        }
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(filter.mightContain("user" + i));
+        }
+    }
+
+    @Test
+    void shouldKeepFalsePositiveRateCloseToConfiguredProbability() {
+        UsernameBloomFilter filter = new UsernameBloomFilter(10000, 0.01, false);
+        for (int i = 0; i < 10000; i++) {
+            filter.put("user" + i);
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (filter.mightContain("unknown" + i)) {
+                falsePositives++;
+            }
+        }
+        assertTrue(falsePositives < 300, "Too many false positives: " + falsePositives);
+    }
+
+    @Test
+    void shouldIgnoreCase() {
+        UsernameBloomFilter filter = new UsernameBloomFilter(100, 0.01, true);
+        filter.put("John.Doe");
+        assertTrue(filter.mightContain("john.doe"));
+        assertTrue(filter.mightContain("JOHN.DOE"));
+    }
+}
@@ -0,0 +1,167 @@
+package com.habr.keycloak.cluster;
+
+import com.habr.keycloak.cache.LegacyDatabaseUserCache;
+import com.habr.keycloak.model.LegacyDatabaseUser;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Roman Chigvintsev
+ */
+class UserCacheInvalidationBroadcasterTest {
+    private InProcessTransport transport;
+    private Node node1;
+    private Node node2;
+
+    @BeforeEach
+    void setUp() {
+        transport = new InProcessTransport();
+        node1 = new Node(transport, 100);
+        node2 = new Node(transport, 100);
+    }
+
+    @Test
+    void shouldInvalidateUsersOnOtherNodes() {
+        node1.cache.put("realm1", user("test"));
+        node2.cache.put("realm1", user("test"));
+        node2.cache.put("realm2", user("test"));
+        node2.cache.put("realm1", user("other"));
+
+        node1.cache.invalidateUsernames(Collections.singleton("test"));
+        node1.broadcaster.usernamesChanged("component", Collections.singleton("test"));
+        assertNotNull(node2.cache.getIfPresent("realm1", "test"));
+
+        node1.broadcaster.flush();
+        assertNull(node2.cache.getIfPresent("realm1", "test"));
+        assertNull(node2.cache.getIfPresent("realm2", "test"));
+        assertNotNull(node2.cache.getIfPresent("realm1", "other"));
+        assertEquals(1, node1.broadcaster.getPublishedEventCount());
+        assertEquals(1, node2.broadcaster.getReceivedEventCount());
+        // Sender ignores its own events
+        assertEquals(0, node1.broadcaster.getReceivedEventCount());
+        assertTrue(node1.receivedEvents.isEmpty());
+    }
+
+    @Test
+    void shouldInvalidateRealmOnOtherNodes() {
+        node2.cache.put("realm1", user("test"));
+        node2.cache.put("realm2", user("test"));
+
+        node1.broadcaster.realmChanged("component", "realm1");
+        node1.broadcaster.flush();
+        assertNull(node2.cache.getIfPresent("realm1", "test"));
+        assertNotNull(node2.cache.getIfPresent("realm2", "test"));
+    }
+
+    @Test
+    void shouldCoalesceInvalidationsUntilFlush() {
+        node1.broadcaster.usernamesChanged("component", Arrays.asList("test", "other"));
+        node1.broadcaster.usernamesChanged("component", Collections.singleton("test"));
+        node1.broadcaster.realmChanged("component", "realm1");
+        node1.broadcaster.realmChanged("component", "realm1");
+        assertEquals(3, node1.broadcaster.getPendingCount());
+
+        node1.broadcaster.flush();
+        assertEquals(0, node1.broadcaster.getPendingCount());
+        assertEquals(1, node2.receivedEvents.size());
+        UserCacheInvalidationEvent event = node2.receivedEvents.get(0);
+        assertEquals(new HashSet<>(Arrays.asList("test", "other")), event.getUsernames().get("component"));
+        assertEquals(Collections.singleton("realm1"), event.getRealmIds().get("component"));
+
+        node1.broadcaster.flush();
+        assertEquals(1, node2.receivedEvents.size());
+    }
+
+    @Test
+    void shouldSplitInvalidationsIntoBatches() {
+        Node node3 = new Node(transport, 2);
+        node3.broadcaster.realmChanged("component", "realm1");
+        node3.broadcaster.usernamesChanged("component", Arrays.asList("user1", "user2", "user3", "user4"));
+        node3.broadcaster.flush();
+
+        assertEquals(3, node3.broadcaster.getPublishedEventCount());
+        assertEquals(3, node1.receivedEvents.size());
+        Set<String> usernames = new HashSet<>();
+        for (UserCacheInvalidationEvent event : node1.receivedEvents) {
+            event.getUsernames().values().forEach(usernames::addAll);
+        }
+        assertEquals(new HashSet<>(Arrays.asList("user1", "user2", "user3", "user4")), usernames);
+    }
+
+    @Test
+    void shouldQueueInvalidationsAgainWhenSendFails() {
+        node1.broadcaster.usernamesChanged("component", Collections.singleton("test"));
+        transport.failing = true;
+        node1.broadcaster.flush();
+        assertEquals(1, node1.broadcaster.getFailureCount());
+        assertEquals(1, node1.broadcaster.getPendingCount());
+
+        transport.failing = false;
+        node1.broadcaster.flush();
+        assertEquals(0, node1.broadcaster.getPendingCount());
+        assertEquals(1, node2.receivedEvents.size());
+    }
+
+    @Test
+    void shouldSendPendingInvalidationsOnClose() {
+        node1.broadcaster.usernamesChanged("component", Collections.singleton("test"));
+        node1.broadcaster.close();
+        assertEquals(1, node2.receivedEvents.size());
+    }
+
+    @Test
+    void shouldIgnoreInvalidationsWhenDisabled() {
+        UserCacheInvalidationBroadcaster broadcaster = UserCacheInvalidationBroadcaster.disabled();
+        broadcaster.usernamesChanged("component", Collections.singleton("test"));
+        broadcaster.realmChanged("component", "realm1");
+        assertEquals(0, broadcaster.getPendingCount());
+    }
+
+    private static LegacyDatabaseUser user(String username) {
+        return LegacyDatabaseUser.builder().username(username).password("secret").role("ROLE_USER").build();
+    }
+
+    /**
+     * Node of cluster with its own user cache.
+     */
+    private static class Node {
+        private final LegacyDatabaseUserCache cache = LegacyDatabaseUserCache.builder().maxSize(100).build();
+        private final List<UserCacheInvalidationEvent> receivedEvents = new ArrayList<>();
+        private final UserCacheInvalidationBroadcaster broadcaster;
+
+        Node(UserCacheInvalidationTransport transport, int batchSize) {
+            broadcaster = new UserCacheInvalidationBroadcaster(batchSize);
+            broadcaster.start(transport, event -> {
+                receivedEvents.add(event);
+                event.getRealmIds().values().forEach(realmIds -> realmIds.forEach(cache::invalidateRealm));
+                event.getUsernames().values().forEach(cache::invalidateUsernames);
+            });
+        }
+    }
+
+    /**
+     * Stand-in for Keycloak cluster provider that delivers events to all nodes of the same JVM.
+     */
+    private static class InProcessTransport implements UserCacheInvalidationTransport {
+        private final List<Consumer<UserCacheInvalidationEvent>> listeners = new ArrayList<>();
+        private boolean failing;
+
+        @Override
+        public void publish(UserCacheInvalidationEvent event) {
+            if (failing) {
+                throw new IllegalStateException("Cluster is unavailable");
+            }
+            listeners.forEach(listener -> listener.accept(event));
+        }
+
+        @Override
+        public void subscribe(Consumer<UserCacheInvalidationEvent> listener) {
+            listeners.add(listener);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.habr.keycloak.crypto;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.security.crypto.password.PasswordEncoder;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Roman Chigvintsev
+ */
+class BoundedPasswordEncoderTest {
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final ExecutorService callers = Executors.newCachedThreadPool();
+    private BoundedPasswordEncoder passwordEncoder;
+
+    @AfterEach
+    void tearDown() {
+        release.countDown();
+        callers.shutdownNow();
+        if (passwordEncoder != null) {
+            passwordEncoder.close();
+        }
+    }
+
+    @Test
+    void shouldDelegatePasswordVerification() {
+        passwordEncoder = new BoundedPasswordEncoder(new PlainPasswordEncoder(null), 1, 1, Duration.ofSeconds(5),
+                BoundedPasswordEncoder.RejectionPolicy.ABORT);
+        assertTrue(passwordEncoder.matches("secret", "secret"));
+        assertFalse(passwordEncoder.matches("secret", "guess"));
+        assertEquals("secret", passwordEncoder.encode("secret"));
+    }
+
+    @Test
+    void shouldThrowExceptionWhenDeadlineIsExceeded() {
+        passwordEncoder = new BoundedPasswordEncoder(new PlainPasswordEncoder(release), 1, 1, Duration.ofMillis(50),
+                BoundedPasswordEncoder.RejectionPolicy.ABORT);
+        assertThrows(PasswordEncodingException.class, () -> passwordEncoder.matches("secret", "secret"));
+    }
+
+    @Test
+    void shouldRejectCallWhenQueueIsFull() throws InterruptedException {
+        passwordEncoder = new BoundedPasswordEncoder(new PlainPasswordEncoder(release), 1, 1, Duration.ofSeconds(5),
+                BoundedPasswordEncoder.RejectionPolicy.ABORT);
+        occupyThreadAndQueue();
+        PasswordEncodingException e = assertThrows(PasswordEncodingException.class,
+                () -> passwordEncoder.matches("secret", "secret"));
+        assertEquals("Password encoder is overloaded", e.getMessage());
+    }
+
+    @Test
+    void shouldRunInCallerThreadWhenQueueIsFull() throws InterruptedException {
+        passwordEncoder = new BoundedPasswordEncoder(new PlainPasswordEncoder(release), 1, 1, Duration.ofSeconds(5),
+                BoundedPasswordEncoder.RejectionPolicy.CALLER_RUNS);
+        occupyThreadAndQueue();
+        assertTrue(passwordEncoder.matches("secret", "secret"));
+    }
+
+    private void occupyThreadAndQueue() throws InterruptedException {
+        callers.submit(() -> passwordEncoder.matches("secret", "secret"));
+        waitFor(() -> passwordEncoder.getActiveCount() == 1);
+        callers.submit(() -> passwordEncoder.matches("secret", "secret"));
+        waitFor(() -> passwordEncoder.getQueueSize() == 1);
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "Condition is not met in time");
+            Thread.sleep(5);
+        }
+    }
+
+    /**
+     * Encoder that compares passwords as is. If latch is given then encoder blocks until latch is released but only
+     * when it is called by thread of bounded password encoder.
+     */
+    private static class PlainPasswordEncoder implements PasswordEncoder {
+        private final CountDownLatch release;
+
+        PlainPasswordEncoder(CountDownLatch release) {
+            this.release = release;
+        }
+
+        @Override
+        public String encode(CharSequence rawPassword) {
+            await();
+            return rawPassword.toString();
+        }
+
+        @Override
+        public boolean matches(CharSequence rawPassword, String encodedPassword) {
+            await();
+            return rawPassword.toString().equals(encodedPassword);
+        }
+
+        private void await() {
+            if (release != null && Thread.currentThread().getName().startsWith("legacy-database-password-encoder")) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+}
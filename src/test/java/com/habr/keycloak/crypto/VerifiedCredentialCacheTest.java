@@ -0,0 +1,43 @@
+package com.habr.keycloak.crypto;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Roman Chigvintsev
+ */
+class VerifiedCredentialCacheTest {
+    private final VerifiedCredentialCache cache = new VerifiedCredentialCache(100, Duration.ofMinutes(1));
+
+    @Test
+    void shouldRememberVerifiedCredentials() {
+        cache.markVerified(cache.keyOf("realm", "test", "hash", "secret"));
+        assertTrue(cache.isVerified(cache.keyOf("realm", "test", "hash", "secret")));
+    }
+
+    @Test
+    void shouldNotMatchDifferentCredentials() {
+        cache.markVerified(cache.keyOf("realm", "test", "hash", "secret"));
+        assertFalse(cache.isVerified(cache.keyOf("realm", "test", "hash", "guess")));
+        assertFalse(cache.isVerified(cache.keyOf("realm", "test", "new-hash", "secret")));
+        assertFalse(cache.isVerified(cache.keyOf("realm", "other", "hash", "secret")));
+        assertFalse(cache.isVerified(cache.keyOf("other", "test", "hash", "secret")));
+    }
+
+    @Test
+    void shouldNotConfuseValueBoundaries() {
+        cache.markVerified(cache.keyOf("realm", "test", "hash", "secret"));
+        assertFalse(cache.isVerified(cache.keyOf("realm", "tes", "thash", "secret")));
+    }
+
+    @Test
+    void shouldNotRememberAnythingWhenDisabled() {
+        VerifiedCredentialCache disabledCache = VerifiedCredentialCache.disabled();
+        assertNull(disabledCache.keyOf("realm", "test", "hash", "secret"));
+        disabledCache.markVerified(null);
+        assertFalse(disabledCache.isVerified(null));
+    }
+}
@@ -0,0 +1,118 @@
+package com.habr.keycloak.datasource;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.*;
+
+/**
+ * @author Roman Chigvintsev
+ */
+class ReplicaRoutingDataSourceTest {
+    private DataSource primary;
+    private DataSource replica1;
+    private DataSource replica2;
+    private ReplicaRoutingDataSource dataSource;
+
+    @BeforeEach
+    void setUp() throws SQLException {
+        primary = mockDataSource();
+        replica1 = mockDataSource();
+        replica2 = mockDataSource();
+        Map<String, DataSource> replicas = new LinkedHashMap<>();
+        replicas.put("replica1", replica1);
+        replicas.put("replica2", replica2);
+        dataSource = new ReplicaRoutingDataSource(primary, replicas, 1);
+    }
+
+    @Test
+    void shouldRouteToReplicaWithLeastOutstandingRequests() throws SQLException {
+        Connection first = dataSource.getConnection();
+        Connection second = dataSource.getConnection();
+        assertEquals(1, dataSource.getReplicas().get(0).getOutstandingRequests());
+        assertEquals(1, dataSource.getReplicas().get(1).getOutstandingRequests());
+
+        first.close();
+        first.close();
+        int released = dataSource.getReplicas().get(0).getOutstandingRequests()
+                + dataSource.getReplicas().get(1).getOutstandingRequests();
+        assertEquals(1, released);
+        second.close();
+        verify(primary, never()).getConnection();
+    }
+
+    @Test
+    void shouldFailOverToOtherReplicaWhenReplicaIsUnavailable() throws SQLException {
+        when(replica1.getConnection()).thenThrow(new SQLException("Connection refused"));
+        // Connections are kept open so that replica1 has the least outstanding requests and must be tried
+        for (int i = 0; i < 4; i++) {
+            assertNotNull(dataSource.getConnection());
+        }
+        assertEquals(1, dataSource.getHealthyReplicaCount());
+        assertEquals(4, dataSource.getReplicas().get(1).getOutstandingRequests());
+        verify(replica1, times(1)).getConnection();
+        verify(primary, never()).getConnection();
+    }
+
+    @Test
+    void shouldFailOverToPrimaryWhenThereAreNoHealthyReplicas() throws SQLException {
+        when(replica1.getConnection()).thenThrow(new SQLException("Connection refused"));
+        when(replica2.getConnection()).thenThrow(new SQLException("Connection refused"));
+        assertNotNull(dataSource.getConnection());
+        assertNotNull(dataSource.getConnection());
+        assertEquals(0, dataSource.getHealthyReplicaCount());
+        assertEquals(2, dataSource.getPrimaryFallbackCount());
+        verify(primary, times(2)).getConnection();
+    }
+
+    @Test
+    void shouldUseReplicaAgainAfterSuccessfulHealthCheck() throws SQLException {
+        Connection connection = mock(Connection.class);
+        when(replica1.getConnection()).thenThrow(new SQLException("Connection refused")).thenReturn(connection);
+        when(replica2.getConnection()).thenThrow(new SQLException("Connection refused"));
+        dataSource.getConnection();
+        assertEquals(0, dataSource.getHealthyReplicaCount());
+
+        when(connection.isValid(anyInt())).thenReturn(true);
+        dataSource.checkHealth();
+        assertEquals(1, dataSource.getHealthyReplicaCount());
+        assertTrue(dataSource.getReplicas().get(0).isHealthy());
+    }
+
+    @Test
+    void shouldKeepReplicaHealthyWhenItsPoolIsExhausted() throws SQLException {
+        SQLException poolExhausted = new SQLException("Cannot get a connection, pool error Timeout waiting for idle "
+                + "object", new NoSuchElementException("Timeout waiting for idle object"));
+        when(replica1.getConnection()).thenThrow(poolExhausted);
+        when(replica2.getConnection()).thenThrow(poolExhausted);
+        assertNotNull(dataSource.getConnection());
+        dataSource.checkHealth();
+        assertEquals(2, dataSource.getHealthyReplicaCount());
+        assertEquals(2, dataSource.getPoolExhaustionCount());
+        assertEquals(1, dataSource.getPrimaryFallbackCount());
+    }
+
+    @Test
+    void shouldObtainConnectionWithCustomCredentialsFromPrimary() throws SQLException {
+        Connection connection = mock(Connection.class);
+        when(primary.getConnection("user", "secret")).thenReturn(connection);
+        assertSame(connection, dataSource.getConnection("user", "secret"));
+        verify(replica1, never()).getConnection(any(), any());
+    }
+
+    private static DataSource mockDataSource() throws SQLException {
+        DataSource dataSource = mock(DataSource.class);
+        when(dataSource.getConnection()).thenAnswer(invocation -> mock(Connection.class));
+        return dataSource;
+    }
+}
@@ -0,0 +1,61 @@
+package com.habr.keycloak.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Roman Chigvintsev
+ */
+class LegacyDatabaseMetricsTest {
+    @Test
+    void shouldEstimateQuantilesFromBuckets() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 98; i++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(700));
+        }
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(20));
+        histogram.record(TimeUnit.SECONDS.toNanos(30));
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(1.0, histogram.getQuantileMillis(0.5));
+        assertEquals(25.0, histogram.getQuantileMillis(0.99));
+        assertEquals(Double.POSITIVE_INFINITY, histogram.getQuantileMillis(1.0));
+    }
+
+    @Test
+    void shouldWriteMetricsInPrometheusFormat() {
+        LegacyDatabaseMetrics metrics = new LegacyDatabaseMetrics();
+        metrics.getUserLoadLatency().record(TimeUnit.MILLISECONDS.toNanos(3));
+        metrics.userNotFound();
+        metrics.registerGauge("pool_active_connections", "Number of connections in use", () -> 2);
+        metrics.registerCounter("user_cache_hits", "Number of cache hits", () -> 5);
+
+        String text = metrics.toPrometheusText();
+        assertTrue(text.contains("# TYPE legacy_database_user_load_seconds histogram\n"));
+        assertTrue(text.contains("legacy_database_user_load_seconds_bucket{le=\"0.0025\"} 0\n"));
+        assertTrue(text.contains("legacy_database_user_load_seconds_bucket{le=\"0.005\"} 1\n"));
+        assertTrue(text.contains("legacy_database_user_load_seconds_bucket{le=\"+Inf\"} 1\n"));
+        assertTrue(text.contains("legacy_database_user_load_seconds_count 1\n"));
+        assertTrue(text.contains("legacy_database_users_not_found_total 1.0\n"));
+        assertTrue(text.contains("# TYPE legacy_database_pool_active_connections gauge\n"));
+        assertTrue(text.contains("legacy_database_pool_active_connections 2.0\n"));
+        assertTrue(text.contains("# TYPE legacy_database_user_cache_hits_total counter\n"));
+        assertTrue(text.contains("legacy_database_user_cache_hits_total 5.0\n"));
+    }
+
+    @Test
+    void shouldIncludeAllMetricsInSnapshot() {
+        LegacyDatabaseMetrics metrics = new LegacyDatabaseMetrics();
+        metrics.getCredentialValidationLatency().record(TimeUnit.MILLISECONDS.toNanos(80));
+        metrics.credentialFailed();
+        metrics.registerGauge("user_cache_size", "Number of cached users", () -> 42);
+
+        assertEquals(1L, metrics.snapshot().get("credential_validation_count"));
+        assertEquals(80.0, metrics.snapshot().get("credential_validation_mean_millis").doubleValue(), 0.001);
+        assertEquals(1L, metrics.snapshot().get("credential_failures_total"));
+        assertEquals(42.0, metrics.snapshot().get("user_cache_size"));
+    }
+}
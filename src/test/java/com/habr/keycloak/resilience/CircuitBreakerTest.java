@@ -0,0 +1,103 @@
+package com.habr.keycloak.resilience;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.QueryTimeoutException;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Roman Chigvintsev
+ */
+class CircuitBreakerTest {
+    private CircuitBreaker circuitBreaker;
+    private AtomicInteger callCount;
+
+    @BeforeEach
+    void setUp() {
+        circuitBreaker = new CircuitBreaker("test", 2, Duration.ofMillis(50));
+        callCount = new AtomicInteger();
+    }
+
+    @Test
+    void shouldOpenCircuitAfterConsecutiveFailures() {
+        assertThrows(QueryTimeoutException.class, () -> circuitBreaker.execute(failingCall()));
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+        assertThrows(QueryTimeoutException.class, () -> circuitBreaker.execute(failingCall()));
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+
+        assertThrows(CircuitBreakerOpenException.class, () -> circuitBreaker.execute(successfulCall()));
+        assertEquals(2, callCount.get());
+        assertEquals(1, circuitBreaker.getRejectedCount());
+    }
+
+    @Test
+    void shouldResetFailuresAfterSuccessfulCall() {
+        assertThrows(QueryTimeoutException.class, () -> circuitBreaker.execute(failingCall()));
+        assertEquals("ok", circuitBreaker.execute(successfulCall()));
+        assertThrows(QueryTimeoutException.class, () -> circuitBreaker.execute(failingCall()));
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+    }
+
+    @Test
+    void shouldCloseCircuitWhenProbeSucceeds() throws InterruptedException {
+        openCircuit();
+        Thread.sleep(100);
+        assertEquals("ok", circuitBreaker.execute(successfulCall()));
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+    }
+
+    @Test
+    void shouldOpenCircuitAgainWhenProbeFails() throws InterruptedException {
+        openCircuit();
+        Thread.sleep(100);
+        assertThrows(QueryTimeoutException.class, () -> circuitBreaker.execute(failingCall()));
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+        assertThrows(CircuitBreakerOpenException.class, () -> circuitBreaker.execute(successfulCall()));
+    }
+
+    @Test
+    void shouldNotExtendOpenDurationWhenCallStartedBeforeOpeningFails() {
+        assertThrows(QueryTimeoutException.class, () -> circuitBreaker.execute(() -> {
+            openCircuit();
+            sleep(100);
+            throw new QueryTimeoutException("Database is unavailable");
+        }));
+        assertEquals("ok", circuitBreaker.execute(successfulCall()));
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+    }
+
+    private void openCircuit() {
+        for (int i = 0; i < 2; i++) {
+            assertThrows(QueryTimeoutException.class, () -> circuitBreaker.execute(failingCall()));
+        }
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Supplier<String> successfulCall() {
+        return () -> {
+            callCount.incrementAndGet();
+            return "ok";
+        };
+    }
+
+    private Supplier<String> failingCall() {
+        return () -> {
+            callCount.incrementAndGet();
+            throw new QueryTimeoutException("Database is unavailable");
+        };
+    }
+}
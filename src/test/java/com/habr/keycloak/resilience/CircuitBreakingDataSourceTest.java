@@ -0,0 +1,48 @@
+package com.habr.keycloak.resilience;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * @author Roman Chigvintsev
+ */
+class CircuitBreakingDataSourceTest {
+    private DataSource targetDataSource;
+    private CircuitBreaker circuitBreaker;
+    private CircuitBreakingDataSource dataSource;
+
+    @BeforeEach
+    void setUp() {
+        targetDataSource = mock(DataSource.class);
+        circuitBreaker = new CircuitBreaker("test", 2, Duration.ofMinutes(1));
+        dataSource = new CircuitBreakingDataSource(targetDataSource, circuitBreaker);
+    }
+
+    @Test
+    void shouldReturnConnectionOfTargetDataSource() throws SQLException {
+        Connection connection = mock(Connection.class);
+        when(targetDataSource.getConnection()).thenReturn(connection);
+        assertSame(connection, dataSource.getConnection());
+    }
+
+    @Test
+    void shouldRejectConnectionsWhenCircuitIsOpen() throws SQLException {
+        SQLException failure = new SQLException("Connection refused");
+        when(targetDataSource.getConnection()).thenThrow(failure);
+        for (int i = 0; i < 2; i++) {
+            assertSame(failure, assertThrows(SQLException.class, dataSource::getConnection));
+        }
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+
+        assertThrows(CircuitBreakerOpenException.class, dataSource::getConnection);
+        verify(targetDataSource, times(2)).getConnection();
+    }
+}
@@ -0,0 +1,96 @@
+package com.habr.keycloak.snapshot;
+
+import com.habr.keycloak.model.LegacyDatabaseUser;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Roman Chigvintsev
+ */
+class UserSnapshotTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void shouldFindUsersWrittenInAnyOrder() throws IOException {
+        Path path = directory.resolve("users.snapshot");
+        try (UserSnapshotWriter writer = new UserSnapshotWriter(path, 42, 1000)) {
+            writer.add(user("zoe", "ROLE_USER"));
+            writer.add(LegacyDatabaseUser.builder().username("\u00C5lice").password("hash").build());
+            writer.add(user("bob", "ROLE_USER", "ROLE_ADMIN"));
+            writer.add(user("alice", "ROLE_ADMIN"));
+            writer.commit();
+        }
+
+        UserSnapshot snapshot = UserSnapshot.open(path);
+        assertEquals(4, snapshot.size());
+        assertEquals(42, snapshot.getVersion());
+        assertEquals(1000, snapshot.getFullBuildTime());
+        assertEquals(user("bob", "ROLE_USER", "ROLE_ADMIN"), snapshot.find("bob"));
+        assertEquals(user("zoe", "ROLE_USER"), snapshot.find("zoe"));
+        LegacyDatabaseUser unicodeUser = snapshot.find("\u00C5lice");
+        assertNotNull(unicodeUser);
+        assertNull(unicodeUser.getFirstName());
+        assertTrue(unicodeUser.getRoles().isEmpty());
+        assertNull(snapshot.find("carol"));
+        assertNull(snapshot.find(""));
+
+        List<String> usernames = new ArrayList<>();
+        snapshot.forEach(user -> usernames.add(user.getUsername()));
+        assertEquals(Arrays.asList("alice", "bob", "zoe", "\u00C5lice"), usernames);
+    }
+
+    @Test
+    void shouldKeepFirstOfUsersWithTheSameName() throws IOException {
+        Path path = directory.resolve("users.snapshot");
+        try (UserSnapshotWriter writer = new UserSnapshotWriter(path, 0, 0)) {
+            writer.add(user("bob", "ROLE_ADMIN"));
+            writer.add(user("alice", "ROLE_USER"));
+            writer.add(user("bob", "ROLE_USER"));
+            writer.commit();
+        }
+
+        UserSnapshot snapshot = UserSnapshot.open(path);
+        assertEquals(2, snapshot.size());
+        assertEquals(user("bob", "ROLE_ADMIN"), snapshot.find("bob"));
+    }
+
+    @Test
+    void shouldNotReplaceSnapshotWhenWriterIsNotCommitted() throws IOException {
+        Path path = directory.resolve("users.snapshot");
+        try (UserSnapshotWriter writer = new UserSnapshotWriter(path, 0, 0)) {
+            writer.add(user("alice", "ROLE_USER"));
+        }
+        assertFalse(Files.exists(path));
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    @Test
+    void shouldRejectFileThatIsNotSnapshot() throws IOException {
+        Path path = directory.resolve("users.snapshot");
+        Files.write(path, new byte[64]);
+        assertThrows(IOException.class, () -> UserSnapshot.open(path));
+    }
+
+    private static LegacyDatabaseUser user(String username, String... roles) {
+        return LegacyDatabaseUser.builder()
+                .username(username)
+                .password("$2a$10$" + username)
+                .firstName("First " + username)
+                .lastName("Last " + username)
+                .roles(Arrays.asList(roles))
+                .build();
+    }
+}
@@ -0,0 +1,138 @@
+package com.habr.keycloak.storage;
+
+import com.habr.keycloak.metrics.LatencyHistogram;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Roman Chigvintsev
+ */
+class LegacyDatabaseLoginAuditorTest {
+    private EmbeddedDatabase embeddedDatabase;
+    private JdbcTemplate jdbcTemplate;
+    private List<Runnable> requestedFlushes;
+    private LatencyHistogram flushLatency;
+
+    @BeforeEach
+    void setUp() {
+        embeddedDatabase = new EmbeddedDatabaseBuilder()
+                .setType(EmbeddedDatabaseType.H2)
+                .addDefaultScripts()
+                .build();
+        jdbcTemplate = new JdbcTemplate(embeddedDatabase);
+        jdbcTemplate.execute("ALTER TABLE users ADD COLUMN last_login TIMESTAMP");
+        jdbcTemplate.execute("ALTER TABLE users ADD COLUMN failed_attempts INT");
+        jdbcTemplate.update("INSERT INTO users (username, password) VALUES ('other', 'secret')");
+        requestedFlushes = new ArrayList<>();
+        flushLatency = new LatencyHistogram();
+    }
+
+    @AfterEach
+    void tearDown() {
+        embeddedDatabase.shutdown();
+    }
+
+    @Test
+    void shouldWriteCoalescedLoginResults() {
+        LegacyDatabaseLoginAuditor auditor = createAuditor(100);
+        auditor.loginFailed("test");
+        auditor.loginSucceeded("test");
+        auditor.loginFailed("test");
+        auditor.loginFailed("other");
+        auditor.loginFailed("other");
+        assertEquals(2, auditor.getPendingUserCount());
+        assertNull(findUser("test").get("last_login"));
+
+        auditor.flush();
+        assertEquals(0, auditor.getPendingUserCount());
+        assertEquals(2, auditor.getWrittenUserCount());
+        assertEquals(1, flushLatency.getCount());
+        Map<String, Object> user = findUser("test");
+        assertNotNull(user.get("last_login"));
+        assertEquals(1, user.get("failed_attempts"));
+        assertNull(findUser("other").get("last_login"));
+        assertEquals(2, findUser("other").get("failed_attempts"));
+
+        auditor.loginFailed("other");
+        auditor.flush();
+        assertEquals(3, findUser("other").get("failed_attempts"));
+    }
+
+    @Test
+    void shouldRequestFlushWhenBatchIsFull() {
+        LegacyDatabaseLoginAuditor auditor = createAuditor(100);
+        auditor.loginSucceeded("test");
+        assertTrue(requestedFlushes.isEmpty());
+        auditor.loginSucceeded("other");
+        assertEquals(1, requestedFlushes.size());
+
+        // Only one flush is requested until it is executed
+        auditor.loginFailed("test");
+        assertEquals(1, requestedFlushes.size());
+        requestedFlushes.get(0).run();
+        assertEquals(0, auditor.getPendingUserCount());
+        assertNotNull(findUser("other").get("last_login"));
+    }
+
+    @Test
+    void shouldDropResultsOfNewUsersWhenTooManyUsersArePending() {
+        LegacyDatabaseLoginAuditor auditor = createAuditor(1);
+        auditor.loginFailed("test");
+        auditor.loginFailed("other");
+        auditor.loginFailed("test");
+        assertEquals(1, auditor.getPendingUserCount());
+        assertEquals(1, auditor.getDroppedResultCount());
+
+        auditor.flush();
+        assertEquals(2, findUser("test").get("failed_attempts"));
+        assertNull(findUser("other").get("failed_attempts"));
+    }
+
+    @Test
+    void shouldKeepResultsPendingWhenWriteFails() {
+        LegacyDatabaseLoginAuditor auditor = createAuditor(100);
+        auditor.loginFailed("test");
+        jdbcTemplate.execute("ALTER TABLE users RENAME TO users_tmp");
+        auditor.flush();
+        assertEquals(1, auditor.getFailureCount());
+        assertEquals(1, auditor.getPendingUserCount());
+
+        auditor.loginFailed("test");
+        jdbcTemplate.execute("ALTER TABLE users_tmp RENAME TO users");
+        auditor.flush();
+        assertEquals(0, auditor.getPendingUserCount());
+        assertEquals(2, findUser("test").get("failed_attempts"));
+    }
+
+    @Test
+    void shouldWritePendingResultsOnClose() {
+        LegacyDatabaseLoginAuditor auditor = createAuditor(100);
+        auditor.loginSucceeded("test");
+        auditor.close();
+        assertNotNull(findUser("test").get("last_login"));
+
+        auditor.loginFailed("test");
+        assertEquals(0, auditor.getPendingUserCount());
+    }
+
+    private LegacyDatabaseLoginAuditor createAuditor(int maxPendingUsers) {
+        return new LegacyDatabaseLoginAuditor(embeddedDatabase, "last_login", "failed_attempts", maxPendingUsers, 2,
+                requestedFlushes::add, flushLatency);
+    }
+
+    private Map<String, Object> findUser(String username) {
+        return jdbcTemplate.queryForMap("SELECT last_login, failed_attempts FROM users WHERE username = ?",
+                username);
+    }
+}
@@ -0,0 +1,93 @@
+package com.habr.keycloak.storage;
+
+import com.habr.keycloak.cache.LegacyDatabaseUserCache;
+import com.habr.keycloak.model.LegacyDatabaseUser;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Roman Chigvintsev
+ */
+class LegacyDatabaseUserCacheWarmerTest {
+    private EmbeddedDatabase embeddedDatabase;
+    private LegacyDatabaseUserCache userCache;
+
+    @BeforeEach
+    void setUp() {
+        embeddedDatabase = new EmbeddedDatabaseBuilder()
+                .setType(EmbeddedDatabaseType.H2)
+                .addDefaultScripts()
+                .build();
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(embeddedDatabase);
+        for (int i = 0; i < 10; i++) {
+            jdbcTemplate.update("INSERT INTO users (username, password) VALUES (?, ?)", "user" + i,
+                    "$2a$10$hash" + i);
+        }
+        userCache = LegacyDatabaseUserCache.builder()
+                .maxSize(100)
+                .expireAfterWrite(Duration.ofMinutes(5))
+                .build();
+    }
+
+    @AfterEach
+    void tearDown() {
+        embeddedDatabase.shutdown();
+    }
+
+    @Test
+    void shouldPreloadUsersFromListInEachRealm() {
+        LegacyDatabaseUserCacheWarmer warmer = createWarmerBuilder()
+                .usernames(Arrays.asList("test", "user1", "unknown"))
+                .build();
+        assertEquals(2, warmer.warmUp(Arrays.asList("realm1", "realm2")));
+
+        LegacyDatabaseUser user = userCache.getIfPresent("realm1", "test");
+        assertNotNull(user);
+        assertEquals(2, user.getRoles().size());
+        assertNotNull(userCache.getIfPresent("realm2", "test"));
+        assertNotNull(userCache.getIfPresent("realm2", "user1"));
+        assertNull(userCache.getIfPresent("realm1", "unknown"));
+        assertEquals(2, warmer.getWarmedUserCount());
+    }
+
+    @Test
+    void shouldPreloadUsersFromQueryInParallelBatches() {
+        LegacyDatabaseUserCacheWarmer warmer = createWarmerBuilder()
+                .usernameQuery("SELECT username FROM users ORDER BY username")
+                .maxUsers(8)
+                .build();
+        assertEquals(8, warmer.warmUp(Collections.singletonList("realm")));
+        assertEquals(8, userCache.size());
+    }
+
+    @Test
+    void shouldNotReplaceCachedUsers() {
+        LegacyDatabaseUser cachedUser = LegacyDatabaseUser.builder().username("test").build();
+        userCache.put("realm", cachedUser);
+        createWarmerBuilder().usernames(Collections.singletonList("test")).build()
+                .warmUp(Collections.singletonList("realm"));
+        assertSame(cachedUser, userCache.getIfPresent("realm", "test"));
+    }
+
+    private LegacyDatabaseUserCacheWarmer.LegacyDatabaseUserCacheWarmerBuilder createWarmerBuilder() {
+        return LegacyDatabaseUserCacheWarmer.builder()
+                .dataSource(embeddedDatabase)
+                .userLoader(new JoiningUserLoader(embeddedDatabase))
+                .userCache(userCache)
+                .maxUsers(100)
+                .batchSize(3)
+                .concurrency(2)
+                .timeBudget(Duration.ofSeconds(10));
+    }
+}
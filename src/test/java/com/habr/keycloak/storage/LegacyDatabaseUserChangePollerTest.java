@@ -0,0 +1,158 @@
+package com.habr.keycloak.storage;
+
+import com.habr.keycloak.cache.LegacyDatabaseUserCache;
+import com.habr.keycloak.model.LegacyDatabaseUser;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * @author Roman Chigvintsev
+ */
+class LegacyDatabaseUserChangePollerTest {
+    private EmbeddedDatabase embeddedDatabase;
+    private JdbcTemplate jdbcTemplate;
+    private LegacyDatabaseUserCache userCache;
+    private LegacyDatabaseUserLoader userLoader;
+
+    @BeforeEach
+    void setUp() {
+        embeddedDatabase = new EmbeddedDatabaseBuilder()
+                .setType(EmbeddedDatabaseType.H2)
+                .addDefaultScripts()
+                .build();
+        jdbcTemplate = new JdbcTemplate(embeddedDatabase);
+        jdbcTemplate.execute("CREATE TABLE user_changes (id BIGINT AUTO_INCREMENT PRIMARY KEY, "
+                + "username VARCHAR(64) NOT NULL)");
+        jdbcTemplate.execute("ALTER TABLE users ADD COLUMN last_modified TIMESTAMP DEFAULT CURRENT_TIMESTAMP");
+        userCache = LegacyDatabaseUserCache.builder()
+                .maxSize(100)
+                .expireAfterWrite(Duration.ofHours(1))
+                .build();
+        userLoader = mock(LegacyDatabaseUserLoader.class);
+    }
+
+    @AfterEach
+    void tearDown() {
+        embeddedDatabase.shutdown();
+    }
+
+    @Test
+    void shouldEvictUsersFromChangeLog() {
+        LegacyDatabaseUserChangePoller poller = LegacyDatabaseUserChangePoller.fromChangeLog(embeddedDatabase,
+                userCache, userLoader, "user_changes", 10, 100L);
+        poller.poll();
+        cacheUser("realm1", "test");
+        cacheUser("realm2", "test");
+        cacheUser("realm1", "other");
+
+        jdbcTemplate.update("INSERT INTO user_changes (username) VALUES ('test')");
+        poller.poll();
+        assertNull(userCache.getIfPresent("realm1", "test"));
+        assertNull(userCache.getIfPresent("realm2", "test"));
+        assertNotNull(userCache.getIfPresent("realm1", "other"));
+        assertEquals(1, poller.getInvalidationCount());
+        verify(userLoader).invalidate("test");
+        verify(userLoader, never()).invalidate("other");
+
+        cacheUser("realm1", "test");
+        poller.poll();
+        assertNotNull(userCache.getIfPresent("realm1", "test"));
+    }
+
+    @Test
+    void shouldEvictUsersWithChangedLastModificationTime() {
+        LegacyDatabaseUserChangePoller poller = LegacyDatabaseUserChangePoller.fromLastModifiedColumn(
+                embeddedDatabase, userCache, userLoader, "last_modified", 10, Duration.ofMinutes(1));
+        poller.poll();
+        cacheUser("realm", "test");
+
+        jdbcTemplate.update("UPDATE users SET password = 'changed', last_modified = DATEADD('SECOND', 1, "
+                + "last_modified) WHERE username = 'test'");
+        poller.poll();
+        assertNull(userCache.getIfPresent("realm", "test"));
+    }
+
+    @Test
+    void shouldEvictUsersFromLateCommittedChangeLogRows() {
+        LegacyDatabaseUserChangePoller poller = LegacyDatabaseUserChangePoller.fromChangeLog(embeddedDatabase,
+                userCache, userLoader, "user_changes", 10, 100L);
+        poller.poll();
+        cacheUser("realm", "test");
+        cacheUser("realm", "other");
+
+        // Row with greater id is committed first
+        jdbcTemplate.update("INSERT INTO user_changes (id, username) VALUES (2, 'other')");
+        poller.poll();
+        assertNotNull(userCache.getIfPresent("realm", "test"));
+        assertNull(userCache.getIfPresent("realm", "other"));
+
+        cacheUser("realm", "other");
+        jdbcTemplate.update("INSERT INTO user_changes (id, username) VALUES (1, 'test')");
+        poller.poll();
+        assertNull(userCache.getIfPresent("realm", "test"));
+        assertNotNull(userCache.getIfPresent("realm", "other"));
+        verify(userLoader).invalidate("test");
+    }
+
+    @Test
+    void shouldEvictUsersWithSameLastModificationTimeAsLastSeenChange() {
+        LegacyDatabaseUserChangePoller poller = LegacyDatabaseUserChangePoller.fromLastModifiedColumn(
+                embeddedDatabase, userCache, userLoader, "last_modified", 10, Duration.ofMinutes(1));
+        poller.poll();
+        jdbcTemplate.update("INSERT INTO users (username, password) VALUES ('other', 'secret')");
+        cacheUser("realm", "test");
+        cacheUser("realm", "other");
+
+        jdbcTemplate.update("UPDATE users SET last_modified = TIMESTAMP '2100-01-01 00:00:00' "
+                + "WHERE username = 'other'");
+        poller.poll();
+        assertNull(userCache.getIfPresent("realm", "other"));
+
+        cacheUser("realm", "other");
+        jdbcTemplate.update("UPDATE users SET last_modified = TIMESTAMP '2100-01-01 00:00:00' "
+                + "WHERE username = 'test'");
+        poller.poll();
+        assertNull(userCache.getIfPresent("realm", "test"));
+        assertNotNull(userCache.getIfPresent("realm", "other"));
+    }
+
+    @Test
+    void shouldInvalidateWholeCacheWhenThereAreTooManyChanges() {
+        LegacyDatabaseUserChangePoller poller = LegacyDatabaseUserChangePoller.fromChangeLog(embeddedDatabase,
+                userCache, userLoader, "user_changes", 2, 100L);
+        poller.poll();
+        cacheUser("realm", "other");
+        for (int i = 0; i < 3; i++) {
+            jdbcTemplate.update("INSERT INTO user_changes (username) VALUES (?)", "user" + i);
+        }
+        poller.poll();
+        assertNull(userCache.getIfPresent("realm", "other"));
+        verify(userLoader).invalidateAll();
+
+        cacheUser("realm", "other");
+        poller.poll();
+        assertNotNull(userCache.getIfPresent("realm", "other"));
+    }
+
+    @Test
+    void shouldCountFailedPolls() {
+        LegacyDatabaseUserChangePoller poller = LegacyDatabaseUserChangePoller.fromChangeLog(embeddedDatabase,
+                userCache, userLoader, "missing_table", 10, 100L);
+        poller.poll();
+        assertEquals(1, poller.getFailureCount());
+    }
+
+    private void cacheUser(String realmId, String username) {
+        userCache.get(realmId, username, () -> LegacyDatabaseUser.builder().username(username).build());
+    }
+}
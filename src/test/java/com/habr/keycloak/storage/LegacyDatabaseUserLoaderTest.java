@@ -0,0 +1,151 @@
+package com.habr.keycloak.storage;
+
+import com.habr.keycloak.model.LegacyDatabaseRoleCatalog;
+import com.habr.keycloak.model.LegacyDatabaseUser;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Roman Chigvintsev
+ */
+class LegacyDatabaseUserLoaderTest {
+    private EmbeddedDatabase embeddedDatabase;
+
+    @BeforeEach
+    void setUp() {
+        embeddedDatabase = new EmbeddedDatabaseBuilder()
+                .setType(EmbeddedDatabaseType.H2)
+                .addDefaultScripts()
+                .build();
+    }
+
+    @AfterEach
+    void tearDown() {
+        embeddedDatabase.shutdown();
+    }
+
+    @ParameterizedTest
+    @EnumSource(value = LegacyDatabaseUserLoader.Strategy.class, mode = EnumSource.Mode.EXCLUDE, names = "LAZY")
+    void shouldLoadUserWithRoles(LegacyDatabaseUserLoader.Strategy strategy) {
+        LegacyDatabaseUser user = createLoader(strategy).findUserByName("test");
+        assertNotNull(user);
+        assertEquals("test", user.getUsername());
+        assertEquals("$2a$10$TKELuy2B9RK74p.K8Fg7Iu/Xblosk/h5wPaIBGHN8LIrEF/IV3XOy", user.getPassword());
+        assertEquals("John", user.getFirstName());
+        assertEquals("Doe", user.getLastName());
+        Set<String> expectedRoles = Stream.of("ROLE_USER", "ROLE_HAMLET").collect(Collectors.toSet());
+        assertEquals(expectedRoles, new HashSet<>(user.getRoles()));
+    }
+
+    @ParameterizedTest
+    @EnumSource(LegacyDatabaseUserLoader.Strategy.class)
+    void shouldLoadUserWithoutRoles(LegacyDatabaseUserLoader.Strategy strategy) {
+        new JdbcTemplate(embeddedDatabase).update("INSERT INTO users (username, password) VALUES ('guest', 'hash')");
+        LegacyDatabaseUser user = createLoader(strategy).findUserByName("guest");
+        assertNotNull(user);
+        assertEquals("hash", user.getPassword());
+        assertEquals(Collections.emptySet(), user.getRoles());
+    }
+
+    @Test
+    void shouldLoadUserWithoutRolesWithLazyStrategy() {
+        LegacyDatabaseUserLoader loader = createLoader(LegacyDatabaseUserLoader.Strategy.LAZY);
+        LegacyDatabaseUser user = loader.findUserByName("test");
+        assertNotNull(user);
+        assertEquals("$2a$10$TKELuy2B9RK74p.K8Fg7Iu/Xblosk/h5wPaIBGHN8LIrEF/IV3XOy", user.getPassword());
+        assertEquals("John", user.getFirstName());
+        assertFalse(user.isRolesLoaded());
+        assertEquals(Collections.emptySet(), user.getRoles());
+
+        Set<String> expectedRoles = Stream.of("ROLE_USER", "ROLE_HAMLET").collect(Collectors.toSet());
+        assertEquals(expectedRoles, loader.findRolesByUsername("test"));
+    }
+
+    @ParameterizedTest
+    @EnumSource(LegacyDatabaseUserLoader.Strategy.class)
+    void shouldReturnNullWhenUserIsNotFound(LegacyDatabaseUserLoader.Strategy strategy) {
+        assertNull(createLoader(strategy).findUserByName("#####"));
+    }
+
+    @ParameterizedTest
+    @EnumSource(LegacyDatabaseUserLoader.Strategy.class)
+    void shouldLoadUserRolesSeparately(LegacyDatabaseUserLoader.Strategy strategy) {
+        LegacyDatabaseUserLoader loader = createLoader(strategy);
+        Set<String> expectedRoles = Stream.of("ROLE_USER", "ROLE_HAMLET").collect(Collectors.toSet());
+        assertEquals(expectedRoles, loader.findRolesByUsername("test"));
+        assertEquals(Collections.emptySet(), loader.findRolesByUsername("#####"));
+    }
+
+    @ParameterizedTest
+    @EnumSource(LegacyDatabaseUserLoader.Strategy.class)
+    void shouldLoadUsersByNames(LegacyDatabaseUserLoader.Strategy strategy) {
+        new JdbcTemplate(embeddedDatabase).update("INSERT INTO users (username, password) VALUES ('guest', 'hash')");
+        List<LegacyDatabaseUser> users = createLoader(strategy).findUsersByNames(Arrays.asList("test", "guest",
+                "#####"));
+        Map<String, LegacyDatabaseUser> usersByName = users.stream()
+                .collect(Collectors.toMap(LegacyDatabaseUser::getUsername, Function.identity()));
+        assertEquals(Stream.of("test", "guest").collect(Collectors.toSet()), usersByName.keySet());
+        assertEquals("hash", usersByName.get("guest").getPassword());
+        assertEquals(Collections.emptySet(), usersByName.get("guest").getRoles());
+        if (strategy != LegacyDatabaseUserLoader.Strategy.LAZY) {
+            Set<String> expectedRoles = Stream.of("ROLE_USER", "ROLE_HAMLET").collect(Collectors.toSet());
+            assertEquals(expectedRoles, new HashSet<>(usersByName.get("test").getRoles()));
+        } else {
+            assertFalse(usersByName.get("test").isRolesLoaded());
+        }
+        assertEquals(Collections.emptyList(), createLoader(strategy).findUsersByNames(Collections.emptyList()));
+    }
+
+    @ParameterizedTest
+    @EnumSource(LegacyDatabaseUserLoader.Strategy.class)
+    void shouldShareRolesOfLoadedUsers(LegacyDatabaseUserLoader.Strategy strategy) {
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(embeddedDatabase);
+        jdbcTemplate.update("INSERT INTO users (username, password) VALUES ('another', 'hash')");
+        jdbcTemplate.update("INSERT INTO authorities (username, authority) VALUES ('another', 'ROLE_USER'), "
+                + "('another', 'ROLE_HAMLET')");
+        LegacyDatabaseUserLoader loader = new InterningUserLoader(createLoader(strategy),
+                new LegacyDatabaseRoleCatalog());
+
+        Set<String> roles = loader.findRolesByUsername("test");
+        assertSame(roles, loader.findRolesByUsername("another"));
+        if (strategy != LegacyDatabaseUserLoader.Strategy.LAZY) {
+            assertSame(roles, loader.findUserByName("test").getRoles());
+            for (LegacyDatabaseUser user : loader.findUsersByNames(Arrays.asList("test", "another"))) {
+                assertSame(roles, user.getRoles());
+            }
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(value = SqlDialect.class, names = {"H2", "MYSQL"})
+    void shouldLoadUserWithConfiguredDialect(SqlDialect dialect) {
+        // H2 supports both ARRAY_AGG and GROUP_CONCAT
+        LegacyDatabaseUser user = LegacyDatabaseUserLoader.create(LegacyDatabaseUserLoader.Strategy.AGGREGATE,
+                embeddedDatabase, dialect).findUserByName("test");
+        assertNotNull(user);
+        assertEquals(2, user.getRoles().size());
+    }
+
+    private LegacyDatabaseUserLoader createLoader(LegacyDatabaseUserLoader.Strategy strategy) {
+        return LegacyDatabaseUserLoader.create(strategy, embeddedDatabase, null);
+    }
+}
@@ -0,0 +1,170 @@
+package com.habr.keycloak.storage;
+
+import com.habr.keycloak.model.LegacyDatabaseUser;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+
+import java.nio.file.Path;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Roman Chigvintsev
+ */
+class LegacyDatabaseUserSnapshotStoreTest {
+    @TempDir
+    Path directory;
+
+    private EmbeddedDatabase embeddedDatabase;
+    private JdbcTemplate jdbcTemplate;
+
+    @BeforeEach
+    void setUp() {
+        embeddedDatabase = new EmbeddedDatabaseBuilder()
+                .setType(EmbeddedDatabaseType.H2)
+                .addDefaultScripts()
+                .build();
+        jdbcTemplate = new JdbcTemplate(embeddedDatabase);
+        jdbcTemplate.execute("ALTER TABLE users ADD COLUMN last_modified TIMESTAMP DEFAULT CURRENT_TIMESTAMP");
+    }
+
+    @AfterEach
+    void tearDown() {
+        embeddedDatabase.shutdown();
+    }
+
+    @Test
+    void shouldFindUsersInSnapshotBuiltFromDatabase() {
+        LegacyDatabaseUserSnapshotStore store = createStore(null);
+        assertNull(store.find("test"));
+        store.refresh();
+
+        LegacyDatabaseUser user = store.find("test");
+        assertNotNull(user);
+        assertEquals("John", user.getFirstName());
+        assertEquals(2, user.getRoles().size());
+        assertNull(store.find("unknown"));
+        assertEquals(1, store.getHitCount());
+        assertEquals(1, store.getMissCount());
+    }
+
+    @Test
+    void shouldOpenSnapshotLeftByPreviousRun() {
+        createStore(null).refresh();
+        embeddedDatabase.shutdown();
+
+        LegacyDatabaseUserSnapshotStore store = createStore(null);
+        store.open();
+        assertTrue(store.isAvailable());
+        assertNotNull(store.find("test"));
+
+        // Failed refresh leaves previous snapshot in use
+        store.refresh();
+        assertEquals(1, store.getRefreshFailureCount());
+        assertNotNull(store.find("test"));
+    }
+
+    @Test
+    void shouldMergeChangedUsersIntoPreviousSnapshot() {
+        LegacyDatabaseUserSnapshotStore store = createStore("last_modified");
+        store.refresh();
+
+        jdbcTemplate.update("INSERT INTO users (username, password, last_modified) VALUES ('new', 'hash', "
+                + "DATEADD('SECOND', 1, CURRENT_TIMESTAMP))");
+        jdbcTemplate.update("UPDATE users SET first_name = 'Jane', last_modified = DATEADD('SECOND', 1, "
+                + "CURRENT_TIMESTAMP) WHERE username = 'test'");
+        store.refresh();
+
+        assertEquals(2, store.size());
+        assertEquals("Jane", store.find("test").getFirstName());
+        assertEquals(2, store.find("test").getRoles().size());
+        assertNotNull(store.find("new"));
+    }
+
+    @Test
+    void shouldDropRemovedUsersOnIncrementalRefresh() {
+        LegacyDatabaseUserSnapshotStore store = createStore("last_modified");
+        store.refresh();
+        jdbcTemplate.update("DELETE FROM users WHERE username = 'test'");
+        store.refresh();
+        assertNull(store.find("test"));
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    void shouldNotUseSnapshotAfterInvalidationOfAllUsersUntilRefresh() throws InterruptedException {
+        LegacyDatabaseUserSnapshotStore store = createStore("last_modified");
+        store.refresh();
+        store.invalidateAll();
+        assertNull(store.find("test"));
+
+        // Refresh must start after the change
+        Thread.sleep(10);
+        store.refresh();
+        assertNotNull(store.find("test"));
+    }
+
+    @Test
+    void shouldNotFindInvalidatedUserUntilFullRebuild() throws InterruptedException {
+        LegacyDatabaseUserSnapshotStore store = createStore("last_modified");
+        store.refresh();
+        store.invalidate("test");
+        assertNull(store.find("test"));
+        store.refresh();
+        assertNull(store.find("test"));
+
+        LegacyDatabaseUserSnapshotStore rebuildingStore = createStore(null);
+        rebuildingStore.refresh();
+        rebuildingStore.invalidate("test");
+        // Refresh must start after the change
+        Thread.sleep(10);
+        rebuildingStore.refresh();
+        assertNotNull(rebuildingStore.find("test"));
+    }
+
+    @Test
+    void shouldRebuildSnapshotWhenTooManyUsersAreChanged() throws InterruptedException {
+        LegacyDatabaseUserSnapshotStore store = createStore("last_modified", 1);
+        store.refresh();
+        store.invalidate("test");
+        assertNull(store.find("test"));
+        store.invalidate("other");
+        assertNull(store.find("test"));
+
+        // Refresh must start after the change
+        Thread.sleep(10);
+        store.refresh();
+        assertNotNull(store.find("test"));
+    }
+
+    @Test
+    void shouldCheckExistenceOfPreviousUsersInBatches() {
+        for (int i = 0; i < 1200; i++) {
+            jdbcTemplate.update("INSERT INTO users (username, password) VALUES (?, 'hash')", "user" + i);
+        }
+        LegacyDatabaseUserSnapshotStore store = createStore("last_modified");
+        store.refresh();
+        jdbcTemplate.update("DELETE FROM users WHERE username IN ('user0', 'user700')");
+        store.refresh();
+        assertEquals(1199, store.size());
+        assertNull(store.find("user0"));
+        assertNull(store.find("user700"));
+        assertNotNull(store.find("user1199"));
+    }
+
+    private LegacyDatabaseUserSnapshotStore createStore(String lastModifiedColumn) {
+        return createStore(lastModifiedColumn, 100);
+    }
+
+    private LegacyDatabaseUserSnapshotStore createStore(String lastModifiedColumn, int maxChangedUsers) {
+        return new LegacyDatabaseUserSnapshotStore(embeddedDatabase, directory.resolve("users.snapshot"),
+                lastModifiedColumn, Duration.ofDays(1), 100, maxChangedUsers);
+    }
+}
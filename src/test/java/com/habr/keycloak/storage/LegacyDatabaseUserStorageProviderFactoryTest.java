@@ -1,20 +1,36 @@
 package com.habr.keycloak.storage;
 
+import com.habr.keycloak.cluster.UserCacheInvalidationEvent;
+import com.habr.keycloak.cluster.UserCacheInvalidationTransport;
+import com.habr.keycloak.model.LegacyDatabaseUser;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.apache.commons.dbcp2.BasicDataSource;
 import org.keycloak.component.ComponentModel;
+import org.keycloak.component.ComponentValidationException;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
 import org.springframework.core.env.PropertiesPropertySource;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
 import java.sql.Connection;
 import java.sql.Driver;
 import java.sql.DriverPropertyInfo;
+import java.sql.SQLException;
 import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ScheduledFuture;
+import java.util.function.Consumer;
 import java.util.logging.Logger;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 
 /**
  * @author Roman Chigvintsev
@@ -54,6 +70,200 @@ class LegacyDatabaseUserStorageProviderFactoryTest {
         assertEquals("JDBC driver class \"" + driverClassName + "\" is not found", e.getMessage());
     }
 
+    @Test
+    void shouldThrowExceptionOnInitWhenPoolSizeIsNotInteger() {
+        pluginProperties.setProperty("legacy-database.datasource.driver-class-name", TestJdbcDriver.class.getName());
+        pluginProperties.setProperty("legacy-database.datasource.url", "jdbc:test1");
+        pluginProperties.setProperty("legacy-database.datasource.pool.max-total", "many");
+
+        IllegalStateException e = assertThrows(IllegalStateException.class, () -> providerFactory.init(null));
+        assertEquals("System property \"legacy-database.datasource.pool.max-total\" must be an integer",
+                e.getMessage());
+    }
+
+    @Test
+    void shouldCloseConnectionPoolOnClose() {
+        pluginProperties.setProperty("legacy-database.datasource.driver-class-name", TestJdbcDriver.class.getName());
+        pluginProperties.setProperty("legacy-database.datasource.url", "jdbc:test1");
+
+        providerFactory.init(null);
+        BasicDataSource pool = providerFactory.getPool();
+        assertFalse(pool.isClosed());
+        assertDoesNotThrow(() -> providerFactory.close());
+        assertTrue(pool.isClosed());
+        SQLException e = assertThrows(SQLException.class, pool::getConnection);
+        assertEquals("Data source is closed", e.getMessage());
+        assertNull(providerFactory.getPool());
+        assertDoesNotThrow(() -> providerFactory.close());
+    }
+
+    @Test
+    void shouldThrowExceptionOnInitWhenUsernameFilterRefreshIntervalIsNotPositive() {
+        pluginProperties.setProperty("legacy-database.datasource.driver-class-name", TestJdbcDriver.class.getName());
+        pluginProperties.setProperty("legacy-database.datasource.url", "jdbc:test1");
+        pluginProperties.setProperty("legacy-database.username-filter.enabled", "true");
+        pluginProperties.setProperty("legacy-database.username-filter.refresh-interval-seconds", "0");
+
+        IllegalStateException e = assertThrows(IllegalStateException.class, () -> providerFactory.init(null));
+        assertEquals("Username filter refresh interval must be positive", e.getMessage());
+    }
+
+    @Test
+    void shouldRegisterMetricsMBean() throws JMException {
+        pluginProperties.setProperty("legacy-database.datasource.driver-class-name", TestJdbcDriver.class.getName());
+        pluginProperties.setProperty("legacy-database.datasource.url", "jdbc:test1");
+
+        providerFactory.init(null);
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = new ObjectName("com.habr.keycloak:type=LegacyDatabaseUserStorage,name=\""
+                + providerFactory.getId() + "\"");
+        assertEquals(10.0, mBeanServer.getAttribute(objectName, "pool_max_connections"));
+        String prometheusText = (String) mBeanServer.getAttribute(objectName, "PrometheusText");
+        assertTrue(prometheusText.contains("legacy_database_pool_max_connections 10.0\n"));
+        assertEquals(0.0, mBeanServer.getAttribute(objectName, "username_filter_false_positives_total"));
+        assertTrue(prometheusText.contains("legacy_database_username_filter_false_positive_rate 0.0\n"));
+
+        providerFactory.close();
+        assertFalse(mBeanServer.isRegistered(objectName));
+    }
+
+    @Test
+    void shouldCreateConnectionPoolForEachReplica() {
+        pluginProperties.setProperty("legacy-database.datasource.driver-class-name", TestJdbcDriver.class.getName());
+        pluginProperties.setProperty("legacy-database.datasource.url", "jdbc:test1");
+        pluginProperties.setProperty("legacy-database.datasource.replica-urls", "jdbc:test2, jdbc:test3");
+        pluginProperties.setProperty("legacy-database.metrics.jmx.enabled", "false");
+
+        providerFactory.init(null);
+        assertEquals(2.0, providerFactory.getMetrics().snapshot().get("replicas_total"));
+        assertEquals(2.0, providerFactory.getMetrics().snapshot().get("replicas_healthy"));
+        assertDoesNotThrow(() -> providerFactory.close());
+    }
+
+    @Test
+    void shouldCreateConnectionPoolForComponentWithOwnDataSource() {
+        pluginProperties.setProperty("legacy-database.datasource.driver-class-name", TestJdbcDriver.class.getName());
+        pluginProperties.setProperty("legacy-database.datasource.url", "jdbc:test1");
+        pluginProperties.setProperty("legacy-database.metrics.jmx.enabled", "false");
+
+        providerFactory.init(null);
+        KeycloakSession session = mock(KeycloakSession.class);
+        RealmModel realm = mock(RealmModel.class);
+        when(realm.getId()).thenReturn("SdHDHesCk4");
+
+        ComponentModel componentModel = new ComponentModel();
+        componentModel.setId("lB497ShddT");
+        componentModel.put(LegacyDatabaseUserStorageProviderFactory.CONFIG_DATASOURCE_URL, "jdbc:test2");
+        componentModel.put(LegacyDatabaseUserStorageProviderFactory.CONFIG_POOL_MAX_TOTAL, "3");
+        assertNotNull(providerFactory.create(session, componentModel));
+        assertNotNull(providerFactory.create(session, componentModel));
+        assertEquals(1.0, providerFactory.getMetrics().snapshot().get("component_pools"));
+
+        ComponentModel updatedModel = new ComponentModel(componentModel);
+        updatedModel.put(LegacyDatabaseUserStorageProviderFactory.CONFIG_DATASOURCE_URL, "jdbc:test3");
+        providerFactory.onUpdate(session, realm, componentModel, updatedModel);
+        assertEquals(0.0, providerFactory.getMetrics().snapshot().get("component_pools"));
+        assertNotNull(providerFactory.create(session, updatedModel));
+        assertEquals(1.0, providerFactory.getMetrics().snapshot().get("component_pools"));
+
+        providerFactory.preRemove(session, realm, updatedModel);
+        assertEquals(0.0, providerFactory.getMetrics().snapshot().get("component_pools"));
+        assertDoesNotThrow(() -> providerFactory.close());
+    }
+
+    @Test
+    void shouldScheduleLoginAuditFlushForComponentWithOwnDataSource() {
+        pluginProperties.setProperty("legacy-database.datasource.driver-class-name", TestJdbcDriver.class.getName());
+        pluginProperties.setProperty("legacy-database.datasource.url", "jdbc:test1");
+        pluginProperties.setProperty("legacy-database.metrics.jmx.enabled", "false");
+        pluginProperties.setProperty("legacy-database.login-audit.enabled", "true");
+
+        providerFactory.init(null);
+        KeycloakSession session = mock(KeycloakSession.class);
+        RealmModel realm = mock(RealmModel.class);
+        when(realm.getId()).thenReturn("SdHDHesCk4");
+
+        ComponentModel componentModel = new ComponentModel();
+        componentModel.setId("lB497ShddT");
+        componentModel.put(LegacyDatabaseUserStorageProviderFactory.CONFIG_DATASOURCE_URL, "jdbc:test2");
+        assertNotNull(providerFactory.create(session, componentModel));
+        ScheduledFuture<?> flush = providerFactory.getComponentContext(componentModel).getLoginAuditFlush();
+        assertNotNull(flush);
+        assertFalse(flush.isCancelled());
+
+        providerFactory.preRemove(session, realm, componentModel);
+        assertTrue(flush.isCancelled());
+        assertDoesNotThrow(() -> providerFactory.close());
+    }
+
+    @Test
+    void shouldRejectInvalidComponentDataSourceConfiguration() {
+        KeycloakSession session = mock(KeycloakSession.class);
+        RealmModel realm = mock(RealmModel.class);
+
+        ComponentModel componentModel = new ComponentModel();
+        assertDoesNotThrow(() -> providerFactory.validateConfiguration(session, realm, componentModel));
+
+        componentModel.put(LegacyDatabaseUserStorageProviderFactory.CONFIG_DATASOURCE_URL, "test2");
+        ComponentValidationException e = assertThrows(ComponentValidationException.class,
+                () -> providerFactory.validateConfiguration(session, realm, componentModel));
+        assertEquals("JDBC URL must start with \"jdbc:\"", e.getMessage());
+
+        componentModel.put(LegacyDatabaseUserStorageProviderFactory.CONFIG_DATASOURCE_URL, "jdbc:test2");
+        componentModel.put(LegacyDatabaseUserStorageProviderFactory.CONFIG_POOL_MAX_TOTAL, "0");
+        e = assertThrows(ComponentValidationException.class,
+                () -> providerFactory.validateConfiguration(session, realm, componentModel));
+        assertEquals("Maximum connections must be a positive integer", e.getMessage());
+    }
+
+    @Test
+    void shouldInvalidateUserCachesOnOtherNodes() {
+        pluginProperties.setProperty("legacy-database.datasource.driver-class-name", TestJdbcDriver.class.getName());
+        pluginProperties.setProperty("legacy-database.datasource.url", "jdbc:test1");
+        pluginProperties.setProperty("legacy-database.metrics.jmx.enabled", "false");
+        pluginProperties.setProperty("legacy-database.cache.cluster-invalidation.enabled", "true");
+
+        List<Consumer<UserCacheInvalidationEvent>> listeners = new ArrayList<>();
+        UserCacheInvalidationTransport transport = new UserCacheInvalidationTransport() {
+            @Override
+            public void publish(UserCacheInvalidationEvent event) {
+                listeners.forEach(listener -> listener.accept(event));
+            }
+
+            @Override
+            public void subscribe(Consumer<UserCacheInvalidationEvent> listener) {
+                listeners.add(listener);
+            }
+        };
+
+        LegacyDatabaseUserStorageProviderFactory otherNode = new LegacyDatabaseUserStorageProviderFactory();
+        otherNode.setPropertySource(new PropertiesPropertySource("plugin", pluginProperties));
+        otherNode.setInvalidationTransport(transport);
+        otherNode.init(null);
+        otherNode.postInit(null);
+        providerFactory.setInvalidationTransport(transport);
+        providerFactory.init(null);
+        providerFactory.postInit(null);
+
+        LegacyDatabaseUser user = LegacyDatabaseUser.builder().username("test").password("secret").build();
+        otherNode.getUserCache().put("SdHDHesCk4", user);
+        otherNode.getUserCache().put("GX6tADzwnC", user);
+
+        KeycloakSession session = mock(KeycloakSession.class);
+        RealmModel realm = mock(RealmModel.class);
+        when(realm.getId()).thenReturn("SdHDHesCk4");
+        ComponentModel componentModel = new ComponentModel();
+        componentModel.setId("lB497ShddT");
+        providerFactory.onUpdate(session, realm, componentModel, componentModel);
+        // Pending invalidations are sent on close
+        providerFactory.close();
+
+        assertNull(otherNode.getUserCache().getIfPresent("SdHDHesCk4", "test"));
+        assertNotNull(otherNode.getUserCache().getIfPresent("GX6tADzwnC", "test"));
+        assertEquals(1.0, otherNode.getMetrics().snapshot().get("cluster_invalidation_received_events_total"));
+        otherNode.close();
+    }
+
     public static class TestJdbcDriver implements Driver {
         @Override
         public Connection connect(String url, Properties info) {
@@ -1,34 +1,67 @@
 package com.habr.keycloak.storage;
 
+import com.habr.keycloak.cache.LegacyDatabaseUserCache;
+import com.habr.keycloak.cache.UserEmailIndex;
+import com.habr.keycloak.cache.UserPageCursorCache;
+import com.habr.keycloak.cluster.UserCacheInvalidationBroadcaster;
+import com.habr.keycloak.crypto.PasswordEncodingException;
+import com.habr.keycloak.crypto.VerifiedCredentialCache;
+import com.habr.keycloak.datasource.ReplicaRoutingDataSource;
+import com.habr.keycloak.metrics.LegacyDatabaseMetrics;
+import com.habr.keycloak.model.LegacyDatabaseRoleCatalog;
 import com.habr.keycloak.model.LegacyDatabaseRoleModel;
 import com.habr.keycloak.model.LegacyDatabaseUserModel;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 import org.keycloak.component.ComponentModel;
 import org.keycloak.credential.CredentialInput;
+import org.keycloak.credential.CredentialModel;
 import org.keycloak.models.*;
 import org.keycloak.models.credential.PasswordCredentialModel;
 import org.keycloak.storage.StorageId;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
 import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
 import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
 import org.springframework.security.crypto.password.PasswordEncoder;
 
+import javax.sql.DataSource;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
-import static org.mockito.Mockito.mock;
-import static org.mockito.Mockito.when;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
 
 /**
  * @author Roman Chigvintsev
  */
 class LegacyDatabaseUserStorageProviderTest {
     private EmbeddedDatabase embeddedDatabase;
+    private KeycloakSession session;
+    private ComponentModel componentModel;
+    private LegacyDatabaseUserLoader userLoader;
+    private PasswordEncoder passwordEncoder;
+    private LegacyDatabaseUserCache userCache;
+    private LegacyDatabaseRoleCatalog roleCatalog;
+    private VerifiedCredentialCache credentialCache;
+    private LegacyDatabaseUserEmailLookup emailLookup;
+    private LegacyDatabaseLoginAuditor loginAuditor;
+    private LegacyDatabasePasswordUpdater passwordUpdater;
+    private UserCacheInvalidationBroadcaster invalidationBroadcaster;
+    private UserPageCursorCache cursorCache;
+    private LegacyDatabaseMetrics metrics;
+    private SqlDialect dialect;
     private LegacyDatabaseUserStorageProvider provider;
 
     @BeforeEach
@@ -36,16 +69,32 @@ class LegacyDatabaseUserStorageProviderTest {
         ClientModel client = mock(ClientModel.class);
         KeycloakContext context = mock(KeycloakContext.class);
         when(context.getClient()).thenReturn(client);
-        KeycloakSession session = mock(KeycloakSession.class);
+        session = mock(KeycloakSession.class);
         when(session.getContext()).thenReturn(context);
-        ComponentModel componentModel = new ComponentModel();
+        componentModel = new ComponentModel();
         embeddedDatabase = new EmbeddedDatabaseBuilder()
                 .setType(EmbeddedDatabaseType.H2)
                 .addDefaultScripts()
                 .build();
-        PasswordEncoder passwordEncoder = mock(PasswordEncoder.class);
+        userLoader = LegacyDatabaseUserLoader.create(LegacyDatabaseUserLoader.Strategy.JOIN, embeddedDatabase, null);
+        passwordEncoder = mock(PasswordEncoder.class);
         when(passwordEncoder.matches(any(), any())).thenReturn(true);
-        provider = new LegacyDatabaseUserStorageProvider(session, componentModel, embeddedDatabase, passwordEncoder);
+        userCache = LegacyDatabaseUserCache.builder()
+                .maxSize(100)
+                .expireAfterWrite(Duration.ofMinutes(5))
+                .negativeMaxSize(100)
+                .negativeExpireAfterWrite(Duration.ofSeconds(30))
+                .build();
+        roleCatalog = new LegacyDatabaseRoleCatalog();
+        credentialCache = new VerifiedCredentialCache(100, Duration.ofMinutes(1));
+        emailLookup = LegacyDatabaseUserEmailLookup.disabled();
+        loginAuditor = LegacyDatabaseLoginAuditor.disabled();
+        passwordUpdater = LegacyDatabasePasswordUpdater.disabled();
+        invalidationBroadcaster = UserCacheInvalidationBroadcaster.disabled();
+        cursorCache = new UserPageCursorCache(100, Duration.ofMinutes(5));
+        metrics = new LegacyDatabaseMetrics();
+        dialect = SqlDialect.H2;
+        provider = createProvider(session);
     }
 
     @AfterEach
@@ -90,6 +139,105 @@ class LegacyDatabaseUserStorageProviderTest {
         assertEquals(expectedRoles, user.getRoleMappingsStream().collect(Collectors.toSet()));
     }
 
+    @Test
+    void shouldLoadUserRolesLazily() {
+        RealmModel realm = mock(RealmModel.class);
+        when(realm.getId()).thenReturn("SdHDHesCk4");
+
+        userLoader = spy(LegacyDatabaseUserLoader.create(LegacyDatabaseUserLoader.Strategy.LAZY, embeddedDatabase,
+                null));
+        when(passwordEncoder.matches(any(), any())).thenReturn(false);
+
+        CredentialInput credentialInput = mock(CredentialInput.class);
+        when(credentialInput.getType()).thenReturn(PasswordCredentialModel.TYPE);
+        when(credentialInput.getChallengeResponse()).thenReturn("wrong");
+
+        UserModel user = createProvider(session).getUserByUsername("test", realm);
+        assertNotNull(user);
+        assertFalse(createProvider(session).isValid(realm, user, credentialInput));
+        verify(userLoader, never()).findRolesByUsername(any());
+
+        Set<RoleModel> expectedRoles = new HashSet<>();
+        expectedRoles.add(new LegacyDatabaseRoleModel(realm, "ROLE_USER"));
+        expectedRoles.add(new LegacyDatabaseRoleModel(realm, "ROLE_HAMLET"));
+        assertEquals(expectedRoles, user.getRoleMappingsStream().collect(Collectors.toSet()));
+        assertEquals(expectedRoles, user.getRoleMappingsStream().collect(Collectors.toSet()));
+
+        UserModel userOfAnotherSession = createProvider(mock(KeycloakSession.class)).getUserByUsername("test", realm);
+        assertEquals(expectedRoles, userOfAnotherSession.getRoleMappingsStream().collect(Collectors.toSet()));
+        verify(userLoader, times(1)).findRolesByUsername("test");
+    }
+
+    @Test
+    void shouldLoadUserAttributes() {
+        RealmModel realm = mock(RealmModel.class);
+        when(realm.getId()).thenReturn("SdHDHesCk4");
+
+        UserModel user = provider.getUserByUsername("test", realm);
+        assertNotNull(user);
+        assertEquals("John", user.getFirstAttribute(UserModel.FIRST_NAME));
+        assertEquals(Collections.singletonList("Doe"), user.getAttribute(UserModel.LAST_NAME));
+        assertNull(user.getFirstAttribute("unknown"));
+
+        Map<String, List<String>> attributes = user.getAttributes();
+        Map<String, List<String>> expectedAttributes = new HashMap<>();
+        expectedAttributes.put(UserModel.USERNAME, Collections.singletonList("test"));
+        expectedAttributes.put(UserModel.FIRST_NAME, Collections.singletonList("John"));
+        expectedAttributes.put(UserModel.LAST_NAME, Collections.singletonList("Doe"));
+        expectedAttributes.put(LegacyDatabaseUserModel.ATTRIBUTE_PASSWORD,
+                Collections.singletonList("$2a$10$TKELuy2B9RK74p.K8Fg7Iu/Xblosk/h5wPaIBGHN8LIrEF/IV3XOy"));
+        assertEquals(expectedAttributes, attributes);
+        assertEquals(Collections.singletonList("John"), attributes.get(UserModel.FIRST_NAME));
+        assertSame(attributes, user.getAttributes());
+        assertThrows(UnsupportedOperationException.class, () -> attributes.remove(UserModel.USERNAME));
+    }
+
+    @Test
+    void shouldShareRolesBetweenUsersOfRealm() {
+        RealmModel realm = mock(RealmModel.class);
+        when(realm.getId()).thenReturn("SdHDHesCk4");
+
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(embeddedDatabase);
+        jdbcTemplate.update("INSERT INTO users (username, password, first_name, last_name) "
+                + "VALUES ('another', 'secret', 'Jane', 'Doe')");
+        jdbcTemplate.update("INSERT INTO authorities (username, authority) VALUES ('another', 'ROLE_USER')");
+
+        UserModel user = provider.getUserByUsername("test", realm);
+        UserModel anotherUser = provider.getUserByUsername("another", realm);
+        RoleModel role = anotherUser.getRoleMappingsStream().findFirst().orElseThrow(AssertionError::new);
+        assertTrue(user.getRoleMappingsStream().anyMatch(userRole -> userRole == role));
+        assertTrue(user.hasRole(role));
+        assertFalse(anotherUser.hasRole(new LegacyDatabaseRoleModel(realm, "ROLE_HAMLET")));
+    }
+
+    @Test
+    void shouldShareRolesBetweenSessions() {
+        RealmModel realm = mock(RealmModel.class);
+        when(realm.getId()).thenReturn("SdHDHesCk4");
+        RealmModel anotherRealm = mock(RealmModel.class);
+        when(anotherRealm.getId()).thenReturn("SdHDHesCk4");
+
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(embeddedDatabase);
+        jdbcTemplate.update("INSERT INTO users (username, password, first_name, last_name) "
+                + "VALUES ('another', 'secret', 'Jane', 'Doe')");
+        jdbcTemplate.update("INSERT INTO authorities (username, authority) VALUES ('another', 'ROLE_USER')");
+
+        RoleModel role = provider.getUserByUsername("test", realm).getRoleMappingsStream()
+                .filter(userRole -> userRole.getName().equals("ROLE_USER"))
+                .findFirst()
+                .orElseThrow(AssertionError::new);
+        RoleModel anotherRole = createProvider(mock(KeycloakSession.class)).getUserByUsername("another",
+                anotherRealm).getRoleMappingsStream().findFirst().orElseThrow(AssertionError::new);
+        // Role data is shared while role models are bound to realm model of their session
+        assertSame(role.getName(), anotherRole.getName());
+        assertSame(realm, role.getContainer());
+        assertSame(anotherRealm, anotherRole.getContainer());
+        assertEquals(2, roleCatalog.size());
+
+        roleCatalog.removeRealm("SdHDHesCk4");
+        assertEquals(0, roleCatalog.size());
+    }
+
     @Test
     void shouldReturnNullWhenUserIsNotFoundByName() {
         RealmModel realm = mock(RealmModel.class);
@@ -97,6 +245,159 @@ class LegacyDatabaseUserStorageProviderTest {
         assertNull(provider.getUserByUsername("#####", realm));
     }
 
+    @Test
+    void shouldLoadUserByEmail() {
+        RealmModel realm = mock(RealmModel.class);
+        when(realm.getId()).thenReturn("SdHDHesCk4");
+
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(embeddedDatabase);
+        jdbcTemplate.update("ALTER TABLE users ADD COLUMN email VARCHAR(255)");
+        jdbcTemplate.update("UPDATE users SET email = 'john.doe@example.com' WHERE username = 'test'");
+        emailLookup = new LegacyDatabaseUserEmailLookup(embeddedDatabase, "email",
+                new UserEmailIndex(100, Duration.ofMinutes(5)));
+        provider = createProvider(session);
+
+        UserModel user = provider.getUserByEmail("John.Doe@example.com", realm);
+        assertNull(user);
+        user = provider.getUserByEmail("john.doe@example.com", realm);
+        assertNotNull(user);
+        assertEquals("test", user.getUsername());
+        assertEquals("john.doe@example.com", user.getEmail());
+        assertSame(user, provider.getUserByUsername("test", realm));
+        assertNull(provider.getUserByEmail("jane.doe@example.com", realm));
+
+        // Mapping of email and user is cached together with user
+        jdbcTemplate.update("DELETE FROM users WHERE username = 'test'");
+        UserModel userOfAnotherSession = createProvider(mock(KeycloakSession.class))
+                .getUserByEmail("John.Doe@example.com", realm);
+        assertNotNull(userOfAnotherSession);
+        assertEquals("john.doe@example.com", userOfAnotherSession.getEmail());
+    }
+
+    @Test
+    void shouldNotFindUserByEmailWhenEmailColumnIsNotDefined() {
+        RealmModel realm = mock(RealmModel.class);
+        when(realm.getId()).thenReturn("SdHDHesCk4");
+        assertNull(provider.getUserByEmail("john.doe@example.com", realm));
+        assertNull(provider.getUserByUsername("test", realm).getEmail());
+    }
+
+    @Test
+    void shouldShareCachedUserBetweenProviders() {
+        RealmModel realm = mock(RealmModel.class);
+        when(realm.getId()).thenReturn("SdHDHesCk4");
+
+        assertNotNull(provider.getUserByUsername("test", realm));
+        new JdbcTemplate(embeddedDatabase).update("DELETE FROM users WHERE username = 'test'");
+
+        LegacyDatabaseUserStorageProvider anotherProvider = createProvider(mock(KeycloakSession.class));
+        UserModel user = anotherProvider.getUserByUsername("test", realm);
+        assertNotNull(user);
+        assertEquals("test", user.getUsername());
+    }
+
+    @Test
+    void shouldLoadUserFromDatabaseAfterCacheInvalidation() {
+        RealmModel realm = mock(RealmModel.class);
+        when(realm.getId()).thenReturn("SdHDHesCk4");
+
+        assertNotNull(provider.getUserByUsername("test", realm));
+        new JdbcTemplate(embeddedDatabase).update("DELETE FROM users WHERE username = 'test'");
+        userCache.invalidate("SdHDHesCk4", "test");
+
+        LegacyDatabaseUserStorageProvider anotherProvider = createProvider(mock(KeycloakSession.class));
+        assertNull(anotherProvider.getUserByUsername("test", realm));
+    }
+
+    @Test
+    void shouldImportUserWhenImportIsEnabled() {
+        RealmModel realm = mock(RealmModel.class);
+        when(realm.getId()).thenReturn("SdHDHesCk4");
+        RoleModel userRole = mock(RoleModel.class);
+        when(realm.getRole("ROLE_USER")).thenReturn(userRole);
+        RoleModel hamletRole = mock(RoleModel.class);
+        when(realm.addRole("ROLE_HAMLET")).thenReturn(hamletRole);
+
+        UserModel localUser = mock(UserModel.class);
+        when(localUser.getRealmRoleMappingsStream()).thenReturn(Stream.empty());
+        UserProvider localStorage = mock(UserProvider.class);
+        when(localStorage.addUser(realm, "test")).thenReturn(localUser);
+        when(session.userLocalStorage()).thenReturn(localStorage);
+        UserCredentialManager credentialManager = mock(UserCredentialManager.class);
+        when(credentialManager.getStoredCredentialsByTypeStream(realm, localUser, PasswordCredentialModel.TYPE))
+                .thenReturn(Stream.empty());
+        when(session.userCredentialManager()).thenReturn(credentialManager);
+        componentModel.setId("lB497ShddT");
+
+        assertSame(localUser, createImportingProvider(LegacyDatabaseUserImporter.ImportValidation.CACHE)
+                .getUserByUsername("test", realm));
+        verify(localUser).setFederationLink("lB497ShddT");
+        verify(localUser).setFirstName("John");
+        verify(localUser).setLastName("Doe");
+        verify(localUser).grantRole(userRole);
+        verify(localUser).grantRole(hamletRole);
+        verify(hamletRole).setSingleAttribute(LegacyDatabaseUserImporter.ROLE_ATTRIBUTE_LEGACY_DATABASE, "true");
+
+        ArgumentCaptor<CredentialModel> credentialCaptor = ArgumentCaptor.forClass(CredentialModel.class);
+        verify(credentialManager).createCredential(eq(realm), eq(localUser), credentialCaptor.capture());
+        PasswordCredentialModel credential = PasswordCredentialModel.createFromCredentialModel(
+                credentialCaptor.getValue());
+        assertEquals(LegacyDatabaseUserImporter.PASSWORD_ALGORITHM,
+                credential.getPasswordCredentialData().getAlgorithm());
+        assertEquals(10, credential.getPasswordCredentialData().getHashIterations());
+        assertEquals("$2a$10$TKELuy2B9RK74p.K8Fg7Iu/Xblosk/h5wPaIBGHN8LIrEF/IV3XOy",
+                credential.getPasswordSecretData().getValue());
+    }
+
+    @Test
+    void shouldValidateImportedUserPasswordWithStoredCredential() {
+        RealmModel realm = mock(RealmModel.class);
+        when(realm.getId()).thenReturn("SdHDHesCk4");
+
+        UserModel localUser = mock(UserModel.class);
+        when(localUser.getUsername()).thenReturn("test");
+        UserCredentialManager credentialManager = mock(UserCredentialManager.class);
+        PasswordCredentialModel storedCredential = PasswordCredentialModel.createFromValues(
+                LegacyDatabaseUserImporter.PASSWORD_ALGORITHM, new byte[0], 10, "hash");
+        when(credentialManager.getStoredCredentialsByTypeStream(realm, localUser, PasswordCredentialModel.TYPE))
+                .thenAnswer(invocation -> Stream.of(storedCredential));
+        when(session.userCredentialManager()).thenReturn(credentialManager);
+
+        CredentialInput credentialInput = mock(CredentialInput.class);
+        when(credentialInput.getType()).thenReturn(PasswordCredentialModel.TYPE);
+        when(credentialInput.getChallengeResponse()).thenReturn("secret");
+
+        LegacyDatabaseUserStorageProvider importingProvider
+                = createImportingProvider(LegacyDatabaseUserImporter.ImportValidation.NONE);
+        assertTrue(importingProvider.isConfiguredFor(realm, localUser, PasswordCredentialModel.TYPE));
+        assertTrue(importingProvider.isValid(realm, localUser, credentialInput));
+        verify(passwordEncoder).matches("secret", "hash");
+    }
+
+    @Test
+    void shouldInvalidateImportedUserThatIsRemovedFromLegacyDatabase() {
+        RealmModel realm = mock(RealmModel.class);
+        when(realm.getId()).thenReturn("SdHDHesCk4");
+        UserModel localUser = mock(UserModel.class);
+        when(localUser.getUsername()).thenReturn("test");
+
+        new JdbcTemplate(embeddedDatabase).update("DELETE FROM users WHERE username = 'test'");
+        assertNull(createImportingProvider(LegacyDatabaseUserImporter.ImportValidation.DATABASE)
+                .validate(realm, localUser));
+    }
+
+    @Test
+    void shouldNotValidateImportedUserThatIsNotCached() {
+        RealmModel realm = mock(RealmModel.class);
+        when(realm.getId()).thenReturn("SdHDHesCk4");
+        UserModel localUser = mock(UserModel.class);
+        when(localUser.getUsername()).thenReturn("test");
+
+        new JdbcTemplate(embeddedDatabase).update("DELETE FROM users WHERE username = 'test'");
+        assertSame(localUser, createImportingProvider(LegacyDatabaseUserImporter.ImportValidation.CACHE)
+                .validate(realm, localUser));
+    }
+
     @Test
     void shouldBeConfiguredForPasswordCredentialType() {
         provider.isConfiguredFor(null, null, PasswordCredentialModel.TYPE);
@@ -125,10 +426,353 @@ class LegacyDatabaseUserStorageProviderTest {
         assertTrue(provider.isValid(realm, user, credentialInput));
     }
 
+    @Test
+    void shouldNotVerifyRepeatedCredentialsAgain() {
+        RealmModel realm = mock(RealmModel.class);
+        when(realm.getId()).thenReturn("SdHDHesCk4");
+
+        UserModel user = mock(UserModel.class);
+        when(user.getUsername()).thenReturn("test");
+        when(user.getFirstAttribute(LegacyDatabaseUserModel.ATTRIBUTE_PASSWORD)).thenReturn("hash");
+
+        CredentialInput credentialInput = mock(CredentialInput.class);
+        when(credentialInput.getType()).thenReturn(PasswordCredentialModel.TYPE);
+        when(credentialInput.getChallengeResponse()).thenReturn("secret");
+
+        assertTrue(provider.isValid(realm, user, credentialInput));
+        assertTrue(createProvider(mock(KeycloakSession.class)).isValid(realm, user, credentialInput));
+        verify(passwordEncoder, times(1)).matches("secret", "hash");
+    }
+
+    @Test
+    void shouldVerifyCredentialsAgainWhenPasswordIsChanged() {
+        RealmModel realm = mock(RealmModel.class);
+        when(realm.getId()).thenReturn("SdHDHesCk4");
+
+        UserModel user = mock(UserModel.class);
+        when(user.getUsername()).thenReturn("test");
+        when(user.getFirstAttribute(LegacyDatabaseUserModel.ATTRIBUTE_PASSWORD)).thenReturn("hash", "new-hash");
+
+        CredentialInput credentialInput = mock(CredentialInput.class);
+        when(credentialInput.getType()).thenReturn(PasswordCredentialModel.TYPE);
+        when(credentialInput.getChallengeResponse()).thenReturn("secret");
+
+        assertTrue(provider.isValid(realm, user, credentialInput));
+        assertTrue(provider.isValid(realm, user, credentialInput));
+        verify(passwordEncoder).matches("secret", "hash");
+        verify(passwordEncoder).matches("secret", "new-hash");
+    }
+
+    @Test
+    void shouldRecordLoginResults() {
+        loginAuditor = mock(LegacyDatabaseLoginAuditor.class);
+        provider = createProvider(session);
+
+        RealmModel realm = mock(RealmModel.class);
+        when(realm.getId()).thenReturn("SdHDHesCk4");
+
+        UserModel user = mock(UserModel.class);
+        when(user.getUsername()).thenReturn("test");
+        when(user.getFirstAttribute(LegacyDatabaseUserModel.ATTRIBUTE_PASSWORD)).thenReturn("hash");
+
+        assertTrue(provider.isValid(realm, user, UserCredentialModel.password("secret")));
+        assertTrue(provider.isValid(realm, user, UserCredentialModel.password("secret")));
+        when(passwordEncoder.matches(any(), any())).thenReturn(false);
+        assertFalse(provider.isValid(realm, user, UserCredentialModel.password("wrong")));
+
+        // Login answered with credential cache is recorded as well
+        verify(loginAuditor, times(2)).loginSucceeded("test");
+        verify(loginAuditor).loginFailed("test");
+    }
+
+    @Test
+    void shouldFailLoginAsServerErrorWhenPasswordIsNotChecked() {
+        loginAuditor = mock(LegacyDatabaseLoginAuditor.class);
+        provider = createProvider(session);
+
+        RealmModel realm = mock(RealmModel.class);
+        when(realm.getId()).thenReturn("SdHDHesCk4");
+
+        UserModel user = mock(UserModel.class);
+        when(user.getUsername()).thenReturn("test");
+        when(user.getFirstAttribute(LegacyDatabaseUserModel.ATTRIBUTE_PASSWORD)).thenReturn("hash");
+        when(passwordEncoder.matches(any(), any())).thenThrow(new PasswordEncodingException("Overloaded"));
+
+        ModelException e = assertThrows(ModelException.class, () -> provider.isValid(realm, user,
+                UserCredentialModel.password("secret")));
+        assertTrue(e.getCause() instanceof PasswordEncodingException);
+        // Rejected check is not a failed login attempt of user
+        verify(loginAuditor, never()).loginFailed(any());
+        assertEquals(0L, metrics.snapshot().get("credential_failures_total"));
+        assertEquals(1L, metrics.snapshot().get("password_encoder_rejections_total"));
+    }
+
+    @Test
+    void shouldUpdatePasswordInLegacyDatabase() {
+        passwordUpdater = new LegacyDatabasePasswordUpdater(embeddedDatabase);
+        invalidationBroadcaster = new UserCacheInvalidationBroadcaster(100);
+        provider = createProvider(session);
+        when(passwordEncoder.encode("new-secret")).thenReturn("new-hash");
+
+        RealmModel realm = mock(RealmModel.class);
+        when(realm.getId()).thenReturn("SdHDHesCk4");
+
+        UserModel user = provider.getUserByUsername("test", realm);
+        assertNotNull(userCache.getIfPresent("SdHDHesCk4", "test"));
+        assertTrue(provider.updateCredential(realm, user, UserCredentialModel.password("new-secret")));
+
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(embeddedDatabase);
+        assertEquals("new-hash", jdbcTemplate.queryForObject("SELECT password FROM users WHERE username = 'test'",
+                String.class));
+        assertEquals("new-hash", user.getFirstAttribute(LegacyDatabaseUserModel.ATTRIBUTE_PASSWORD));
+        assertEquals("new-hash", userCache.getIfPresent("SdHDHesCk4", "test").getPassword());
+        UserModel userOfAnotherSession = createProvider(mock(KeycloakSession.class)).getUserByUsername("test", realm);
+        assertEquals("new-hash", userOfAnotherSession.getFirstAttribute(LegacyDatabaseUserModel.ATTRIBUTE_PASSWORD));
+        assertEquals(1, passwordUpdater.getUpdateCount());
+        assertEquals(1, invalidationBroadcaster.getPendingCount());
+    }
+
+    @Test
+    void shouldNotLoadOldPasswordFromStaleReplicaAfterPasswordUpdate() {
+        // Replica has the same users as primary database but does not receive updates
+        EmbeddedDatabase replica = new EmbeddedDatabaseBuilder()
+                .setType(EmbeddedDatabaseType.H2)
+                .generateUniqueName(true)
+                .addDefaultScripts()
+                .build();
+        try {
+            DataSource dataSource = new ReplicaRoutingDataSource(embeddedDatabase,
+                    Collections.singletonMap("replica", replica), 1);
+            userLoader = LegacyDatabaseUserLoader.create(LegacyDatabaseUserLoader.Strategy.JOIN, dataSource, null);
+            passwordUpdater = new LegacyDatabasePasswordUpdater(embeddedDatabase);
+            provider = createProvider(session, dataSource);
+            when(passwordEncoder.encode("new-secret")).thenReturn("new-hash");
+
+            RealmModel realm = mock(RealmModel.class);
+            when(realm.getId()).thenReturn("SdHDHesCk4");
+
+            UserModel user = provider.getUserByUsername("test", realm);
+            assertTrue(provider.updateCredential(realm, user, UserCredentialModel.password("new-secret")));
+            UserModel userOfAnotherSession = createProvider(mock(KeycloakSession.class), dataSource)
+                    .getUserByUsername("test", realm);
+            assertEquals("new-hash", userOfAnotherSession.getFirstAttribute(
+                    LegacyDatabaseUserModel.ATTRIBUTE_PASSWORD));
+            assertEquals(2, userOfAnotherSession.getRoleMappingsStream().count());
+
+            // User is loaded from replica when it is not cached at the time of update
+            userCache.invalidateAll();
+            when(passwordEncoder.encode("another-secret")).thenReturn("another-hash");
+            assertTrue(provider.updateCredential(realm, user, UserCredentialModel.password("another-secret")));
+            userOfAnotherSession = createProvider(mock(KeycloakSession.class), dataSource)
+                    .getUserByUsername("test", realm);
+            assertEquals("another-hash", userOfAnotherSession.getFirstAttribute(
+                    LegacyDatabaseUserModel.ATTRIBUTE_PASSWORD));
+        } finally {
+            replica.shutdown();
+        }
+    }
+
+    @Test
+    void shouldNotUpdatePasswordWhenUpdateIsDisabled() {
+        RealmModel realm = mock(RealmModel.class);
+        when(realm.getId()).thenReturn("SdHDHesCk4");
+        UserModel user = provider.getUserByUsername("test", realm);
+        assertFalse(provider.updateCredential(realm, user, UserCredentialModel.password("new-secret")));
+        verify(passwordEncoder, never()).encode(any());
+    }
+
+    @Test
+    void shouldFailToUpdatePasswordOfUserRemovedFromLegacyDatabase() {
+        passwordUpdater = new LegacyDatabasePasswordUpdater(embeddedDatabase);
+        provider = createProvider(session);
+        when(passwordEncoder.encode("new-secret")).thenReturn("new-hash");
+
+        RealmModel realm = mock(RealmModel.class);
+        when(realm.getId()).thenReturn("SdHDHesCk4");
+        UserModel user = provider.getUserByUsername("test", realm);
+        new JdbcTemplate(embeddedDatabase).update("DELETE FROM users WHERE username = 'test'");
+        assertThrows(ModelException.class, () -> provider.updateCredential(realm, user,
+                UserCredentialModel.password("new-secret")));
+    }
+
     @Test
     void shouldIgnoreUnsupportedCredentialTypeOnValidation() {
         CredentialInput credentialInput = mock(CredentialInput.class);
         when(credentialInput.getType()).thenReturn("retina");
         assertFalse(provider.isValid(null, null, credentialInput));
     }
+
+    @Test
+    void shouldSearchUsersByNames() {
+        RealmModel realm = mock(RealmModel.class);
+        when(realm.getId()).thenReturn("SdHDHesCk4");
+        insertUsers(3);
+
+        assertEquals(Stream.of("user0", "user1", "user2").collect(Collectors.toList()),
+                getUsernames(provider.searchForUser("USER", realm)));
+        assertEquals(1, provider.getUsersCount("doe", realm));
+        assertEquals(4, provider.getUsersCount("*", realm));
+        assertTrue(provider.searchForUser("us_r", realm).isEmpty());
+    }
+
+    @Test
+    void shouldEscapeLikeWildcardsWhenSearchingUsers() {
+        RealmModel realm = mock(RealmModel.class);
+        when(realm.getId()).thenReturn("SdHDHesCk4");
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(embeddedDatabase);
+        jdbcTemplate.update("INSERT INTO users (username, password) VALUES ('a!b_c%d', 'hash')");
+        jdbcTemplate.update("INSERT INTO users (username, password) VALUES ('abxcyd', 'hash')");
+
+        assertEquals(Collections.singletonList("a!b_c%d"), getUsernames(provider.searchForUser("!b_c%", realm)));
+        assertTrue(provider.searchForUser("a!!b", realm).isEmpty());
+    }
+
+    @Test
+    void shouldSearchUsersByParams() {
+        RealmModel realm = mock(RealmModel.class);
+        when(realm.getId()).thenReturn("SdHDHesCk4");
+        insertUsers(3);
+
+        Map<String, String> params = new HashMap<>();
+        params.put(UserModel.FIRST_NAME, "First1");
+        params.put(UserModel.EXACT, "true");
+        assertEquals(Stream.of("user1").collect(Collectors.toList()),
+                getUsernames(provider.searchForUser(params, realm)));
+        assertEquals(1, provider.getUsersCount(params, realm));
+
+        // Emails are unknown when email column is not defined
+        params.put(UserModel.EMAIL, "user1@example.com");
+        assertTrue(provider.searchForUser(params, realm).isEmpty());
+        assertEquals(0, provider.getUsersCount(params, realm));
+
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(embeddedDatabase);
+        jdbcTemplate.update("ALTER TABLE users ADD COLUMN email VARCHAR(255)");
+        jdbcTemplate.update("UPDATE users SET email = CONCAT(username, '@example.com')");
+        emailLookup = new LegacyDatabaseUserEmailLookup(embeddedDatabase, "email",
+                new UserEmailIndex(100, Duration.ofMinutes(5)));
+        provider = createProvider(session);
+        assertEquals(Stream.of("user1").collect(Collectors.toList()),
+                getUsernames(provider.searchForUser(params, realm)));
+        assertEquals(1, provider.getUsersCount(params, realm));
+
+        params.remove(UserModel.FIRST_NAME);
+        params.put(UserModel.EXACT, "false");
+        params.put(UserModel.EMAIL, "@EXAMPLE.com");
+        assertEquals(4, provider.getUsersCount(params, realm));
+
+        // Filters that legacy users always pass or that are unknown are ignored
+        params.put(UserModel.EMAIL_VERIFIED, "false");
+        params.put("unknown", "value");
+        assertEquals(4, provider.getUsersCount(params, realm));
+        params.put(UserModel.EMAIL_VERIFIED, "true");
+        assertEquals(0, provider.getUsersCount(params, realm));
+        params.remove(UserModel.EMAIL_VERIFIED);
+        params.put(UserModel.IDP_ALIAS, "github");
+        assertTrue(provider.searchForUser(params, realm).isEmpty());
+    }
+
+    @Test
+    void shouldLoadUserRolesWhenSearchingForUsers() {
+        RealmModel realm = mock(RealmModel.class);
+        when(realm.getId()).thenReturn("SdHDHesCk4");
+
+        List<UserModel> users = provider.searchForUserByUserAttribute(UserModel.LAST_NAME, "Doe", realm);
+        assertEquals(1, users.size());
+        assertEquals(2, users.get(0).getRoleMappingsStream().count());
+        assertSame(users.get(0), provider.getUserByUsername("test", realm));
+    }
+
+    @Test
+    void shouldPaginateUsersWithKeysetCursor() {
+        RealmModel realm = mock(RealmModel.class);
+        when(realm.getId()).thenReturn("SdHDHesCk4");
+        insertUsers(5);
+
+        assertEquals(6, provider.getUsersCount(realm));
+        assertEquals(Stream.of("test", "user0").collect(Collectors.toList()),
+                getUsernames(provider.getUsers(realm, 0, 2)));
+        assertEquals("user0", cursorCache.get(componentModel.getId() + "/" + LegacyDatabaseUserQuery.all().getKey(),
+                2));
+
+        // Users inserted before the cursor must not shift the next page when keyset condition is used
+        new JdbcTemplate(embeddedDatabase).update("INSERT INTO users (username, password) VALUES ('a', 'hash')");
+        assertEquals(Stream.of("user1", "user2").collect(Collectors.toList()),
+                getUsernames(provider.getUsers(realm, 2, 2)));
+        assertEquals(Stream.of("user3", "user4").collect(Collectors.toList()),
+                getUsernames(provider.getUsers(realm, 4, 2)));
+        // Offset is used when cursor is unknown
+        assertEquals(Stream.of("user1", "user2").collect(Collectors.toList()),
+                getUsernames(provider.getUsers(realm, 3, 2)));
+    }
+
+    @Test
+    void shouldPaginateUsersWithOffsetFetchClause() {
+        dialect = SqlDialect.SQL_SERVER;
+        provider = createProvider(session);
+        RealmModel realm = mock(RealmModel.class);
+        when(realm.getId()).thenReturn("SdHDHesCk4");
+        insertUsers(5);
+
+        assertEquals(6, provider.getUsers(realm).size());
+        assertEquals(Stream.of("user1", "user2").collect(Collectors.toList()),
+                getUsernames(provider.getUsers(realm, 2, 2)));
+        assertEquals(Stream.of("user3", "user4").collect(Collectors.toList()),
+                getUsernames(provider.getUsers(realm, 4, -1)));
+    }
+
+    @Test
+    void shouldRecordMetrics() {
+        RealmModel realm = mock(RealmModel.class);
+        when(realm.getId()).thenReturn("SdHDHesCk4");
+
+        UserModel user = provider.getUserByUsername("test", realm);
+        assertNull(provider.getUserByUsername("#####", realm));
+        assertEquals(2, metrics.getUserLoadLatency().getCount());
+        assertEquals(1L, metrics.snapshot().get("users_not_found_total"));
+
+        when(passwordEncoder.matches(eq("wrong"), any())).thenReturn(false);
+        assertTrue(provider.isValid(realm, user, UserCredentialModel.password("secret")));
+        assertTrue(provider.isValid(realm, user, UserCredentialModel.password("secret")));
+        assertFalse(provider.isValid(realm, user, UserCredentialModel.password("wrong")));
+        assertEquals(2, metrics.getCredentialValidationLatency().getCount());
+        assertEquals(1L, metrics.snapshot().get("credential_cache_hits_total"));
+        assertEquals(1L, metrics.snapshot().get("credential_failures_total"));
+
+        when(passwordEncoder.matches(eq("overload"), any())).thenThrow(new PasswordEncodingException("Overloaded"));
+        assertThrows(ModelException.class, () -> provider.isValid(realm, user,
+                UserCredentialModel.password("overload")));
+        assertEquals(1L, metrics.snapshot().get("credential_failures_total"));
+        assertEquals(1L, metrics.snapshot().get("password_encoder_rejections_total"));
+    }
+
+    private void insertUsers(int count) {
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(embeddedDatabase);
+        for (int i = 0; i < count; i++) {
+            jdbcTemplate.update("INSERT INTO users (username, password, first_name, last_name) VALUES (?, ?, ?, ?)",
+                    "user" + i, "hash" + i, "First" + i, "Last" + i);
+        }
+    }
+
+    private static List<String> getUsernames(List<UserModel> users) {
+        return users.stream().map(UserModel::getUsername).collect(Collectors.toList());
+    }
+
+    private LegacyDatabaseUserStorageProvider createProvider(KeycloakSession session) {
+        return createProvider(session, embeddedDatabase);
+    }
+
+    private LegacyDatabaseUserStorageProvider createProvider(KeycloakSession session, DataSource dataSource) {
+        return new LegacyDatabaseUserStorageProvider(session, componentModel, dataSource, () -> dialect,
+                userLoader, passwordEncoder, userCache, roleCatalog, credentialCache,
+                LegacyDatabaseUserImporter.disabled(), emailLookup, loginAuditor, passwordUpdater,
+                invalidationBroadcaster, cursorCache, metrics);
+    }
+
+    private LegacyDatabaseUserStorageProvider createImportingProvider(LegacyDatabaseUserImporter.ImportValidation
+                                                                              validation) {
+        return new LegacyDatabaseUserStorageProvider(session, componentModel, embeddedDatabase, () -> dialect,
+                userLoader, passwordEncoder, userCache, roleCatalog, credentialCache,
+                LegacyDatabaseUserImporter.enabled(validation), emailLookup, loginAuditor, passwordUpdater,
+                invalidationBroadcaster, cursorCache, metrics);
+    }
 }
@@ -0,0 +1,136 @@
+package com.habr.keycloak.storage;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.credential.CredentialModel;
+import org.keycloak.models.*;
+import org.keycloak.models.credential.PasswordCredentialModel;
+import org.keycloak.storage.UserStorageProviderModel;
+import org.keycloak.storage.user.SynchronizationResult;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+/**
+ * @author Roman Chigvintsev
+ */
+class LegacyDatabaseUserSynchronizerTest {
+    private EmbeddedDatabase embeddedDatabase;
+    private KeycloakSessionFactory sessionFactory;
+    private UserProvider localStorage;
+    private RealmModel realm;
+    private UserStorageProviderModel storageProviderModel;
+    private final Map<String, UserModel> localUsers = new HashMap<>();
+
+    @BeforeEach
+    void setUp() {
+        embeddedDatabase = new EmbeddedDatabaseBuilder()
+                .setType(EmbeddedDatabaseType.H2)
+                .addDefaultScripts()
+                .build();
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(embeddedDatabase);
+        for (int i = 0; i < 25; i++) {
+            jdbcTemplate.update("INSERT INTO users (username, password, first_name, last_name) VALUES (?, ?, ?, ?)",
+                    "user" + i, "$2a$10$hash" + i, "First" + i, "Last" + i);
+            if (i % 2 == 0) {
+                jdbcTemplate.update("INSERT INTO authorities (username, authority) VALUES (?, 'ROLE_USER')",
+                        "user" + i);
+            }
+        }
+
+        realm = mock(RealmModel.class);
+        when(realm.getRole(anyString())).thenReturn(mock(RoleModel.class));
+
+        localStorage = mock(UserProvider.class);
+        when(localStorage.getUserByUsername(anyString(), eq(realm)))
+                .thenAnswer(invocation -> localUsers.get(invocation.<String>getArgument(0)));
+        when(localStorage.addUser(eq(realm), anyString())).thenAnswer(invocation -> {
+            UserModel user = mock(UserModel.class);
+            when(user.getRealmRoleMappingsStream()).thenReturn(Stream.empty());
+            return user;
+        });
+
+        UserCredentialManager credentialManager = mock(UserCredentialManager.class);
+        when(credentialManager.getStoredCredentialsByTypeStream(any(), any(), anyString()))
+                .thenAnswer(invocation -> Stream.<CredentialModel>empty());
+
+        RealmProvider realms = mock(RealmProvider.class);
+        when(realms.getRealm("SdHDHesCk4")).thenReturn(realm);
+
+        KeycloakSession session = mock(KeycloakSession.class);
+        when(session.realms()).thenReturn(realms);
+        when(session.userLocalStorage()).thenReturn(localStorage);
+        when(session.userCredentialManager()).thenReturn(credentialManager);
+        when(session.getTransactionManager()).thenReturn(mock(KeycloakTransactionManager.class));
+
+        sessionFactory = mock(KeycloakSessionFactory.class);
+        when(sessionFactory.create()).thenReturn(session);
+
+        storageProviderModel = new UserStorageProviderModel();
+        storageProviderModel.setId("lB497ShddT");
+        storageProviderModel.setName("legacy");
+    }
+
+    @AfterEach
+    void tearDown() {
+        embeddedDatabase.shutdown();
+    }
+
+    @Test
+    void shouldImportAllUsersInBatches() {
+        LegacyDatabaseUserSynchronizer synchronizer = new LegacyDatabaseUserSynchronizer(embeddedDatabase,
+                LegacyDatabaseUserImporter.enabled(LegacyDatabaseUserImporter.ImportValidation.NONE), 7, 10, null);
+
+        SynchronizationResult result = synchronizer.sync(sessionFactory, "SdHDHesCk4", storageProviderModel);
+        assertEquals(26, result.getAdded());
+        assertEquals(0, result.getUpdated());
+        assertEquals(0, result.getFailed());
+        verify(localStorage, times(26)).addUser(eq(realm), anyString());
+        verify(sessionFactory, times(3)).create();
+    }
+
+    @Test
+    void shouldNotOverwriteLocalUserThatIsNotLinkedWithStorageProvider() {
+        UserModel localUser = mock(UserModel.class);
+        localUsers.put("test", localUser);
+
+        LegacyDatabaseUserSynchronizer synchronizer = new LegacyDatabaseUserSynchronizer(embeddedDatabase,
+                LegacyDatabaseUserImporter.enabled(LegacyDatabaseUserImporter.ImportValidation.NONE), 100, 100, null);
+
+        SynchronizationResult result = synchronizer.sync(sessionFactory, "SdHDHesCk4", storageProviderModel);
+        assertEquals(25, result.getAdded());
+        assertEquals(1, result.getFailed());
+        verify(localUser, never()).setFirstName(any());
+    }
+
+    @Test
+    void shouldImportUsersOneByOneWhenBatchFails() {
+        when(localStorage.addUser(realm, "user3")).thenThrow(new ModelException("Broken user"));
+
+        LegacyDatabaseUserSynchronizer synchronizer = new LegacyDatabaseUserSynchronizer(embeddedDatabase,
+                LegacyDatabaseUserImporter.enabled(LegacyDatabaseUserImporter.ImportValidation.NONE), 100, 10, null);
+
+        SynchronizationResult result = synchronizer.sync(sessionFactory, "SdHDHesCk4", storageProviderModel);
+        assertEquals(25, result.getAdded());
+        assertEquals(1, result.getFailed());
+    }
+
+    @Test
+    void shouldIgnoreSynchronizationWhenImportIsDisabled() {
+        LegacyDatabaseUserSynchronizer synchronizer = new LegacyDatabaseUserSynchronizer(embeddedDatabase,
+                LegacyDatabaseUserImporter.disabled(), 100, 100, null);
+        assertTrue(synchronizer.sync(sessionFactory, "SdHDHesCk4", storageProviderModel).isIgnored());
+        verifyNoInteractions(sessionFactory);
+    }
+}